@@ -0,0 +1,145 @@
+package pcap.reconst.http;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+import pcap.reconst.http.datamodel.SpilledEntity;
+
+/**
+ * Collects the body of one message according to a {@link HttpBodyLimits}.  The
+ * first bytes are kept in memory up to the limit, anything beyond is either 
+ * written to a spill file together with the in memory prefix, or dropped.
+ */
+class BodySink {
+	private static Log log = LogFactory.getLog(BodySink.class);
+
+	private final HttpBodyLimits limits;
+	private final ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+	private File spillFile = null;
+	private OutputStream spill = null;
+	private boolean truncated = false;
+	private long count = 0;
+
+	BodySink(HttpBodyLimits limits) {
+		this.limits = limits;
+	}
+
+	void write(byte[] data, int offset, int length) {
+		count += length;
+		if (spill != null) {
+			try {
+				spill.write(data, offset, length);
+				return;
+			} catch (IOException e) {
+				if (log.isErrorEnabled()) {
+					log.error("Unable to write to spill file " + spillFile, e);
+				}
+				closeSpill();
+				spillFile.delete();
+				spillFile = null;
+				truncated = true;
+			}
+		}
+		if (truncated) {
+			return;
+		}
+
+		long room = limits.getMaxBodyBytes() - prefix.size();
+		if (limits.isUnlimited() || length <= room) {
+			prefix.write(data, offset, length);
+		} else if (limits.getSpillDirectory() != null && startSpill()) {
+			write(data, offset, length);
+		} else {
+			prefix.write(data, offset, (int) Math.max(0, room));
+			truncated = true;
+		}
+	}
+
+	private boolean startSpill() {
+		try {
+			spillFile = File.createTempFile("pcap-reconst-body", ".tmp",
+					limits.getSpillDirectory());
+			spill = new BufferedOutputStream(new FileOutputStream(spillFile));
+			prefix.writeTo(spill);
+			return true;
+		} catch (IOException e) {
+			if (log.isErrorEnabled()) {
+				log.error("Unable to create spill file in " + limits.getSpillDirectory(), e);
+			}
+			closeSpill();
+			if (spillFile != null) {
+				spillFile.delete();
+				spillFile = null;
+			}
+			return false;
+		}
+	}
+
+	private void closeSpill() {
+		if (spill != null) {
+			try {
+				spill.close();
+			} catch (IOException e) {
+				if (log.isErrorEnabled()) {
+					log.error("Unable to close spill file " + spillFile, e);
+				}
+			}
+			spill = null;
+		}
+	}
+
+	/**
+	 * Flags the body as partial, e.g. when the message was cut short.
+	 */
+	void markTruncated() {
+		truncated = true;
+	}
+
+	/**
+	 * @return the number of body bytes written, including dropped bytes.
+	 */
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return true if bytes beyond the limit were dropped, or the body is 
+	 * otherwise incomplete.
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return the in memory part of the body, at most the configured limit.
+	 */
+	byte[] getPrefix() {
+		return prefix.toByteArray();
+	}
+
+	/**
+	 * Finishes the body and wraps it in an entity.
+	 */
+	AbstractHttpEntity toEntity(Header contentType, Header contentEncoding) {
+		AbstractHttpEntity entity;
+		if (spillFile != null) {
+			closeSpill();
+			entity = new SpilledEntity(spillFile);
+		} else {
+			entity = new ByteArrayEntity(prefix.toByteArray());
+		}
+		entity.setContentType(contentType);
+		entity.setContentEncoding(contentEncoding);
+		return entity;
+	}
+}
@@ -0,0 +1,20 @@
+package pcap.reconst.http;
+
+import pcap.reconst.http.datamodel.RecordedHttpFlow;
+import pcap.reconst.tcp.TcpConnection;
+
+/**
+ * Receives HTTP flows one at a time as they are parsed, so that callers do not 
+ * need to hold every flow of a capture in memory.
+ */
+public interface FlowListener {
+
+	/**
+	 * Called for each request/response exchange parsed from a connection, in
+	 * stream order.
+	 * 
+	 * @param connection the connection the flow was parsed from.
+	 * @param flow the parsed flow.
+	 */
+	void flowParsed(TcpConnection connection, RecordedHttpFlow flow);
+}
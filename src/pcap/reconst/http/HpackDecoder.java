@@ -0,0 +1,238 @@
+package pcap.reconst.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.ProtocolException;
+import org.apache.http.message.BasicHeader;
+
+import pcap.reconst.http.datamodel.Utils;
+
+/**
+ * Decodes the HPACK (RFC 7541) header blocks sent in one direction of an 
+ * HTTP/2 connection.  The dynamic table is shared by all header blocks of the
+ * direction, so blocks have to be decoded in the order they were sent, and a
+ * block which cannot be decoded leaves the table in an unknown state.
+ */
+class HpackDecoder {
+
+	static final int DEFAULT_TABLE_SIZE = 4096;
+
+	//size of a table entry beyond the length of its name and value
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private static final String[][] STATIC_TABLE = {
+		{ ":authority", "" },
+		{ ":method", "GET" },
+		{ ":method", "POST" },
+		{ ":path", "/" },
+		{ ":path", "/index.html" },
+		{ ":scheme", "http" },
+		{ ":scheme", "https" },
+		{ ":status", "200" },
+		{ ":status", "204" },
+		{ ":status", "206" },
+		{ ":status", "304" },
+		{ ":status", "400" },
+		{ ":status", "404" },
+		{ ":status", "500" },
+		{ "accept-charset", "" },
+		{ "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" },
+		{ "accept-ranges", "" },
+		{ "accept", "" },
+		{ "access-control-allow-origin", "" },
+		{ "age", "" },
+		{ "allow", "" },
+		{ "authorization", "" },
+		{ "cache-control", "" },
+		{ "content-disposition", "" },
+		{ "content-encoding", "" },
+		{ "content-language", "" },
+		{ "content-length", "" },
+		{ "content-location", "" },
+		{ "content-range", "" },
+		{ "content-type", "" },
+		{ "cookie", "" },
+		{ "date", "" },
+		{ "etag", "" },
+		{ "expect", "" },
+		{ "expires", "" },
+		{ "from", "" },
+		{ "host", "" },
+		{ "if-match", "" },
+		{ "if-modified-since", "" },
+		{ "if-none-match", "" },
+		{ "if-range", "" },
+		{ "if-unmodified-since", "" },
+		{ "last-modified", "" },
+		{ "link", "" },
+		{ "location", "" },
+		{ "max-forwards", "" },
+		{ "proxy-authenticate", "" },
+		{ "proxy-authorization", "" },
+		{ "range", "" },
+		{ "referer", "" },
+		{ "refresh", "" },
+		{ "retry-after", "" },
+		{ "server", "" },
+		{ "set-cookie", "" },
+		{ "strict-transport-security", "" },
+		{ "transfer-encoding", "" },
+		{ "user-agent", "" },
+		{ "vary", "" },
+		{ "via", "" },
+		{ "www-authenticate", "" },
+	};
+
+	//the dynamic table, a ring with the newest entry at head
+	private String[] names = new String[16], values = new String[16];
+	private int head = 0, count = 0;
+	private int size = 0, maxSize = DEFAULT_TABLE_SIZE;
+
+	//the block being decoded
+	private byte[] block;
+	private int pos, end;
+
+	/**
+	 * @return the header fields of a complete header block, pseudo-header 
+	 * fields included, in block order.
+	 * @throws ProtocolException if the block is malformed.
+	 */
+	List<Header> decode(byte[] data, int offset, int length) throws ProtocolException {
+		List<Header> headers = new ArrayList<Header>();
+		block = data;
+		pos = offset;
+		end = offset + length;
+		try {
+			while (pos < end) {
+				int b = block[pos] & 0xff;
+				if ((b & 0x80) != 0) {
+					//indexed header field
+					int index = readInt(7);
+					headers.add(new BasicHeader(getName(index), getValue(index)));
+				} else if ((b & 0x40) != 0) {
+					//literal header field with incremental indexing
+					Header header = readLiteral(6);
+					add(header.getName(), header.getValue());
+					headers.add(header);
+				} else if ((b & 0x20) != 0) {
+					//dynamic table size update, not checked against the 
+					//SETTINGS of the receiver which may be reassembled later
+					maxSize = readInt(5);
+					evict(0);
+				} else {
+					//literal header field without indexing or never indexed
+					headers.add(readLiteral(4));
+				}
+			}
+		} finally {
+			block = null;
+		}
+		return headers;
+	}
+
+	private Header readLiteral(int prefix) throws ProtocolException {
+		int index = readInt(prefix);
+		String name = index == 0 ? readString() : getName(index);
+		return new BasicHeader(name, readString());
+	}
+
+	private int readInt(int prefix) throws ProtocolException {
+		checkAvailable(1);
+		int mask = (1 << prefix) - 1;
+		int value = block[pos++] & mask;
+		if (value < mask) {
+			return value;
+		}
+		int shift = 0, b;
+		do {
+			checkAvailable(1);
+			if (shift > 21) {
+				throw new ProtocolException("Integer overflow in header block");
+			}
+			b = block[pos++] & 0xff;
+			value += (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private String readString() throws ProtocolException {
+		checkAvailable(1);
+		boolean huffman = (block[pos] & 0x80) != 0;
+		int length = readInt(7);
+		checkAvailable(length);
+		String value = huffman ? HpackHuffman.decode(block, pos, length)
+				: Utils.fromAsciiBytes(block, pos, length);
+		pos += length;
+		return value;
+	}
+
+	private void checkAvailable(int length) throws ProtocolException {
+		if (length > end - pos) {
+			throw new ProtocolException("Truncated header block");
+		}
+	}
+
+	private String getName(int index) throws ProtocolException {
+		return index <= STATIC_TABLE.length ? getStatic(index)[0] 
+				: names[getDynamic(index)];
+	}
+
+	private String getValue(int index) throws ProtocolException {
+		return index <= STATIC_TABLE.length ? getStatic(index)[1] 
+				: values[getDynamic(index)];
+	}
+
+	private static String[] getStatic(int index) throws ProtocolException {
+		if (index == 0) {
+			throw new ProtocolException("Invalid header index 0");
+		}
+		return STATIC_TABLE[index - 1];
+	}
+
+	private int getDynamic(int index) throws ProtocolException {
+		int entry = index - STATIC_TABLE.length - 1;
+		if (entry >= count) {
+			throw new ProtocolException("Invalid header index " + index);
+		}
+		return (head + entry) % names.length;
+	}
+
+	private void add(String name, String value) {
+		int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+		//an entry larger than the table empties it
+		evict(Math.min(entrySize, maxSize + 1));
+		if (entrySize > maxSize) {
+			return;
+		}
+		if (count == names.length) {
+			String[] newNames = new String[count * 2], newValues = new String[count * 2];
+			for (int i = 0; i < count; i++) {
+				newNames[i] = names[(head + i) % names.length];
+				newValues[i] = values[(head + i) % names.length];
+			}
+			names = newNames;
+			values = newValues;
+			head = 0;
+		}
+		head = (head - 1 + names.length) % names.length;
+		names[head] = name;
+		values[head] = value;
+		count++;
+		size += entrySize;
+	}
+
+	//drops the oldest entries until room bytes fit into the table
+	private void evict(int room) {
+		while (count > 0 && size + room > maxSize) {
+			int oldest = (head + count - 1) % names.length;
+			size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+			names[oldest] = null;
+			values[oldest] = null;
+			count--;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package pcap.reconst.http;
+
+import org.apache.http.ProtocolException;
+
+/**
+ * Decodes the Huffman coded string literals of HPACK header blocks, see
+ * RFC 7541 Appendix B.  The code is canonical, so the codes are derived from
+ * the code lengths of the symbols.
+ */
+class HpackHuffman {
+
+	private static final int EOS = 256;
+	private static final int MAX_LENGTH = 30;
+
+	//code length of each symbol, 0-255 and EOS
+	private static final byte[] LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+			5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+			6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30
+	};
+
+	//the symbols ordered by code, and per code length the first code and
+	//the number of codes
+	private static final int[] SYMBOLS = new int[LENGTHS.length];
+	private static final int[] FIRST_CODE = new int[MAX_LENGTH + 1];
+	private static final int[] FIRST_SYMBOL = new int[MAX_LENGTH + 1];
+	private static final int[] COUNTS = new int[MAX_LENGTH + 1];
+
+	static {
+		int count = 0;
+		for (int length = 1; length <= MAX_LENGTH; length++) {
+			FIRST_SYMBOL[length] = count;
+			for (int symbol = 0; symbol < LENGTHS.length; symbol++) {
+				if (LENGTHS[symbol] == length) {
+					SYMBOLS[count++] = symbol;
+				}
+			}
+			COUNTS[length] = count - FIRST_SYMBOL[length];
+		}
+		int code = 0;
+		for (int length = 1; length <= MAX_LENGTH; length++) {
+			FIRST_CODE[length] = code;
+			code = (code + COUNTS[length]) << 1;
+		}
+	}
+
+	private HpackHuffman() {
+	}
+
+	/**
+	 * @return the decoded octets of a Huffman coded string, one char per octet.
+	 * @throws ProtocolException if the string holds EOS, an invalid code or
+	 * invalid padding.
+	 */
+	static String decode(byte[] data, int offset, int length) throws ProtocolException {
+		StringBuilder sb = new StringBuilder(length * 8 / 5);
+		int code = 0, bits = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int b = data[i] & 0xff;
+			for (int shift = 7; shift >= 0; shift--) {
+				code = (code << 1) | ((b >>> shift) & 1);
+				bits++;
+				int index = code - FIRST_CODE[bits];
+				if (index >= 0 && index < COUNTS[bits]) {
+					int symbol = SYMBOLS[FIRST_SYMBOL[bits] + index];
+					if (symbol == EOS) {
+						throw new ProtocolException("EOS in Huffman coded string");
+					}
+					sb.append((char) symbol);
+					code = 0;
+					bits = 0;
+				} else if (bits == MAX_LENGTH) {
+					throw new ProtocolException("Invalid Huffman code");
+				}
+			}
+		}
+		//the last code is padded with the most significant bits of EOS, all ones
+		if (bits > 7 || code != (1 << bits) - 1) {
+			throw new ProtocolException("Invalid padding of Huffman coded string");
+		}
+		return sb.toString();
+	}
+}
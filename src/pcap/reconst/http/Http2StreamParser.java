@@ -0,0 +1,586 @@
+package pcap.reconst.http;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpMessage;
+import org.apache.http.ProtocolException;
+
+import pcap.reconst.http.datamodel.RecordedHttpFlow;
+import pcap.reconst.http.datamodel.RecordedHttpMessage;
+import pcap.reconst.http.datamodel.RecordedHttpRequestMessage;
+import pcap.reconst.http.datamodel.RecordedHttpResponse;
+import pcap.reconst.http.datamodel.Utils;
+import pcap.reconst.tcp.BufferPool;
+import pcap.reconst.tcp.MessageMetadata;
+import pcap.reconst.tcp.PacketType;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.TimestampPair;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Incremental HTTP/2 parser for a single connection, either started with the
+ * connection preface (prior knowledge) or upgraded from HTTP/1.1 with h2c,
+ * see {@link HttpStreamParser}.  The frames of each direction are read as
+ * their bytes arrive from reassembly and released once read.  Header blocks
+ * are decoded with the HPACK table of their direction, and the DATA of each
+ * stream is collected until the stream ends, at which point the stream is
+ * handed to a {@link FlowListener}.
+ * <p>
+ * The messages of a flow are given in HTTP/1.1 form: the pseudo-header fields
+ * become the request or status line with protocol version HTTP/2.0, and the
+ * raw data of a flow holds the decoded message heads each followed by its
+ * DATA, the same way as {@link HttpStreamParser} does with body limits.
+ */
+public class Http2StreamParser implements UpgradeTarget {
+
+	private static Log log = LogFactory.getLog(Http2StreamParser.class);
+
+	/** The connection preface which starts the client side of a connection. */
+	public static final String PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n";
+	private static final byte[] PREFACE_BYTES = Utils.toAsciiBytes(PREFACE);
+
+	private static final int FRAME_HEADER_LENGTH = 9;
+
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int RST_STREAM = 0x3;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int CONTINUATION = 0x9;
+
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	private final TcpConnection connection;
+	private final FlowListener listener;
+	private final boolean compactHeaders;
+	private final HttpBodyLimits bodyLimits;
+
+	private final FrameReader reqReader = new FrameReader(), respReader = new FrameReader();
+	//the streams which have not been handed to the listener, by id
+	private final SortedMap<Integer, Http2Stream> streams = new TreeMap<Integer, Http2Stream>();
+	private BufferPool bufferPool = null;
+
+	public Http2StreamParser(TcpConnection connection, FlowListener listener,
+			boolean compactHeaders) {
+		this(connection, listener, compactHeaders, null);
+	}
+
+	/**
+	 * @param bodyLimits limits on the DATA bytes buffered per message, or null
+	 * to keep at most {@link HttpBodyLimits#DEFAULT_MAX_BODY_BYTES}.
+	 */
+	public Http2StreamParser(TcpConnection connection, FlowListener listener,
+			boolean compactHeaders, HttpBodyLimits bodyLimits) {
+		this.connection = connection;
+		this.listener = listener;
+		this.compactHeaders = compactHeaders;
+		this.bodyLimits = bodyLimits != null ? bodyLimits 
+				: new HttpBodyLimits(HttpBodyLimits.DEFAULT_MAX_BODY_BYTES);
+	}
+
+	/**
+	 * Sets the HTTP/1.1 request of a connection upgraded with h2c, which is
+	 * answered on stream 1.
+	 */
+	void setUpgradeRequest(RecordedHttpRequestMessage request, byte[] raw) {
+		Http2Stream stream = getStream(1);
+		stream.upgradeRequest = request;
+		stream.upgradeRaw = raw;
+		stream.request.ended = true;
+	}
+
+	/**
+	 * Takes the frame buffers from a pool, and hands them back when the 
+	 * stream is closed.
+	 * 
+	 * @param bufferPool the pool, or null to allocate the buffers.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	private FrameReader getReader(PacketType direction) {
+		return direction == PacketType.Request ? reqReader : respReader;
+	}
+
+	public void sequencedData(PacketType direction, TcpPacket packet,
+			byte[] data, int offset, int length) {
+		append(direction, new TcpConnection(packet), packet.getTimestampSec()
+				+ (packet.getTimestampUSec() / 1000000.0), data, offset, length);
+	}
+
+	public void append(PacketType direction, TcpConnection sender, double timestamp,
+			byte[] data, int offset, int length) {
+		FrameReader reader = getReader(direction);
+		if (reader.sender == null) {
+			reader.sender = sender;
+		}
+		reader.append(timestamp, data, offset, length);
+		reader.read();
+	}
+
+	public void sequenceGap(PacketType direction, long length) {
+		//frame boundaries and the HPACK table of the direction are lost
+		getReader(direction).fail("missing data");
+	}
+
+	public void streamClosed() {
+		List<Http2Stream> remaining = new ArrayList<Http2Stream>(streams.values());
+		for (Http2Stream stream : remaining) {
+			emit(stream);
+		}
+		reqReader.release();
+		respReader.release();
+	}
+
+	private Http2Stream getStream(int id) {
+		Http2Stream stream = streams.get(id);
+		if (stream == null) {
+			stream = new Http2Stream(id);
+			streams.put(id, stream);
+		}
+		return stream;
+	}
+
+	private void headersDecoded(FrameReader reader, int streamId, int promisedId,
+			List<Header> headers, boolean endStream, double startTS, double endTS) {
+		if (promisedId != 0) {
+			//a request pushed by the server, the response follows on the promised stream
+			Http2Stream promised = getStream(promisedId);
+			FrameReader client = reader == reqReader ? respReader : reqReader;
+			promised.request.headers(headers, client.sender != null ? client.sender
+					: reader.sender, startTS, endTS);
+			promised.request.ended = true;
+			return;
+		}
+		Http2Stream stream = getStream(streamId);
+		if (reader.client) {
+			stream.request.headers(headers, reader.sender, startTS, endTS);
+		} else if (isInterimResponse(headers)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Skipping interim response on stream " + streamId + " in: " + connection);
+			}
+		} else {
+			stream.response.headers(headers, reader.sender, startTS, endTS);
+		}
+		if (endStream) {
+			endStream(stream, reader.client);
+		}
+	}
+
+	private void dataReceived(FrameReader reader, int streamId, byte[] data, int offset,
+			int length, boolean endStream, double endTS) {
+		Http2Stream stream = getStream(streamId);
+		HalfStream half = reader.client ? stream.request : stream.response;
+		if (half.body == null) {
+			half.body = new BodySink(bodyLimits);
+		}
+		half.body.write(data, offset, length);
+		half.endTS = endTS;
+		if (endStream) {
+			endStream(stream, reader.client);
+		}
+	}
+
+	private void endStream(Http2Stream stream, boolean client) {
+		(client ? stream.request : stream.response).ended = true;
+		if (stream.request.ended && stream.response.ended) {
+			emit(stream);
+		}
+	}
+
+	private void streamReset(int streamId) {
+		Http2Stream stream = streams.get(streamId);
+		if (stream != null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Stream " + streamId + " reset in: " + connection);
+			}
+			emit(stream);
+		}
+	}
+
+	private void emit(Http2Stream stream) {
+		streams.remove(stream.id);
+		RecordedHttpRequestMessage request = stream.upgradeRequest;
+		byte[] reqRaw = stream.upgradeRaw;
+		if (request == null && stream.request.headerList != null) {
+			byte[] head = toRequestHead(stream.request.headerList);
+			if (head != null) {
+				request = (RecordedHttpRequestMessage) parse(true, head, stream.request);
+				reqRaw = HttpStreamParser.withBody(head, stream.request.body);
+			}
+		}
+		if (request == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("No request on stream " + stream.id + " in: " + connection);
+			}
+			return;
+		}
+		RecordedHttpResponse response = null;
+		byte[] rawdata = reqRaw;
+		if (stream.response.headerList != null) {
+			byte[] head = toResponseHead(stream.response.headerList);
+			if (head != null) {
+				response = (RecordedHttpResponse) parse(false, head, stream.response);
+				byte[] respRaw = HttpStreamParser.withBody(head, stream.response.body);
+				rawdata = Arrays.copyOf(reqRaw, reqRaw.length + respRaw.length);
+				System.arraycopy(respRaw, 0, rawdata, reqRaw.length, respRaw.length);
+			}
+		}
+		listener.flowParsed(connection, new RecordedHttpFlow(rawdata, request, response));
+	}
+
+	private RecordedHttpMessage parse(boolean isRequest, byte[] head, HalfStream half) {
+		if (half.body != null && !half.ended) {
+			//reset, or cut short by the end of the connection
+			half.body.markTruncated();
+		}
+		try {
+			MessageMetadata mdata = new MessageMetadata(
+					new TimestampPair(half.startTS, half.endTS), half.sender);
+			HttpMessage message;
+			if (isRequest && compactHeaders) {
+				message = RecordedHttpMessageParser.parseCompactRecordedRequest(
+						head, 0, head.length, mdata);
+			} else if (isRequest) {
+				message = RecordedHttpMessageParser.parseRecordedRequest(
+						Utils.fromAsciiBytes(head, 0, head.length), mdata);
+			} else if (compactHeaders) {
+				message = RecordedHttpMessageParser.parseCompactRecordedResponse(
+						head, 0, head.length, mdata);
+			} else {
+				message = RecordedHttpMessageParser.parseRecordedResponse(
+						Utils.fromAsciiBytes(head, 0, head.length), mdata);
+			}
+			HttpStreamParser.setBody((RecordedHttpMessage) message, half.body);
+			return (RecordedHttpMessage) message;
+		} catch (Exception e) {
+			if (log.isErrorEnabled()) {
+				log.error("Unable to parse " + (isRequest ? "request" : "response")
+						+ " in stream: " + connection, e);
+			}
+			return null;
+		}
+	}
+
+	private static String getHeader(List<Header> headers, String name) {
+		for (Header header : headers) {
+			if (header.getName().equals(name)) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	private static boolean isInterimResponse(List<Header> headers) {
+		String status = getHeader(headers, ":status");
+		return status != null && status.length() == 3 && status.charAt(0) == '1';
+	}
+
+	//the request line and headers of a request in HTTP/1.1 form
+	private byte[] toRequestHead(List<Header> headers) {
+		String method = getHeader(headers, ":method");
+		String authority = getHeader(headers, ":authority");
+		String path = "CONNECT".equals(method) ? authority : getHeader(headers, ":path");
+		if (method == null || path == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Request without method or path in stream: " + connection);
+			}
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(method).append(' ').append(path).append(" HTTP/2.0\r\n");
+		if (authority != null && getHeader(headers, "host") == null) {
+			sb.append("Host: ").append(authority).append("\r\n");
+		}
+		return toHead(sb, headers);
+	}
+
+	//the status line and headers of a response in HTTP/1.1 form
+	private byte[] toResponseHead(List<Header> headers) {
+		String status = getHeader(headers, ":status");
+		if (status == null) {
+			if (log.isDebugEnabled()) {
+				log.debug("Response without status in stream: " + connection);
+			}
+			return null;
+		}
+		return toHead(new StringBuilder("HTTP/2.0 ").append(status).append("\r\n"), headers);
+	}
+
+	private static byte[] toHead(StringBuilder sb, List<Header> headers) {
+		for (Header header : headers) {
+			if (!header.getName().startsWith(":")) {
+				sb.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+			}
+		}
+		return Utils.toAsciiBytes(sb.append("\r\n").toString());
+	}
+
+	/**
+	 * One direction of a stream.
+	 */
+	private static class HalfStream {
+		List<Header> headerList = null;
+		BodySink body = null;
+		TcpConnection sender = null;
+		double startTS, endTS;
+		boolean ended = false;
+
+		void headers(List<Header> headers, TcpConnection sender, double startTS, double endTS) {
+			if (headerList == null) {
+				headerList = headers;
+				this.sender = sender;
+				this.startTS = startTS;
+			} else {
+				//trailers
+				headerList.addAll(headers);
+			}
+			this.endTS = endTS;
+		}
+	}
+
+	private static class Http2Stream {
+		final int id;
+		final HalfStream request = new HalfStream(), response = new HalfStream();
+		//the HTTP/1.1 request of a connection upgraded with h2c
+		RecordedHttpRequestMessage upgradeRequest = null;
+		byte[] upgradeRaw = null;
+
+		Http2Stream(int id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * Reads the frames of one direction.  Buffered bytes always start at the
+	 * beginning of a frame.
+	 */
+	private class FrameReader {
+		TcpConnection sender = null;
+
+		//whether the direction started with the connection preface
+		boolean client = false;
+		private boolean started = false;
+		private boolean failed = false;
+
+		private final HpackDecoder decoder = new HpackDecoder();
+
+		//a header block continued in CONTINUATION frames
+		private ByteArrayOutputStream block = null;
+		private int blockStream, blockPromised;
+		private boolean blockEndStream;
+		private double blockStartTS;
+
+		private byte[] buf = new byte[1024];
+		private int len = 0;
+
+		//timestamps of the buffered bytes, one mark per packet
+		private int marks = 0;
+		private int[] markOffsets = new int[16];
+		private double[] markTimestamps = new double[16];
+
+		void append(double timestamp, byte[] data, int offset, int length) {
+			if (failed) {
+				return;
+			}
+			if (len + length > buf.length) {
+				int capacity = Math.max(buf.length * 2, len + length);
+				buf = bufferPool != null ? bufferPool.grow(buf, len, capacity) 
+						: Arrays.copyOf(buf, capacity);
+			}
+			System.arraycopy(data, offset, buf, len, length);
+
+			if (marks == markOffsets.length) {
+				markOffsets = Arrays.copyOf(markOffsets, marks * 2);
+				markTimestamps = Arrays.copyOf(markTimestamps, marks * 2);
+			}
+			markOffsets[marks] = len;
+			markTimestamps[marks] = timestamp;
+			marks++;
+			len += length;
+		}
+
+		void fail(String reason) {
+			if (!failed && log.isDebugEnabled()) {
+				log.debug("Unable to read HTTP/2 frames after " + reason + " in stream: "
+						+ connection);
+			}
+			failed = true;
+			block = null;
+			release();
+		}
+		
+		//hands the buffer back to the pool, nothing is read afterwards
+		void release() {
+			if (bufferPool != null) {
+				bufferPool.release(buf);
+			}
+			buf = new byte[0];
+			len = 0;
+			marks = 0;
+		}
+
+		void read() {
+			if (!started && !readPreface()) {
+				return;
+			}
+			while (!failed && len >= FRAME_HEADER_LENGTH) {
+				int length = ((buf[0] & 0xff) << 16) | ((buf[1] & 0xff) << 8) | (buf[2] & 0xff);
+				int frameLength = FRAME_HEADER_LENGTH + length;
+				if (len < frameLength) {
+					return;
+				}
+				int type = buf[3] & 0xff, flags = buf[4] & 0xff;
+				int streamId = readInt31(5);
+				try {
+					frame(type, flags, streamId, length, getTimestamp(0),
+							getTimestamp(frameLength - 1));
+				} catch (ProtocolException e) {
+					fail(e.getMessage());
+					return;
+				}
+				consume(frameLength);
+			}
+		}
+
+		//tells the client from the server by the preface
+		private boolean readPreface() {
+			int count = Math.min(len, PREFACE_BYTES.length);
+			for (int i = 0; i < count; i++) {
+				if (buf[i] != PREFACE_BYTES[i]) {
+					started = true;
+					return true;
+				}
+			}
+			if (count < PREFACE_BYTES.length) {
+				return false;
+			}
+			consume(PREFACE_BYTES.length);
+			started = true;
+			client = true;
+			return true;
+		}
+
+		private void frame(int type, int flags, int streamId, int length,
+				double startTS, double endTS) throws ProtocolException {
+			int offset = FRAME_HEADER_LENGTH, end = offset + length;
+			if (block != null && type != CONTINUATION) {
+				throw new ProtocolException("Header block of stream " + blockStream
+						+ " not continued");
+			}
+			if (type == DATA || type == HEADERS || type == PUSH_PROMISE) {
+				if (streamId == 0) {
+					throw new ProtocolException("Frame type " + type + " on stream 0");
+				}
+				if ((flags & FLAG_PADDED) != 0) {
+					if (length < 1 || (buf[offset] & 0xff) > length - 1) {
+						throw new ProtocolException("Invalid padding");
+					}
+					end -= buf[offset] & 0xff;
+					offset++;
+				}
+			}
+			boolean endStream = (flags & FLAG_END_STREAM) != 0;
+			switch (type) {
+			case DATA:
+				dataReceived(this, streamId, buf, offset, end - offset, endStream, endTS);
+				break;
+			case HEADERS:
+				if ((flags & FLAG_PRIORITY) != 0) {
+					offset += 5;
+				}
+				startBlock(streamId, 0, endStream, flags, offset, end, startTS, endTS);
+				break;
+			case PUSH_PROMISE:
+				if (client || end - offset < 4) {
+					throw new ProtocolException("Invalid PUSH_PROMISE");
+				}
+				startBlock(streamId, readInt31(offset), false, flags, offset + 4, end,
+						startTS, endTS);
+				break;
+			case CONTINUATION:
+				if (block == null || streamId != blockStream) {
+					throw new ProtocolException("Unexpected CONTINUATION on stream " + streamId);
+				}
+				block.write(buf, offset, length);
+				if ((flags & FLAG_END_HEADERS) != 0) {
+					byte[] data = block.toByteArray();
+					block = null;
+					headersDecoded(this, blockStream, blockPromised,
+							decoder.decode(data, 0, data.length), blockEndStream, blockStartTS, endTS);
+				}
+				break;
+			case RST_STREAM:
+				streamReset(streamId);
+				break;
+			default:
+				//SETTINGS, PING, GOAWAY, WINDOW_UPDATE, PRIORITY and extensions
+				break;
+			}
+		}
+
+		private void startBlock(int streamId, int promisedId, boolean endStream, int flags,
+				int offset, int end, double startTS, double endTS) throws ProtocolException {
+			if (offset > end) {
+				throw new ProtocolException("Invalid header frame on stream " + streamId);
+			}
+			if ((flags & FLAG_END_HEADERS) != 0) {
+				headersDecoded(this, streamId, promisedId, decoder.decode(buf, offset, end - offset),
+						endStream, startTS, endTS);
+			} else {
+				block = new ByteArrayOutputStream();
+				block.write(buf, offset, end - offset);
+				blockStream = streamId;
+				blockPromised = promisedId;
+				blockEndStream = endStream;
+				blockStartTS = startTS;
+			}
+		}
+
+		private int readInt31(int offset) {
+			return ((buf[offset] & 0x7f) << 24) | ((buf[offset + 1] & 0xff) << 16)
+					| ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+		}
+
+		private double getTimestamp(int offset) {
+			int mark = 0;
+			while (mark + 1 < marks && markOffsets[mark + 1] <= offset) {
+				mark++;
+			}
+			return marks > 0 ? markTimestamps[mark] : 0;
+		}
+
+		//drops count bytes from the start of the buffer
+		private void consume(int count) {
+			System.arraycopy(buf, count, buf, 0, len - count);
+			len -= count;
+
+			int first = 0;
+			while (first + 1 < marks && markOffsets[first + 1] <= count) {
+				first++;
+			}
+			int kept = 0;
+			for (int i = first; i < marks; i++) {
+				markOffsets[kept] = Math.max(0, markOffsets[i] - count);
+				markTimestamps[kept] = markTimestamps[i];
+				kept++;
+			}
+			marks = len > 0 ? kept : 0;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package pcap.reconst.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpMessage;
+import org.apache.http.HttpResponse;
+
+import pcap.reconst.http.datamodel.TruncatableHttpMessage;
+
+/**
+ * Limits the number of body bytes retained per parsed message.  Message heads 
+ * are always kept.  Bodies longer than the limit are either spilled to a 
+ * temporary file in the spill directory, if one is set, or truncated to the 
+ * limit, in which case {@link TruncatableHttpMessage#isBodyTruncated()} is true.
+ */
+public class HttpBodyLimits {
+	private static Log log = LogFactory.getLog(HttpBodyLimits.class);
+
+	public static final long UNLIMITED = -1;
+	
+	/**
+	 * The body bytes kept per message by the streaming parsers when no limits 
+	 * are set.
+	 */
+	public static final long DEFAULT_MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+	private long maxBodyBytes = UNLIMITED;
+	private File spillDirectory = null;
+
+	public HttpBodyLimits() {
+	}
+
+	public HttpBodyLimits(long maxBodyBytes) {
+		this(maxBodyBytes, null);
+	}
+
+	/**
+	 * @param maxBodyBytes the number of body bytes kept in memory per message, 
+	 * or {@link #UNLIMITED}.
+	 * @param spillDirectory directory for bodies exceeding the limit, or null to 
+	 * truncate them instead.
+	 */
+	public HttpBodyLimits(long maxBodyBytes, File spillDirectory) {
+		this.maxBodyBytes = maxBodyBytes;
+		this.spillDirectory = spillDirectory;
+	}
+
+	public long getMaxBodyBytes() {
+		return maxBodyBytes;
+	}
+
+	public void setMaxBodyBytes(long maxBodyBytes) {
+		this.maxBodyBytes = maxBodyBytes;
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public boolean isUnlimited() {
+		return maxBodyBytes < 0;
+	}
+
+	/**
+	 * Replaces the entity of a parsed message with one that holds at most the 
+	 * configured number of bytes, or spills to a file, and flags the message 
+	 * if its body was truncated.
+	 */
+	public void apply(HttpMessage message) throws IOException {
+		HttpEntity entity = getEntity(message);
+		if (entity == null || isUnlimited()) {
+			return;
+		}
+		BodySink sink = new BodySink(this);
+		InputStream in = entity.getContent();
+		byte[] chunk = new byte[8192];
+		try {
+			int read;
+			while ((read = in.read(chunk)) != -1) {
+				sink.write(chunk, 0, read);
+			}
+		} catch (IOException e) {
+			//e.g. a body cut short by the end of the capture, keep what was read
+			if (log.isDebugEnabled()) {
+				log.debug("Body ended early.", e);
+			}
+			sink.markTruncated();
+		}
+		if (entity.getContentLength() >= 0 && sink.getCount() < entity.getContentLength()) {
+			//e.g. payload dropped by the retention limit of the reassembler
+			sink.markTruncated();
+		}
+		setEntity(message, sink.toEntity(entity.getContentType(),
+				entity.getContentEncoding()));
+		if (message instanceof TruncatableHttpMessage) {
+			((TruncatableHttpMessage) message).setBodyTruncated(sink.isTruncated());
+		}
+	}
+
+	/**
+	 * @return the length of the prefix of a raw message, starting at offset, 
+	 * which holds its head and at most the configured number of body bytes.
+	 */
+	public int limitRawLength(byte[] data, int offset, int length) {
+		if (isUnlimited()) {
+			return length;
+		}
+		int headEnd = RecordedHttpMessageParser.findHeaderEnd(data, offset, offset + length);
+		return (int) Math.min(length, headEnd - offset + maxBodyBytes);
+	}
+
+	static HttpEntity getEntity(HttpMessage message) {
+		if (message instanceof HttpEntityEnclosingRequest) {
+			return ((HttpEntityEnclosingRequest) message).getEntity();
+		} else if (message instanceof HttpResponse) {
+			return ((HttpResponse) message).getEntity();
+		}
+		return null;
+	}
+
+	static void setEntity(HttpMessage message, HttpEntity entity) {
+		if (message instanceof HttpEntityEnclosingRequest) {
+			((HttpEntityEnclosingRequest) message).setEntity(entity);
+		} else if (message instanceof HttpResponse) {
+			((HttpResponse) message).setEntity(entity);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package pcap.reconst.http;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import pcap.reconst.tcp.ConnectionSniffer;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Keeps connections whose first payload looks like HTTP/1.x or starts with the
+ * HTTP/2 connection preface, and discards the rest, e.g. TLS or database 
+ * traffic.  Connections on allowlisted ports, by default 80, 8080 and 8000, 
+ * are always kept.  Connections on other ports are sniffed, unless sniffing 
+ * is disabled with {@link #setSniffUnlisted(boolean)}, in which case they are 
+ * discarded.
+ * <p>
+ * A {@link pcap.reconst.tcp.PacketReassembler} only shows the sniffer the 
+ * packets starting the stream of their sender, so a capture starting in the 
+ * middle of a connection, or a segment arriving ahead of the first one, does 
+ * not get the connection discarded.
+ */
+public class HttpConnectionSniffer implements ConnectionSniffer {
+
+	private static final String[] METHODS = { "GET", "POST", "HEAD", "OPTIONS",
+			"PUT", "DELETE", "TRACE", "CONNECT", "PATCH" };
+	private static final String RESPONSE_PREFIX = "HTTP/";
+
+	private static final int[] DEFAULT_PORTS = { 80, 8080, 8000 };
+
+	private final Set<Integer> ports = new HashSet<Integer>();
+	private boolean sniffUnlisted = true;
+
+	/**
+	 * Keeps the connections on ports 80, 8080 and 8000.
+	 */
+	public HttpConnectionSniffer() {
+		this(DEFAULT_PORTS);
+	}
+
+	/**
+	 * @param ports ports on which connections are always kept, instead of the 
+	 * default ones.
+	 */
+	public HttpConnectionSniffer(int... ports) {
+		for (int port : ports) {
+			addPort(port);
+		}
+	}
+
+	public void addPort(int port) {
+		ports.add(port);
+	}
+
+	public Set<Integer> getPorts() {
+		return ports;
+	}
+
+	/**
+	 * @param sniffUnlisted true to sniff the payload of connections on ports 
+	 * which are not allowlisted, false to discard them.  Default true.
+	 */
+	public void setSniffUnlisted(boolean sniffUnlisted) {
+		this.sniffUnlisted = sniffUnlisted;
+	}
+
+	public boolean isSniffUnlisted() {
+		return sniffUnlisted;
+	}
+
+	public Verdict sniff(TcpPacket packet) {
+		if (ports.contains(packet.getSourcePort())
+				|| ports.contains(packet.getDestinationPort())) {
+			return Verdict.KEEP;
+		}
+		if (!sniffUnlisted) {
+			return Verdict.DISCARD;
+		}
+		return sniff(packet.getData());
+	}
+
+	/**
+	 * Checks whether data starts with an HTTP request line, status line or the
+	 * HTTP/2 connection preface.
+	 * 
+	 * @return {@link Verdict#UNDECIDED} if data is a prefix of both HTTP and 
+	 * something else.
+	 */
+	public static Verdict sniff(byte[] data) {
+		if (data == null || data.length == 0) {
+			return Verdict.UNDECIDED;
+		}
+		Verdict verdict = matchPrefix(data, RESPONSE_PREFIX);
+		if (verdict != Verdict.DISCARD) {
+			return verdict;
+		}
+		verdict = matchPrefix(data, Http2StreamParser.PREFACE);
+		if (verdict != Verdict.DISCARD) {
+			return verdict;
+		}
+		for (String method : METHODS) {
+			//the method must be followed by a space
+			verdict = matchPrefix(data, method + " ");
+			if (verdict != Verdict.DISCARD) {
+				return verdict;
+			}
+		}
+		return Verdict.DISCARD;
+	}
+
+	private static Verdict matchPrefix(byte[] data, String prefix) {
+		int count = Math.min(data.length, prefix.length());
+		for (int i = 0; i < count; i++) {
+			if (data[i] != prefix.charAt(i)) {
+				return Verdict.DISCARD;
+			}
+		}
+		return count == prefix.length() ? Verdict.KEEP : Verdict.UNDECIDED;
+	}
+}
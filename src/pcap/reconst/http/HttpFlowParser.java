@@ -2,6 +2,7 @@ package pcap.reconst.http;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,10 +19,19 @@ import org.apache.http.HttpException;
 import pcap.reconst.http.datamodel.RecordedHttpFlow;
 import pcap.reconst.http.datamodel.RecordedHttpRequestMessage;
 import pcap.reconst.http.datamodel.RecordedHttpResponse;
+import pcap.reconst.http.datamodel.TunnelRecord;
+import pcap.reconst.http.datamodel.Utils;
+import pcap.reconst.tcp.BufferPool;
+import pcap.reconst.tcp.DirectionTimeline;
 import pcap.reconst.tcp.MessageMetadata;
+import pcap.reconst.tcp.PacketReassembler;
+import pcap.reconst.tcp.PacketType;
+import pcap.reconst.tcp.SegmentTable;
+import pcap.reconst.tcp.SlabPool;
 import pcap.reconst.tcp.StatusHandle;
 import pcap.reconst.tcp.TcpConnection;
 import pcap.reconst.tcp.TcpReassembler;
+import pcap.reconst.tcp.TimestampPair;
 
 public class HttpFlowParser {
 
@@ -32,37 +42,116 @@ public class HttpFlowParser {
 	//and will later result in another response code for the same conversation
 	public static final Pattern HTTP_RESP_REGEX = Pattern.compile("HTTP/[1-2]\\.[0-9]\\s[2-5][0-9][0-9](.[0-9][0-9]?)?\\s");
 
+	//the response to an upgrade request, after which the stream is no longer HTTP/1.x
+	private static final Pattern SWITCHING_PROTOCOLS_REGEX = Pattern.compile("HTTP/1\\.[01]\\s101\\s");
+
 	private final static int ZERO = 0;
 
 	private Map<TcpConnection, TcpReassembler> map;
+	
+	private boolean compactHeaders = false;
+	
+	private HttpBodyLimits bodyLimits = null;
+	
+	private WebSocketListener webSocketListener = null;
+	
+	private TunnelListener tunnelListener = null;
 
 	public HttpFlowParser(Map<TcpConnection, TcpReassembler> map) {
 		this.map = map;
 	}
 	
-	protected static SortedMap<Integer, Boolean> buildMessageStartIndex(String buf){
-		List<Integer> reqIndexes = matchStartLocations(buf, HTTP_REQ_REGEX);
-		List<Integer> respIndexes = matchStartLocations(buf, HTTP_RESP_REGEX);
+	/**
+	 * Sets whether parsed messages keep their headers as a raw header block 
+	 * (see {@link pcap.reconst.http.datamodel.CompactHeaderGroup}) rather than 
+	 * as individual header objects.  Disabled by default.
+	 */
+	public void setCompactHeaders(boolean compactHeaders) {
+		this.compactHeaders = compactHeaders;
+	}
+	
+	public boolean isCompactHeaders() {
+		return compactHeaders;
+	}
+	
+	/**
+	 * Sets limits on the body bytes kept per message, and on the raw data kept 
+	 * per flow.
+	 * 
+	 * @param bodyLimits the limits, or null to keep complete bodies.
+	 */
+	public void setBodyLimits(HttpBodyLimits bodyLimits) {
+		this.bodyLimits = bodyLimits;
+	}
+	
+	public HttpBodyLimits getBodyLimits() {
+		return bodyLimits;
+	}
+	
+	/**
+	 * Sets the listener for the messages of connections upgraded to WebSocket,
+	 * see {@link HttpStreamParser#setWebSocketListener(WebSocketListener)}.
+	 * 
+	 * @param webSocketListener the listener, or null to skip the messages.
+	 */
+	public void setWebSocketListener(WebSocketListener webSocketListener) {
+		this.webSocketListener = webSocketListener;
+	}
+	
+	public WebSocketListener getWebSocketListener() {
+		return webSocketListener;
+	}
+	
+	/**
+	 * Sets the listener for the summaries of CONNECT tunnels and TLS 
+	 * connections, see {@link HttpStreamParser#setTunnelListener(TunnelListener)}.
+	 * 
+	 * @param tunnelListener the listener, or null to skip tunnels silently.
+	 */
+	public void setTunnelListener(TunnelListener tunnelListener) {
+		this.tunnelListener = tunnelListener;
+	}
+	
+	public TunnelListener getTunnelListener() {
+		return tunnelListener;
+	}
+	
+	/**
+	 * Orders the message starts found in the streams of the two directions by 
+	 * their position in the combined stream.
+	 * 
+	 * @param reqIndexes request starts, as offsets in the client's stream.
+	 * @param respIndexes response starts, as offsets in the server's stream.
+	 * @return the message starts by combined stream position, true for 
+	 * requests.
+	 */
+	protected static SortedMap<Integer, Boolean> buildMessageStartIndex(
+			List<Integer> reqIndexes, List<Integer> respIndexes, 
+			PacketType client, DirectionTimeline timeline){
 		SortedMap<Integer, Boolean> matchLocations = new TreeMap<Integer, Boolean>();
 		for(Integer key : reqIndexes){
-			matchLocations.put(key, true); //true = request
+			matchLocations.put(timeline.toPosition(client, key), true); //true = request
 		}
 		for(Integer key : respIndexes){
-			matchLocations.put(key, false); //false = response
+			matchLocations.put(timeline.toPosition(opposite(client), key), false); //false = response
 		}
 		return matchLocations;
 	}
 	
+	private static PacketType opposite(PacketType direction){
+		return direction == PacketType.Request ? PacketType.Response : PacketType.Request;
+	}
+	
 	//TODO fix for the chunked encoding case containing a request in a chunk
-	private static boolean isPipelined(TcpReassembler assembler){
-		SortedMap<Integer, Boolean> matchLocations = buildMessageStartIndex(assembler.getOrderedPacketData());
+	private static boolean isPipelined(TcpReassembler assembler, 
+			SortedMap<Integer, Boolean> matchLocations, int length){
 		List<Integer> matchIndexes = new ArrayList<Integer>(matchLocations.keySet());
 		
 		if(matchIndexes.size() > 1){
 			for(int i = 0; i < matchIndexes.size() - 1; i++){
 				int posA = matchIndexes.get(i);
 				int posB = matchIndexes.get(i+1);
-				int posC = assembler.getOrderedPacketData().length();
+				int posC = length;
 				//i+2 should give us the end of packet at i+1
 				if(i+2 < matchIndexes.size()){
 					posC = matchIndexes.get(i+2);
@@ -82,9 +171,9 @@ public class HttpFlowParser {
 	}
 
 	
-	protected static List<FlowBuf> parsePipelinedFlows(String buf) {
+	protected static List<FlowBuf> parsePipelinedFlows(
+			SortedMap<Integer, Boolean> matchLocations, int length) {
 		List<FlowBuf> retval = new ArrayList<FlowBuf>();
-		SortedMap<Integer, Boolean> matchLocations = buildMessageStartIndex(buf);
 		List<Integer> matchIndexes = new ArrayList<Integer>(matchLocations.keySet());
 		
 		if(log.isDebugEnabled()){
@@ -179,7 +268,7 @@ public class HttpFlowParser {
 					if(current){ // if request
 						FlowBuf reqchunk = new FlowBuf();
 						reqchunk.reqStart = matchIndexes.get(i);
-						reqchunk.reqEnd = buf.length();
+						reqchunk.reqEnd = length;
 						pReqSection.add(reqchunk);
 						for(FlowBuf req : pReqSection){
 							retval.add(req);
@@ -187,7 +276,7 @@ public class HttpFlowParser {
 					} else { //if response
 						FlowBuf respchunk = new FlowBuf();
 						respchunk.respStart = matchIndexes.get(i);
-						respchunk.respEnd = buf.length();
+						respchunk.respEnd = length;
 						if(singReqFlow != null){ //single flow							
 							retval.add(mergeFlowBuf(singReqFlow, respchunk));
 							singReqFlow = null;
@@ -239,9 +328,9 @@ public class HttpFlowParser {
 		return indexes;
 	}
 
-	private static List<FlowBuf> splitFlows(String buf) {
+	private static List<FlowBuf> splitFlows(SortedMap<Integer, Boolean> matchLocations, 
+			int length) {
 		List<FlowBuf> retval = new ArrayList<FlowBuf>();
-		SortedMap<Integer, Boolean> matchLocations = buildMessageStartIndex(buf);
 		List<Integer> matchIndexes = new ArrayList<Integer>(matchLocations.keySet());
 		
 		if(matchIndexes.size() > 0){
@@ -314,7 +403,7 @@ public class HttpFlowParser {
 						if(temp == null){
 							temp = new FlowBuf();
 							temp.reqStart = matchIndexes.get(i);
-							temp.reqEnd = buf.length();
+							temp.reqEnd = length;
 							retval.add(temp);
 						} else {
 							throw new RuntimeException("FlowBuf should be null at this point.");
@@ -323,7 +412,7 @@ public class HttpFlowParser {
 					} else { // is response
 						if(temp != null){
 							temp.respStart = matchIndexes.get(i);
-							temp.respEnd = buf.length();
+							temp.respEnd = length;
 							retval.add(temp);
 						} else {
 							throw new RuntimeException("FlowBuf should not be null at this point.");
@@ -366,35 +455,76 @@ public class HttpFlowParser {
 		return retval;
 	}
 
-	private static boolean hasRequestData(String buf) {
-		return hasDesiredData(buf, HTTP_REQ_REGEX);
-	}
-
-	private static boolean hasDesiredData(String buf, Pattern regex) {
-		Matcher matcher = regex.matcher(buf);
-		return matcher.find();
+	private static String getStreamData(TcpReassembler assembler, PacketType direction) {
+		return assembler.getStreamText(direction);
 	}
 	
-	private List<RecordedHttpFlow> parseFlows(TcpConnection connection, TcpReassembler assembler) {
-		String flowbuf = assembler.getOrderedPacketData();
-		List<RecordedHttpFlow> outputlist = new ArrayList<RecordedHttpFlow>();
-		if (hasRequestData(flowbuf)) {
+	/*
+	 * Frames the messages of each direction on the stream of the direction, 
+	 * so that bytes of one direction never end up in a message of the other.
+	 * The order of the message starts in the combined stream decides how 
+	 * requests and responses are paired.
+	 */
+	protected List<RecordedHttpFlow> parseFlows(TcpConnection connection, TcpReassembler assembler) {
+		List<RecordedHttpFlow> outputlist = parseTunnel(connection, assembler);
+		if (outputlist != null) {
+			return outputlist;
+		}
+		outputlist = new ArrayList<RecordedHttpFlow>();
+		//the client is usually, but not always, the first sender
+		PacketType client = PacketType.Request;
+		String clientData = getStreamData(assembler, client);
+		if (clientData.contains(Http2StreamParser.PREFACE)) {
+			return parseReplayed(connection, assembler);
+		}
+		List<Integer> reqIndexes = matchStartLocations(clientData, HTTP_REQ_REGEX);
+		if (reqIndexes.isEmpty()) {
+			client = PacketType.Response;
+			clientData = getStreamData(assembler, client);
+			if (clientData.contains(Http2StreamParser.PREFACE)) {
+				return parseReplayed(connection, assembler);
+			}
+			reqIndexes = matchStartLocations(clientData, HTTP_REQ_REGEX);
+		}
+		if (!reqIndexes.isEmpty()) {
+			PacketType server = opposite(client);
+			String serverData = getStreamData(assembler, server);
+			if (SWITCHING_PROTOCOLS_REGEX.matcher(serverData).find()) {
+				return parseReplayed(connection, assembler);
+			}
+			List<Integer> respIndexes = matchStartLocations(serverData, HTTP_RESP_REGEX);
+			int reqLength = assembler.getStreamLength(client);
+			int respLength = assembler.getStreamLength(server);
+			DirectionTimeline timeline = assembler.getDirectionTimeline();
+			SortedMap<Integer, Boolean> matchLocations = buildMessageStartIndex(
+					reqIndexes, respIndexes, client, timeline);
+			int length = reqLength + respLength;
 
 			List<FlowBuf> flows = null;
-			if(isPipelined(assembler)){
+			if(isPipelined(assembler, matchLocations, length)){
 				if(log.isDebugEnabled()){
 					log.debug("Parsing pipelined stream. " + connection);
 				}
-				flows = parsePipelinedFlows(flowbuf);
+				flows = parsePipelinedFlows(matchLocations, length);
 				
 			} else {
 				if(log.isDebugEnabled()){
 					log.debug("Parsing non-pipelined stream. " + connection);
 				}
-				flows = splitFlows(flowbuf);
+				flows = splitFlows(matchLocations, length);
 			}
 			for (FlowBuf flow : flows) {
 				try {
+					//from the combined stream to the streams of the directions
+					flow.requestDirection = client;
+					if (flow.hasRequestData()) {
+						flow.reqStart = timeline.toOffset(flow.reqStart);
+						flow.reqEnd = nextStart(reqIndexes, flow.reqStart, reqLength);
+					}
+					if (flow.hadResponseData()) {
+						flow.respStart = timeline.toOffset(flow.respStart);
+						flow.respEnd = nextStart(respIndexes, flow.respStart, respLength);
+					}
 					RecordedHttpFlow httpOutput = this.toHttp(flow, assembler);
 					outputlist.add(httpOutput);
 				} catch (Exception e) {
@@ -407,7 +537,164 @@ public class HttpFlowParser {
 		return outputlist;
 	}
 	
+	/*
+	 * The payload of a connection starting with a TLS ClientHello, or of the 
+	 * tunnel following a successful CONNECT at the start of a connection, is 
+	 * never searched for messages.  Only the heads are read, the tunnel is 
+	 * summarized from the segment records.
+	 * 
+	 * Returns null if the connection is not a tunnel.
+	 */
+	private List<RecordedHttpFlow> parseTunnel(TcpConnection connection, 
+			TcpReassembler assembler) {
+		for (PacketType client : PacketType.values()) {
+			PacketType server = opposite(client);
+			byte[] prefix = getPrefix(assembler, client, 0);
+			if (TlsClientHello.isClientHello(prefix, 0, prefix.length)) {
+				recordTunnel(connection, assembler, TunnelRecord.Type.TLS, null, client, 0, 0);
+				return new ArrayList<RecordedHttpFlow>();
+			}
+			if (!Utils.fromAsciiBytes(prefix, 0, Math.min(prefix.length, 8)).equals("CONNECT ")) {
+				continue;
+			}
+			int reqEnd = RecordedHttpMessageParser.findHeaderEnd(prefix, 0, prefix.length);
+			byte[] response = getPrefix(assembler, server, 0);
+			int respEnd = RecordedHttpMessageParser.findHeaderEnd(response, 0, response.length);
+			if (reqEnd == prefix.length || respEnd == response.length 
+					|| !HTTP_RESP_REGEX.matcher(Utils.fromAsciiBytes(response, 0, respEnd)).lookingAt()
+					|| response[9] != '2') {
+				//not a successful CONNECT, or nothing tunneled yet
+				return null;
+			}
+			List<RecordedHttpFlow> outputlist = new ArrayList<RecordedHttpFlow>();
+			String target = null;
+			try {
+				RecordedHttpRequestMessage request = (RecordedHttpRequestMessage) RecordedHttpMessageParser
+						.parseRecordedRequest(Utils.fromAsciiBytes(prefix, 0, reqEnd),
+								assembler.getMessageMetadata(client, 0, reqEnd));
+				RecordedHttpResponse resp = (RecordedHttpResponse) RecordedHttpMessageParser
+						.parseRecordedResponse(Utils.fromAsciiBytes(response, 0, respEnd),
+								assembler.getMessageMetadata(server, 0, respEnd));
+				byte[] rawdata = new byte[reqEnd + respEnd];
+				System.arraycopy(prefix, 0, rawdata, 0, reqEnd);
+				System.arraycopy(response, 0, rawdata, reqEnd, respEnd);
+				outputlist.add(new RecordedHttpFlow(rawdata, request, resp));
+				target = request.getRequestLine().getUri();
+			} catch (Exception e) {
+				if (log.isErrorEnabled()) {
+					log.error("", e);
+				}
+			}
+			recordTunnel(connection, assembler, TunnelRecord.Type.CONNECT, target, client, 
+					reqEnd, respEnd);
+			return outputlist;
+		}
+		return null;
+	}
+	
+	//the bytes of a direction from start, at most one TLS record
+	private static byte[] getPrefix(TcpReassembler assembler, PacketType direction, int start) {
+		int length = assembler.getStreamLength(direction);
+		return assembler.getStreamDataBytes(direction, start, 
+				Math.min(length, start + TlsClientHello.MAX_RECORD_LENGTH));
+	}
+	
+	private void recordTunnel(TcpConnection connection, TcpReassembler assembler, 
+			TunnelRecord.Type type, String target, PacketType client, int clientStart, 
+			int serverStart) {
+		if (tunnelListener == null) {
+			return;
+		}
+		PacketType server = opposite(client);
+		long clientBytes = assembler.getStreamLength(client) - clientStart;
+		long serverBytes = assembler.getStreamLength(server) - serverStart;
+		SegmentTable segments = assembler.getSegments();
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.isPlaceholder(i)) {
+				if (segments.getType(i) == client) {
+					clientBytes += segments.getLength(i);
+				} else {
+					serverBytes += segments.getLength(i);
+				}
+			}
+		}
+		byte[] hello = getPrefix(assembler, client, clientStart);
+		boolean tls = TlsClientHello.isClientHello(hello, 0, hello.length);
+		String serverName = tls ? TlsClientHello.getServerName(hello, 0, hello.length) : null;
 
+		double startTS = 0, endTS = 0;
+		TcpConnection sender = connection;
+		if (clientBytes > 0 && assembler.getStreamLength(client) > clientStart) {
+			MessageMetadata mdata = assembler.getMessageMetadata(client, clientStart, 
+					assembler.getStreamLength(client));
+			startTS = mdata.getStartTS();
+			endTS = mdata.getEndTS();
+			sender = mdata.getTcpConnection();
+		}
+		if (assembler.getStreamLength(server) > serverStart) {
+			MessageMetadata mdata = assembler.getMessageMetadata(server, serverStart, 
+					assembler.getStreamLength(server));
+			startTS = startTS == 0 ? mdata.getStartTS() 
+					: Math.min(startTS, mdata.getStartTS());
+			endTS = Math.max(endTS, mdata.getEndTS());
+		}
+		tunnelListener.tunnelRecorded(connection, new TunnelRecord(type, target, serverName, 
+				tls, clientBytes, serverBytes, new MessageMetadata(new TimestampPair(startTS, endTS), 
+						sender)));
+	}
+	
+	/*
+	 * HTTP/2 frames can not be found by searching the stream, and the bytes 
+	 * following a protocol switch are not HTTP/1.x, so connections with the 
+	 * HTTP/2 preface or an upgrade are replayed through an incremental parser, 
+	 * which switches protocols the same way as on the wire.
+	 */
+	private List<RecordedHttpFlow> parseReplayed(TcpConnection connection, 
+			TcpReassembler assembler) {
+		final List<RecordedHttpFlow> outputlist = new ArrayList<RecordedHttpFlow>();
+		//the connection is in memory already, without limits keep complete bodies
+		HttpStreamParser parser = new HttpStreamParser(connection, new FlowListener() {
+			public void flowParsed(TcpConnection connection, RecordedHttpFlow flow) {
+				outputlist.add(flow);
+			}
+		}, compactHeaders, bodyLimits != null ? bodyLimits : new HttpBodyLimits());
+		parser.setWebSocketListener(webSocketListener);
+		parser.setTunnelListener(tunnelListener);
+		SegmentTable segments = assembler.getSegments();
+		try {
+			for (int i = 0; i < segments.size(); i++) {
+				PacketType direction = segments.getType(i);
+				if (segments.isPlaceholder(i)) {
+					parser.sequenceGap(direction, segments.getLength(i));
+				} else if (segments.getDataLength(i) > 0) {
+					byte[] data = segments.getData(i);
+					parser.sequencedData(direction, segments.getPacket(i), data, 0, data.length);
+				}
+			}
+		} catch (IOException e) {
+			if (log.isErrorEnabled()) {
+				log.error("Unable to read payload of stream: " + connection, e);
+			}
+		}
+		parser.streamClosed();
+		return outputlist;
+	}
+	
+	//the message start following start, or the end of the stream
+	private static int nextStart(List<Integer> starts, int start, int length) {
+		int i = Collections.binarySearch(starts, start);
+		return i >= 0 && i + 1 < starts.size() ? starts.get(i + 1) : length;
+	}
+	
+
+	/**
+	 * Parses the HTTP flows of every connection, and of the earlier sessions 
+	 * of reused connections.  Connections whose payload was taken from a pool,
+	 * see {@link PacketReassembler#setSlabPool(SlabPool)} and 
+	 * {@link PacketReassembler#setBufferPool(BufferPool)}, are released once 
+	 * parsed, handing their payload back to the pool, and can not be read 
+	 * afterwards.  The parsed flows keep their own copies of the data.
+	 */
 	public Map<TcpConnection, List<RecordedHttpFlow>> parse(StatusHandle status) {
 		Map<TcpConnection, List<RecordedHttpFlow>> httpPackets = 
 				new HashMap<TcpConnection, List<RecordedHttpFlow>>();
@@ -417,60 +704,142 @@ public class HttpFlowParser {
 			{
 				break;
 			}
-			try{
-				List<RecordedHttpFlow> flows = parseFlows(entry.getKey(), entry.getValue());
-				if(flows.size() > 0){
-					httpPackets.put(entry.getKey(), flows);
-				} else {
-					if(log.isDebugEnabled()){
-						log.debug("No HTTP flows found in stream: " + entry.getKey());
+			List<RecordedHttpFlow> flows = new ArrayList<RecordedHttpFlow>();
+			for (TcpReassembler session : getSessions(entry.getValue())) {
+				try{
+					flows.addAll(parseFlows(entry.getKey(), session));
+				} catch (Exception e) {
+					if(log.isErrorEnabled()){
+						log.error("Error processing stream: " + entry.getKey(), e);
 					}
+				} finally {
+					releasePooled(session);
 				}
-				if (log.isDebugEnabled()) {
-					log.debug("Processed stream: " + entry.getKey());
-				}
-			} catch (Exception e) {
-				if(log.isErrorEnabled()){
-					log.error("Error processing stream: " + entry.getKey(), e);
+			}
+			if(flows.size() > 0){
+				httpPackets.put(entry.getKey(), flows);
+			} else {
+				if(log.isDebugEnabled()){
+					log.debug("No HTTP flows found in stream: " + entry.getKey());
 				}
 			}
+			if (log.isDebugEnabled()) {
+				log.debug("Processed stream: " + entry.getKey());
+			}
 		}
 		return httpPackets;
 	}
 	
+	/**
+	 * Parses the streams the same way as {@link #parse(StatusHandle)}, but hands
+	 * each flow to the listener as soon as it is parsed instead of collecting 
+	 * them into a map.  Pooled connections are released the same way.
+	 */
+	public void parse(StatusHandle status, FlowListener listener) {
+		for (Entry<TcpConnection, TcpReassembler> entry : map.entrySet() ) {
+			if (status.isCancelled())
+			{
+				break;
+			}
+			for (TcpReassembler session : getSessions(entry.getValue())) {
+				try{
+					for (RecordedHttpFlow flow : parseFlows(entry.getKey(), session)) {
+						listener.flowParsed(entry.getKey(), flow);
+					}
+				} catch (Exception e) {
+					if(log.isErrorEnabled()){
+						log.error("Error processing stream: " + entry.getKey(), e);
+					}
+				} finally {
+					releasePooled(session);
+				}
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Processed stream: " + entry.getKey());
+			}
+		}
+	}
+	
+	//hands the payload of a parsed connection back to its pool, as 
+	//PacketReassembler does for connections handed to a ConnectionListener
+	private static void releasePooled(TcpReassembler session) {
+		if (session.getSlabPool() != null || session.getBufferPool() != null) {
+			session.release();
+		}
+	}
+	
+	//the sessions a reused 4-tuple carried, oldest first
+	private static List<TcpReassembler> getSessions(TcpReassembler latest) {
+		List<TcpReassembler> sessions = new ArrayList<TcpReassembler>();
+		for (TcpReassembler session = latest; session != null; 
+				session = session.getPreviousSession()) {
+			sessions.add(session);
+		}
+		Collections.reverse(sessions);
+		return sessions;
+	}
+	
 	protected RecordedHttpFlow toHttp(FlowBuf flow, TcpReassembler assembler) throws IOException, HttpException {
 		if (log.isDebugEnabled()) {
 			log.debug("Processing flow " + flow);
 		}
 		byte[] rawdata = null;
 		if (flow.hasRequestData()) {
-			rawdata = assembler.getOrderedPacketDataBytes(flow.reqStart, flow.reqEnd);
+			PacketType client = flow.requestDirection, server = opposite(client);
+			rawdata = assembler.getStreamDataBytes(client, flow.reqStart, 
+					getRawEnd(assembler, client, flow.reqStart, flow.reqEnd));
 			
 			RecordedHttpRequestMessage request;
 			RecordedHttpResponse response = null;
 
 			if (flow.hadResponseData()) {
-				byte[] respBytes = assembler.getOrderedPacketDataBytes(flow.respStart, flow.respEnd);
+				byte[] respBytes = assembler.getStreamDataBytes(server, flow.respStart, 
+						getRawEnd(assembler, server, flow.respStart, flow.respEnd));
 				byte[] reqRespbytes = new byte[rawdata.length + respBytes.length];
 				System.arraycopy(rawdata, 0, reqRespbytes, 0, rawdata.length);
 				System.arraycopy(respBytes, 0, reqRespbytes, rawdata.length, respBytes.length);
 				rawdata = reqRespbytes;
-				request = getRequest(flow, assembler);
-				response = getResponse(flow, assembler);
+				request = getRequest(flow, assembler, compactHeaders);
+				response = getResponse(flow, assembler, compactHeaders);
 			} else {
-				request = getRequest(flow, assembler);
+				request = getRequest(flow, assembler, compactHeaders);
+			}
+			if (bodyLimits != null) {
+				bodyLimits.apply(request);
+				if (response != null) {
+					bodyLimits.apply(response);
+				}
 			}
 			return new RecordedHttpFlow(rawdata, request, response);
 		}
 		return null;
 	}
 	
+	private int getRawEnd(TcpReassembler assembler, PacketType direction, int start, 
+			int end) {
+		if (bodyLimits == null || bodyLimits.isUnlimited()) {
+			return end;
+		}
+		return start + bodyLimits.limitRawLength(
+				assembler.getStreamDataBytes(direction), start, end - start);
+	}
+	
 	
 	protected static RecordedHttpRequestMessage getRequest(FlowBuf flow, TcpReassembler assembler) throws IOException, HttpException{
-		String reqstring = assembler.getOrderedPacketData().substring(
-				flow.reqStart, flow.reqEnd);
+		return getRequest(flow, assembler, false);
+	}
+	
+	protected static RecordedHttpRequestMessage getRequest(FlowBuf flow, TcpReassembler assembler, 
+			boolean compactHeaders) throws IOException, HttpException{
+		PacketType client = flow.requestDirection;
 		MessageMetadata mdata = assembler
-				.getMessageMetadata(flow.reqStart, flow.reqEnd);
+				.getMessageMetadata(client, flow.reqStart, flow.reqEnd);
+		byte[] data = assembler.getStreamDataBytes(client);
+		if(compactHeaders){
+			return (RecordedHttpRequestMessage)RecordedHttpMessageParser.parseCompactRecordedRequest(
+					data, flow.reqStart, flow.reqEnd - flow.reqStart, mdata);
+		}
+		String reqstring = Utils.fromAsciiBytes(data, flow.reqStart, flow.reqEnd - flow.reqStart);
 		return (RecordedHttpRequestMessage)RecordedHttpMessageParser.
 				parseRecordedRequest(reqstring, mdata);
 	}
@@ -478,10 +847,20 @@ public class HttpFlowParser {
 	
 	protected static RecordedHttpResponse getResponse(FlowBuf flow, 
 			TcpReassembler assembler) throws IOException, HttpException{
-		String respstring = assembler.getOrderedPacketData().substring(
-				flow.respStart, flow.respEnd);
+		return getResponse(flow, assembler, false);
+	}
+	
+	protected static RecordedHttpResponse getResponse(FlowBuf flow, 
+			TcpReassembler assembler, boolean compactHeaders) throws IOException, HttpException{
+		PacketType server = opposite(flow.requestDirection);
 		MessageMetadata mdata = assembler
-				.getMessageMetadata(flow.respStart, flow.respEnd);
+				.getMessageMetadata(server, flow.respStart, flow.respEnd);
+		byte[] data = assembler.getStreamDataBytes(server);
+		if(compactHeaders){
+			return (RecordedHttpResponse)RecordedHttpMessageParser.parseCompactRecordedResponse(
+					data, flow.respStart, flow.respEnd - flow.respStart, mdata);
+		}
+		String respstring = Utils.fromAsciiBytes(data, flow.respStart, flow.respEnd - flow.respStart);
 		return (RecordedHttpResponse)RecordedHttpMessageParser.
 				parseRecordedResponse(respstring, mdata);
 	}
@@ -493,11 +872,19 @@ public class HttpFlowParser {
 		retval.reqEnd = reqChunk.reqEnd;
 		retval.respStart = respChunk.respStart;
 		retval.respEnd = respChunk.respEnd;
+		retval.requestDirection = reqChunk.requestDirection;
 		return retval;
 	}
 	
+	/**
+	 * The position of a request and its response.  While flows are split the 
+	 * positions refer to the combined stream of the connection, afterwards to 
+	 * the streams of the client and the server.
+	 */
 	protected static class FlowBuf{
 		public int reqStart = -1, reqEnd = -1, respStart = -1, respEnd = -1;
+		//the direction of the client, the server sends the other one
+		public PacketType requestDirection = PacketType.Request;
 		
 		public boolean hasRequestData(){
 			return reqStart != -1 && reqEnd != -1;
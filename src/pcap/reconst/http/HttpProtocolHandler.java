@@ -0,0 +1,55 @@
+package pcap.reconst.http;
+
+import java.util.Set;
+
+import pcap.reconst.tcp.ConnectionSniffer;
+import pcap.reconst.tcp.StreamConsumer;
+import pcap.reconst.tcp.StreamProtocolHandler;
+import pcap.reconst.tcp.TcpConnection;
+
+/**
+ * Decodes HTTP connections for a {@link pcap.reconst.tcp.ProtocolDispatcher}
+ * with the parsers of an {@link IncrementalHttpFlowParser}.  Connections on
+ * the ports of the {@link HttpConnectionSniffer} are always decoded, others
+ * when they start like HTTP, see {@link HttpConnectionSniffer#sniff(byte[])}.
+ */
+public class HttpProtocolHandler implements StreamProtocolHandler {
+
+	private final IncrementalHttpFlowParser parser;
+	private final HttpConnectionSniffer sniffer;
+
+	/**
+	 * @param ports ports on which connections are always decoded.
+	 */
+	public HttpProtocolHandler(IncrementalHttpFlowParser parser, int... ports) {
+		this.parser = parser;
+		this.sniffer = new HttpConnectionSniffer(ports);
+	}
+
+	public IncrementalHttpFlowParser getParser() {
+		return parser;
+	}
+
+	public HttpConnectionSniffer getSniffer() {
+		return sniffer;
+	}
+
+	public String getName() {
+		return "HTTP";
+	}
+
+	public Set<Integer> getPorts() {
+		return sniffer.getPorts();
+	}
+
+	public ConnectionSniffer.Verdict sniff(byte[] data) {
+		if (!sniffer.isSniffUnlisted()) {
+			return ConnectionSniffer.Verdict.DISCARD;
+		}
+		return HttpConnectionSniffer.sniff(data);
+	}
+
+	public StreamConsumer newConsumer(TcpConnection connection) {
+		return parser.newConsumer(connection);
+	}
+}
@@ -0,0 +1,796 @@
+package pcap.reconst.http;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+
+import pcap.reconst.http.datamodel.CompactHeaderGroup;
+import pcap.reconst.http.datamodel.RecordedHttpFlow;
+import pcap.reconst.http.datamodel.RecordedHttpMessage;
+import pcap.reconst.http.datamodel.RecordedHttpRequestMessage;
+import pcap.reconst.http.datamodel.RecordedHttpResponse;
+import pcap.reconst.http.datamodel.TruncatableHttpMessage;
+import pcap.reconst.http.datamodel.TunnelRecord;
+import pcap.reconst.http.datamodel.Utils;
+import pcap.reconst.tcp.BufferPool;
+import pcap.reconst.tcp.MessageMetadata;
+import pcap.reconst.tcp.PacketType;
+import pcap.reconst.tcp.StreamConsumer;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.TimestampPair;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Incremental HTTP/1.x parser for a single connection.  Each direction of the
+ * connection is framed into messages as its bytes arrive from reassembly, using
+ * the Content-Length and Transfer-Encoding headers rather than searching the
+ * whole stream for message starts.  Each request is paired with the next
+ * response and handed to a {@link FlowListener} as soon as the response is
+ * complete, and the bytes of a message are released once it has been framed.
+ * Connections which start with the HTTP/2 connection preface, or are upgraded
+ * to h2c, are handed to an {@link Http2StreamParser} from that point on, and
+ * connections upgraded to WebSocket to a {@link WebSocketStreamParser}.  The
+ * payload of CONNECT tunnels and of connections starting with a TLS 
+ * ClientHello is only accounted for by a {@link TunnelStreamParser}, and the 
+ * rest of a connection upgraded to any other protocol is skipped.
+ */
+public class HttpStreamParser implements StreamConsumer {
+
+	private static Log log = LogFactory.getLog(HttpStreamParser.class);
+
+	private static final Pattern START_LINE_REGEX = Pattern.compile(
+			HttpFlowParser.HTTP_REQ_REGEX.pattern() + "|" +
+			HttpFlowParser.HTTP_RESP_REGEX.pattern() + "|HTTP/1\\.[01]\\s1[0-9][0-9]\\s");
+
+	private static final byte[] HTTP2_PREFACE = Utils.toAsciiBytes(Http2StreamParser.PREFACE);
+
+	//bytes kept while searching for the start of a message, enough for a start line prefix
+	private static final int RESYNC_KEEP = 64;
+
+	private final TcpConnection connection;
+	private final FlowListener listener;
+	private final boolean compactHeaders;
+	private final HttpBodyLimits bodyLimits;
+
+	private final MessageFramer reqFramer = new MessageFramer(PacketType.Request), 
+			respFramer = new MessageFramer(PacketType.Response);
+	private final LinkedList<PendingRequest> requests = new LinkedList<PendingRequest>();
+	
+	private WebSocketListener webSocketListener = null;
+	private TunnelListener tunnelListener = null;
+	private BufferPool bufferPool = null;
+	
+	//set once the connection switched protocols
+	private UpgradeTarget upgraded = null;
+
+	public HttpStreamParser(TcpConnection connection, FlowListener listener,
+			boolean compactHeaders) {
+		this(connection, listener, compactHeaders, null);
+	}
+	
+	/**
+	 * Message bodies are decoded (de-chunked) as they arrive and only the 
+	 * message head stays buffered, the raw data of a flow holds the message 
+	 * heads followed by the retained part of the decoded bodies.
+	 * 
+	 * @param bodyLimits limits on the body bytes kept per message, or null to 
+	 * keep at most {@link HttpBodyLimits#DEFAULT_MAX_BODY_BYTES}.
+	 */
+	public HttpStreamParser(TcpConnection connection, FlowListener listener,
+			boolean compactHeaders, HttpBodyLimits bodyLimits) {
+		this.connection = connection;
+		this.listener = listener;
+		this.compactHeaders = compactHeaders;
+		this.bodyLimits = bodyLimits != null ? bodyLimits 
+				: new HttpBodyLimits(HttpBodyLimits.DEFAULT_MAX_BODY_BYTES);
+	}
+
+	/**
+	 * Sets the listener for the messages of connections upgraded to WebSocket.
+	 * 
+	 * @param webSocketListener the listener, or null to skip the messages.
+	 */
+	public void setWebSocketListener(WebSocketListener webSocketListener) {
+		this.webSocketListener = webSocketListener;
+	}
+	
+	public WebSocketListener getWebSocketListener() {
+		return webSocketListener;
+	}
+	
+	/**
+	 * Sets the listener for the summaries of CONNECT tunnels and TLS 
+	 * connections.
+	 * 
+	 * @param tunnelListener the listener, or null to skip tunnels silently.
+	 */
+	public void setTunnelListener(TunnelListener tunnelListener) {
+		this.tunnelListener = tunnelListener;
+	}
+	
+	public TunnelListener getTunnelListener() {
+		return tunnelListener;
+	}
+	
+	/**
+	 * Takes the buffers of messages being framed from a pool, and hands them 
+	 * back when the stream is closed.
+	 * 
+	 * @param bufferPool the pool, or null to allocate the buffers.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	private MessageFramer getFramer(PacketType direction) {
+		return direction == PacketType.Request ? reqFramer : respFramer;
+	}
+
+	public void sequencedData(PacketType direction, TcpPacket packet,
+			byte[] data, int offset, int length) {
+		if (upgraded != null) {
+			upgraded.sequencedData(direction, packet, data, offset, length);
+			return;
+		}
+		MessageFramer framer = getFramer(direction);
+		framer.append(packet, data, offset, length);
+		framer.frame(false);
+	}
+
+	public void sequenceGap(PacketType direction, long length) {
+		if (upgraded != null) {
+			upgraded.sequenceGap(direction, length);
+			return;
+		}
+		getFramer(direction).gap();
+	}
+
+	public void streamClosed() {
+		if (upgraded == null) {
+			reqFramer.frame(true);
+		}
+		if (upgraded == null) {
+			respFramer.frame(true);
+		}
+		while (!requests.isEmpty()) {
+			emit(requests.removeFirst(), null, null);
+		}
+		if (upgraded != null) {
+			upgraded.streamClosed();
+		}
+		reqFramer.release();
+		respFramer.release();
+	}
+	
+	/*
+	 * Hands the rest of the connection to the parser of another protocol, 
+	 * starting with the bytes buffered in both directions.
+	 */
+	private void switchTo(UpgradeTarget target, String protocol) {
+		if (log.isDebugEnabled()) {
+			log.debug("Switching to " + protocol + " in stream: " + connection);
+		}
+		upgraded = target;
+		reqFramer.handOver();
+		respFramer.handOver();
+	}
+	
+	private void startHttp2(PendingRequest upgrade) {
+		Http2StreamParser http2 = new Http2StreamParser(connection, listener, 
+				compactHeaders, bodyLimits);
+		http2.setBufferPool(bufferPool);
+		if (upgrade != null) {
+			http2.setUpgradeRequest(upgrade.request, upgrade.raw);
+		}
+		switchTo(http2, "HTTP/2");
+	}
+	
+	/*
+	 * Handles a 101 response to an upgrade request, the protocol is the one 
+	 * named by the response, or by the request if the response names none.
+	 */
+	private void switchProtocols(MessageFramer server, byte[] message, 
+			double startTS, double endTS) {
+		int lineEnd = RecordedHttpMessageParser.findLineEnd(message, 0, message.length);
+		Header upgrade = CompactHeaderGroup.parse(message, lineEnd, message.length - lineEnd)
+				.getFirstHeader("Upgrade");
+		if (upgrade == null) {
+			upgrade = requests.getFirst().request.getFirstHeader("Upgrade");
+		}
+		String protocol = upgrade.getValue().trim().toLowerCase();
+		if (protocol.startsWith("h2c")) {
+			//the response to the upgrade request follows on HTTP/2 stream 1
+			startHttp2(requests.removeFirst());
+			return;
+		}
+		//the handshake is a flow of its own
+		responseFramed(server, message, null, startTS, endTS);
+		if (protocol.startsWith("websocket")) {
+			switchTo(new WebSocketStreamParser(connection, webSocketListener, 
+					opposite(server.direction), bodyLimits), "WebSocket");
+		} else {
+			switchTo(new SkippedProtocol(), protocol);
+		}
+	}
+	
+	private static boolean isUpgrade(PendingRequest pending) {
+		return pending != null && pending.request != null
+				&& pending.request.getFirstHeader("Upgrade") != null;
+	}
+
+	private void requestFramed(MessageFramer framer, byte[] message, BodySink body,
+			String method, double startTS, double endTS) {
+		PendingRequest pending = new PendingRequest();
+		pending.method = method;
+		pending.raw = withBody(message, body);
+		try {
+			MessageMetadata mdata = new MessageMetadata(
+					new TimestampPair(startTS, endTS), framer.connection);
+			if (compactHeaders) {
+				pending.request = (RecordedHttpRequestMessage) RecordedHttpMessageParser
+						.parseCompactRecordedRequest(message, 0, message.length, mdata);
+			} else {
+				pending.request = (RecordedHttpRequestMessage) RecordedHttpMessageParser
+						.parseRecordedRequest(Utils.fromAsciiBytes(message, 0, message.length), mdata);
+			}
+			setBody(pending.request, body);
+		} catch (Exception e) {
+			if (log.isErrorEnabled()) {
+				log.error("Unable to parse request in stream: " + connection, e);
+			}
+		}
+		requests.addLast(pending);
+	}
+
+	private void responseFramed(MessageFramer framer, byte[] message, BodySink body,
+			double startTS, double endTS) {
+		if (requests.isEmpty()) {
+			if (log.isDebugEnabled()) {
+				log.debug("Response without request in stream: " + connection);
+			}
+			return;
+		}
+		PendingRequest pending = requests.removeFirst();
+		RecordedHttpResponse response = null;
+		try {
+			MessageMetadata mdata = new MessageMetadata(
+					new TimestampPair(startTS, endTS), framer.connection);
+			if (compactHeaders) {
+				response = (RecordedHttpResponse) RecordedHttpMessageParser
+						.parseCompactRecordedResponse(message, 0, message.length, mdata);
+			} else {
+				response = (RecordedHttpResponse) RecordedHttpMessageParser
+						.parseRecordedResponse(Utils.fromAsciiBytes(message, 0, message.length), mdata);
+			}
+			setBody(response, body);
+		} catch (Exception e) {
+			if (log.isErrorEnabled()) {
+				log.error("Unable to parse response in stream: " + connection, e);
+			}
+		}
+		emit(pending, response, withBody(message, body));
+		
+		if ("CONNECT".equalsIgnoreCase(pending.method) && getStatusCode(message) / 100 == 2) {
+			String target = pending.request != null ? pending.request.getRequestLine().getUri() : null;
+			switchTo(new TunnelStreamParser(connection, tunnelListener, TunnelRecord.Type.CONNECT, 
+					target, opposite(framer.direction)), "CONNECT tunnel");
+		}
+	}
+	
+	private static PacketType opposite(PacketType direction) {
+		return direction == PacketType.Request ? PacketType.Response : PacketType.Request;
+	}
+	
+	static void setBody(RecordedHttpMessage message, BodySink body) {
+		if (body != null) {
+			HttpBodyLimits.setEntity(message, body.toEntity(
+					message.getFirstHeader("Content-Type"), 
+					message.getFirstHeader("Content-Encoding")));
+			if (message instanceof TruncatableHttpMessage) {
+				((TruncatableHttpMessage) message).setBodyTruncated(body.isTruncated());
+			}
+		}
+	}
+	
+	static byte[] withBody(byte[] head, BodySink body) {
+		if (body == null) {
+			return head;
+		}
+		byte[] prefix = body.getPrefix();
+		byte[] raw = Arrays.copyOf(head, head.length + prefix.length);
+		System.arraycopy(prefix, 0, raw, head.length, prefix.length);
+		return raw;
+	}
+
+	private void emit(PendingRequest pending, RecordedHttpResponse response, byte[] respBytes) {
+		if (pending.request == null) {
+			//the request was lost or could not be parsed
+			return;
+		}
+		byte[] rawdata = pending.raw;
+		if (response != null) {
+			rawdata = Arrays.copyOf(pending.raw, pending.raw.length + respBytes.length);
+			System.arraycopy(respBytes, 0, rawdata, pending.raw.length, respBytes.length);
+		}
+		listener.flowParsed(connection, new RecordedHttpFlow(rawdata, pending.request, response));
+	}
+
+	private boolean nextResponseHasNoBody() {
+		return isNextRequest("HEAD");
+	}
+
+	private boolean isNextRequest(String method) {
+		return !requests.isEmpty() && method.equalsIgnoreCase(requests.getFirst().method);
+	}
+
+	private static class PendingRequest {
+		String method;
+		byte[] raw;
+		RecordedHttpRequestMessage request;
+	}
+
+	/**
+	 * Skips the rest of a connection upgraded to a protocol without parser.
+	 */
+	private static class SkippedProtocol implements UpgradeTarget {
+		public void append(PacketType direction, TcpConnection sender, double timestamp,
+				byte[] data, int offset, int length) {
+		}
+
+		public void sequencedData(PacketType direction, TcpPacket packet, byte[] data,
+				int offset, int length) {
+		}
+
+		public void sequenceGap(PacketType direction, long length) {
+		}
+
+		public void streamClosed() {
+		}
+	}
+
+	private enum State {
+		START, HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, TRAILER, UNTIL_CLOSE
+	}
+
+	/**
+	 * Frames the messages of one direction.  Buffered bytes always start at the
+	 * beginning of the message being framed.
+	 */
+	private class MessageFramer {
+		final PacketType direction;
+		TcpConnection connection = null;
+
+		private byte[] buf = new byte[1024];
+		private int len = 0;
+		private int pos = 0;
+		private State state = State.START;
+		private boolean request;
+		private String method;
+		private long remaining;
+		
+		//set while the body of a message is collected
+		private BodySink body = null;
+		private double bodyEndTS;
+
+		//timestamps of the buffered bytes, one mark per packet
+		private int marks = 0;
+		private int[] markOffsets = new int[16];
+		private double[] markTimestamps = new double[16];
+		
+		MessageFramer(PacketType direction) {
+			this.direction = direction;
+		}
+
+		void append(TcpPacket packet, byte[] data, int offset, int length) {
+			if (connection == null) {
+				connection = new TcpConnection(packet);
+			}
+			if (len + length > buf.length) {
+				int capacity = Math.max(buf.length * 2, len + length);
+				buf = bufferPool != null ? bufferPool.grow(buf, len, capacity) 
+						: Arrays.copyOf(buf, capacity);
+			}
+			System.arraycopy(data, offset, buf, len, length);
+
+			if (marks == markOffsets.length) {
+				markOffsets = Arrays.copyOf(markOffsets, marks * 2);
+				markTimestamps = Arrays.copyOf(markTimestamps, marks * 2);
+			}
+			markOffsets[marks] = len;
+			markTimestamps[marks] = packet.getTimestampSec()
+					+ (packet.getTimestampUSec() / 1000000.0);
+			marks++;
+			len += length;
+		}
+
+		void gap() {
+			if (state != State.START || len > 0) {
+				if (log.isDebugEnabled()) {
+					log.debug("Discarding message interrupted by missing data in stream: "
+							+ HttpStreamParser.this.connection);
+				}
+				if (request && state != State.START) {
+					//keep the request/response pairing, the lost request still gets a response
+					PendingRequest lost = new PendingRequest();
+					requests.addLast(lost);
+				} else if (!request && state != State.START && !requests.isEmpty()) {
+					emit(requests.removeFirst(), null, null);
+				}
+			}
+			consume(len);
+			body = null;
+			state = State.START;
+		}
+
+		void frame(boolean closed) {
+			boolean progress = true;
+			while (progress && upgraded == null) {
+				switch (state) {
+				case START:
+					progress = findStart();
+					break;
+				case HEAD:
+					progress = parseHead();
+					break;
+				case BODY:
+					int count = (int) Math.min(len - pos, remaining);
+					collectBody(pos, count, count);
+					remaining -= count;
+					if (remaining == 0) {
+						messageComplete();
+					} else {
+						progress = false;
+					}
+					break;
+				case CHUNK_SIZE:
+					progress = parseChunkSize();
+					break;
+				case CHUNK_DATA:
+					count = (int) Math.min(len - pos, remaining);
+					//the last two bytes of the chunk are the CRLF
+					collectBody(pos, count, (int) Math.max(0, Math.min(count, remaining - 2)));
+					remaining -= count;
+					if (remaining == 0) {
+						state = State.CHUNK_SIZE;
+					} else {
+						progress = false;
+					}
+					break;
+				case TRAILER:
+					progress = parseTrailer();
+					break;
+				case UNTIL_CLOSE:
+					collectBody(pos, len - pos, len - pos);
+					progress = false;
+					break;
+				}
+			}
+			if (closed && upgraded == null && state != State.START && len > 0) {
+				//the connection ended during the message, emit what we have
+				if (body != null && state != State.UNTIL_CLOSE) {
+					body.markTruncated();
+				}
+				pos = len;
+				messageComplete();
+			}
+		}
+
+		private boolean findStart() {
+			if (len == 0) {
+				return false;
+			}
+			int preface = matchPreface();
+			if (preface > 0) {
+				startHttp2(null);
+				return false;
+			} else if (preface == 0) {
+				return false;
+			}
+			if (TlsClientHello.isClientHello(buf, 0, len)) {
+				switchTo(new TunnelStreamParser(HttpStreamParser.this.connection, tunnelListener,
+						TunnelRecord.Type.TLS, null, direction), "TLS");
+				return false;
+			} else if (len < 3 && (buf[0] & 0xff) == 0x16) {
+				//too short to tell
+				return false;
+			}
+			Matcher matcher = START_LINE_REGEX.matcher(Utils.fromAsciiBytes(buf, 0, len));
+			if (matcher.find()) {
+				if (matcher.start() > 0) {
+					if (log.isDebugEnabled()) {
+						log.debug("Skipping " + matcher.start() + " bytes before message in stream: "
+								+ HttpStreamParser.this.connection);
+					}
+					consume(matcher.start());
+				}
+				request = !matcher.group().startsWith("HTTP/");
+				pos = 0;
+				state = State.HEAD;
+				return true;
+			}
+			if (len > RESYNC_KEEP) {
+				consume(len - RESYNC_KEEP);
+			}
+			return false;
+		}
+
+		private boolean parseHead() {
+			int headEnd = findEmptyLine(pos);
+			if (headEnd < 0) {
+				pos = Math.max(0, len - 3);
+				return false;
+			}
+			int lineEnd = RecordedHttpMessageParser.findLineEnd(buf, 0, headEnd);
+			String startLine = Utils.fromAsciiBytes(buf, 0, lineEnd).trim();
+			CompactHeaderGroup headers = CompactHeaderGroup.parse(buf, lineEnd, headEnd - lineEnd);
+			pos = headEnd;
+			body = null;
+
+			Header te = headers.getLastHeader("Transfer-Encoding");
+			Header cl = headers.getFirstHeader("Content-Length");
+			boolean noBody;
+			if (request) {
+				method = startLine.substring(0, Math.max(0, startLine.indexOf(' ')));
+				noBody = te == null && cl == null;
+			} else {
+				int status = getStatusCode(startLine);
+				noBody = (status >= 100 && status < 200) || status == 204
+						|| status == 304 || nextResponseHasNoBody()
+						//a successful CONNECT is followed by the tunnel
+						|| (status / 100 == 2 && isNextRequest("CONNECT"));
+			}
+
+			if (!noBody) {
+				body = new BodySink(bodyLimits);
+			}
+			
+			if (noBody) {
+				messageComplete();
+			} else if (te != null && te.getValue().toLowerCase().endsWith("chunked")) {
+				state = State.CHUNK_SIZE;
+			} else if (cl != null) {
+				remaining = parseLength(cl.getValue());
+				state = State.BODY;
+			} else {
+				state = State.UNTIL_CLOSE;
+			}
+			return true;
+		}
+
+		private boolean parseChunkSize() {
+			int lineEnd = findLineEnd(pos);
+			if (lineEnd < 0) {
+				return false;
+			}
+			String line = Utils.fromAsciiBytes(buf, pos, lineEnd - pos).trim();
+			int ext = line.indexOf(';');
+			if (ext >= 0) {
+				line = line.substring(0, ext).trim();
+			}
+			collectBody(pos, lineEnd - pos, 0);
+			try {
+				long size = Long.parseLong(line, 16);
+				if (size == 0) {
+					state = State.TRAILER;
+				} else {
+					//chunk data is followed by CRLF
+					remaining = size + 2;
+					state = State.CHUNK_DATA;
+				}
+			} catch (NumberFormatException e) {
+				if (log.isDebugEnabled()) {
+					log.debug("Invalid chunk size '" + line + "' in stream: "
+							+ HttpStreamParser.this.connection);
+				}
+				messageComplete();
+			}
+			return true;
+		}
+
+		private boolean parseTrailer() {
+			int lineEnd = findLineEnd(pos);
+			if (lineEnd < 0) {
+				return false;
+			}
+			boolean empty = lineEnd - pos <= 2 && (buf[pos] == '\r' || buf[pos] == '\n');
+			collectBody(pos, lineEnd - pos, 0);
+			if (empty) {
+				messageComplete();
+			}
+			return true;
+		}
+
+		private void messageComplete() {
+			int end = pos;
+			byte[] message = Arrays.copyOfRange(buf, 0, end);
+			double startTS = getTimestamp(0), endTS = getTimestamp(Math.max(0, end - 1));
+			BodySink messageBody = body;
+			if (messageBody != null) {
+				endTS = Math.max(endTS, bodyEndTS);
+			}
+			boolean isRequest = request;
+			String reqMethod = method;
+			body = null;
+			consume(end);
+			state = State.START;
+
+			if (isRequest) {
+				requestFramed(this, message, messageBody, reqMethod, startTS, endTS);
+			} else if (isSwitchingProtocols(message) && isUpgrade(requests.peekFirst())) {
+				switchProtocols(this, message, startTS, endTS);
+			} else if (isInterimResponse(message)) {
+				if (log.isDebugEnabled()) {
+					log.debug("Skipping interim response in stream: " + HttpStreamParser.this.connection);
+				}
+			} else {
+				responseFramed(this, message, messageBody, startTS, endTS);
+			}
+		}
+		
+		/*
+		 * Hands the first dataCount of count bytes at offset to the body sink and 
+		 * removes all count bytes from the buffer, so that only the message head
+		 * stays buffered.
+		 */
+		private void collectBody(int offset, int count, int dataCount) {
+			if (count <= 0) {
+				return;
+			}
+			if (dataCount > 0) {
+				body.write(buf, offset, dataCount);
+			}
+			bodyEndTS = getTimestamp(offset + count - 1);
+			
+			System.arraycopy(buf, offset + count, buf, offset, len - offset - count);
+			len -= count;
+			//marks within the removed range collapse, keep the latest of each offset
+			int kept = 0;
+			for (int i = 0; i < marks; i++) {
+				int markOffset = markOffsets[i];
+				if (markOffset > offset + count) {
+					markOffset -= count;
+				} else if (markOffset > offset) {
+					markOffset = offset;
+				}
+				if (kept > 0 && markOffsets[kept - 1] == markOffset) {
+					kept--;
+				}
+				markOffsets[kept] = markOffset;
+				markTimestamps[kept] = markTimestamps[i];
+				kept++;
+			}
+			marks = kept;
+			pos = offset;
+		}
+
+		/*
+		 * Whether the buffer starts with the HTTP/2 connection preface: 1 if 
+		 * it does, 0 if it holds a prefix of it, -1 otherwise.
+		 */
+		private int matchPreface() {
+			int count = Math.min(len, HTTP2_PREFACE.length);
+			for (int i = 0; i < count; i++) {
+				if (buf[i] != HTTP2_PREFACE[i]) {
+					return -1;
+				}
+			}
+			return count == HTTP2_PREFACE.length ? 1 : 0;
+		}
+		
+		//hands the buffer back to the pool, nothing is framed afterwards
+		void release() {
+			if (bufferPool != null) {
+				bufferPool.release(buf);
+			}
+			buf = new byte[0];
+			len = pos = marks = 0;
+		}
+		
+		//moves the buffered bytes to the parser the connection switched to
+		void handOver() {
+			for (int i = 0; i < marks; i++) {
+				int end = i + 1 < marks ? markOffsets[i + 1] : len;
+				if (end > markOffsets[i]) {
+					upgraded.append(direction, connection, markTimestamps[i], buf, 
+							markOffsets[i], end - markOffsets[i]);
+				}
+			}
+			consume(len);
+			body = null;
+			state = State.START;
+		}
+
+		private double getTimestamp(int offset) {
+			int mark = 0;
+			while (mark + 1 < marks && markOffsets[mark + 1] <= offset) {
+				mark++;
+			}
+			return marks > 0 ? markTimestamps[mark] : 0;
+		}
+
+		//drops count bytes from the start of the buffer
+		private void consume(int count) {
+			System.arraycopy(buf, count, buf, 0, len - count);
+			len -= count;
+			pos = Math.max(0, pos - count);
+
+			int first = 0;
+			while (first + 1 < marks && markOffsets[first + 1] <= count) {
+				first++;
+			}
+			int kept = 0;
+			for (int i = first; i < marks; i++) {
+				markOffsets[kept] = Math.max(0, markOffsets[i] - count);
+				markTimestamps[kept] = markTimestamps[i];
+				kept++;
+			}
+			marks = len > 0 ? kept : 0;
+		}
+
+		private int findLineEnd(int from) {
+			for (int i = from; i < len; i++) {
+				if (buf[i] == '\n') {
+					return i + 1;
+				}
+			}
+			return -1;
+		}
+
+		private int findEmptyLine(int from) {
+			for (int i = from; i < len; i++) {
+				if (buf[i] == '\n') {
+					if (i + 1 < len && buf[i + 1] == '\n') {
+						return i + 2;
+					}
+					if (i + 2 < len && buf[i + 1] == '\r' && buf[i + 2] == '\n') {
+						return i + 3;
+					}
+				}
+			}
+			return -1;
+		}
+	}
+
+	private static boolean isSwitchingProtocols(byte[] message) {
+		return getStatusCode(message) == 101;
+	}
+
+	private static boolean isInterimResponse(byte[] message) {
+		int status = getStatusCode(message);
+		return status >= 100 && status < 200;
+	}
+
+	private static int getStatusCode(byte[] message) {
+		return getStatusCode(Utils.fromAsciiBytes(message, 0,
+				RecordedHttpMessageParser.findLineEnd(message, 0, message.length)).trim());
+	}
+
+	private static int getStatusCode(String statusLine) {
+		int start = statusLine.indexOf(' ');
+		if (start >= 0 && start + 4 <= statusLine.length()) {
+			try {
+				return Integer.parseInt(statusLine.substring(start + 1, start + 4));
+			} catch (NumberFormatException e) {
+				//fall through
+			}
+		}
+		return -1;
+	}
+
+	private static long parseLength(String value) {
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
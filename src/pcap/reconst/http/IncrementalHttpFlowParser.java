@@ -0,0 +1,98 @@
+package pcap.reconst.http;
+
+import pcap.reconst.tcp.BufferPool;
+import pcap.reconst.tcp.PacketReassembler;
+import pcap.reconst.tcp.StreamConsumer;
+import pcap.reconst.tcp.StreamConsumerFactory;
+import pcap.reconst.tcp.TcpConnection;
+
+/**
+ * Attaches an {@link HttpStreamParser} to every connection of a 
+ * {@link PacketReassembler}, so that HTTP flows are extracted while the capture
+ * is being reassembled instead of afterwards.  Typical use:
+ * 
+ * <pre>
+ * PacketReassembler reassembler = new PacketReassembler();
+ * reassembler.setStreamConsumerFactory(new IncrementalHttpFlowParser(listener));
+ * reassembler.setRetainPackets(false);
+ * new PktsIoReconstructor(reassembler).reconstruct(filename, status);
+ * </pre>
+ */
+public class IncrementalHttpFlowParser implements StreamConsumerFactory {
+
+	private FlowListener listener;
+	
+	private boolean compactHeaders = false;
+	private HttpBodyLimits bodyLimits = null;
+	private WebSocketListener webSocketListener = null;
+	private TunnelListener tunnelListener = null;
+	private BufferPool bufferPool = null;
+	
+	public IncrementalHttpFlowParser(FlowListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * See {@link HttpFlowParser#setCompactHeaders(boolean)}.
+	 */
+	public void setCompactHeaders(boolean compactHeaders) {
+		this.compactHeaders = compactHeaders;
+	}
+	
+	public boolean isCompactHeaders() {
+		return compactHeaders;
+	}
+	
+	/**
+	 * See {@link HttpStreamParser#HttpStreamParser(TcpConnection, FlowListener, boolean, HttpBodyLimits)}.
+	 */
+	public void setBodyLimits(HttpBodyLimits bodyLimits) {
+		this.bodyLimits = bodyLimits;
+	}
+	
+	public HttpBodyLimits getBodyLimits() {
+		return bodyLimits;
+	}
+	
+	/**
+	 * See {@link HttpStreamParser#setWebSocketListener(WebSocketListener)}.
+	 */
+	public void setWebSocketListener(WebSocketListener webSocketListener) {
+		this.webSocketListener = webSocketListener;
+	}
+	
+	public WebSocketListener getWebSocketListener() {
+		return webSocketListener;
+	}
+	
+	/**
+	 * See {@link HttpStreamParser#setTunnelListener(TunnelListener)}.
+	 */
+	public void setTunnelListener(TunnelListener tunnelListener) {
+		this.tunnelListener = tunnelListener;
+	}
+	
+	public TunnelListener getTunnelListener() {
+		return tunnelListener;
+	}
+	
+	/**
+	 * See {@link HttpStreamParser#setBufferPool(BufferPool)}.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	public StreamConsumer newConsumer(TcpConnection connection) {
+		HttpStreamParser parser = new HttpStreamParser(connection, listener, 
+				compactHeaders, bodyLimits);
+		parser.setWebSocketListener(webSocketListener);
+		parser.setTunnelListener(tunnelListener);
+		parser.setBufferPool(bufferPool);
+		return parser;
+	}
+}
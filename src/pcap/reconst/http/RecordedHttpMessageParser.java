@@ -5,7 +5,9 @@ import java.io.IOException;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpMessage;
 import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolException;
 import org.apache.http.impl.entity.EntityDeserializer;
 import org.apache.http.impl.entity.LaxContentLengthStrategy;
 import org.apache.http.impl.io.DefaultHttpRequestParser;
@@ -16,7 +18,12 @@ import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpParams;
 
+import pcap.reconst.http.datamodel.CompactHeaderGroup;
 import pcap.reconst.http.datamodel.MessageStringInputBuffer;
+import pcap.reconst.http.datamodel.RecordedHttpEntityEnclosingRequest;
+import pcap.reconst.http.datamodel.RecordedHttpRequest;
+import pcap.reconst.http.datamodel.RecordedHttpResponse;
+import pcap.reconst.http.datamodel.Utils;
 import pcap.reconst.tcp.MessageMetadata;
 
 public class RecordedHttpMessageParser {
@@ -45,6 +52,95 @@ public class RecordedHttpMessageParser {
 		return response;
 	}
 	
+	/**
+	 * Parses a request the same way as {@link #parseRecordedRequest(String, MessageMetadata)}, 
+	 * but reads the raw bytes directly and stores the headers in a {@link CompactHeaderGroup}.
+	 */
+	public static HttpRequest parseCompactRecordedRequest(byte[] data, int offset, int length, 
+			MessageMetadata messdata) throws IOException, HttpException{
+		int end = offset + length;
+		int lineEnd = findLineEnd(data, offset, end);
+		int headerEnd = findHeaderEnd(data, offset, end);
+		HttpRequest request = new RecordedHttpRequestFactory(messdata).newHttpRequest(
+				BasicLineParser.parseRequestLine(getStartLine(data, offset, lineEnd), null));
+		setHeaders(request, CompactHeaderGroup.parse(data, lineEnd, headerEnd - lineEnd));
+		if(request instanceof HttpEntityEnclosingRequest){
+			parseEntity((HttpEntityEnclosingRequest)request, 
+					new MessageStringInputBuffer(data, headerEnd, end - headerEnd));
+		}
+		return request;
+	}
+	
+	/**
+	 * Parses a response the same way as {@link #parseRecordedResponse(String, MessageMetadata)}, 
+	 * but reads the raw bytes directly and stores the headers in a {@link CompactHeaderGroup}.
+	 */
+	public static HttpResponse parseCompactRecordedResponse(byte[] data, int offset, int length, 
+			MessageMetadata messdata) throws IOException, HttpException{
+		int end = offset + length;
+		int lineEnd = findLineEnd(data, offset, end);
+		int headerEnd = findHeaderEnd(data, offset, end);
+		HttpResponse response = new RecordedHttpResponseFactory(messdata).newHttpResponse(
+				BasicLineParser.parseStatusLine(getStartLine(data, offset, lineEnd), null), null);
+		setHeaders(response, CompactHeaderGroup.parse(data, lineEnd, headerEnd - lineEnd));
+		parseEntity(response, new MessageStringInputBuffer(data, headerEnd, end - headerEnd));
+		return response;
+	}
+	
+	/**
+	 * @return the offset just past the first line feed at or after start, 
+	 * or end if there is none.
+	 */
+	public static int findLineEnd(byte[] data, int start, int end){
+		for(int i = start; i < end; i++){
+			if(data[i] == '\n'){
+				return i + 1;
+			}
+		}
+		return end;
+	}
+	
+	/**
+	 * @return the offset just past the empty line terminating the message head 
+	 * starting at start, or end if the head is not terminated.
+	 */
+	public static int findHeaderEnd(byte[] data, int start, int end){
+		for(int i = start; i < end; i++){
+			if(data[i] == '\n'){
+				if(i + 1 < end && data[i + 1] == '\n'){
+					return i + 2;
+				}
+				if(i + 2 < end && data[i + 1] == '\r' && data[i + 2] == '\n'){
+					return i + 3;
+				}
+			}
+		}
+		return end;
+	}
+	
+	private static String getStartLine(byte[] data, int start, int lineEnd) throws ProtocolException{
+		int end = lineEnd;
+		while(end > start && (data[end - 1] == '\n' || data[end - 1] == '\r')){
+			end--;
+		}
+		if(end == start){
+			throw new ProtocolException("Empty start line");
+		}
+		return Utils.fromAsciiBytes(data, start, end - start);
+	}
+	
+	private static void setHeaders(HttpMessage message, CompactHeaderGroup headers){
+		if(message instanceof RecordedHttpRequest){
+			((RecordedHttpRequest)message).setHeaderGroup(headers);
+		} else if(message instanceof RecordedHttpEntityEnclosingRequest){
+			((RecordedHttpEntityEnclosingRequest)message).setHeaderGroup(headers);
+		} else if(message instanceof RecordedHttpResponse){
+			((RecordedHttpResponse)message).setHeaderGroup(headers);
+		} else {
+			message.setHeaders(headers.getAllHeaders());
+		}
+	}
+	
 	private static void parseEntity(HttpEntityEnclosingRequest request, SessionInputBuffer buf) throws IOException, HttpException{
 		if(request.getParams().isParameterTrue(CoreProtocolPNames.STRICT_TRANSFER_ENCODING)){
 			HttpParams params = request.getParams();
@@ -0,0 +1,42 @@
+package pcap.reconst.http;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import pcap.reconst.http.datamodel.RecordedHttpFlow;
+import pcap.reconst.tcp.ConnectionListener;
+import pcap.reconst.tcp.PacketReassembler;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.TcpReassembler;
+
+/**
+ * Parses the HTTP flows of each connection as soon as the connection is 
+ * complete and pushes them to a {@link FlowListener}.  Register an instance with
+ * {@link PacketReassembler#setConnectionListener(ConnectionListener)} to get 
+ * results while the capture is still being read; the reassembled content of a
+ * connection can be collected as soon as its flows have been delivered.
+ */
+public class StreamingHttpFlowParser extends HttpFlowParser implements ConnectionListener {
+
+	private static Log log = LogFactory.getLog(StreamingHttpFlowParser.class);
+	
+	private FlowListener listener;
+	
+	public StreamingHttpFlowParser(FlowListener listener) {
+		super(Collections.<TcpConnection, TcpReassembler>emptyMap());
+		this.listener = listener;
+	}
+
+	public void connectionCompleted(TcpConnection connection, TcpReassembler reassembler) {
+		List<RecordedHttpFlow> flows = parseFlows(connection, reassembler);
+		if (flows.isEmpty() && log.isDebugEnabled()) {
+			log.debug("No HTTP flows found in stream: " + connection);
+		}
+		for (RecordedHttpFlow flow : flows) {
+			listener.flowParsed(connection, flow);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package pcap.reconst.http;
+
+import pcap.reconst.http.datamodel.Utils;
+
+/**
+ * Recognizes the TLS ClientHello which starts a TLS connection and extracts
+ * the server name indication (SNI) from it.  Only the first TLS record is
+ * read, which holds the whole ClientHello unless it is unusually large.
+ */
+class TlsClientHello {
+
+	private static final int HANDSHAKE = 0x16;
+	private static final int CLIENT_HELLO = 0x01;
+	private static final int SERVER_NAME = 0x0000;
+	private static final int HOST_NAME = 0x00;
+
+	static final int RECORD_HEADER_LENGTH = 5;
+
+	/** The largest TLS record, header included. */
+	static final int MAX_RECORD_LENGTH = RECORD_HEADER_LENGTH + (1 << 14) + 2048;
+
+	private TlsClientHello() {
+	}
+
+	/**
+	 * @return true if data starts with a TLS handshake record, and as far as 
+	 * data goes, with a ClientHello.  At least 3 bytes are needed.
+	 */
+	static boolean isClientHello(byte[] data, int offset, int length) {
+		if (length < 3 || (data[offset] & 0xff) != HANDSHAKE || data[offset + 1] != 3
+				|| (data[offset + 2] & 0xff) > 4) {
+			return false;
+		}
+		return length < 6 || (data[offset + 5] & 0xff) == CLIENT_HELLO;
+	}
+
+	/**
+	 * @return the length of the first record, header included, or -1 if 
+	 * data does not hold a complete record header.
+	 */
+	static int getRecordLength(byte[] data, int offset, int length) {
+		if (length < RECORD_HEADER_LENGTH) {
+			return -1;
+		}
+		return RECORD_HEADER_LENGTH + (((data[offset + 3] & 0xff) << 8) 
+				| (data[offset + 4] & 0xff));
+	}
+
+	/**
+	 * @return the host name of the server name extension of the ClientHello
+	 * at the start of data, or null if data does not hold a complete 
+	 * ClientHello with a server name.
+	 */
+	static String getServerName(byte[] data, int offset, int length) {
+		if (!isClientHello(data, offset, length)) {
+			return null;
+		}
+		int end = offset + Math.min(length, getRecordLength(data, offset, length));
+		//handshake type, length, client version and random
+		int pos = offset + RECORD_HEADER_LENGTH + 4 + 2 + 32;
+		//session id
+		pos = skip(data, pos, end, 1);
+		//cipher suites
+		pos = skip(data, pos, end, 2);
+		//compression methods
+		pos = skip(data, pos, end, 1);
+		if (pos < 0 || pos + 2 > end) {
+			return null;
+		}
+		int extensionsEnd = Math.min(end, pos + 2 + readShort(data, pos));
+		pos += 2;
+		while (pos + 4 <= extensionsEnd) {
+			int type = readShort(data, pos);
+			int extensionEnd = pos + 4 + readShort(data, pos + 2);
+			if (extensionEnd > extensionsEnd) {
+				return null;
+			}
+			if (type == SERVER_NAME) {
+				//server name list
+				pos += 6;
+				while (pos + 3 <= extensionEnd) {
+					int nameLength = readShort(data, pos + 1);
+					if (pos + 3 + nameLength > extensionEnd) {
+						return null;
+					}
+					if ((data[pos] & 0xff) == HOST_NAME) {
+						return Utils.fromAsciiBytes(data, pos + 3, nameLength);
+					}
+					pos += 3 + nameLength;
+				}
+				return null;
+			}
+			pos = extensionEnd;
+		}
+		return null;
+	}
+
+	//skips a vector with a length prefix of size bytes, -1 if it is incomplete
+	private static int skip(byte[] data, int pos, int end, int size) {
+		if (pos < 0 || pos + size > end) {
+			return -1;
+		}
+		int length = size == 1 ? data[pos] & 0xff : readShort(data, pos);
+		pos += size + length;
+		return pos <= end ? pos : -1;
+	}
+
+	private static int readShort(byte[] data, int pos) {
+		return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+	}
+}
@@ -0,0 +1,20 @@
+package pcap.reconst.http;
+
+import pcap.reconst.http.datamodel.TunnelRecord;
+import pcap.reconst.tcp.TcpConnection;
+
+/**
+ * Receives a summary of each connection, or the part of a connection, whose
+ * payload was skipped because it is tunneled through a CONNECT request or is
+ * TLS, see {@link TunnelStreamParser}.
+ */
+public interface TunnelListener {
+
+	/**
+	 * Called once the tunnel is closed.
+	 * 
+	 * @param connection the connection of the tunnel.
+	 * @param record the summary of the tunnel.
+	 */
+	void tunnelRecorded(TcpConnection connection, TunnelRecord record);
+}
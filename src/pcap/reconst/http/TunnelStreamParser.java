@@ -0,0 +1,120 @@
+package pcap.reconst.http;
+
+import java.util.Arrays;
+
+import pcap.reconst.http.datamodel.TunnelRecord;
+import pcap.reconst.tcp.MessageMetadata;
+import pcap.reconst.tcp.PacketType;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.TimestampPair;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Accounts for the bytes of a tunnel which {@link HttpStreamParser} does not
+ * parse: the bytes following the successful response to a CONNECT request,
+ * or a connection which starts with a TLS ClientHello.  Only the first TLS
+ * record sent by the client is kept, to find the server name, the rest of
+ * the payload is counted and dropped.  A {@link TunnelRecord} is handed to a
+ * {@link TunnelListener} when the connection is closed.
+ */
+public class TunnelStreamParser implements UpgradeTarget {
+
+	private final TcpConnection connection;
+	private final TunnelListener listener;
+	private final TunnelRecord.Type type;
+	private final String target;
+	private final PacketType clientDirection;
+
+	private long clientBytes = 0, serverBytes = 0;
+	private double startTS = 0, endTS = 0;
+	private TcpConnection clientSender = null;
+
+	//the start of the client bytes while looking for the ClientHello
+	private byte[] hello = new byte[256];
+	private int helloLength = 0;
+	private boolean tls = false;
+	private String serverName = null;
+
+	/**
+	 * @param listener the listener, or null to only skip the payload.
+	 * @param target the authority of the CONNECT request, or null.
+	 * @param clientDirection the direction of the client.
+	 */
+	public TunnelStreamParser(TcpConnection connection, TunnelListener listener,
+			TunnelRecord.Type type, String target, PacketType clientDirection) {
+		this.connection = connection;
+		this.listener = listener;
+		this.type = type;
+		this.target = target;
+		this.clientDirection = clientDirection;
+	}
+
+	public void sequencedData(PacketType direction, TcpPacket packet,
+			byte[] data, int offset, int length) {
+		append(direction, new TcpConnection(packet), packet.getTimestampSec()
+				+ (packet.getTimestampUSec() / 1000000.0), data, offset, length);
+	}
+
+	public void append(PacketType direction, TcpConnection sender, double timestamp,
+			byte[] data, int offset, int length) {
+		if (length == 0) {
+			return;
+		}
+		if (clientBytes + serverBytes == 0) {
+			startTS = timestamp;
+		}
+		endTS = timestamp;
+		if (direction == clientDirection) {
+			if (clientSender == null) {
+				clientSender = sender;
+			}
+			if (hello != null) {
+				findServerName(data, offset, length);
+			}
+			clientBytes += length;
+		} else {
+			serverBytes += length;
+		}
+	}
+
+	private void findServerName(byte[] data, int offset, int length) {
+		int count = Math.min(length, TlsClientHello.MAX_RECORD_LENGTH - helloLength);
+		if (helloLength + count > hello.length) {
+			hello = Arrays.copyOf(hello, Math.max(hello.length * 2, helloLength + count));
+		}
+		System.arraycopy(data, offset, hello, helloLength, count);
+		helloLength += count;
+		if (helloLength < 3) {
+			return;
+		}
+		tls = TlsClientHello.isClientHello(hello, 0, helloLength);
+		int recordLength = TlsClientHello.getRecordLength(hello, 0, helloLength);
+		if (!tls || (recordLength >= 0 && helloLength >= recordLength)
+				|| helloLength == TlsClientHello.MAX_RECORD_LENGTH) {
+			serverName = tls ? TlsClientHello.getServerName(hello, 0, helloLength) : null;
+			hello = null;
+		}
+	}
+
+	public void sequenceGap(PacketType direction, long length) {
+		if (direction == clientDirection) {
+			clientBytes += length;
+			hello = null;
+		} else {
+			serverBytes += length;
+		}
+	}
+
+	public void streamClosed() {
+		if (hello != null && tls) {
+			//the ClientHello was cut short
+			serverName = TlsClientHello.getServerName(hello, 0, helloLength);
+		}
+		if (listener != null) {
+			MessageMetadata mdata = new MessageMetadata(new TimestampPair(startTS, endTS),
+					clientSender != null ? clientSender : connection);
+			listener.tunnelRecorded(connection, new TunnelRecord(type, target, serverName,
+					tls, clientBytes, serverBytes, mdata));
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package pcap.reconst.http;
+
+import pcap.reconst.tcp.PacketType;
+import pcap.reconst.tcp.StreamConsumer;
+import pcap.reconst.tcp.TcpConnection;
+
+/**
+ * A parser which takes over a connection from {@link HttpStreamParser} when
+ * the connection switches protocols, starting with the bytes which were
+ * already buffered.
+ */
+interface UpgradeTarget extends StreamConsumer {
+
+	/**
+	 * Adds bytes of one direction which were received at timestamp, the same 
+	 * way as {@link #sequencedData(PacketType, pcap.reconst.tcp.packet.TcpPacket, byte[], int, int)}.
+	 * 
+	 * @param sender the connection of the sending side.
+	 */
+	void append(PacketType direction, TcpConnection sender, double timestamp,
+			byte[] data, int offset, int length);
+}
@@ -0,0 +1,20 @@
+package pcap.reconst.http;
+
+import pcap.reconst.http.datamodel.WebSocketMessage;
+import pcap.reconst.tcp.TcpConnection;
+
+/**
+ * Receives the messages of connections upgraded to the WebSocket protocol as
+ * they are parsed, see {@link WebSocketStreamParser}.
+ */
+public interface WebSocketListener {
+
+	/**
+	 * Called for each message of a connection, in the order the last frame of
+	 * the messages was received in.
+	 * 
+	 * @param connection the connection the message was parsed from.
+	 * @param message the message.
+	 */
+	void messageReceived(TcpConnection connection, WebSocketMessage message);
+}
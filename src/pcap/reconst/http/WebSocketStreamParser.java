@@ -0,0 +1,299 @@
+package pcap.reconst.http;
+
+import java.io.ByteArrayOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import pcap.reconst.http.datamodel.WebSocketMessage;
+import pcap.reconst.tcp.MessageMetadata;
+import pcap.reconst.tcp.PacketType;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.TimestampPair;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Incremental WebSocket (RFC 6455) parser for a connection which was upgraded
+ * by {@link HttpStreamParser}.  Only the frame headers of each direction are
+ * buffered, payload bytes are unmasked as they arrive and collected into the
+ * message being received, which is handed to a {@link WebSocketListener} once
+ * its final frame is complete.  Without a listener the payload is skipped, so
+ * that a long lived connection costs one header parse per frame.
+ */
+public class WebSocketStreamParser implements UpgradeTarget {
+
+	private static Log log = LogFactory.getLog(WebSocketStreamParser.class);
+
+	private static final int OPCODE_CONTINUATION = 0x0;
+
+	private final TcpConnection connection;
+	private final WebSocketListener listener;
+	private final long maxPayloadBytes;
+
+	private final FrameReader reqReader, respReader;
+
+	/**
+	 * @param listener the listener, or null to skip the messages.
+	 * @param clientDirection the direction of the client, which sent the
+	 * upgrade request.
+	 * @param limits limits on the payload bytes kept per message, or null to
+	 * keep complete messages.  Only the in memory limit applies.
+	 */
+	public WebSocketStreamParser(TcpConnection connection, WebSocketListener listener,
+			PacketType clientDirection, HttpBodyLimits limits) {
+		this.connection = connection;
+		this.listener = listener;
+		this.maxPayloadBytes = limits != null ? limits.getMaxBodyBytes() : HttpBodyLimits.UNLIMITED;
+		this.reqReader = new FrameReader(clientDirection == PacketType.Request);
+		this.respReader = new FrameReader(clientDirection == PacketType.Response);
+	}
+
+	private FrameReader getReader(PacketType direction) {
+		return direction == PacketType.Request ? reqReader : respReader;
+	}
+
+	public void sequencedData(PacketType direction, TcpPacket packet,
+			byte[] data, int offset, int length) {
+		append(direction, new TcpConnection(packet), packet.getTimestampSec()
+				+ (packet.getTimestampUSec() / 1000000.0), data, offset, length);
+	}
+
+	public void append(PacketType direction, TcpConnection sender, double timestamp,
+			byte[] data, int offset, int length) {
+		FrameReader reader = getReader(direction);
+		if (reader.sender == null) {
+			reader.sender = sender;
+		}
+		reader.read(timestamp, data, offset, length);
+	}
+
+	public void sequenceGap(PacketType direction, long length) {
+		getReader(direction).fail("missing data");
+	}
+
+	public void streamClosed() {
+		reqReader.close();
+		respReader.close();
+	}
+
+	/**
+	 * A message being received, the payload of its frames so far.
+	 */
+	private class PendingMessage {
+		final int opcode;
+		final boolean compressed;
+		final double startTS;
+		final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		long length = 0;
+		boolean truncated = false;
+
+		PendingMessage(int opcode, boolean compressed, double startTS) {
+			this.opcode = opcode;
+			this.compressed = compressed;
+			this.startTS = startTS;
+		}
+
+		void write(byte[] data, int offset, int count) {
+			length += count;
+			int room = maxPayloadBytes < 0 ? count
+					: (int) Math.max(0, Math.min(count, maxPayloadBytes - payload.size()));
+			payload.write(data, offset, room);
+			truncated |= room < count;
+		}
+	}
+
+	/**
+	 * Reads the frames of one direction.
+	 */
+	private class FrameReader {
+		TcpConnection sender = null;
+		private final boolean client;
+		private boolean failed = false;
+
+		//the frame header being read, at most 14 bytes
+		private final byte[] header = new byte[14];
+		private int headerLength = 0;
+		private double frameStartTS, lastTS;
+
+		//the payload of the current frame
+		private boolean inPayload = false;
+		private long remaining;
+		private boolean masked;
+		private final byte[] mask = new byte[4];
+		private int maskIndex;
+		private PendingMessage frameMessage;
+		private boolean fin;
+
+		//a fragmented data message, and a control message between its fragments
+		private PendingMessage message = null, control = null;
+
+		//unmasked payload bytes
+		private byte[] scratch = null;
+
+		FrameReader(boolean client) {
+			this.client = client;
+		}
+
+		void read(double timestamp, byte[] data, int offset, int length) {
+			int end = offset + length;
+			lastTS = timestamp;
+			while (offset < end && !failed) {
+				if (inPayload) {
+					int count = (int) Math.min(remaining, end - offset);
+					if (frameMessage != null) {
+						payload(data, offset, count);
+					}
+					offset += count;
+					remaining -= count;
+				} else {
+					if (headerLength == 0) {
+						frameStartTS = timestamp;
+					}
+					int count = Math.min(getHeaderSize() - headerLength, end - offset);
+					System.arraycopy(data, offset, header, headerLength, count);
+					headerLength += count;
+					offset += count;
+					if (headerLength == getHeaderSize()) {
+						startFrame();
+					}
+				}
+				if (inPayload && remaining == 0) {
+					endFrame(timestamp);
+				}
+			}
+		}
+
+		//the size of the frame header, as far as it is known
+		private int getHeaderSize() {
+			if (headerLength < 2) {
+				return 2;
+			}
+			int size = 2;
+			int length = header[1] & 0x7f;
+			if (length == 126) {
+				size += 2;
+			} else if (length == 127) {
+				size += 8;
+			}
+			return (header[1] & 0x80) != 0 ? size + 4 : size;
+		}
+
+		private void startFrame() {
+			fin = (header[0] & 0x80) != 0;
+			boolean rsv1 = (header[0] & 0x40) != 0;
+			int opcode = header[0] & 0x0f;
+			masked = (header[1] & 0x80) != 0;
+			int length = header[1] & 0x7f;
+			int pos = 2;
+			if (length == 126) {
+				remaining = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+				pos = 4;
+			} else if (length == 127) {
+				remaining = 0;
+				for (int i = 2; i < 10; i++) {
+					remaining = (remaining << 8) | (header[i] & 0xff);
+				}
+				pos = 10;
+			} else {
+				remaining = length;
+			}
+			if (masked) {
+				System.arraycopy(header, pos, mask, 0, 4);
+			}
+			maskIndex = 0;
+			headerLength = 0;
+			inPayload = true;
+
+			if (remaining < 0 || (opcode >= WebSocketMessage.OPCODE_CLOSE
+					&& (remaining > 125 || !fin))) {
+				fail("invalid frame header");
+				return;
+			}
+			if (opcode >= WebSocketMessage.OPCODE_CLOSE) {
+				control = new PendingMessage(opcode, rsv1, frameStartTS);
+				frameMessage = control;
+			} else if (opcode == OPCODE_CONTINUATION) {
+				if (message == null && log.isDebugEnabled()) {
+					log.debug("Continuation frame without message in stream: " + connection);
+				}
+				frameMessage = message;
+			} else {
+				if (message != null) {
+					//the final frame of the previous message is missing
+					message.truncated = true;
+					deliver(message, frameStartTS);
+				}
+				message = new PendingMessage(opcode, rsv1, frameStartTS);
+				frameMessage = message;
+			}
+			if (listener == null) {
+				frameMessage = null;
+			}
+		}
+
+		private void payload(byte[] data, int offset, int count) {
+			if (!masked) {
+				frameMessage.write(data, offset, count);
+				return;
+			}
+			if (scratch == null || scratch.length < count) {
+				scratch = new byte[Math.max(count, 1024)];
+			}
+			for (int i = 0; i < count; i++) {
+				scratch[i] = (byte) (data[offset + i] ^ mask[maskIndex]);
+				maskIndex = (maskIndex + 1) & 3;
+			}
+			frameMessage.write(scratch, 0, count);
+		}
+
+		private void endFrame(double timestamp) {
+			inPayload = false;
+			PendingMessage completed = frameMessage;
+			frameMessage = null;
+			if (completed == control) {
+				control = null;
+			} else if (fin) {
+				message = null;
+			} else {
+				return;
+			}
+			if (completed != null) {
+				deliver(completed, timestamp);
+			}
+		}
+
+		private void deliver(PendingMessage pending, double endTS) {
+			if (listener == null) {
+				return;
+			}
+			MessageMetadata mdata = new MessageMetadata(
+					new TimestampPair(pending.startTS, endTS), sender);
+			listener.messageReceived(connection, new WebSocketMessage(pending.opcode,
+					pending.payload.toByteArray(), pending.length, pending.truncated,
+					pending.compressed, client, mdata));
+		}
+
+		void fail(String reason) {
+			if (failed) {
+				return;
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Unable to read WebSocket frames after " + reason + " in stream: "
+						+ connection);
+			}
+			close();
+			failed = true;
+		}
+
+		//delivers the message cut short by the end of the direction
+		void close() {
+			if (!failed && message != null) {
+				message.truncated = true;
+				deliver(message, lastTS);
+			}
+			message = null;
+			control = null;
+			frameMessage = null;
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package pcap.reconst.http.datamodel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHeaderIterator;
+import org.apache.http.message.HeaderGroup;
+
+/**
+ * A {@link HeaderGroup} that keeps the raw header block of a recorded message
+ * as a single byte slice plus an offset index, instead of one {@link Header}
+ * object (and its name and value Strings) per header line.  Names and values
+ * are only decoded into Strings when they are accessed, and common header
+ * names are returned as shared String instances.
+ *
+ * The group is read only until it is modified.  The first call to a mutating
+ * method copies the headers into the regular {@link HeaderGroup} storage and
+ * drops the compact representation.
+ */
+public class CompactHeaderGroup extends HeaderGroup {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int NAME_START = 0, NAME_END = 1, VALUE_START = 2,
+			VALUE_END = 3, FIELDS = 4;
+
+	private static final String[] COMMON_NAMES = { "Accept",
+			"Accept-Charset", "Accept-Encoding", "Accept-Language",
+			"Accept-Ranges", "Age", "Allow", "Authorization", "Cache-Control",
+			"Connection", "Content-Disposition", "Content-Encoding",
+			"Content-Language", "Content-Length", "Content-Location",
+			"Content-Range", "Content-Type", "Cookie", "Date", "ETag",
+			"Expect", "Expires", "From", "Host", "If-Match",
+			"If-Modified-Since", "If-None-Match", "If-Range",
+			"If-Unmodified-Since", "Keep-Alive", "Last-Modified", "Location",
+			"Origin", "Pragma", "Proxy-Authenticate", "Proxy-Authorization",
+			"Proxy-Connection", "Range", "Referer", "Retry-After", "Server",
+			"Set-Cookie", "Strict-Transport-Security", "TE", "Trailer",
+			"Transfer-Encoding", "Upgrade", "User-Agent", "Vary", "Via",
+			"WWW-Authenticate", "Warning", "X-Forwarded-For",
+			"X-Requested-With" };
+
+	//canonical and lower case spellings of the common names, as bytes
+	private static final byte[][] INTERNED_BYTES;
+	private static final String[] INTERNED_NAMES;
+
+	static {
+		INTERNED_BYTES = new byte[COMMON_NAMES.length * 2][];
+		INTERNED_NAMES = new String[COMMON_NAMES.length * 2];
+		for (int i = 0; i < COMMON_NAMES.length; i++) {
+			String lower = COMMON_NAMES[i].toLowerCase();
+			INTERNED_NAMES[i * 2] = COMMON_NAMES[i];
+			INTERNED_BYTES[i * 2] = Utils.toAsciiBytes(COMMON_NAMES[i]);
+			INTERNED_NAMES[i * 2 + 1] = lower;
+			INTERNED_BYTES[i * 2 + 1] = Utils.toAsciiBytes(lower);
+		}
+	}
+
+	private byte[] data;
+	private int[] index;
+	private int size;
+
+	private CompactHeaderGroup(byte[] data, int[] index, int size) {
+		this.data = data;
+		this.index = index;
+		this.size = size;
+	}
+
+	/**
+	 * Indexes a raw header block.  The block should start with the first
+	 * header line, i.e. after the request or status line, and may include the
+	 * terminating empty line.  Folded (continuation) lines are appended to the
+	 * value of the preceding header and lines without a colon are skipped.
+	 *
+	 * @param buf buffer containing the header block.
+	 * @param offset offset of the header block in buf.
+	 * @param length length of the header block.
+	 * @return the indexed header block.  The relevant bytes are copied, the
+	 * group does not keep a reference to buf.
+	 */
+	public static CompactHeaderGroup parse(byte[] buf, int offset, int length) {
+		byte[] data = Arrays.copyOfRange(buf, offset, offset + length);
+		int[] index = new int[FIELDS * 8];
+		int size = 0;
+
+		int pos = 0;
+		while (pos < data.length) {
+			int lineEnd = pos;
+			while (lineEnd < data.length && data[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int contentEnd = lineEnd;
+			if (contentEnd > pos && data[contentEnd - 1] == '\r') {
+				contentEnd--;
+			}
+			if (contentEnd == pos) {
+				//empty line, end of the header block
+				break;
+			}
+
+			if ((data[pos] == ' ' || data[pos] == '\t') && size > 0) {
+				//continuation of the previous header value
+				index[(size - 1) * FIELDS + VALUE_END] = trimEnd(data,
+						index[(size - 1) * FIELDS + VALUE_START], contentEnd);
+			} else {
+				int colon = pos;
+				while (colon < contentEnd && data[colon] != ':') {
+					colon++;
+				}
+				if (colon < contentEnd) {
+					if ((size + 1) * FIELDS > index.length) {
+						index = Arrays.copyOf(index, index.length * 2);
+					}
+					int valueStart = colon + 1;
+					while (valueStart < contentEnd
+							&& (data[valueStart] == ' ' || data[valueStart] == '\t')) {
+						valueStart++;
+					}
+					int base = size * FIELDS;
+					index[base + NAME_START] = pos;
+					index[base + NAME_END] = trimEnd(data, pos, colon);
+					index[base + VALUE_START] = valueStart;
+					index[base + VALUE_END] = trimEnd(data, valueStart,
+							contentEnd);
+					size++;
+				}
+			}
+			pos = lineEnd + 1;
+		}
+
+		return new CompactHeaderGroup(data, Arrays.copyOf(index, size * FIELDS), size);
+	}
+
+	private static int trimEnd(byte[] data, int start, int end) {
+		while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * @return true while the headers are still held in the compact
+	 * representation, false once the group has been modified.
+	 */
+	public boolean isCompact() {
+		return data != null;
+	}
+
+	/**
+	 * @return the number of headers in the group.
+	 */
+	public int size() {
+		return data != null ? size : super.getAllHeaders().length;
+	}
+
+	private String getName(int i) {
+		int start = index[i * FIELDS + NAME_START];
+		int len = index[i * FIELDS + NAME_END] - start;
+		for (int n = 0; n < INTERNED_BYTES.length; n++) {
+			byte[] candidate = INTERNED_BYTES[n];
+			if (candidate.length == len && regionMatches(start, candidate)) {
+				return INTERNED_NAMES[n];
+			}
+		}
+		return Utils.fromAsciiBytes(data, start, len);
+	}
+
+	private String getValue(int i) {
+		int start = index[i * FIELDS + VALUE_START];
+		int end = index[i * FIELDS + VALUE_END];
+		for (int pos = start; pos < end; pos++) {
+			if (data[pos] == '\r' || data[pos] == '\n') {
+				//folded value, drop the line breaks
+				StringBuilder sb = new StringBuilder(end - start);
+				for (int j = start; j < end; j++) {
+					if (data[j] != '\r' && data[j] != '\n') {
+						sb.append((char) (data[j] & 0xff));
+					}
+				}
+				return sb.toString();
+			}
+		}
+		return Utils.fromAsciiBytes(data, start, end - start);
+	}
+
+	private Header getHeader(int i) {
+		return new BasicHeader(getName(i), getValue(i));
+	}
+
+	private boolean nameMatches(int i, String name) {
+		int start = index[i * FIELDS + NAME_START];
+		int len = index[i * FIELDS + NAME_END] - start;
+		if (len != name.length()) {
+			return false;
+		}
+		for (int j = 0; j < len; j++) {
+			if (Character.toLowerCase((char) (data[start + j] & 0xff)) != Character
+					.toLowerCase(name.charAt(j))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean regionMatches(int start, byte[] other) {
+		for (int j = 0; j < other.length; j++) {
+			if (data[start + j] != other[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	//switches to the regular HeaderGroup storage prior to a modification
+	private void expand() {
+		if (data != null) {
+			Header[] headers = getAllHeaders();
+			data = null;
+			index = null;
+			size = 0;
+			super.setHeaders(headers);
+		}
+	}
+
+	@Override
+	public void clear() {
+		data = null;
+		index = null;
+		size = 0;
+		super.clear();
+	}
+
+	@Override
+	public void addHeader(Header header) {
+		expand();
+		super.addHeader(header);
+	}
+
+	@Override
+	public void removeHeader(Header header) {
+		expand();
+		super.removeHeader(header);
+	}
+
+	@Override
+	public void updateHeader(Header header) {
+		expand();
+		super.updateHeader(header);
+	}
+
+	@Override
+	public void setHeaders(Header[] headers) {
+		clear();
+		super.setHeaders(headers);
+	}
+
+	@Override
+	public Header getCondensedHeader(String name) {
+		if (data == null) {
+			return super.getCondensedHeader(name);
+		}
+		Header[] headers = getHeaders(name);
+		if (headers.length == 0) {
+			return null;
+		} else if (headers.length == 1) {
+			return headers[0];
+		}
+		StringBuilder sb = new StringBuilder(headers[0].getValue());
+		for (int i = 1; i < headers.length; i++) {
+			sb.append(", ").append(headers[i].getValue());
+		}
+		return new BasicHeader(name.toLowerCase(), sb.toString());
+	}
+
+	@Override
+	public Header[] getHeaders(String name) {
+		if (data == null) {
+			return super.getHeaders(name);
+		}
+		List<Header> headers = new ArrayList<Header>(2);
+		for (int i = 0; i < size; i++) {
+			if (nameMatches(i, name)) {
+				headers.add(getHeader(i));
+			}
+		}
+		return headers.toArray(new Header[headers.size()]);
+	}
+
+	@Override
+	public Header getFirstHeader(String name) {
+		if (data == null) {
+			return super.getFirstHeader(name);
+		}
+		for (int i = 0; i < size; i++) {
+			if (nameMatches(i, name)) {
+				return getHeader(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Header getLastHeader(String name) {
+		if (data == null) {
+			return super.getLastHeader(name);
+		}
+		for (int i = size - 1; i >= 0; i--) {
+			if (nameMatches(i, name)) {
+				return getHeader(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Header[] getAllHeaders() {
+		if (data == null) {
+			return super.getAllHeaders();
+		}
+		Header[] headers = new Header[size];
+		for (int i = 0; i < size; i++) {
+			headers[i] = getHeader(i);
+		}
+		return headers;
+	}
+
+	@Override
+	public boolean containsHeader(String name) {
+		if (data == null) {
+			return super.containsHeader(name);
+		}
+		for (int i = 0; i < size; i++) {
+			if (nameMatches(i, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public HeaderIterator iterator() {
+		if (data == null) {
+			return super.iterator();
+		}
+		return new BasicHeaderIterator(getAllHeaders(), null);
+	}
+
+	@Override
+	public HeaderIterator iterator(String name) {
+		if (data == null) {
+			return super.iterator(name);
+		}
+		return new BasicHeaderIterator(getHeaders(name), null);
+	}
+
+	@Override
+	public HeaderGroup copy() {
+		if (data == null) {
+			return super.copy();
+		}
+		//the compact data is never modified in place, so it can be shared
+		return new CompactHeaderGroup(data, index, size);
+	}
+
+	@Override
+	public Object clone() throws CloneNotSupportedException {
+		return copy();
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(getAllHeaders());
+	}
+}
@@ -9,7 +9,11 @@ import org.apache.http.params.BasicHttpParams;
 public class MessageStringInputBuffer extends AbstractSessionInputBuffer {
 
 	public MessageStringInputBuffer(String message){
-		init(new ByteArrayInputStream(message.getBytes()), 10, new BasicHttpParams());
+		init(new ByteArrayInputStream(Utils.toAsciiBytes(message)), 10, new BasicHttpParams());
+	}
+	
+	public MessageStringInputBuffer(byte[] message, int offset, int length){
+		init(new ByteArrayInputStream(message, offset, length), 10, new BasicHttpParams());
 	}
 	
 	public boolean isDataAvailable(int arg0) throws IOException {
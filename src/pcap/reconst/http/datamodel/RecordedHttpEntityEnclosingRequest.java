@@ -7,14 +7,18 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.RequestLine;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.HeaderGroup;
 
 import pcap.reconst.tcp.MessageMetadata;
 
 public class RecordedHttpEntityEnclosingRequest extends
-		BasicHttpEntityEnclosingRequest implements RecordedHttpRequestMessage {
+		BasicHttpEntityEnclosingRequest implements RecordedHttpRequestMessage,
+		TruncatableHttpMessage {
 
 	protected MessageMetadata messdata;
 	
+	protected boolean bodyTruncated = false;
+	
 	private static Log log = LogFactory.getLog(RecordedHttpEntityEnclosingRequest.class);
 	
 	public RecordedHttpEntityEnclosingRequest(RequestLine requestline, 
@@ -35,6 +39,14 @@ public class RecordedHttpEntityEnclosingRequest extends
 		this.messdata = messdata;
 	}
 	
+	/**
+	 * Replaces the header storage of this message, e.g. with a 
+	 * {@link CompactHeaderGroup} holding the raw header block.
+	 */
+	public void setHeaderGroup(HeaderGroup headers){
+		this.headergroup = headers;
+	}
+	
 	public String getUrl(){
 		String host = this.getFirstHeader("Host").getValue();
 		String retval = "http://";
@@ -71,6 +83,14 @@ public class RecordedHttpEntityEnclosingRequest extends
 		return this.messdata.getDstPort();
 	}
 	
+	public boolean isBodyTruncated() {
+		return this.bodyTruncated;
+	}
+	
+	public void setBodyTruncated(boolean truncated) {
+		this.bodyTruncated = truncated;
+	}
+	
 	public boolean equals(Object obj){
 		boolean retval = false;
 		if(obj instanceof RecordedHttpEntityEnclosingRequest){
@@ -5,14 +5,17 @@ import java.net.InetAddress;
 import org.apache.http.ProtocolVersion;
 import org.apache.http.RequestLine;
 import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.HeaderGroup;
 
 import pcap.reconst.tcp.MessageMetadata;
 
 public class RecordedHttpRequest extends BasicHttpRequest implements
-		RecordedHttpRequestMessage {
+		RecordedHttpRequestMessage, TruncatableHttpMessage {
 
 	protected MessageMetadata messdata;
 	
+	protected boolean bodyTruncated = false;
+	
 	public RecordedHttpRequest(RequestLine requestline,
 			MessageMetadata messdata) {
 		super(requestline);
@@ -31,6 +34,14 @@ public class RecordedHttpRequest extends BasicHttpRequest implements
 		this.messdata = messdata;
 	}
 	
+	/**
+	 * Replaces the header storage of this message, e.g. with a 
+	 * {@link CompactHeaderGroup} holding the raw header block.
+	 */
+	public void setHeaderGroup(HeaderGroup headers){
+		this.headergroup = headers;
+	}
+	
 	public String getUrl(){
 		String host = this.getFirstHeader("Host").getValue();
 		String retval = "http://";
@@ -66,6 +77,14 @@ public class RecordedHttpRequest extends BasicHttpRequest implements
 		return this.messdata.getDstPort();
 	}
 	
+	public boolean isBodyTruncated() {
+		return this.bodyTruncated;
+	}
+	
+	public void setBodyTruncated(boolean truncated) {
+		this.bodyTruncated = truncated;
+	}
+	
 	public boolean equals(Object obj){
 		if(obj instanceof RecordedHttpRequest){
 			RecordedHttpRequest mess = (RecordedHttpRequest)obj;
@@ -9,14 +9,17 @@ import org.apache.http.ProtocolVersion;
 import org.apache.http.ReasonPhraseCatalog;
 import org.apache.http.StatusLine;
 import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.HeaderGroup;
 
 import pcap.reconst.tcp.MessageMetadata;
 
 public class RecordedHttpResponse extends BasicHttpResponse implements
-		RecordedHttpMessage {
+		TruncatableHttpMessage {
 
 	protected MessageMetadata messdata;
 	
+	protected boolean bodyTruncated = false;
+	
 	private static Log log = LogFactory.getLog(RecordedHttpResponse.class);
 	
 	public RecordedHttpResponse(StatusLine statusline, 
@@ -38,6 +41,14 @@ public class RecordedHttpResponse extends BasicHttpResponse implements
 		this.messdata = messdata;
 	}
 
+	/**
+	 * Replaces the header storage of this message, e.g. with a 
+	 * {@link CompactHeaderGroup} holding the raw header block.
+	 */
+	public void setHeaderGroup(HeaderGroup headers){
+		this.headergroup = headers;
+	}
+	
 	public double getStartTS() {
 		return this.messdata.getTimestamps().getStartTS();
 	}
@@ -62,6 +73,14 @@ public class RecordedHttpResponse extends BasicHttpResponse implements
 		return this.messdata.getDstPort();
 	}
 	
+	public boolean isBodyTruncated() {
+		return this.bodyTruncated;
+	}
+	
+	public void setBodyTruncated(boolean truncated) {
+		this.bodyTruncated = truncated;
+	}
+	
 	public boolean equals(Object obj){
 		boolean retval = false;
 		if(obj instanceof RecordedHttpResponse){
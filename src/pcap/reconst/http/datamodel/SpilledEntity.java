@@ -0,0 +1,25 @@
+package pcap.reconst.http.datamodel;
+
+import java.io.File;
+
+import org.apache.http.entity.FileEntity;
+
+/**
+ * Entity whose content was written to a temporary file because it exceeded the 
+ * configured body size limit.  The file is not deleted automatically, call 
+ * {@link #delete()} once the content is no longer needed.
+ */
+public class SpilledEntity extends FileEntity {
+
+	public SpilledEntity(File file) {
+		super(file);
+	}
+
+	public File getFile() {
+		return file;
+	}
+	
+	public boolean delete() {
+		return file.delete();
+	}
+}
@@ -0,0 +1,16 @@
+package pcap.reconst.http.datamodel;
+
+/**
+ * A recorded message which tells whether its body was cut short.  Kept apart 
+ * from {@link RecordedHttpMessage} so that existing implementations of it are 
+ * not broken.
+ */
+public interface TruncatableHttpMessage extends RecordedHttpMessage {
+
+	/**
+	 * @return true if the message body was cut short because it exceeded the 
+	 * configured body size limit.
+	 */
+	public boolean isBodyTruncated();
+	public void setBodyTruncated(boolean truncated);
+}
@@ -0,0 +1,123 @@
+package pcap.reconst.http.datamodel;
+
+import java.net.InetAddress;
+
+import pcap.reconst.tcp.MessageMetadata;
+
+/**
+ * Summary of a tunnel whose payload was not parsed: the bytes following the 
+ * successful response to a CONNECT request, or a connection speaking TLS
+ * from its start.
+ */
+public class TunnelRecord {
+
+	public enum Type {
+		/** Established by a CONNECT request. */
+		CONNECT, 
+		/** A connection starting with a TLS ClientHello. */
+		TLS
+	}
+
+	private final Type type;
+	private final String target;
+	private final String serverName;
+	private final boolean tls;
+	private final long clientBytes, serverBytes;
+	private final MessageMetadata messdata;
+
+	/**
+	 * @param messdata the capture times of the first and last tunneled byte,
+	 * and the connection oriented from the client.
+	 */
+	public TunnelRecord(Type type, String target, String serverName, boolean tls,
+			long clientBytes, long serverBytes, MessageMetadata messdata) {
+		this.type = type;
+		this.target = target;
+		this.serverName = serverName;
+		this.tls = tls;
+		this.clientBytes = clientBytes;
+		this.serverBytes = serverBytes;
+		this.messdata = messdata;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the authority of the CONNECT request, null for TLS connections.
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the server name indicated by the TLS ClientHello, or null if 
+	 * there was none.
+	 */
+	public String getServerName() {
+		return serverName;
+	}
+
+	/**
+	 * @return true if the tunneled bytes start with a TLS ClientHello.
+	 */
+	public boolean isTls() {
+		return tls;
+	}
+
+	/**
+	 * @return the number of bytes the client sent through the tunnel, 
+	 * including bytes missing from the capture.
+	 */
+	public long getClientBytes() {
+		return clientBytes;
+	}
+
+	/**
+	 * @return the number of bytes the server sent through the tunnel,
+	 * including bytes missing from the capture.
+	 */
+	public long getServerBytes() {
+		return serverBytes;
+	}
+
+	/**
+	 * @return the capture time of the first tunneled byte, 0 if no bytes 
+	 * were tunneled.
+	 */
+	public double getStartTS() {
+		return messdata.getStartTS();
+	}
+
+	/**
+	 * @return the capture time of the last tunneled byte, 0 if no bytes 
+	 * were tunneled.
+	 */
+	public double getEndTS() {
+		return messdata.getEndTS();
+	}
+
+	public InetAddress getSrcIp() {
+		return messdata.getSrcIp();
+	}
+
+	public InetAddress getDstIp() {
+		return messdata.getDstIp();
+	}
+
+	public int getSrcPort() {
+		return messdata.getSrcPort();
+	}
+
+	public int getDstPort() {
+		return messdata.getDstPort();
+	}
+
+	@Override
+	public String toString() {
+		return "TunnelRecord[" + type + (target != null ? " " + target : "")
+				+ (serverName != null ? ", sni=" + serverName : "") + (tls ? ", tls" : "")
+				+ ", client=" + clientBytes + ", server=" + serverBytes + "]";
+	}
+}
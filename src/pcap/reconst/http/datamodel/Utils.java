@@ -1,5 +1,6 @@
 package pcap.reconst.http.datamodel;
 
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Comparator;
 
@@ -9,6 +10,17 @@ import org.apache.http.StatusLine;
 
 public class Utils {
 	
+	/** Charset used for HTTP start lines and headers, maps each byte to one char. */
+	public static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+	
+	public static byte[] toAsciiBytes(String str){
+		return str.getBytes(HEADER_CHARSET);
+	}
+	
+	public static String fromAsciiBytes(byte[] data, int offset, int length){
+		return new String(data, offset, length, HEADER_CHARSET);
+	}
+	
 	public static boolean equals(RequestLine a, RequestLine b){
 		return a.getProtocolVersion().equals(b.getProtocolVersion()) &&
 				a.getMethod().equals(b.getMethod()) &&
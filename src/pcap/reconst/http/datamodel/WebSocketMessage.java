@@ -0,0 +1,132 @@
+package pcap.reconst.http.datamodel;
+
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+
+import pcap.reconst.tcp.MessageMetadata;
+
+/**
+ * A message sent over a connection upgraded to the WebSocket protocol 
+ * (RFC 6455), with the payload of its frames unmasked and concatenated.
+ * Control frames (close, ping and pong) are messages of their own.
+ */
+public class WebSocketMessage {
+
+	public static final int OPCODE_TEXT = 0x1;
+	public static final int OPCODE_BINARY = 0x2;
+	public static final int OPCODE_CLOSE = 0x8;
+	public static final int OPCODE_PING = 0x9;
+	public static final int OPCODE_PONG = 0xa;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final int opcode;
+	private final byte[] payload;
+	private final long length;
+	private final boolean truncated;
+	private final boolean compressed;
+	private final boolean fromClient;
+	private final MessageMetadata messdata;
+
+	public WebSocketMessage(int opcode, byte[] payload, long length, boolean truncated,
+			boolean compressed, boolean fromClient, MessageMetadata messdata) {
+		this.opcode = opcode;
+		this.payload = payload;
+		this.length = length;
+		this.truncated = truncated;
+		this.compressed = compressed;
+		this.fromClient = fromClient;
+		this.messdata = messdata;
+	}
+
+	public int getOpcode() {
+		return opcode;
+	}
+
+	public boolean isText() {
+		return opcode == OPCODE_TEXT;
+	}
+
+	public boolean isBinary() {
+		return opcode == OPCODE_BINARY;
+	}
+
+	public boolean isControl() {
+		return opcode >= OPCODE_CLOSE;
+	}
+
+	/**
+	 * @return the payload, or its retained prefix if the message is truncated.
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return the payload as UTF-8 text.
+	 */
+	public String getText() {
+		return new String(payload, UTF8);
+	}
+
+	/**
+	 * @return the payload length of the message on the wire, including bytes
+	 * which were not retained.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return true if the payload was cut by the body limits or the message 
+	 * was not completely captured.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return true if the first frame had the RSV1 bit set, i.e. the payload
+	 * is compressed by the permessage-deflate extension.
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * @return true if the message was sent by the client of the connection.
+	 */
+	public boolean isFromClient() {
+		return fromClient;
+	}
+
+	public double getStartTS() {
+		return messdata.getStartTS();
+	}
+
+	public double getEndTS() {
+		return messdata.getEndTS();
+	}
+
+	public InetAddress getSrcIp() {
+		return messdata.getSrcIp();
+	}
+
+	public InetAddress getDstIp() {
+		return messdata.getDstIp();
+	}
+
+	public int getSrcPort() {
+		return messdata.getSrcPort();
+	}
+
+	public int getDstPort() {
+		return messdata.getDstPort();
+	}
+
+	@Override
+	public String toString() {
+		return "WebSocketMessage[opcode=" + opcode + ", length=" + length 
+				+ (truncated ? ", truncated" : "") + (fromClient ? ", client" : ", server") + "]";
+	}
+}
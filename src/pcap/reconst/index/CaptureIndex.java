@@ -0,0 +1,301 @@
+package pcap.reconst.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import pcap.reconst.http.datamodel.Utils;
+
+/**
+ * Index of the TCP connections and HTTP messages of a capture file, built by 
+ * {@link CaptureIndexer}.  It can be stored next to the capture in a compact 
+ * binary sidecar file and queried without reading the capture.  The file 
+ * offsets of the entries allow reconstructing just the matching connections 
+ * or messages with {@link IndexedReconstructor}.
+ */
+public class CaptureIndex {
+	public static final String SIDECAR_SUFFIX = ".idx";
+
+	private static final int MAGIC = 0x50524958; //"PRIX"
+	private static final int VERSION = 1;
+
+	private final long captureLength, captureModified;
+	private final List<ConnectionIndexEntry> connections;
+	private final List<MessageIndexEntry> messages;
+
+	/**
+	 * @param captureLength length of the indexed capture file.
+	 * @param captureModified last modification time of the indexed capture file.
+	 */
+	public CaptureIndex(long captureLength, long captureModified,
+			List<ConnectionIndexEntry> connections, List<MessageIndexEntry> messages) {
+		this.captureLength = captureLength;
+		this.captureModified = captureModified;
+		this.connections = connections;
+		this.messages = messages;
+	}
+
+	/**
+	 * @return the default sidecar file of a capture, the capture file name
+	 * with {@link #SIDECAR_SUFFIX} appended.
+	 */
+	public static File getSidecarFile(File capture) {
+		return new File(capture.getPath() + SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * @return a hash of a request URI which is stable across runs, the 32 bit 
+	 * FNV-1a hash of its bytes.
+	 */
+	public static int hashUri(String uri) {
+		int hash = 0x811c9dc5;
+		byte[] bytes = Utils.toAsciiBytes(uri);
+		for (int i = 0; i < bytes.length; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x01000193;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return true if capture has the length and modification time of the 
+	 * indexed file.
+	 */
+	public boolean isCurrent(File capture) {
+		return capture.length() == captureLength
+				&& capture.lastModified() == captureModified;
+	}
+
+	public List<ConnectionIndexEntry> getConnections() {
+		return Collections.unmodifiableList(connections);
+	}
+
+	public List<MessageIndexEntry> getMessages() {
+		return Collections.unmodifiableList(messages);
+	}
+
+	public ConnectionIndexEntry getConnection(MessageIndexEntry message) {
+		return connections.get(message.getConnectionIndex());
+	}
+
+	/**
+	 * @param host an end of the connections, or null for any host.
+	 * @return the connections with host as an end which overlap the time 
+	 * range [from, to].
+	 */
+	public List<ConnectionIndexEntry> findConnections(InetAddress host,
+			double from, double to) {
+		List<ConnectionIndexEntry> result = new ArrayList<ConnectionIndexEntry>();
+		for (ConnectionIndexEntry entry : connections) {
+			if ((host == null || entry.involves(host)) && entry.overlaps(from, to)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param host an end of the connections of the messages, or null for any 
+	 * host.
+	 * @return the messages on connections with host as an end which overlap 
+	 * the time range [from, to].
+	 */
+	public List<MessageIndexEntry> findMessages(InetAddress host, double from,
+			double to) {
+		List<MessageIndexEntry> result = new ArrayList<MessageIndexEntry>();
+		for (MessageIndexEntry entry : messages) {
+			if ((host == null || getConnection(entry).involves(host))
+					&& entry.overlaps(from, to)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the messages with the given Host header value, ignoring case.
+	 */
+	public List<MessageIndexEntry> findMessagesByHost(String host) {
+		List<MessageIndexEntry> result = new ArrayList<MessageIndexEntry>();
+		for (MessageIndexEntry entry : messages) {
+			if (host.equalsIgnoreCase(entry.getHost())) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the messages whose request URI hash matches the hash of uri.
+	 * Hash collisions are possible, compare the URI of reconstructed messages 
+	 * where this matters.
+	 */
+	public List<MessageIndexEntry> findMessagesByUri(String uri) {
+		int hash = hashUri(uri);
+		List<MessageIndexEntry> result = new ArrayList<MessageIndexEntry>();
+		for (MessageIndexEntry entry : messages) {
+			if (entry.getUriHash() == hash) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(captureLength);
+			out.writeLong(captureModified);
+
+			out.writeInt(connections.size());
+			for (ConnectionIndexEntry entry : connections) {
+				writeAddress(out, entry.getSrcIp());
+				out.writeShort(entry.getSrcPort());
+				writeAddress(out, entry.getDstIp());
+				out.writeShort(entry.getDstPort());
+				writeEntry(out, entry);
+			}
+
+			out.writeInt(messages.size());
+			for (MessageIndexEntry entry : messages) {
+				out.writeInt(entry.getConnectionIndex());
+				writeString(out, entry.getMethod());
+				writeString(out, entry.getHost());
+				out.writeInt(entry.getUriHash());
+				out.writeShort(entry.getStatus());
+				writeEntry(out, entry);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static CaptureIndex read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a capture index: " + file);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported capture index version " + version
+						+ ": " + file);
+			}
+			long captureLength = in.readLong();
+			long captureModified = in.readLong();
+
+			int count = in.readInt();
+			List<ConnectionIndexEntry> connections = new ArrayList<ConnectionIndexEntry>(count);
+			for (int i = 0; i < count; i++) {
+				InetAddress srcIp = readAddress(in);
+				int srcPort = in.readUnsignedShort();
+				InetAddress dstIp = readAddress(in);
+				int dstPort = in.readUnsignedShort();
+				double startTS = in.readDouble();
+				double endTS = in.readDouble();
+				connections.add(new ConnectionIndexEntry(srcIp, srcPort, dstIp,
+						dstPort, startTS, endTS, readOffsets(in)));
+			}
+
+			count = in.readInt();
+			List<MessageIndexEntry> messages = new ArrayList<MessageIndexEntry>(count);
+			for (int i = 0; i < count; i++) {
+				int connection = in.readInt();
+				String method = readString(in);
+				String host = readString(in);
+				int uriHash = in.readInt();
+				int status = in.readShort();
+				double startTS = in.readDouble();
+				double endTS = in.readDouble();
+				messages.add(new MessageIndexEntry(connection, startTS, endTS,
+						method, host, uriHash, status, readOffsets(in)));
+			}
+			return new CaptureIndex(captureLength, captureModified, connections, messages);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeEntry(DataOutputStream out, IndexEntry entry)
+			throws IOException {
+		out.writeDouble(entry.getStartTS());
+		out.writeDouble(entry.getEndTS());
+		long[] offsets = entry.getPacketOffsets();
+		writeVarLong(out, offsets.length);
+		long last = 0;
+		for (int i = 0; i < offsets.length; i++) {
+			//ascending offsets, store the deltas
+			writeVarLong(out, offsets[i] - last);
+			last = offsets[i];
+		}
+	}
+
+	private static long[] readOffsets(DataInputStream in) throws IOException {
+		long[] offsets = new long[(int) readVarLong(in)];
+		long last = 0;
+		for (int i = 0; i < offsets.length; i++) {
+			last += readVarLong(in);
+			offsets[i] = last;
+		}
+		return offsets;
+	}
+
+	private static void writeAddress(DataOutputStream out, InetAddress address)
+			throws IOException {
+		byte[] bytes = address.getAddress();
+		out.writeByte(bytes.length);
+		out.write(bytes);
+	}
+
+	private static InetAddress readAddress(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedByte()];
+		in.readFully(bytes);
+		return InetAddress.getByAddress(bytes);
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value.length() > 1024 ? value.substring(0, 1024) : value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeVarLong(DataOutputStream out, long value)
+			throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+}
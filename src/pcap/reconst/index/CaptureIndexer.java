@@ -0,0 +1,159 @@
+package pcap.reconst.index;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+
+import pcap.reconst.http.HttpFlowParser;
+import pcap.reconst.http.datamodel.RecordedHttpFlow;
+import pcap.reconst.http.datamodel.RecordedHttpRequestMessage;
+import pcap.reconst.http.datamodel.RecordedHttpResponse;
+import pcap.reconst.tcp.ConnectionListener;
+import pcap.reconst.tcp.PacketReassembler;
+import pcap.reconst.tcp.RawPcapReconstructor;
+import pcap.reconst.tcp.SegmentTable;
+import pcap.reconst.tcp.StatusHandle;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.TcpReassembler;
+
+/**
+ * Builds a {@link CaptureIndex} in a single pass over a capture file.  
+ * Connections are parsed for HTTP messages as they complete and then 
+ * released, so memory use is bounded by the open connections rather than the 
+ * capture size.
+ */
+public class CaptureIndexer {
+	private static Log log = LogFactory.getLog(CaptureIndexer.class);
+
+	/**
+	 * @return the index of the capture, read from its sidecar file if that is 
+	 * current, otherwise built and written to the sidecar file.
+	 */
+	public CaptureIndex loadOrIndex(File capture, StatusHandle status) throws Exception {
+		File sidecar = CaptureIndex.getSidecarFile(capture);
+		if (sidecar.isFile()) {
+			try {
+				CaptureIndex index = CaptureIndex.read(sidecar);
+				if (index.isCurrent(capture)) {
+					return index;
+				}
+			} catch (Exception e) {
+				if (log.isWarnEnabled()) {
+					log.warn("Unable to read index " + sidecar + ", rebuilding it.", e);
+				}
+			}
+		}
+		CaptureIndex index = index(capture, status);
+		if (!status.isCancelled()) {
+			index.write(sidecar);
+		}
+		return index;
+	}
+
+	public CaptureIndex index(File capture, StatusHandle status) throws Exception {
+		long length = capture.length(), modified = capture.lastModified();
+		final List<ConnectionIndexEntry> connections = new ArrayList<ConnectionIndexEntry>();
+		final List<MessageIndexEntry> messages = new ArrayList<MessageIndexEntry>();
+
+		PacketReassembler reassembler = new PacketReassembler();
+		reassembler.setConnectionListener(new ConnectionListener() {
+			public void connectionCompleted(TcpConnection connection,
+					TcpReassembler assembler) {
+				indexConnection(connection, assembler, connections, messages);
+			}
+		});
+		new RawPcapReconstructor(reassembler).reconstruct(capture.getPath(), status);
+
+		if (log.isDebugEnabled()) {
+			log.debug("Indexed " + connections.size() + " connections and "
+					+ messages.size() + " messages of " + capture);
+		}
+		return new CaptureIndex(length, modified, connections, messages);
+	}
+
+	private void indexConnection(TcpConnection connection, TcpReassembler assembler,
+			List<ConnectionIndexEntry> connections, List<MessageIndexEntry> messages) {
+		SegmentTable segments = assembler.getSegments();
+		int[] recorded = new int[segments.size()];
+		int count = 0;
+		double start = Double.MAX_VALUE, end = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.getOrigins(i) != null) {
+				recorded[count++] = i;
+				double ts = getTimestamp(segments, i);
+				start = Math.min(start, ts);
+				end = Math.max(end, ts);
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+		recorded = Arrays.copyOf(recorded, count);
+		//orient the entry from the sender of the first packet
+		int first = recorded[0];
+		int connectionIndex = connections.size();
+		connections.add(new ConnectionIndexEntry(segments.getSourceIP(first),
+				segments.getSourcePort(first), segments.getDestinationIP(first),
+				segments.getDestinationPort(first), start, end,
+				getOffsets(segments, recorded, start, end)));
+
+		Map<TcpConnection, List<RecordedHttpFlow>> flows = new HttpFlowParser(
+				Collections.singletonMap(connection, assembler)).parse(new StatusHandle());
+		for (List<RecordedHttpFlow> list : flows.values()) {
+			for (RecordedHttpFlow flow : list) {
+				RecordedHttpRequestMessage request = flow.getRequest();
+				RecordedHttpResponse response = flow.getResponse();
+				double msgStart = request.getStartTS();
+				double msgEnd = response != null ? response.getEndTS() : request.getEndTS();
+				Header host = request.getFirstHeader("Host");
+				messages.add(new MessageIndexEntry(connectionIndex, msgStart, msgEnd,
+						request.getRequestLine().getMethod(),
+						host != null ? host.getValue() : null,
+						CaptureIndex.hashUri(request.getRequestLine().getUri()),
+						response != null ? response.getStatusLine().getStatusCode()
+								: MessageIndexEntry.NO_STATUS,
+						getOffsets(segments, recorded, msgStart, msgEnd)));
+			}
+		}
+	}
+
+	//offsets of the packets captured within [start, end], ascending
+	private static long[] getOffsets(SegmentTable segments, int[] recorded,
+			double start, double end) {
+		long[] offsets = new long[recorded.length];
+		int count = 0;
+		for (int i : recorded) {
+			double ts = getTimestamp(segments, i);
+			if (ts >= start && ts <= end) {
+				//a reassembled IP datagram needs all of its fragments
+				for (long offset : segments.getOrigins(i)) {
+					if (count == offsets.length) {
+						offsets = Arrays.copyOf(offsets, count * 2);
+					}
+					offsets[count++] = offset;
+				}
+			}
+		}
+		Arrays.sort(offsets, 0, count);
+		//a packet split by reassembly has several records
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || offsets[i] != offsets[unique - 1]) {
+				offsets[unique++] = offsets[i];
+			}
+		}
+		return Arrays.copyOf(offsets, unique);
+	}
+
+	private static double getTimestamp(SegmentTable segments, int index) {
+		return segments.getTimestampSec(index)
+				+ (segments.getTimestampUSec(index) / 1000000.0);
+	}
+}
@@ -0,0 +1,55 @@
+package pcap.reconst.index;
+
+import java.net.InetAddress;
+
+import pcap.reconst.tcp.TcpConnection;
+
+/**
+ * Index entry of a TCP connection, oriented from the sender of its first 
+ * packet.
+ */
+public class ConnectionIndexEntry extends IndexEntry {
+	private final InetAddress srcIp, dstIp;
+	private final int srcPort, dstPort;
+
+	public ConnectionIndexEntry(InetAddress srcIp, int srcPort, InetAddress dstIp,
+			int dstPort, double startTS, double endTS, long[] packetOffsets) {
+		super(startTS, endTS, packetOffsets);
+		this.srcIp = srcIp;
+		this.srcPort = srcPort;
+		this.dstIp = dstIp;
+		this.dstPort = dstPort;
+	}
+
+	public InetAddress getSrcIp() {
+		return srcIp;
+	}
+
+	public int getSrcPort() {
+		return srcPort;
+	}
+
+	public InetAddress getDstIp() {
+		return dstIp;
+	}
+
+	public int getDstPort() {
+		return dstPort;
+	}
+
+	public TcpConnection getConnection() {
+		return new TcpConnection(srcIp, srcPort, dstIp, dstPort);
+	}
+
+	/**
+	 * @return true if host is either end of the connection.
+	 */
+	public boolean involves(InetAddress host) {
+		return srcIp.equals(host) || dstIp.equals(host);
+	}
+
+	@Override
+	public String toString() {
+		return getConnection().toString();
+	}
+}
@@ -0,0 +1,38 @@
+package pcap.reconst.index;
+
+/**
+ * Common part of the entries of a {@link CaptureIndex}: a time range and the 
+ * file offsets of the capture records involved.
+ */
+public abstract class IndexEntry {
+	private final double startTS, endTS;
+	private final long[] packetOffsets;
+
+	protected IndexEntry(double startTS, double endTS, long[] packetOffsets) {
+		this.startTS = startTS;
+		this.endTS = endTS;
+		this.packetOffsets = packetOffsets;
+	}
+
+	public double getStartTS() {
+		return startTS;
+	}
+
+	public double getEndTS() {
+		return endTS;
+	}
+
+	/**
+	 * @return the file offsets of the records of the entry, in ascending order.
+	 */
+	public long[] getPacketOffsets() {
+		return packetOffsets;
+	}
+
+	/**
+	 * @return true if the entry overlaps the time range [from, to].
+	 */
+	public boolean overlaps(double from, double to) {
+		return startTS <= to && endTS >= from;
+	}
+}
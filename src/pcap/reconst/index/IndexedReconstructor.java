@@ -0,0 +1,62 @@
+package pcap.reconst.index;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import pcap.reconst.http.HttpFlowParser;
+import pcap.reconst.http.datamodel.RecordedHttpFlow;
+import pcap.reconst.tcp.PacketReassembler;
+import pcap.reconst.tcp.RawPcapReconstructor;
+import pcap.reconst.tcp.StatusHandle;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.TcpReassembler;
+
+/**
+ * Reconstructs selected entries of a {@link CaptureIndex} by reading only 
+ * their records from the capture file.  Typical use:
+ * 
+ * <pre>
+ * CaptureIndex index = new CaptureIndexer().loadOrIndex(capture, status);
+ * List&lt;MessageIndexEntry&gt; matches = index.findMessages(host, t1, t2);
+ * Map&lt;TcpConnection, List&lt;RecordedHttpFlow&gt;&gt; flows = 
+ * 		new IndexedReconstructor(capture).parse(matches, status);
+ * </pre>
+ */
+public class IndexedReconstructor {
+	private final File capture;
+
+	public IndexedReconstructor(File capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * Reassembles the records of the given entries.
+	 */
+	public Map<TcpConnection, TcpReassembler> reconstruct(
+			Collection<? extends IndexEntry> entries, StatusHandle status) throws Exception {
+		int count = 0;
+		for (IndexEntry entry : entries) {
+			count += entry.getPacketOffsets().length;
+		}
+		long[] offsets = new long[count];
+		int pos = 0;
+		for (IndexEntry entry : entries) {
+			long[] entryOffsets = entry.getPacketOffsets();
+			System.arraycopy(entryOffsets, 0, offsets, pos, entryOffsets.length);
+			pos += entryOffsets.length;
+		}
+		return new RawPcapReconstructor(new PacketReassembler()).reconstruct(
+				capture.getPath(), offsets, status);
+	}
+
+	/**
+	 * Reassembles the records of the given entries and parses them for HTTP 
+	 * flows.
+	 */
+	public Map<TcpConnection, List<RecordedHttpFlow>> parse(
+			Collection<? extends IndexEntry> entries, StatusHandle status) throws Exception {
+		return new HttpFlowParser(reconstruct(entries, status)).parse(status);
+	}
+}
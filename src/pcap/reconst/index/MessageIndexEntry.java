@@ -0,0 +1,64 @@
+package pcap.reconst.index;
+
+/**
+ * Index entry of an HTTP request and its response.  The time range spans 
+ * from the start of the request to the end of the response, or of the 
+ * request if there is no response.
+ */
+public class MessageIndexEntry extends IndexEntry {
+	public static final int NO_STATUS = -1;
+
+	private final int connection;
+	private final String method;
+	private final String host;
+	private final int uriHash;
+	private final int status;
+
+	public MessageIndexEntry(int connection, double startTS, double endTS,
+			String method, String host, int uriHash, int status, long[] packetOffsets) {
+		super(startTS, endTS, packetOffsets);
+		this.connection = connection;
+		this.method = method;
+		this.host = host;
+		this.uriHash = uriHash;
+		this.status = status;
+	}
+
+	/**
+	 * @return the position of the connection of the message in 
+	 * {@link CaptureIndex#getConnections()}.
+	 */
+	public int getConnectionIndex() {
+		return connection;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the value of the Host header, or null.
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	/**
+	 * @return {@link CaptureIndex#hashUri(String)} of the request URI.
+	 */
+	public int getUriHash() {
+		return uriHash;
+	}
+
+	/**
+	 * @return the response status code, or {@link #NO_STATUS}.
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + host + " " + status;
+	}
+}
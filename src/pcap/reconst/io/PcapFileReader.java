@@ -0,0 +1,219 @@
+package pcap.reconst.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import pcap.reconst.ex.PcapException;
+
+/**
+ * Reads the records of a classic libpcap capture file, keeping track of the 
+ * file offset of each record so that it can be read again later by 
+ * {@link #seek(long)}.  Both byte orders and both microsecond and nanosecond 
+ * timestamp resolutions are supported.  pcapng files are not.
+ */
+public class PcapFileReader {
+	public static final int LINKTYPE_NULL = 0;
+	public static final int LINKTYPE_ETHERNET = 1;
+	public static final int LINKTYPE_RAW = 101;
+	public static final int LINKTYPE_LOOP = 108;
+	public static final int LINKTYPE_LINUX_SLL = 113;
+	public static final int LINKTYPE_IPV4 = 228;
+	public static final int LINKTYPE_IPV6 = 229;
+	public static final int LINKTYPE_LINUX_SLL2 = 276;
+
+	public static final int GLOBAL_HEADER_LENGTH = 24;
+	public static final int RECORD_HEADER_LENGTH = 16;
+
+	private static final int MAGIC_MICROS = 0xa1b2c3d4;
+	private static final int MAGIC_NANOS = 0xa1b23c4d;
+	private static final int MAGIC_PCAPNG = 0x0a0d0d0a;
+
+	//records larger than this are treated as corruption
+	private static final int MAX_RECORD_LENGTH = 256 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final boolean swapped;
+	private final boolean nanos;
+	private final int linkType;
+	private final byte[] globalHeader = new byte[GLOBAL_HEADER_LENGTH];
+	private final byte[] recordHeader = new byte[RECORD_HEADER_LENGTH];
+
+	//read buffer, holding the file content from bufferStart
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private long bufferStart = 0;
+	private int bufferLength = 0;
+	private long position = 0;
+
+	public PcapFileReader(File file) throws IOException, PcapException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "r");
+		try {
+			readFully(globalHeader, 0, GLOBAL_HEADER_LENGTH);
+		} catch (IOException e) {
+			raf.close();
+			throw new PcapException("Capture file is too short: " + file, e);
+		}
+		int magic = getInt(globalHeader, 0, false);
+		int swappedMagic = Integer.reverseBytes(magic);
+		if (magic == MAGIC_MICROS || magic == MAGIC_NANOS) {
+			swapped = false;
+			nanos = magic == MAGIC_NANOS;
+		} else if (swappedMagic == MAGIC_MICROS || swappedMagic == MAGIC_NANOS) {
+			swapped = true;
+			nanos = swappedMagic == MAGIC_NANOS;
+		} else {
+			raf.close();
+			throw new PcapException((magic == MAGIC_PCAPNG ? "pcapng" : "Unknown")
+					+ " capture format is not supported: " + file);
+		}
+		linkType = getInt(globalHeader, 20, swapped) & 0x0fffffff;
+	}
+
+	/**
+	 * @return the link type of a capture file, read from its global header.
+	 */
+	public static int readLinkType(File file) throws IOException, PcapException {
+		PcapFileReader reader = new PcapFileReader(file);
+		reader.close();
+		return reader.getLinkType();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getLinkType() {
+		return linkType;
+	}
+
+	/**
+	 * @return a copy of the global header of the file.
+	 */
+	public byte[] getGlobalHeader() {
+		return globalHeader.clone();
+	}
+
+	/**
+	 * @return the file offset of the next record.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Moves to the record starting at offset, as returned by 
+	 * {@link PcapRecord#getOffset()}.
+	 */
+	public void seek(long offset) {
+		position = offset;
+	}
+
+	/**
+	 * @return the next record, or null at the end of the file.  A record cut 
+	 * short by the end of the file is treated as the end of the file.
+	 */
+	public PcapRecord next() throws IOException {
+		long offset = position;
+		byte[] header = new byte[RECORD_HEADER_LENGTH];
+		if (!tryReadFully(header, 0, RECORD_HEADER_LENGTH)) {
+			return null;
+		}
+		long sec = getInt(header, 0, swapped) & 0xffffffffL;
+		long frac = getInt(header, 4, swapped) & 0xffffffffL;
+		int capLen = getInt(header, 8, swapped);
+		int origLen = getInt(header, 12, swapped);
+		if (capLen < 0 || capLen > MAX_RECORD_LENGTH) {
+			throw new IOException("Invalid record length " + capLen + " at offset "
+					+ offset + " of " + file);
+		}
+		byte[] data = new byte[capLen];
+		if (!tryReadFully(data, 0, capLen)) {
+			return null;
+		}
+		return new PcapRecord(offset, sec, nanos ? frac / 1000 : frac, origLen,
+				linkType, data);
+	}
+
+	/**
+	 * Moves past the next record without reading its data, e.g. to index the 
+	 * timestamps of a file.
+	 * 
+	 * @return the timestamp of the record in microseconds, or -1 at the end of 
+	 * the file.  A record cut short by the end of the file is treated as the 
+	 * end of the file.
+	 */
+	public long skip() throws IOException {
+		long offset = position;
+		if (!tryReadFully(recordHeader, 0, RECORD_HEADER_LENGTH)) {
+			return -1;
+		}
+		long sec = getInt(recordHeader, 0, swapped) & 0xffffffffL;
+		long frac = getInt(recordHeader, 4, swapped) & 0xffffffffL;
+		int capLen = getInt(recordHeader, 8, swapped);
+		if (capLen < 0 || capLen > MAX_RECORD_LENGTH) {
+			throw new IOException("Invalid record length " + capLen + " at offset "
+					+ offset + " of " + file);
+		}
+		if (raf.length() < position + capLen) {
+			position = offset;
+			return -1;
+		}
+		position += capLen;
+		return sec * 1000000 + (nanos ? frac / 1000 : frac);
+	}
+
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	private boolean tryReadFully(byte[] dest, int offset, int length)
+			throws IOException {
+		long start = position;
+		try {
+			readFully(dest, offset, length);
+			return true;
+		} catch (IOException e) {
+			if (raf.length() < start + length) {
+				position = start;
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	private void readFully(byte[] dest, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (position < bufferStart || position >= bufferStart + bufferLength) {
+				fill();
+			}
+			int bufPos = (int) (position - bufferStart);
+			int count = Math.min(length, bufferLength - bufPos);
+			System.arraycopy(buffer, bufPos, dest, offset, count);
+			offset += count;
+			length -= count;
+			position += count;
+		}
+	}
+
+	private void fill() throws IOException {
+		raf.seek(position);
+		bufferStart = position;
+		bufferLength = 0;
+		int read = raf.read(buffer, 0, buffer.length);
+		if (read <= 0) {
+			throw new IOException("Unexpected end of file " + file + " at offset "
+					+ position);
+		}
+		bufferLength = read;
+	}
+
+	private static int getInt(byte[] data, int offset, boolean littleEndian) {
+		int value = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+		return littleEndian ? Integer.reverseBytes(value) : value;
+	}
+}
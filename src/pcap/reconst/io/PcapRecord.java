@@ -0,0 +1,72 @@
+package pcap.reconst.io;
+
+/**
+ * A single packet record of a capture file, together with its position in 
+ * the file.
+ */
+public class PcapRecord {
+	private final long offset;
+	private final long timestampSec, timestampUSec;
+	private final int originalLength;
+	private final int linkType;
+	private final byte[] data;
+
+	public PcapRecord(long offset, long timestampSec, long timestampUSec,
+			int originalLength, int linkType, byte[] data) {
+		this.offset = offset;
+		this.timestampSec = timestampSec;
+		this.timestampUSec = timestampUSec;
+		this.originalLength = originalLength;
+		this.linkType = linkType;
+		this.data = data;
+	}
+
+	/**
+	 * @return the file offset of the record header.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getTimestampSec() {
+		return timestampSec;
+	}
+
+	public long getTimestampUSec() {
+		return timestampUSec;
+	}
+
+	public double getTimestamp() {
+		return timestampSec + (timestampUSec / 1000000.0);
+	}
+
+	/**
+	 * @return the length of the packet on the wire.
+	 */
+	public int getOriginalLength() {
+		return originalLength;
+	}
+
+	/**
+	 * @return the number of bytes captured, i.e. the length of 
+	 * {@link #getData()}.
+	 */
+	public int getCapturedLength() {
+		return data.length;
+	}
+
+	/**
+	 * @return the link layer header type of the capture, one of the 
+	 * LINKTYPE_ constants of {@link PcapFileReader}.
+	 */
+	public int getLinkType() {
+		return linkType;
+	}
+
+	/**
+	 * @return the captured bytes, starting with the link layer header.
+	 */
+	public byte[] getData() {
+		return data;
+	}
+}
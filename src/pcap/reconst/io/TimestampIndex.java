@@ -0,0 +1,148 @@
+package pcap.reconst.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import pcap.reconst.ex.PcapException;
+
+/**
+ * A sparse index of the record timestamps of a capture file, used to start
+ * reading at a point in time without reading the records before it.  Every
+ * sampled record is stored with its offset and the latest timestamp of the
+ * records preceding it, so that a binary search finds an offset before which
+ * all records are earlier than a given time, even if the records of the file
+ * are not strictly in time order.  Building the index reads the record
+ * headers of the whole file once.
+ */
+public class TimestampIndex {
+	public static final int DEFAULT_SAMPLE_INTERVAL = 1024;
+
+	private final long captureLength, captureModified;
+	private final long[] offsets;
+	//latest timestamp of the records before each sampled record
+	private final long[] latestBefore;
+	private final long recordCount;
+	private final long firstTime, lastTime;
+
+	private TimestampIndex(long captureLength, long captureModified, long[] offsets,
+			long[] latestBefore, long recordCount, long firstTime, long lastTime) {
+		this.captureLength = captureLength;
+		this.captureModified = captureModified;
+		this.offsets = offsets;
+		this.latestBefore = latestBefore;
+		this.recordCount = recordCount;
+		this.firstTime = firstTime;
+		this.lastTime = lastTime;
+	}
+
+	public static TimestampIndex build(File capture) throws IOException, PcapException {
+		return build(capture, DEFAULT_SAMPLE_INTERVAL);
+	}
+
+	/**
+	 * Reads the record headers of a capture file and samples every
+	 * sampleInterval-th record.
+	 *
+	 * @param sampleInterval the number of records per sample, bounding the
+	 * records read in vain after a seek.
+	 */
+	public static TimestampIndex build(File capture, int sampleInterval)
+			throws IOException, PcapException {
+		if (sampleInterval <= 0) {
+			throw new IllegalArgumentException("Invalid sample interval: " + sampleInterval);
+		}
+		long captureLength = capture.length();
+		long captureModified = capture.lastModified();
+		long[] offsets = new long[64];
+		long[] latestBefore = new long[64];
+		int samples = 0;
+		long count = 0;
+		long first = Long.MAX_VALUE, latest = Long.MIN_VALUE;
+		PcapFileReader reader = new PcapFileReader(capture);
+		try {
+			while (true) {
+				long offset = reader.getPosition();
+				long time = reader.skip();
+				if (time < 0) {
+					break;
+				}
+				if (count % sampleInterval == 0) {
+					if (samples == offsets.length) {
+						offsets = Arrays.copyOf(offsets, samples * 2);
+						latestBefore = Arrays.copyOf(latestBefore, samples * 2);
+					}
+					offsets[samples] = offset;
+					latestBefore[samples] = latest;
+					samples++;
+				}
+				count++;
+				first = Math.min(first, time);
+				latest = Math.max(latest, time);
+			}
+		} finally {
+			reader.close();
+		}
+		return new TimestampIndex(captureLength, captureModified,
+				Arrays.copyOf(offsets, samples), Arrays.copyOf(latestBefore, samples),
+				count, first, latest);
+	}
+
+	/**
+	 * @return true if capture has the length and modification time of the
+	 * indexed file.
+	 */
+	public boolean isCurrent(File capture) {
+		return capture.length() == captureLength
+				&& capture.lastModified() == captureModified;
+	}
+
+	/**
+	 * @param time a capture time in microseconds.
+	 * @return the offset of a record before which all records are earlier
+	 * than time, as late in the file as the samples allow.
+	 */
+	public long getSeekOffset(long time) {
+		//the first sample has no records before it
+		int low = 0, high = offsets.length - 1;
+		if (high < 0) {
+			return PcapFileReader.GLOBAL_HEADER_LENGTH;
+		}
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (latestBefore[mid] < time) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return offsets[low];
+	}
+
+	/**
+	 * @return the number of records in the file.
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public int getSampleCount() {
+		return offsets.length;
+	}
+
+	/**
+	 * @return the earliest timestamp of the file in microseconds, or
+	 * Long.MAX_VALUE if it has no records.
+	 */
+	public long getFirstTime() {
+		return firstTime;
+	}
+
+	/**
+	 * @return the latest timestamp of the file in microseconds, or
+	 * Long.MIN_VALUE if it has no records.
+	 */
+	public long getLastTime() {
+		return lastTime;
+	}
+}
@@ -0,0 +1,139 @@
+package pcap.reconst.tcp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A pool of byte arrays in power of two size classes, for the buffers which
+ * grow while a connection is reassembled and parsed and are dropped once it
+ * is released, such as the {@link SegmentArena}s of retained payload and the
+ * message buffers of the HTTP parsers.  Reusing them keeps the processing of
+ * a long capture from allocating a new set of large arrays per connection.
+ * <p>
+ * Arrays are handed out with their previous content.  An array must not be
+ * used after it is released.  A pool may be shared by several threads.
+ */
+public class BufferPool {
+
+	public static final int MIN_CLASS_SIZE = 1024;
+	public static final int DEFAULT_MAX_CLASS_SIZE = 16 * 1024 * 1024;
+	public static final long DEFAULT_MAX_POOLED_BYTES = 256L * 1024 * 1024;
+	private static final int MAX_CLASS_SIZE = 1 << 30;
+
+	private final int maxClassSize;
+	private final long maxPooledBytes;
+	private final List<Deque<byte[]>> classes = new ArrayList<Deque<byte[]>>();
+	private long pooledBytes = 0;
+	private long allocations = 0, reuses = 0;
+
+	public BufferPool() {
+		this(DEFAULT_MAX_CLASS_SIZE, DEFAULT_MAX_POOLED_BYTES);
+	}
+
+	/**
+	 * @param maxClassSize the largest pooled array size, rounded up to a power
+	 * of two, at most 1 GiB.  Larger arrays are allocated and dropped as usual.
+	 * @param maxPooledBytes the total size of the released arrays kept for
+	 * reuse.
+	 */
+	public BufferPool(int maxClassSize, long maxPooledBytes) {
+		this.maxClassSize = getClassSize(Math.min(Math.max(maxClassSize, MIN_CLASS_SIZE),
+				MAX_CLASS_SIZE));
+		this.maxPooledBytes = maxPooledBytes;
+		for (int i = 0; i <= getClassIndex(this.maxClassSize); i++) {
+			classes.add(new ArrayDeque<byte[]>());
+		}
+	}
+
+	//the size of the class holding arrays of at least length bytes
+	private static int getClassSize(int length) {
+		if (length <= MIN_CLASS_SIZE) {
+			return MIN_CLASS_SIZE;
+		}
+		return Integer.highestOneBit(length - 1) << 1;
+	}
+
+	private static int getClassIndex(int size) {
+		return Integer.numberOfTrailingZeros(size)
+				- Integer.numberOfTrailingZeros(MIN_CLASS_SIZE);
+	}
+
+	public int getMaxClassSize() {
+		return maxClassSize;
+	}
+
+	public long getMaxPooledBytes() {
+		return maxPooledBytes;
+	}
+
+	/**
+	 * @return an array of at least length bytes, of the size of its class
+	 * unless length exceeds the largest class.
+	 */
+	public synchronized byte[] acquire(int length) {
+		if (length > maxClassSize) {
+			allocations++;
+			return new byte[length];
+		}
+		int size = getClassSize(length);
+		byte[] buffer = classes.get(getClassIndex(size)).pollFirst();
+		if (buffer != null) {
+			pooledBytes -= size;
+			reuses++;
+			return buffer;
+		}
+		allocations++;
+		return new byte[size];
+	}
+
+	/**
+	 * Returns an array for reuse.  Arrays which are not of a class size, e.g.
+	 * not obtained from {@link #acquire(int)}, are left to the garbage
+	 * collector, as are arrays released while the pool is full.
+	 */
+	public synchronized void release(byte[] buffer) {
+		int size = buffer.length;
+		if (size < MIN_CLASS_SIZE || size > maxClassSize || Integer.bitCount(size) != 1
+				|| pooledBytes + size > maxPooledBytes) {
+			return;
+		}
+		classes.get(getClassIndex(size)).addFirst(buffer);
+		pooledBytes += size;
+	}
+
+	/**
+	 * Replaces a buffer with a larger one holding its first count bytes,
+	 * releasing the old buffer.
+	 *
+	 * @return a buffer of at least length bytes.
+	 */
+	public byte[] grow(byte[] buffer, int count, int length) {
+		byte[] grown = acquire(length);
+		System.arraycopy(buffer, 0, grown, 0, count);
+		release(buffer);
+		return grown;
+	}
+
+	/**
+	 * @return the number of arrays allocated by {@link #acquire(int)}.
+	 */
+	public synchronized long getAllocations() {
+		return allocations;
+	}
+
+	/**
+	 * @return the number of arrays handed out again by {@link #acquire(int)}.
+	 */
+	public synchronized long getReuses() {
+		return reuses;
+	}
+
+	/**
+	 * @return the total size of the arrays waiting for reuse.
+	 */
+	public synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+}
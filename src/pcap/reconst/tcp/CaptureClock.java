@@ -0,0 +1,330 @@
+package pcap.reconst.tcp;
+
+/**
+ * A clock following the capture time of the packets, which runs
+ * {@link CaptureTimer}s as the time advances.  Timers are kept in a
+ * hierarchical timing wheel of four levels of 256 slots, so scheduling,
+ * cancelling and firing a timer cost constant time however many are
+ * pending.  The clock only moves when {@link #advance(long)} is called with
+ * the time of a packet, so replaying a capture fires the same timers in the
+ * same order on every run.
+ * <p>
+ * Times are in microseconds.  Deadlines are rounded up to the tick of the
+ * clock, a timer fires once the time reaches the tick following its
+ * deadline and never before its deadline.  Timers due in the same tick fire
+ * in the order they were scheduled.
+ */
+public class CaptureClock {
+
+	public static final long DEFAULT_TICK_USEC = 1000;
+
+	private static final int WHEEL_BITS = 8;
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int LEVELS = 4;
+
+	//slot of a timer which is not in a wheel
+	private static final int OVERFLOW = LEVELS, FIRING = LEVELS + 1, NONE = -1;
+
+	private final long tickUSec;
+	private final Timeout[][] heads = new Timeout[LEVELS][WHEEL_SIZE];
+	private final Timeout[][] tails = new Timeout[LEVELS][WHEEL_SIZE];
+	//timers further away than the wheels reach, and those being fired
+	private Timeout overflowHead = null, overflowTail = null;
+	private Timeout firingHead = null, firingTail = null;
+	private final int[] levelTimers = new int[LEVELS];
+	private int pending = 0;
+
+	private boolean started = false;
+	private long time = 0, tick = 0;
+
+	public CaptureClock() {
+		this(DEFAULT_TICK_USEC);
+	}
+
+	/**
+	 * @param tickUSec the resolution of the clock in microseconds.
+	 */
+	public CaptureClock(long tickUSec) {
+		if (tickUSec <= 0) {
+			throw new IllegalArgumentException("Invalid tick: " + tickUSec);
+		}
+		this.tickUSec = tickUSec;
+	}
+
+	public long getTickUSec() {
+		return tickUSec;
+	}
+
+	/**
+	 * @return true once the clock has been advanced to a first time.
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * @return the latest time passed to {@link #advance(long)}.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the number of timers which are scheduled and have not fired.
+	 */
+	public int getPendingTimers() {
+		return pending;
+	}
+
+	/**
+	 * Schedules a timer relative to the current time.
+	 *
+	 * @throws IllegalStateException if the clock has not been started.
+	 */
+	public Timeout schedule(CaptureTimer timer, long delayUSec) {
+		if (!started) {
+			throw new IllegalStateException("Capture clock has not been started");
+		}
+		return scheduleAt(timer, time + Math.max(0, delayUSec));
+	}
+
+	/**
+	 * Schedules a timer for a capture time.  A deadline which has passed
+	 * fires on the next tick.
+	 *
+	 * @throws IllegalStateException if the clock has not been started.
+	 */
+	public Timeout scheduleAt(CaptureTimer timer, long deadline) {
+		if (!started) {
+			throw new IllegalStateException("Capture clock has not been started");
+		}
+		Timeout timeout = new Timeout(this, timer, deadline);
+		pending++;
+		insert(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Moves the clock to a capture time, firing the timers due up to it.  Time
+	 * never goes back, earlier times are ignored.  The first call starts the
+	 * clock.
+	 */
+	public void advance(long now) {
+		if (!started) {
+			started = true;
+			time = now;
+			tick = now / tickUSec;
+			return;
+		}
+		if (now <= time) {
+			return;
+		}
+		time = now;
+		long target = now / tickUSec;
+		while (tick < target) {
+			if (pending == 0) {
+				tick = target;
+				break;
+			}
+			if (levelTimers[0] > 0) {
+				tick++;
+			} else {
+				//nothing can fire before the next cascade of the lowest level
+				//holding timers
+				int level = 1;
+				while (level < LEVELS - 1 && levelTimers[level] == 0) {
+					level++;
+				}
+				int shift = WHEEL_BITS * level;
+				long next = ((tick >>> shift) + 1) << shift;
+				if (next > target) {
+					tick = target;
+					break;
+				}
+				tick = next;
+			}
+			if ((tick & WHEEL_MASK) == 0) {
+				cascade();
+			}
+			fire((int) (tick & WHEEL_MASK));
+		}
+	}
+
+	private long getDeadlineTick(long deadline) {
+		long deadlineTick = deadline / tickUSec;
+		if (deadlineTick * tickUSec < deadline) {
+			deadlineTick++;
+		}
+		return Math.max(deadlineTick, tick + 1);
+	}
+
+	/*
+	 * The level of a timer is the lowest one whose higher bits the deadline
+	 * shares with the current tick, so that its slot is reached before the
+	 * wheel of the level turns over.
+	 */
+	private void insert(Timeout timeout) {
+		long deadlineTick = timeout.deadlineTick;
+		for (int level = 0; level < LEVELS; level++) {
+			int shift = WHEEL_BITS * (level + 1);
+			if ((deadlineTick >>> shift) == (tick >>> shift)) {
+				int slot = (int) ((deadlineTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+				timeout.level = level;
+				timeout.slot = slot;
+				timeout.prev = tails[level][slot];
+				if (tails[level][slot] != null) {
+					tails[level][slot].next = timeout;
+				} else {
+					heads[level][slot] = timeout;
+				}
+				tails[level][slot] = timeout;
+				levelTimers[level]++;
+				return;
+			}
+		}
+		timeout.level = OVERFLOW;
+		timeout.prev = overflowTail;
+		if (overflowTail != null) {
+			overflowTail.next = timeout;
+		} else {
+			overflowHead = timeout;
+		}
+		overflowTail = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		Timeout prev = timeout.prev, next = timeout.next;
+		int level = timeout.level, slot = timeout.slot;
+		if (prev != null) {
+			prev.next = next;
+		} else if (level == OVERFLOW) {
+			overflowHead = next;
+		} else if (level == FIRING) {
+			firingHead = next;
+		} else {
+			heads[level][slot] = next;
+		}
+		if (next != null) {
+			next.prev = prev;
+		} else if (level == OVERFLOW) {
+			overflowTail = prev;
+		} else if (level == FIRING) {
+			firingTail = prev;
+		} else {
+			tails[level][slot] = prev;
+		}
+		if (level < LEVELS) {
+			levelTimers[level]--;
+		}
+		timeout.prev = timeout.next = null;
+		timeout.level = NONE;
+	}
+
+	//moves the timers of the slots reached at this tick to lower levels
+	private void cascade() {
+		int top = 1;
+		while (top < LEVELS - 1 && (tick & ((1L << (WHEEL_BITS * (top + 1))) - 1)) == 0) {
+			top++;
+		}
+		if (top == LEVELS - 1) {
+			//may now be in reach of the top wheel
+			Timeout timeout = overflowHead;
+			overflowHead = overflowTail = null;
+			reinsert(timeout);
+		}
+		for (int level = top; level > 0; level--) {
+			int slot = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+			Timeout timeout = heads[level][slot];
+			heads[level][slot] = tails[level][slot] = null;
+			for (Timeout t = timeout; t != null; t = t.next) {
+				levelTimers[level]--;
+			}
+			reinsert(timeout);
+		}
+	}
+
+	private void reinsert(Timeout timeout) {
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			timeout.prev = timeout.next = null;
+			insert(timeout);
+			timeout = next;
+		}
+	}
+
+	private void fire(int slot) {
+		firingHead = heads[0][slot];
+		firingTail = tails[0][slot];
+		heads[0][slot] = tails[0][slot] = null;
+		for (Timeout timeout = firingHead; timeout != null; timeout = timeout.next) {
+			timeout.level = FIRING;
+			levelTimers[0]--;
+		}
+		//timers may cancel the timers following them
+		while (firingHead != null) {
+			Timeout timeout = firingHead;
+			unlink(timeout);
+			pending--;
+			timeout.fired = true;
+			timeout.timer.expired(timeout.deadline);
+		}
+	}
+
+	/**
+	 * A scheduled timer.
+	 */
+	public static final class Timeout {
+		private final CaptureClock clock;
+		private final CaptureTimer timer;
+		private final long deadline, deadlineTick;
+		private Timeout prev = null, next = null;
+		private int level = NONE, slot;
+		private boolean fired = false, cancelled = false;
+
+		private Timeout(CaptureClock clock, CaptureTimer timer, long deadline) {
+			this.clock = clock;
+			this.timer = timer;
+			this.deadline = deadline;
+			this.deadlineTick = clock.getDeadlineTick(deadline);
+		}
+
+		public CaptureTimer getTimer() {
+			return timer;
+		}
+
+		/**
+		 * @return the capture time the timer is scheduled for.
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isPending() {
+			return !fired && !cancelled;
+		}
+
+		public boolean isFired() {
+			return fired;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Stops the timer from firing.
+		 *
+		 * @return false if the timer has already fired or been cancelled.
+		 */
+		public boolean cancel() {
+			if (!isPending()) {
+				return false;
+			}
+			cancelled = true;
+			clock.unlink(this);
+			clock.pending--;
+			return true;
+		}
+	}
+}
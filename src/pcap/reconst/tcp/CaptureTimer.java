@@ -0,0 +1,18 @@
+package pcap.reconst.tcp;
+
+/**
+ * A task run by a {@link CaptureClock} once capture time reaches its
+ * deadline, e.g. the expiry of an idle connection or a periodic flush or
+ * metrics snapshot.  A periodic task schedules itself again.
+ */
+public interface CaptureTimer {
+
+	/**
+	 * Called once the capture time passed to
+	 * {@link CaptureClock#advance(long)} reaches the deadline.
+	 *
+	 * @param deadline the capture time the timer was scheduled for, in
+	 * microseconds.
+	 */
+	void expired(long deadline);
+}
@@ -0,0 +1,18 @@
+package pcap.reconst.tcp;
+
+/**
+ * Receives reassembled TCP connections from a {@link PacketReassembler} as soon
+ * as they are complete, rather than after the whole capture has been read.
+ */
+public interface ConnectionListener {
+
+	/**
+	 * Called once per connection, either when both sides have closed it (FIN or
+	 * RST) or when the end of the capture is reached.  The reassembler is no
+	 * longer referenced by the {@link PacketReassembler} once this method returns.
+	 * 
+	 * @param connection the connection key.
+	 * @param reassembler the reassembled content of the connection.
+	 */
+	void connectionCompleted(TcpConnection connection, TcpReassembler reassembler);
+}
@@ -0,0 +1,30 @@
+package pcap.reconst.tcp;
+
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Decides from the first payload of a connection whether a 
+ * {@link PacketReassembler} should keep reassembling it.  The payload of 
+ * discarded connections is dropped as it arrives, only packet and byte 
+ * counters are kept, see {@link TcpReassembler#isDiscarded()}.
+ */
+public interface ConnectionSniffer {
+
+	public enum Verdict {
+		/** Reassemble the connection, the sniffer is not asked again. */
+		KEEP,
+		/** Drop the payload of the connection from now on. */
+		DISCARD,
+		/** Not enough payload to decide, ask again for the next packet. */
+		UNDECIDED
+	}
+
+	/**
+	 * Called for packets with payload until a connection has been decided.  
+	 * A {@link PacketReassembler} only calls it for packets starting the 
+	 * stream of their sender, and treats the others as undecided.
+	 * 
+	 * @param packet a packet of the connection carrying payload.
+	 */
+	Verdict sniff(TcpPacket packet);
+}
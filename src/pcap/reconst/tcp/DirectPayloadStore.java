@@ -0,0 +1,124 @@
+package pcap.reconst.tcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link PayloadStore} for the payload of one connection, appended to
+ * direct buffers taken from a {@link SlabPool}.  The first slab worth of
+ * bytes goes to chunks shared with the other stores of the pool, so that
+ * small connections do not hold a whole slab each, the bytes after that to
+ * whole slabs.  The heap only holds the list of buffers.  {@link #close()}
+ * hands the buffers back to the pool, which a {@link TcpReassembler} does
+ * when it is released, see {@link TcpReassembler#release()}.
+ */
+public class DirectPayloadStore implements PayloadStore {
+
+	private final SlabPool pool;
+	private final int slabSize;
+	private final int chunkSize;
+	//chunks for the positions before slabSize, slabs after that
+	private List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+	private long size = 0;
+
+	public DirectPayloadStore(SlabPool pool) {
+		this.pool = pool;
+		this.slabSize = pool.getSlabSize();
+		this.chunkSize = pool.getChunkSize();
+	}
+
+	public SlabPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return the number of bytes appended so far.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	private int chunkCount() {
+		return slabSize / chunkSize;
+	}
+
+	//the index of the buffer holding position
+	private int bufferIndex(long position) {
+		if (position < slabSize) {
+			return (int) (position / chunkSize);
+		}
+		return chunkCount() + (int) ((position - slabSize) / slabSize);
+	}
+
+	//the offset of position in its buffer
+	private int bufferOffset(long position) {
+		if (position < slabSize) {
+			return (int) (position % chunkSize);
+		}
+		return (int) ((position - slabSize) % slabSize);
+	}
+
+	public long append(byte[] data, int offset, int length) throws IOException {
+		if (buffers == null) {
+			throw new IOException("Payload store is closed");
+		}
+		long position = size;
+		while (length > 0) {
+			int index = bufferIndex(size);
+			if (index == buffers.size()) {
+				buffers.add(index < chunkCount() ? pool.acquireChunk() : pool.acquire());
+			}
+			ByteBuffer buffer = buffers.get(index);
+			int bufferOffset = bufferOffset(size);
+			int count = Math.min(length, buffer.capacity() - bufferOffset);
+			buffer.position(bufferOffset);
+			buffer.put(data, offset, count);
+			offset += count;
+			length -= count;
+			size += count;
+		}
+		return position;
+	}
+
+	public void read(long position, byte[] dest, int offset, int length)
+			throws IOException {
+		if (buffers == null) {
+			throw new IOException("Payload store is closed");
+		}
+		if (position < 0 || position + length > size) {
+			throw new IOException("Read of " + length + " bytes at " + position
+					+ " is outside of the store size " + size);
+		}
+		while (length > 0) {
+			//a duplicate, so that reads do not disturb the position of appends
+			ByteBuffer buffer = buffers.get(bufferIndex(position)).duplicate();
+			int bufferOffset = bufferOffset(position);
+			int count = Math.min(length, buffer.capacity() - bufferOffset);
+			buffer.position(bufferOffset);
+			buffer.get(dest, offset, count);
+			offset += count;
+			length -= count;
+			position += count;
+		}
+	}
+
+	/**
+	 * Returns the chunks and slabs to the pool.  Has no effect after the
+	 * first call.
+	 */
+	public void close() {
+		if (buffers != null) {
+			for (int i = 0; i < buffers.size(); i++) {
+				if (i < chunkCount()) {
+					pool.releaseChunk(buffers.get(i));
+				} else {
+					pool.release(buffers.get(i));
+				}
+			}
+			buffers = null;
+			size = 0;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package pcap.reconst.tcp;
+
+import java.util.Arrays;
+
+/**
+ * The order in which the payload of the two directions of a connection was
+ * reassembled.  The timeline is a list of runs, each a contiguous range of
+ * one direction's stream (see {@link TcpReassembler#getStreamDataBytes(PacketType)})
+ * which was reassembled before the other direction continued.  Positions
+ * refer to the combined stream of both directions, as returned by
+ * {@link TcpReassembler#getOrderedPacketDataBytes()}.
+ */
+public class DirectionTimeline {
+	private final boolean[] responses;
+	//start of each run in its direction and in the combined stream
+	private final int[] offsets, positions;
+	private final int[] lengths;
+	private final int size;
+	//the runs of each direction
+	private final int[] reqRuns, respRuns;
+
+	DirectionTimeline(boolean[] responses, int[] offsets, int[] lengths, int size) {
+		this.responses = responses;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.size = size;
+		this.positions = new int[size];
+		int[] req = new int[size], resp = new int[size];
+		int reqCount = 0, respCount = 0, position = 0;
+		for (int i = 0; i < size; i++) {
+			positions[i] = position;
+			position += lengths[i];
+			if (responses[i]) {
+				resp[respCount++] = i;
+			} else {
+				req[reqCount++] = i;
+			}
+		}
+		this.reqRuns = Arrays.copyOf(req, reqCount);
+		this.respRuns = Arrays.copyOf(resp, respCount);
+	}
+
+	/**
+	 * @return the number of runs.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public PacketType getDirection(int run) {
+		checkRun(run);
+		return responses[run] ? PacketType.Response : PacketType.Request;
+	}
+
+	/**
+	 * @return the start of the run in the stream of its direction.
+	 */
+	public int getOffset(int run) {
+		checkRun(run);
+		return offsets[run];
+	}
+
+	/**
+	 * @return the start of the run in the combined stream.
+	 */
+	public int getPosition(int run) {
+		checkRun(run);
+		return positions[run];
+	}
+
+	public int getLength(int run) {
+		checkRun(run);
+		return lengths[run];
+	}
+
+	private void checkRun(int run) {
+		if (run < 0 || run >= size) {
+			throw new IndexOutOfBoundsException("Run: " + run + ", Size: " + size);
+		}
+	}
+
+	/**
+	 * @return the run containing the byte at a position of the combined
+	 * stream, or -1 if the position is outside of the stream.
+	 */
+	public int findRun(int position) {
+		int low = 0, high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (position < positions[mid]) {
+				high = mid - 1;
+			} else if (position >= positions[mid] + lengths[mid]) {
+				low = mid + 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Maps an offset in the stream of a direction to the combined stream.
+	 *
+	 * @param offset an offset from 0 to the length of the direction's stream.
+	 * @return the position of the byte at offset in the combined stream, or
+	 * the position following the last byte of the direction for its length.
+	 */
+	public int toPosition(PacketType direction, int offset) {
+		int[] runs = direction == PacketType.Response ? respRuns : reqRuns;
+		//the last run starting at or before offset
+		int low = 0, high = runs.length - 1, found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (offsets[runs[mid]] <= offset) {
+				found = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		if (found == -1) {
+			return runs.length > 0 ? positions[runs[0]] : 0;
+		}
+		int run = runs[found];
+		return positions[run] + Math.min(offset - offsets[run], lengths[run]);
+	}
+
+	/**
+	 * @return the offset in the stream of its direction of the byte at a
+	 * position of the combined stream, or -1 if the position is outside of
+	 * the stream.
+	 */
+	public int toOffset(int position) {
+		int run = findRun(position);
+		return run == -1 ? -1 : offsets[run] + position - positions[run];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(responses[i] ? "Response " : "Request ").append(offsets[i])
+					.append('+').append(lengths[i]);
+		}
+		return sb.append(']').toString();
+	}
+}
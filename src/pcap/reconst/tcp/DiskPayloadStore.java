@@ -0,0 +1,156 @@
+package pcap.reconst.tcp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link PayloadStore} which appends all payload to a single temporary file.
+ * Appends are buffered and written sequentially.  The most recently appended 
+ * bytes are also kept in an in memory hot window, so reads of recent payload, 
+ * the common case while a connection is still being reassembled, do not touch 
+ * the disk.
+ * 
+ * The file is deleted by {@link #close()}, or when the JVM exits.
+ */
+public class DiskPayloadStore implements PayloadStore {
+	private static Log log = LogFactory.getLog(DiskPayloadStore.class);
+
+	public static final int DEFAULT_HOT_WINDOW = 16 * 1024 * 1024;
+	
+	private static final int WRITE_BUFFER = 64 * 1024;
+
+	private final File file;
+	private OutputStream out;
+	private RandomAccessFile in;
+	private FileChannel channel;
+	private boolean dirty = false;
+
+	//ring buffer holding the last hot.length appended bytes
+	private final byte[] hot;
+	private long size = 0;
+
+	public DiskPayloadStore() throws IOException {
+		this(null, DEFAULT_HOT_WINDOW);
+	}
+
+	/**
+	 * @param directory the directory of the spill file, or null for the 
+	 * default temporary directory.
+	 * @param hotWindow the number of recently appended bytes kept in memory.
+	 */
+	public DiskPayloadStore(File directory, int hotWindow) throws IOException {
+		file = File.createTempFile("pcap-reconst-payload", ".tmp", directory);
+		file.deleteOnExit();
+		out = new BufferedOutputStream(new FileOutputStream(file), WRITE_BUFFER);
+		in = new RandomAccessFile(file, "r");
+		channel = in.getChannel();
+		hot = new byte[Math.max(0, hotWindow)];
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of bytes appended so far.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized long append(byte[] data, int offset, int length)
+			throws IOException {
+		if (out == null) {
+			throw new IOException("Payload store is closed: " + file);
+		}
+		long position = size;
+		out.write(data, offset, length);
+		dirty = true;
+		if (hot.length > 0) {
+			//only the tail of an append larger than the window can be hot
+			int skip = Math.max(0, length - hot.length);
+			int ringPos = (int) ((position + skip) % hot.length);
+			int remaining = length - skip;
+			int src = offset + skip;
+			while (remaining > 0) {
+				int count = Math.min(remaining, hot.length - ringPos);
+				System.arraycopy(data, src, hot, ringPos, count);
+				src += count;
+				remaining -= count;
+				ringPos = 0;
+			}
+		}
+		size += length;
+		return position;
+	}
+
+	public synchronized void read(long position, byte[] dest, int offset,
+			int length) throws IOException {
+		if (channel == null) {
+			throw new IOException("Payload store is closed: " + file);
+		}
+		if (position < 0 || position + length > size) {
+			throw new IOException("Read of " + length + " bytes at " + position
+					+ " is outside of the store size " + size);
+		}
+		if (length == 0) {
+			return;
+		}
+		if (hot.length > 0 && position >= size - hot.length) {
+			int ringPos = (int) (position % hot.length);
+			int remaining = length;
+			int dst = offset;
+			while (remaining > 0) {
+				int count = Math.min(remaining, hot.length - ringPos);
+				System.arraycopy(hot, ringPos, dest, dst, count);
+				dst += count;
+				remaining -= count;
+				ringPos = 0;
+			}
+			return;
+		}
+		if (dirty) {
+			out.flush();
+			dirty = false;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(dest, offset, length);
+		long filePos = position;
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, filePos);
+			if (read < 0) {
+				throw new IOException("Unexpected end of payload file " + file);
+			}
+			filePos += read;
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			if (out != null) {
+				out.close();
+			}
+			if (in != null) {
+				in.close();
+			}
+		} catch (IOException e) {
+			if (log.isErrorEnabled()) {
+				log.error("Unable to close payload file " + file, e);
+			}
+		}
+		out = null;
+		in = null;
+		channel = null;
+		if (!file.delete() && log.isDebugEnabled()) {
+			log.debug("Unable to delete payload file " + file);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package pcap.reconst.tcp;
+
+import java.util.Map;
+
+/**
+ * A {@link Reconstructor} which can limit reassembly to the packets accepted
+ * by a {@link PacketFilter}.  Kept apart from {@link Reconstructor} so that
+ * existing implementations of it are not broken.
+ */
+public interface FilteringReconstructor extends Reconstructor {
+
+	/**
+	 * Reads and reassembles the TCP connections in a capture file, passing
+	 * only the packets accepted by filter to reassembly.
+	 *
+	 * @param filename the capture file.
+	 * @param filter the packets to reassemble, or null for all TCP packets.
+	 * @param status handle used to cancel the reconstruction.
+	 * @return the reassembled connections which were not handed to a listener.
+	 */
+	Map<TcpConnection, TcpReassembler> reconstruct(String filename, PacketFilter filter,
+			StatusHandle status) throws Exception;
+}
@@ -0,0 +1,175 @@
+package pcap.reconst.tcp;
+
+import java.net.UnknownHostException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import pcap.reconst.io.PcapFileReader;
+import pcap.reconst.tcp.packet.DecodedHeaders;
+import pcap.reconst.tcp.packet.DecodedTcpPacket;
+import pcap.reconst.tcp.packet.IpFragmentReassembler;
+import pcap.reconst.tcp.packet.PacketHeaderDecoder;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Decodes captured frames with a {@link PacketHeaderDecoder}, applies the 
+ * {@link PacketFilter} and passes the TCP packets to a 
+ * {@link PacketReassembler}.  Shared by the reconstructors, so that every 
+ * capture library goes through the same header decoding.  IP fragments are 
+ * reassembled with an {@link IpFragmentReassembler} before the TCP header is 
+ * decoded.
+ */
+public class FrameProcessor {
+	private static Log log = LogFactory.getLog(FrameProcessor.class);
+
+	/**
+	 * BPF expression for the packets which cannot be matched by the BPF form 
+	 * of a {@link PacketFilter}, because they are tunneled, VLAN tagged, 
+	 * fragmented or carry IPv6 extension headers.  These are filtered after 
+	 * decoding.
+	 */
+	private static final String BPF_UNFILTERABLE = "ip[6:2] & 0x3fff != 0 or ip6 "
+			+ "or ip proto 4 or ip proto 47 or udp port 4789 or vlan";
+
+	private final PacketReassembler packetReassembler;
+	private final PacketHeaderDecoder decoder = new PacketHeaderDecoder();
+	private IpFragmentReassembler fragmentReassembler = new IpFragmentReassembler();
+	private PacketFilter filter = null;
+	private long filtered = 0;
+
+	public FrameProcessor(PacketReassembler packetReassembler) {
+		this.packetReassembler = packetReassembler;
+	}
+
+	public void setPacketFilter(PacketFilter filter) {
+		this.filter = filter;
+	}
+
+	public PacketFilter getPacketFilter() {
+		return filter;
+	}
+
+	public PacketHeaderDecoder getDecoder() {
+		return decoder;
+	}
+
+	/**
+	 * Sets the fragment reassembler, to change its memory budget or timeout.
+	 * 
+	 * @param fragmentReassembler the reassembler, or null to drop fragments.
+	 */
+	public void setFragmentReassembler(IpFragmentReassembler fragmentReassembler) {
+		this.fragmentReassembler = fragmentReassembler;
+	}
+
+	public IpFragmentReassembler getFragmentReassembler() {
+		return fragmentReassembler;
+	}
+
+	/**
+	 * @return the number of TCP packets rejected by the filter.
+	 */
+	public long getFilteredCount() {
+		return filtered;
+	}
+
+	/**
+	 * @return a BPF expression for a capture library which passes at least 
+	 * the packets accepted by the filter.
+	 */
+	public String getBpfExpression() {
+		if (filter == null) {
+			return "tcp or " + BPF_UNFILTERABLE;
+		}
+		return "(" + filter.toBpf() + ") or " + BPF_UNFILTERABLE;
+	}
+
+	/**
+	 * Decodes a frame and reassembles it if it is a TCP packet accepted by 
+	 * the filter.
+	 * 
+	 * @param frame the captured bytes, starting with the link layer header.
+	 * @param linkType the link type of the capture.
+	 * @param length the length of the frame on the wire.
+	 */
+	public void process(byte[] frame, int linkType, int length, long timestampSec,
+			long timestampUSec) {
+		process(frame, linkType, length, timestampSec, timestampUSec, -1);
+	}
+
+	/**
+	 * Decodes a frame and reassembles it if it is a TCP packet accepted by 
+	 * the filter.
+	 * 
+	 * @param origin an identifier of the frame, such as its file offset, 
+	 * passed to {@link #createPacket(DecodedHeaders, int, int, long, long, long[])}.
+	 * Negative if unknown.
+	 */
+	public void process(byte[] frame, int linkType, int length, long timestampSec,
+			long timestampUSec, long origin) {
+		PacketHeaderDecoder.Result result = decoder.decode(frame, linkType);
+		long[] origins = null;
+		if (result == PacketHeaderDecoder.Result.FRAGMENT && fragmentReassembler != null) {
+			byte[] datagram = fragmentReassembler.add(decoder.getHeaders(), timestampSec,
+					timestampUSec, origin);
+			if (datagram == null) {
+				return;
+			}
+			//the datagram is decoded again, and counted as a TCP packet
+			frame = datagram;
+			length = datagram.length;
+			origins = fragmentReassembler.getCompletedOrigins();
+			result = decoder.decode(datagram, PcapFileReader.LINKTYPE_RAW);
+		} else if (origin >= 0) {
+			origins = new long[] { origin };
+		}
+		if (result != PacketHeaderDecoder.Result.TCP) {
+			return;
+		}
+		DecodedHeaders headers = decoder.getHeaders();
+		if (filter != null && !filter.accept(headers, timestampSec, timestampUSec)) {
+			filtered++;
+			return;
+		}
+		try {
+			packetReassembler.reassemble(createPacket(headers, frame.length, length,
+					timestampSec, timestampUSec, origins));
+		} catch (UnknownHostException e) {
+			if (log.isErrorEnabled()) {
+				log.error("Invalid address in packet", e);
+			}
+		}
+	}
+
+	/**
+	 * Creates the packet passed to reassembly.
+	 * 
+	 * @param origins the origins of the frames the packet was decoded from, 
+	 * more than one if it was fragmented, or null if unknown.
+	 */
+	protected TcpPacket createPacket(DecodedHeaders headers, int captureLength,
+			int length, long timestampSec, long timestampUSec, long[] origins)
+			throws UnknownHostException {
+		return new DecodedTcpPacket(headers, captureLength, length, timestampSec,
+				timestampUSec);
+	}
+
+	/**
+	 * Logs the decoding counts of a capture, at info level if packets could 
+	 * not be decoded.
+	 */
+	public void logCounts(String filename) {
+		String message = "Decoded " + filename + ": " + decoder + " filtered=" + filtered;
+		if (fragmentReassembler != null) {
+			message += " " + fragmentReassembler;
+		}
+		if (decoder.getUndecodableCount() > 0 || decoder.getFragmentCount() > 0) {
+			if (log.isInfoEnabled()) {
+				log.info(message);
+			}
+		} else if (log.isDebugEnabled()) {
+			log.debug(message);
+		}
+	}
+}
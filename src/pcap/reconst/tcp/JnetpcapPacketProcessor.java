@@ -2,23 +2,42 @@ package pcap.reconst.tcp;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jnetpcap.PcapHeader;
 import org.jnetpcap.packet.PcapPacket;
 import org.jnetpcap.packet.PcapPacketHandler;
-import org.jnetpcap.protocol.network.Ip4;
-import org.jnetpcap.protocol.tcpip.Tcp;
 
-import pcap.reconst.tcp.packet.JnetpcapTcpPacket;
+import pcap.reconst.io.PcapFileReader;
 
 public class JnetpcapPacketProcessor<T> implements PcapPacketHandler<T> {
 	private static Log log = LogFactory.getLog(JnetpcapPacketProcessor.class);
 
 	int packetNumber = 0;
-	private PacketReassembler packetReassembler;
-	private final Ip4 ip = new Ip4();
-	private final Tcp tcp = new Tcp();
+	private final FrameProcessor frameProcessor;
+	private final int linkType;
 	
 	public JnetpcapPacketProcessor(PacketReassembler packetReassembler) {
-		this.packetReassembler = packetReassembler;
+		this(packetReassembler, PcapFileReader.LINKTYPE_ETHERNET);
+	}
+
+	/**
+	 * @param linkType the link type of the capture, as returned by 
+	 * {@link org.jnetpcap.Pcap#datalink()}.
+	 */
+	public JnetpcapPacketProcessor(PacketReassembler packetReassembler, int linkType) {
+		this.frameProcessor = new FrameProcessor(packetReassembler);
+		this.linkType = linkType;
+	}
+	
+	/**
+	 * Sets the filter applied to the decoded packets, in addition to the BPF 
+	 * program of the capture.
+	 */
+	public void setPacketFilter(PacketFilter filter) {
+		frameProcessor.setPacketFilter(filter);
+	}
+
+	public FrameProcessor getFrameProcessor() {
+		return frameProcessor;
 	}
 
 	public int getTotalNumberOfPackets() {
@@ -33,10 +52,8 @@ public class JnetpcapPacketProcessor<T> implements PcapPacketHandler<T> {
 			log.debug("processing #" + packetNumber + " " + packet);
 		}
 		
-		if (packet.hasHeader(ip) && packet.hasHeader(tcp))
-		{
-			JnetpcapTcpPacket jnetpcapTcpPacket = new JnetpcapTcpPacket(packet.getCaptureHeader(), ip, tcp);
-			packetReassembler.reassemble(jnetpcapTcpPacket);
-		}
+		PcapHeader header = packet.getCaptureHeader();
+		frameProcessor.process(packet.getByteArray(0, packet.size()), linkType,
+				header.wirelen(), header.seconds(), header.nanos() / 1000);
 	}
 }
@@ -11,7 +11,7 @@ import org.jnetpcap.PcapClosedException;
 import pcap.reconst.ex.PcapException;
 
 
-public class JnetpcapReconstructor implements Reconstructor {
+public class JnetpcapReconstructor implements FilteringReconstructor {
 	private static Log log = LogFactory.getLog(JnetpcapReconstructor.class);
 
 	private PacketReassembler packetReassembler;
@@ -22,6 +22,11 @@ public class JnetpcapReconstructor implements Reconstructor {
 
 	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, StatusHandle status)
 			throws Exception {
+		return reconstruct(filename, null, status);
+	}
+
+	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, PacketFilter filter,
+			StatusHandle status) throws Exception {
 		if (log.isDebugEnabled()) {
 			log.debug("reconstructing " + filename + " ...");
 		}
@@ -34,12 +39,19 @@ public class JnetpcapReconstructor implements Reconstructor {
 			throw new PcapException(errorBuffer.toString());
 		}
 		
+		JnetpcapPacketProcessor<Integer> packetProcessor = new JnetpcapPacketProcessor<Integer>(
+				packetReassembler, pcap.datalink());
+		packetProcessor.setPacketFilter(filter);
+		
 		PcapBpfProgram program = new PcapBpfProgram();
-		String expression = "tcp";
-		pcap.compile(program, expression, 0, 0);
+		String expression = packetProcessor.getFrameProcessor().getBpfExpression();
+		if (pcap.compile(program, expression, 0, 0) != Pcap.OK) {
+			String error = pcap.getErr();
+			pcap.close();
+			throw new PcapException("Invalid filter '" + expression + "': " + error);
+		}
 		pcap.setFilter(program);
 
-		JnetpcapPacketProcessor<Integer> packetProcessor = new JnetpcapPacketProcessor<Integer>(packetReassembler);
 		status.setCancellable(new StatusHandle.Cancellable() {
 			public void cancel() {
 				try
@@ -54,6 +66,8 @@ public class JnetpcapReconstructor implements Reconstructor {
 		});
 		pcap.loop(Pcap.LOOP_INFINITE, packetProcessor, 1);
 		pcap.close();
+		packetProcessor.getFrameProcessor().logCounts(filename);
+		packetReassembler.finish();
 		
 		return packetReassembler.getReassembledPackets();
 	}
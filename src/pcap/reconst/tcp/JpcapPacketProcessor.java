@@ -5,22 +5,34 @@
 package pcap.reconst.tcp;
 
 import jpcap.PacketReceiver;
+import jpcap.packet.EthernetPacket;
 import jpcap.packet.Packet;
-import jpcap.packet.TCPPacket;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import pcap.reconst.tcp.packet.JpcapTcpPacket;
+import pcap.reconst.io.PcapFileReader;
 
 public class JpcapPacketProcessor implements PacketReceiver {
 	private static Log log = LogFactory.getLog(JpcapPacketProcessor.class);
 
 	int packetNumber = 0;
-	private PacketReassembler packetReassembler;
+	private final FrameProcessor frameProcessor;
 
 	public JpcapPacketProcessor(PacketReassembler packetReassembler) {
-		this.packetReassembler = packetReassembler;
+		this.frameProcessor = new FrameProcessor(packetReassembler);
+	}
+
+	/**
+	 * Sets the filter applied to the decoded packets, in addition to the BPF 
+	 * filter of the captor.
+	 */
+	public void setPacketFilter(PacketFilter filter) {
+		frameProcessor.setPacketFilter(filter);
+	}
+
+	public FrameProcessor getFrameProcessor() {
+		return frameProcessor;
 	}
 
 	public int getTotalNumberOfPackets() {
@@ -33,6 +45,18 @@ public class JpcapPacketProcessor implements PacketReceiver {
 		if (log.isDebugEnabled()) {
 			log.debug("processing #" + packetNumber + " " + packet);
 		}
-		packetReassembler.reassemble(new JpcapTcpPacket((TCPPacket) packet));
+		//jpcap splits the frame into the parsed headers and the rest
+		int headerLength = packet.header != null ? packet.header.length : 0;
+		int dataLength = packet.data != null ? packet.data.length : 0;
+		byte[] frame = new byte[headerLength + dataLength];
+		if (headerLength > 0) {
+			System.arraycopy(packet.header, 0, frame, 0, headerLength);
+		}
+		if (dataLength > 0) {
+			System.arraycopy(packet.data, 0, frame, headerLength, dataLength);
+		}
+		int linkType = packet.datalink instanceof EthernetPacket ? PcapFileReader.LINKTYPE_ETHERNET
+				: PcapFileReader.LINKTYPE_RAW;
+		frameProcessor.process(frame, linkType, packet.len, packet.sec, packet.usec);
 	}
 }
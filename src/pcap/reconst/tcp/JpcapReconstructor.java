@@ -12,7 +12,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 
-public class JpcapReconstructor implements Reconstructor {
+public class JpcapReconstructor implements FilteringReconstructor {
 	private static Log log = LogFactory.getLog(JpcapReconstructor.class);
 
 	private PacketReassembler packetReassembler;
@@ -23,13 +23,19 @@ public class JpcapReconstructor implements Reconstructor {
 
 	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, StatusHandle status)
 			throws Exception {
+		return reconstruct(filename, null, status);
+	}
+
+	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, PacketFilter filter,
+			StatusHandle status) throws Exception {
 		if (log.isDebugEnabled()) {
 			log.debug("reconstructing " + filename + " ...");
 		}
 		final JpcapCaptor captor = JpcapCaptor.openFile(filename);
-		captor.setFilter("tcp", true);
 		JpcapPacketProcessor jpcapPacketProcessor = new JpcapPacketProcessor(
 				packetReassembler);
+		jpcapPacketProcessor.setPacketFilter(filter);
+		captor.setFilter(jpcapPacketProcessor.getFrameProcessor().getBpfExpression(), true);
 
 		status.setCancellable(new StatusHandle.Cancellable() {
 			public void cancel() {
@@ -38,6 +44,8 @@ public class JpcapReconstructor implements Reconstructor {
 		});
 		captor.processPacket(-1, jpcapPacketProcessor);
 		captor.close();
+		jpcapPacketProcessor.getFrameProcessor().logCounts(filename);
+		packetReassembler.finish();
 		return packetReassembler.getReassembledPackets();
 	}
 
@@ -0,0 +1,13 @@
+package pcap.reconst.tcp;
+
+/**
+ * Decides which bytes are kept when a TCP segment overlaps retained payload 
+ * with different content, see 
+ * {@link TcpReassembler#setOverlapPolicy(OverlapPolicy)}.
+ */
+public enum OverlapPolicy {
+	/** Keep the bytes received first, as most stacks on Linux and BSD do. */
+	FIRST_WINS,
+	/** Replace the retained bytes with the ones received last. */
+	LAST_WINS
+}
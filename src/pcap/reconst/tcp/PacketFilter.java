@@ -0,0 +1,268 @@
+package pcap.reconst.tcp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import pcap.reconst.tcp.packet.DecodedHeaders;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Selects the TCP packets a {@link FilteringReconstructor} passes to 
+ * reassembly, by host, network, port, direction and capture time window.  
+ * Packets outside the filter are dropped before a {@link TcpPacket} is 
+ * constructed for them.
+ * 
+ * A packet matches if one of its addresses matches one of the hosts or 
+ * networks (when any are set), one of its ports matches one of the ports 
+ * (when any are set) and its timestamp lies within the time window (when 
+ * set).  The direction restricts which end of the packet, source or 
+ * destination, is compared against the hosts, networks and ports.
+ * 
+ * Capture library based reconstructors compile the filter to BPF with 
+ * {@link #toBpf()}, the time window is always checked in Java.
+ */
+public class PacketFilter {
+
+	public enum Direction {
+		/** Either end of the packet. */
+		ANY,
+		/** The source of the packet. */
+		SRC,
+		/** The destination of the packet. */
+		DST
+	}
+
+	private final List<byte[]> nets = new ArrayList<byte[]>();
+	private final List<Integer> prefixes = new ArrayList<Integer>();
+	private int[] ports = new int[0];
+	private Direction direction = Direction.ANY;
+	private double startTS = Double.NEGATIVE_INFINITY, endTS = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Adds a single host.
+	 */
+	public PacketFilter addHost(InetAddress host) {
+		return addNet(host, host.getAddress().length * 8);
+	}
+
+	/**
+	 * Adds a network.
+	 * 
+	 * @param prefixLength the number of leading bits of address which are 
+	 * compared.
+	 */
+	public PacketFilter addNet(InetAddress address, int prefixLength) {
+		byte[] bytes = address.getAddress();
+		if (prefixLength < 0 || prefixLength > bytes.length * 8) {
+			throw new IllegalArgumentException("Invalid prefix length " + prefixLength
+					+ " for " + address);
+		}
+		nets.add(bytes);
+		prefixes.add(prefixLength);
+		return this;
+	}
+
+	public PacketFilter addPort(int port) {
+		int[] newPorts = new int[ports.length + 1];
+		System.arraycopy(ports, 0, newPorts, 0, ports.length);
+		newPorts[ports.length] = port;
+		ports = newPorts;
+		return this;
+	}
+
+	public PacketFilter setDirection(Direction direction) {
+		this.direction = direction;
+		return this;
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+	/**
+	 * Restricts the packets to those captured within [startTS, endTS], in 
+	 * seconds since the epoch.
+	 */
+	public PacketFilter setTimeWindow(double startTS, double endTS) {
+		this.startTS = startTS;
+		this.endTS = endTS;
+		return this;
+	}
+
+	public double getStartTS() {
+		return startTS;
+	}
+
+	public double getEndTS() {
+		return endTS;
+	}
+
+	/**
+	 * @return true if the filter has a time window, which cannot be expressed 
+	 * in BPF.
+	 */
+	public boolean hasTimeWindow() {
+		return startTS != Double.NEGATIVE_INFINITY || endTS != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return a BPF expression selecting the TCP packets matching the host, 
+	 * network, port and direction parts of the filter.
+	 */
+	public String toBpf() {
+		String qualifier = direction == Direction.SRC ? "src " 
+				: direction == Direction.DST ? "dst " : "";
+		StringBuilder sb = new StringBuilder("tcp");
+		if (!nets.isEmpty()) {
+			sb.append(" and (");
+			for (int i = 0; i < nets.size(); i++) {
+				if (i > 0) {
+					sb.append(" or ");
+				}
+				byte[] net = nets.get(i);
+				int prefix = prefixes.get(i);
+				String address = toAddress(mask(net, prefix)).getHostAddress();
+				if (prefix == net.length * 8) {
+					sb.append(qualifier).append("host ").append(address);
+				} else {
+					sb.append(qualifier).append("net ").append(address).append('/').append(prefix);
+				}
+			}
+			sb.append(')');
+		}
+		if (ports.length > 0) {
+			sb.append(" and (");
+			for (int i = 0; i < ports.length; i++) {
+				if (i > 0) {
+					sb.append(" or ");
+				}
+				sb.append(qualifier).append("port ").append(ports[i]);
+			}
+			sb.append(')');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Checks the raw header fields of a packet.
+	 * 
+	 * @param srcIp the source address, 4 or 16 bytes.
+	 * @param dstIp the destination address, 4 or 16 bytes.
+	 */
+	public boolean accept(byte[] srcIp, int srcPort, byte[] dstIp, int dstPort,
+			long timestampSec, long timestampUSec) {
+		if (!acceptTime(timestampSec, timestampUSec)) {
+			return false;
+		}
+		if (!nets.isEmpty()) {
+			boolean match = (direction != Direction.DST && matchesNet(srcIp))
+					|| (direction != Direction.SRC && matchesNet(dstIp));
+			if (!match) {
+				return false;
+			}
+		}
+		if (ports.length > 0) {
+			return (direction != Direction.DST && matchesPort(srcPort))
+					|| (direction != Direction.SRC && matchesPort(dstPort));
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the raw header fields of an IPv4 packet, with the addresses as 
+	 * big endian ints.
+	 */
+	public boolean accept(int srcIp, int srcPort, int dstIp, int dstPort,
+			long timestampSec, long timestampUSec) {
+		return accept(toBytes(srcIp), srcPort, toBytes(dstIp), dstPort,
+				timestampSec, timestampUSec);
+	}
+
+	/**
+	 * Checks the headers of a decoded frame.
+	 */
+	public boolean accept(DecodedHeaders headers, long timestampSec, long timestampUSec) {
+		return accept(headers.getSourceAddress(), headers.getSourcePort(),
+				headers.getDestinationAddress(), headers.getDestinationPort(),
+				timestampSec, timestampUSec);
+	}
+
+	public boolean accept(TcpPacket packet) {
+		return accept(packet.getSourceIP().getAddress(), packet.getSourcePort(),
+				packet.getDestinationIP().getAddress(), packet.getDestinationPort(),
+				packet.getTimestampSec(), packet.getTimestampUSec());
+	}
+
+	/**
+	 * @return true if the timestamp lies within the time window.
+	 */
+	public boolean acceptTime(long timestampSec, long timestampUSec) {
+		double ts = timestampSec + (timestampUSec / 1000000.0);
+		return ts >= startTS && ts <= endTS;
+	}
+
+	private boolean matchesNet(byte[] address) {
+		for (int i = 0; i < nets.size(); i++) {
+			byte[] net = nets.get(i);
+			if (net.length == address.length && prefixMatches(net, address, prefixes.get(i))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean prefixMatches(byte[] net, byte[] address, int prefix) {
+		int bytes = prefix / 8;
+		for (int i = 0; i < bytes; i++) {
+			if (net[i] != address[i]) {
+				return false;
+			}
+		}
+		int bits = prefix % 8;
+		if (bits == 0) {
+			return true;
+		}
+		int mask = (0xff << (8 - bits)) & 0xff;
+		return (net[bytes] & mask) == (address[bytes] & mask);
+	}
+
+	//clears the host bits, BPF rejects networks with host bits set
+	private static byte[] mask(byte[] net, int prefix) {
+		byte[] masked = new byte[net.length];
+		for (int i = 0; i < net.length; i++) {
+			int bits = Math.max(0, Math.min(8, prefix - i * 8));
+			masked[i] = (byte) (net[i] & (0xff << (8 - bits)));
+		}
+		return masked;
+	}
+
+	private boolean matchesPort(int port) {
+		for (int i = 0; i < ports.length; i++) {
+			if (ports[i] == port) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static byte[] toBytes(int address) {
+		return new byte[] { (byte) (address >>> 24), (byte) (address >>> 16),
+				(byte) (address >>> 8), (byte) address };
+	}
+
+	private static InetAddress toAddress(byte[] bytes) {
+		try {
+			return InetAddress.getByAddress(bytes);
+		} catch (UnknownHostException e) {
+			//only thrown for invalid lengths, which addNet prevents
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return toBpf() + (hasTimeWindow() ? " within [" + startTS + ", " + endTS + "]" : "");
+	}
+}
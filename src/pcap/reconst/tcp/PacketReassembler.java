@@ -4,8 +4,12 @@
 
 package pcap.reconst.tcp;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -17,32 +21,611 @@ public class PacketReassembler {
 	private static Log log = LogFactory.getLog(PacketReassembler.class);
 
 	private Map<TcpConnection, TcpReassembler> reassembledPackets;
+	
+	//the current session of each 4-tuple
+	private Map<TcpConnection, Session> sessions;
+	private long reusedConnections = 0;
+	
+	private ConnectionListener listener = null;
+	
+	private StreamConsumerFactory consumerFactory = null;
+	
+	private boolean retainPackets = true;
+	private long maxBytesPerDirection = TcpReassembler.UNLIMITED;
+	private PayloadStore payloadStore = null;
+	private SlabPool slabPool = null;
+	private BufferPool bufferPool = null;
+	private OverlapPolicy overlapPolicy = OverlapPolicy.FIRST_WINS;
+	private boolean pruneAcknowledged = false;
+	
+	//payload packets after which an undecided connection is kept
+	private static final int MAX_SNIFFED_PACKETS = 4;
+	
+	private ConnectionSniffer sniffer = null;
+	private long discardedConnections = 0;
+	private long droppedPackets = 0, droppedBytes = 0;
+	
+	public static final long NO_TIMEOUT = 0;
+	
+	private final CaptureClock clock = new CaptureClock();
+	private long idleTimeoutUSec = NO_TIMEOUT;
+	private long expiredConnections = 0;
 
 	public PacketReassembler() {
 		this.reassembledPackets = new HashMap<TcpConnection, TcpReassembler>();
+		this.sessions = new HashMap<TcpConnection, Session>();
 	}
 
+	/**
+	 * @return the connections which were not handed to a 
+	 * {@link ConnectionListener}, by their addresses and ports.  Where a 
+	 * 4-tuple was reused, this is its latest session, and the earlier ones 
+	 * are linked from it, see {@link TcpReassembler#getPreviousSession()}.
+	 */
 	public Map<TcpConnection, TcpReassembler> getReassembledPackets() {
 		return reassembledPackets;
 	}
+	
+	/**
+	 * Sets a listener which is handed each connection as soon as it is closed,
+	 * instead of accumulating every connection until the end of the capture.
+	 * Connections handed to the listener are removed from 
+	 * {@link #getReassembledPackets()}.
+	 * 
+	 * @param listener the listener, or null to keep all connections.
+	 */
+	public void setConnectionListener(ConnectionListener listener) {
+		this.listener = listener;
+	}
+	
+	public ConnectionListener getConnectionListener() {
+		return listener;
+	}
+	
+	/**
+	 * Sets a factory used to attach a {@link StreamConsumer} to each new 
+	 * connection, which then receives the payload of the connection while the 
+	 * capture is being read.  Combine with {@link #setRetainPackets(boolean)} 
+	 * to release each packet once it has been consumed.  A 
+	 * {@link ProtocolDispatcher} feeds the decoders of several protocols.
+	 * 
+	 * @param consumerFactory the factory, or null for no consumers.
+	 */
+	public void setStreamConsumerFactory(StreamConsumerFactory consumerFactory) {
+		this.consumerFactory = consumerFactory;
+	}
+	
+	public StreamConsumerFactory getStreamConsumerFactory() {
+		return consumerFactory;
+	}
+	
+	/**
+	 * Sets whether new connections keep their packets, 
+	 * see {@link TcpReassembler#setRetainPackets(boolean)}.  Enabled by default.
+	 */
+	public void setRetainPackets(boolean retainPackets) {
+		this.retainPackets = retainPackets;
+	}
+	
+	public boolean isRetainPackets() {
+		return retainPackets;
+	}
+	
+	/**
+	 * Limits the payload retained per direction of each new connection, 
+	 * see {@link TcpReassembler#setMaxBytesPerDirection(long)}.
+	 */
+	public void setMaxBytesPerDirection(long maxBytesPerDirection) {
+		this.maxBytesPerDirection = maxBytesPerDirection;
+	}
+	
+	public long getMaxBytesPerDirection() {
+		return maxBytesPerDirection;
+	}
+	
+	/**
+	 * Sets a store shared by all new connections for the payload of retained 
+	 * packets, see {@link TcpReassembler#setPayloadStore(PayloadStore)}.  
+	 * For example a {@link DiskPayloadStore} allows reassembling captures 
+	 * larger than the heap.  The store is not closed by the reassembler, it 
+	 * has to stay open as long as the reassembled packets are used.
+	 */
+	public void setPayloadStore(PayloadStore payloadStore) {
+		this.payloadStore = payloadStore;
+	}
+	
+	public PayloadStore getPayloadStore() {
+		return payloadStore;
+	}
+	
+	/**
+	 * Keeps the payload retained by each new connection in direct slabs from
+	 * a pool, see {@link TcpReassembler#setSlabPool(SlabPool)}.  Replaces the 
+	 * payload store.  Connections handed to a {@link ConnectionListener} are 
+	 * released once the listener returns, the others once they are parsed by 
+	 * {@link pcap.reconst.http.HttpFlowParser}, or else by the caller.
+	 * 
+	 * @param slabPool the pool, or null to not use slabs.
+	 */
+	public void setSlabPool(SlabPool slabPool) {
+		this.slabPool = slabPool;
+	}
+	
+	public SlabPool getSlabPool() {
+		return slabPool;
+	}
+	
+	/**
+	 * Sets a pool shared by all new connections for the arrays of their 
+	 * retained payload, see {@link TcpReassembler#setBufferPool(BufferPool)}.
+	 * The arrays are reused once a connection is released, which happens 
+	 * when a {@link ConnectionListener} returns, see 
+	 * {@link #setSlabPool(SlabPool)}.
+	 * 
+	 * @param bufferPool the pool, or null to allocate the arrays.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/**
+	 * Sets the overlap policy of new connections, 
+	 * see {@link TcpReassembler#setOverlapPolicy(OverlapPolicy)}.
+	 */
+	public void setOverlapPolicy(OverlapPolicy overlapPolicy) {
+		this.overlapPolicy = overlapPolicy;
+	}
+	
+	public OverlapPolicy getOverlapPolicy() {
+		return overlapPolicy;
+	}
+	
+	/**
+	 * Sets whether new connections prune acknowledged packets, 
+	 * see {@link TcpReassembler#setPruneAcknowledged(boolean)}.
+	 */
+	public void setPruneAcknowledged(boolean pruneAcknowledged) {
+		this.pruneAcknowledged = pruneAcknowledged;
+	}
+	
+	public boolean isPruneAcknowledged() {
+		return pruneAcknowledged;
+	}
+
+	/**
+	 * Sets a sniffer which is shown the first payload packets of each 
+	 * connection and decides whether the connection is reassembled or its 
+	 * payload dropped.  Only packets starting the stream of their sender, 
+	 * following its SYN, are shown.  Connections the sniffer has not decided 
+	 * on after a few payload packets are kept, such as those whose handshake 
+	 * was not captured.
+	 * 
+	 * @param sniffer the sniffer, or null to reassemble all connections.
+	 */
+	public void setConnectionSniffer(ConnectionSniffer sniffer) {
+		this.sniffer = sniffer;
+	}
+	
+	public ConnectionSniffer getConnectionSniffer() {
+		return sniffer;
+	}
+	
+	/**
+	 * @return the number of connections discarded by the 
+	 * {@link ConnectionSniffer}.
+	 */
+	public long getDiscardedConnections() {
+		return discardedConnections;
+	}
+	
+	/**
+	 * @return the number of packets dropped from discarded connections.
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets;
+	}
+	
+	/**
+	 * @return the number of payload bytes dropped from discarded connections.
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+	
+	/**
+	 * @return the clock following the capture time of the reassembled 
+	 * packets.  Timers scheduled on it, e.g. to flush completed flows or take 
+	 * metrics snapshots, fire as the capture time advances, before the packet 
+	 * reaching their deadline is reassembled.
+	 */
+	public CaptureClock getClock() {
+		return clock;
+	}
+	
+	/**
+	 * Closes connections which have seen no packet for a time, as if the end 
+	 * of the capture was reached for them, and hands them to the 
+	 * {@link ConnectionListener}.  A later packet on the same addresses and 
+	 * ports starts a new connection.  The timeout is measured in capture time, 
+	 * see {@link #getClock()}.  Applies to new connections, and only while a 
+	 * listener is set, as connections are otherwise kept until the end anyway.
+	 * 
+	 * @param timeoutMillis the idle time in milliseconds, or 
+	 * {@link #NO_TIMEOUT} to keep connections open until they are closed or 
+	 * the capture ends.
+	 */
+	public void setIdleTimeout(long timeoutMillis) {
+		this.idleTimeoutUSec = Math.max(timeoutMillis, NO_TIMEOUT) * 1000;
+	}
+	
+	public long getIdleTimeout() {
+		return idleTimeoutUSec / 1000;
+	}
+	
+	/**
+	 * @return the number of connections closed by the idle timeout.
+	 */
+	public long getExpiredConnections() {
+		return expiredConnections;
+	}
+	
+	/**
+	 * @return the number of times a new session was started on the 
+	 * addresses and ports of an earlier one.
+	 */
+	public long getReusedConnections() {
+		return reusedConnections;
+	}
+	
+	//the ISN of the client, as announced by the packet's handshake flags
+	private static long getIsn(TcpPacket tcpPacket) {
+		if (!tcpPacket.getSyn()) {
+			return TcpConnection.UNKNOWN_ISN;
+		}
+		return tcpPacket.getAck() ? TcpSequence.add(tcpPacket.getAckNum(), -1)
+				: tcpPacket.getSequence();
+	}
+	
+	//a SYN which does not belong to the handshake of the current session
+	private static boolean startsNewSession(TcpConnection session, TcpPacket tcpPacket) {
+		if (!tcpPacket.getSyn()) {
+			return false;
+		}
+		long isn = getIsn(tcpPacket);
+		if (isn == session.getIsn()) {
+			// retransmitted SYN or SYN/ACK
+			return false;
+		}
+		// a SYN/ACK only tells the sessions apart if the client SYN was seen
+		return !tcpPacket.getAck() || session.getIsn() != TcpConnection.UNKNOWN_ISN;
+	}
+	
+	/*
+	 * Hands the session to the listener, or returns it to be linked from the 
+	 * next session on the 4-tuple if there is no listener.
+	 */
+	private TcpReassembler endSession(TcpConnection tuple, Session session) throws Exception {
+		sessions.remove(tuple);
+		reassembledPackets.remove(tuple);
+		if (log.isDebugEnabled()) {
+			log.debug("New session on " + tuple + ", ending the previous one");
+		}
+		TcpReassembler tcpReassembler = session.reassembler;
+		cancelIdleTimer(tcpReassembler);
+		tcpReassembler.closeStreams();
+		if (listener != null) {
+			complete(session.connection, tcpReassembler);
+			return null;
+		}
+		return tcpReassembler;
+	}
+	
+	private static long getTime(TcpPacket tcpPacket) {
+		return tcpPacket.getTimestampSec() * 1000000 + tcpPacket.getTimestampUSec();
+	}
+	
+	/*
+	 * Fires at the end of the idle time counted from the packet which 
+	 * scheduled it, and is scheduled again for the latest packet until the 
+	 * connection has been idle long enough.  Saves moving the timer on each
+	 * packet.
+	 */
+	private class IdleTimer implements CaptureTimer {
+		private final TcpConnection tuple;
+		private final Session session;
+		
+		IdleTimer(TcpConnection tuple, Session session) {
+			this.tuple = tuple;
+			this.session = session;
+		}
+		
+		public void expired(long deadline) {
+			TcpReassembler tcpReassembler = session.reassembler;
+			if (sessions.get(tuple) != session || tcpReassembler.isClosed()) {
+				return;
+			}
+			long idleUntil = tcpReassembler.getLastSeen() + idleTimeoutUSec;
+			if (idleUntil > deadline) {
+				tcpReassembler.setIdleTimeout(clock.scheduleAt(this, idleUntil));
+				return;
+			}
+			try {
+				expire(tuple, session);
+			} catch (Exception e) {
+				if (log.isErrorEnabled()) {
+					log.error("Error expiring connection: " + tuple, e);
+				}
+			}
+		}
+	}
+	
+	private void expire(TcpConnection tuple, Session session) throws Exception {
+		if (log.isDebugEnabled()) {
+			log.debug("Connection " + tuple + " is idle, closing it");
+		}
+		expiredConnections++;
+		TcpReassembler tcpReassembler = session.reassembler;
+		tcpReassembler.setIdleTimeout(null);
+		tcpReassembler.setExpired();
+		tcpReassembler.closeStreams();
+		sessions.remove(tuple);
+		reassembledPackets.remove(tuple);
+		if (listener != null) {
+			complete(session.connection, tcpReassembler);
+		}
+	}
+	
+	private void cancelIdleTimer(TcpReassembler tcpReassembler) {
+		CaptureClock.Timeout timeout = tcpReassembler.getIdleTimeout();
+		if (timeout != null) {
+			timeout.cancel();
+			tcpReassembler.setIdleTimeout(null);
+		}
+	}
+	
+	private void complete(TcpConnection connection, TcpReassembler tcpReassembler) {
+		try {
+			listener.connectionCompleted(connection, tcpReassembler);
+		} finally {
+			if (slabPool != null || bufferPool != null) {
+				tcpReassembler.release();
+			}
+		}
+	}
+
+	/*
+	 * Only the first bytes of a stream tell its protocol, other packets count 
+	 * as undecided.
+	 */
+	private void sniff(TcpConnection c, TcpReassembler tcpReassembler, TcpPacket tcpPacket) {
+		ConnectionSniffer.Verdict verdict = tcpReassembler.startsStream(tcpPacket) 
+				? sniffer.sniff(tcpPacket) : ConnectionSniffer.Verdict.UNDECIDED;
+		if (verdict == ConnectionSniffer.Verdict.DISCARD) {
+			if (log.isDebugEnabled()) {
+				log.debug("Discarding connection " + c);
+			}
+			tcpReassembler.discard();
+			discardedConnections++;
+		} else if (verdict == ConnectionSniffer.Verdict.KEEP
+				|| tcpReassembler.incSniffedPackets() >= MAX_SNIFFED_PACKETS) {
+			tcpReassembler.setSniffed();
+		}
+	}
 
 	public void reassemble(TcpPacket tcpPacket) {
+		clock.advance(getTime(tcpPacket));
+		Flow flow = new Flow(new TcpConnection(tcpPacket));
+		resolve(flow);
+		reassemble(flow, tcpPacket);
+	}
+	
+	/**
+	 * Reassembles a batch of packets.  The packets are grouped by their 
+	 * addresses and ports, the connection of each group is looked up once, 
+	 * and the packets of each group are applied in their order in the batch.
+	 * The result for each connection is the same as reassembling the packets 
+	 * one at a time, only connections are completed and their consumers 
+	 * called group by group instead of packet by packet.
+	 * 
+	 * @param tcpPackets the decoded packets, in capture order.
+	 * @param offset the first packet of the batch.
+	 * @param length the number of packets in the batch.
+	 */
+	public void reassemble(TcpPacket[] tcpPackets, int offset, int length) {
+		List<Flow> flows = new ArrayList<Flow>();
+		Map<TcpConnection, Flow> batch = new HashMap<TcpConnection, Flow>();
+		Flow last = null;
+		for (int i = offset; i < offset + length; i++) {
+			TcpPacket tcpPacket = tcpPackets[i];
+			//runs of packets of the same connection skip the lookup
+			if (last == null || !last.tuple.matches(tcpPacket)) {
+				TcpConnection tuple = new TcpConnection(tcpPacket);
+				last = batch.get(tuple);
+				if (last == null) {
+					last = new Flow(tuple);
+					batch.put(tuple, last);
+					flows.add(last);
+				}
+			}
+			last.add(i);
+		}
+		if (length > 0) {
+			clock.advance(getTime(tcpPackets[offset]));
+		}
+		for (Flow flow : flows) {
+			resolve(flow);
+			for (int i = 0; i < flow.size; i++) {
+				reassemble(flow, tcpPackets[flow.indexes[i]]);
+			}
+		}
+		//timers fire between batches, connections idle within a batch are seen 
+		//active by the latest of its packets
+		if (length > 0) {
+			clock.advance(getTime(tcpPackets[offset + length - 1]));
+		}
+	}
+	
+	private void resolve(Flow flow) {
+		flow.session = sessions.get(flow.tuple);
+	}
+	
+	/*
+	 * Applies a packet to the current session of the 4-tuple of the flow, 
+	 * and updates the session of the flow.
+	 */
+	private void reassemble(Flow flow, TcpPacket tcpPacket) {
 		try {
-			// Creates a key for the dictionary
-			TcpConnection c = new TcpConnection(tcpPacket);
+			TcpConnection tuple = flow.tuple;
+			Session session = flow.session;
+			TcpReassembler previous = null;
+			
+			// a SYN on a reused 4-tuple starts a new session
+			if (session != null && startsNewSession(session.connection, tcpPacket)) {
+				previous = endSession(tuple, session);
+				reusedConnections++;
+				session = null;
+			}
 
 			// create a new entry if the key does not exists
-			if (!reassembledPackets.containsKey(c)) {
+			if (session == null) {
+				flow.session = null;
+				if (listener != null && tcpPacket.getDataLength() == 0
+						&& !tcpPacket.getSyn()) {
+					// trailing ACK/FIN of a connection which has already
+					// been handed to the listener
+					return;
+				}
+				TcpConnection c = new TcpConnection(tcpPacket, getIsn(tcpPacket));
 				TcpReassembler tcpReassembler = new TcpReassembler();
+				tcpReassembler.setRetainPackets(retainPackets);
+				tcpReassembler.setMaxBytesPerDirection(maxBytesPerDirection);
+				tcpReassembler.setBufferPool(bufferPool);
+				tcpReassembler.setPayloadStore(payloadStore);
+				if (slabPool != null) {
+					tcpReassembler.setSlabPool(slabPool);
+				}
+				tcpReassembler.setOverlapPolicy(overlapPolicy);
+				tcpReassembler.setPruneAcknowledged(pruneAcknowledged);
+				tcpReassembler.setPreviousSession(previous);
+				if (consumerFactory != null) {
+					tcpReassembler.setStreamConsumer(consumerFactory.newConsumer(c));
+				}
+				session = new Session(c, tcpReassembler);
+				if (idleTimeoutUSec != NO_TIMEOUT && listener != null) {
+					tcpReassembler.setIdleTimeout(clock.schedule(new IdleTimer(tuple, session), 
+							idleTimeoutUSec));
+				}
+				sessions.put(tuple, session);
 				reassembledPackets.put(c, tcpReassembler);
+				flow.session = session;
 			}
 
 			// Use the TcpRecon class to reconstruct the session
-			reassembledPackets.get(c).reassemblePacket(tcpPacket);
+			TcpConnection c = session.connection;
+			TcpReassembler tcpReassembler = session.reassembler;
+			tcpReassembler.setLastSeen(Math.max(clock.getTime(), getTime(tcpPacket)));
+			if (sniffer != null && !tcpReassembler.isSniffed()) {
+				if (tcpPacket.getSyn()) {
+					tcpReassembler.addSyn(tcpPacket);
+				}
+				if (tcpPacket.getDataLength() > 0) {
+					sniff(c, tcpReassembler, tcpPacket);
+				}
+			}
+			if (tcpReassembler.isDiscarded()) {
+				droppedPackets++;
+				droppedBytes += tcpPacket.getDataLength();
+			}
+			tcpReassembler.reassemblePacket(tcpPacket);
+			
+			if (tcpReassembler.isClosed()) {
+				cancelIdleTimer(tcpReassembler);
+				tcpReassembler.closeStreams();
+				if (listener != null) {
+					reassembledPackets.remove(tuple);
+					sessions.remove(tuple);
+					flow.session = null;
+					complete(c, tcpReassembler);
+				}
+			}
 		} catch (Exception e) {
 			if (log.isErrorEnabled()) {
 				log.error("", e);
 			}
 		}
 	}
+	
+	/**
+	 * One session on a 4-tuple.  The connections of sessions reusing a 4-tuple 
+	 * are equal, the sessions are told apart by their Session.
+	 */
+	private static class Session {
+		final TcpConnection connection;
+		final TcpReassembler reassembler;
+
+		Session(TcpConnection connection, TcpReassembler reassembler) {
+			this.connection = connection;
+			this.reassembler = reassembler;
+		}
+	}
+	
+	/**
+	 * The packets of a batch on one 4-tuple, and the session they are applied 
+	 * to.
+	 */
+	private static class Flow {
+		final TcpConnection tuple;
+		Session session = null;
+		int[] indexes = null;
+		int size = 0;
+
+		Flow(TcpConnection tuple) {
+			this.tuple = tuple;
+		}
+
+		void add(int index) {
+			if (indexes == null) {
+				indexes = new int[8];
+			} else if (size == indexes.length) {
+				indexes = Arrays.copyOf(indexes, size * 2);
+			}
+			indexes[size++] = index;
+		}
+	}
+	
+	/**
+	 * Signals the end of the capture.  Closes the streams of all connections 
+	 * which are still open, and if a {@link ConnectionListener} is set, 
+	 * hands them to it.
+	 */
+	public void finish() {
+		for (Entry<TcpConnection, TcpReassembler> entry : reassembledPackets.entrySet()) {
+			cancelIdleTimer(entry.getValue());
+			try {
+				entry.getValue().closeStreams();
+			} catch (Exception e) {
+				if (log.isErrorEnabled()) {
+					log.error("Error closing stream: " + entry.getKey(), e);
+				}
+			}
+		}
+		if (listener != null) {
+			List<Session> remaining = new ArrayList<Session>(sessions.values());
+			reassembledPackets.clear();
+			sessions.clear();
+			for (Session session : remaining) {
+				try {
+					complete(session.connection, session.reassembler);
+				} catch (Exception e) {
+					if (log.isErrorEnabled()) {
+						log.error("Error completing connection: " + session.connection, e);
+					}
+				}
+			}
+		}
+	}
 }
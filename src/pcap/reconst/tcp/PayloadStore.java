@@ -0,0 +1,32 @@
+package pcap.reconst.tcp;
+
+import java.io.IOException;
+
+/**
+ * Storage for the payload bytes retained by a {@link TcpReassembler}, so that 
+ * reassembled packets only need to keep a position into the store instead of 
+ * their payload arrays.  A store may be shared by all connections of a 
+ * {@link PacketReassembler}.
+ */
+public interface PayloadStore {
+
+	/**
+	 * Appends bytes to the store.
+	 * 
+	 * @return the position of the first appended byte, for 
+	 * {@link #read(long, byte[], int, int)}.
+	 */
+	long append(byte[] data, int offset, int length) throws IOException;
+
+	/**
+	 * Reads back previously appended bytes.
+	 * 
+	 * @param position the position returned by {@link #append(byte[], int, int)}.
+	 */
+	void read(long position, byte[] dest, int offset, int length) throws IOException;
+
+	/**
+	 * Releases the storage.  Payload can no longer be read afterwards.
+	 */
+	void close();
+}
@@ -1,20 +1,20 @@
 package pcap.reconst.tcp;
 
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 
 import io.pkts.PacketHandler;
+import io.pkts.buffer.Buffer;
 import io.pkts.packet.Packet;
-import io.pkts.packet.TCPPacket;
+import io.pkts.packet.PCapPacket;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import io.pkts.Pcap;
-import io.pkts.protocol.Protocol;
-import pcap.reconst.tcp.packet.PktsIoTcpPacket;
+import pcap.reconst.io.PcapFileReader;
 
-public class PktsIoReconstructor implements Reconstructor {
+public class PktsIoReconstructor implements FilteringReconstructor {
 	private static Log log = LogFactory.getLog(JnetpcapReconstructor.class);
 
 	private PacketReassembler packetReassembler;
@@ -25,25 +25,39 @@ public class PktsIoReconstructor implements Reconstructor {
 
 	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, StatusHandle status)
 			throws Exception {
+		return reconstruct(filename, null, status);
+	}
+
+	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, final PacketFilter filter,
+			StatusHandle status) throws Exception {
 		if (log.isDebugEnabled()) {
 			log.debug("reconstructing " + filename + " ...");
 		}
 
+		//pkts only reads the frames, the headers are decoded by the 
+		//FrameProcessor so that VLAN tagged, IPv6 and tunneled packets are seen
+		final int linkType = PcapFileReader.readLinkType(new File(filename));
+		final FrameProcessor frameProcessor = new FrameProcessor(packetReassembler);
+		frameProcessor.setPacketFilter(filter);
 		final Pcap pcap = Pcap.openStream(filename);
 
 		pcap.loop(new PacketHandler() {
 			@Override
 			public boolean nextPacket(final Packet packet) throws IOException {
-				if (packet.hasProtocol(Protocol.TCP)) {
-					PktsIoTcpPacket pktsIoTcpPacket = new PktsIoTcpPacket((TCPPacket) packet.getPacket(Protocol.TCP));
-					packetReassembler.reassemble(pktsIoTcpPacket);
+				PCapPacket frame = (PCapPacket) packet;
+				Buffer payload = frame.getPayload();
+				if (payload != null) {
+					long arrival = frame.getArrivalTime();
+					frameProcessor.process(payload.getArray(), linkType,
+							(int) frame.getTotalLength(), arrival / 1000000, arrival % 1000000);
 				}
-
 				return true;
 			}
 		});
 
 		pcap.close();
+		frameProcessor.logCounts(filename);
+		packetReassembler.finish();
 
 		return packetReassembler.getReassembledPackets();
 	}
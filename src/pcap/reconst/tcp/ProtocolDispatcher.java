@@ -0,0 +1,227 @@
+package pcap.reconst.tcp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Hands each connection reassembled by a {@link PacketReassembler} to one of
+ * several {@link StreamProtocolHandler}s.  Connections on a port of a handler
+ * go to the first such handler.  The payload of other connections is held
+ * back until a handler recognizes the first bytes, and is then replayed to
+ * the consumer of that handler.  Connections no handler recognizes are
+ * ignored.
+ * <p>
+ * Set the dispatcher as both the {@link StreamConsumerFactory} and the
+ * {@link ConnectionSniffer} of the reassembler to also drop the payload of
+ * the ignored connections while reassembling.
+ */
+public class ProtocolDispatcher implements StreamConsumerFactory, ConnectionSniffer {
+
+	private static Log log = LogFactory.getLog(ProtocolDispatcher.class);
+
+	public static final int DEFAULT_MAX_SNIFF_BYTES = 1024;
+
+	private final List<StreamProtocolHandler> handlers = new ArrayList<StreamProtocolHandler>();
+	private int maxSniffBytes = DEFAULT_MAX_SNIFF_BYTES;
+
+	public ProtocolDispatcher() {
+	}
+
+	public ProtocolDispatcher(StreamProtocolHandler... handlers) {
+		this.handlers.addAll(Arrays.asList(handlers));
+	}
+
+	/**
+	 * Adds a handler, which is asked after the handlers added before it.
+	 */
+	public void addHandler(StreamProtocolHandler handler) {
+		handlers.add(handler);
+	}
+
+	public List<StreamProtocolHandler> getHandlers() {
+		return handlers;
+	}
+
+	/**
+	 * @param maxSniffBytes the number of bytes held back per connection while
+	 * no handler has recognized it, after which the connection is ignored.
+	 */
+	public void setMaxSniffBytes(int maxSniffBytes) {
+		this.maxSniffBytes = maxSniffBytes;
+	}
+
+	public int getMaxSniffBytes() {
+		return maxSniffBytes;
+	}
+
+	public StreamConsumer newConsumer(TcpConnection connection) {
+		StreamProtocolHandler handler = getPortHandler(connection.getSrcPort(),
+				connection.getDstPort());
+		if (handler != null) {
+			return newConsumer(handler, connection);
+		}
+		return handlers.isEmpty() ? null : new DispatchingConsumer(connection);
+	}
+
+	public Verdict sniff(TcpPacket packet) {
+		if (getPortHandler(packet.getSourcePort(), packet.getDestinationPort()) != null) {
+			return Verdict.KEEP;
+		}
+		return sniff(packet.getData()).verdict;
+	}
+
+	private StreamProtocolHandler getPortHandler(int srcPort, int dstPort) {
+		for (StreamProtocolHandler handler : handlers) {
+			if (handler.getPorts().contains(srcPort) || handler.getPorts().contains(dstPort)) {
+				return handler;
+			}
+		}
+		return null;
+	}
+
+	//the first handler keeping data, or the combined verdict of the handlers
+	private SniffResult sniff(byte[] data) {
+		Verdict verdict = Verdict.DISCARD;
+		for (StreamProtocolHandler handler : handlers) {
+			Verdict handlerVerdict = handler.sniff(data);
+			if (handlerVerdict == Verdict.KEEP) {
+				return new SniffResult(Verdict.KEEP, handler);
+			} else if (handlerVerdict == Verdict.UNDECIDED) {
+				verdict = Verdict.UNDECIDED;
+			}
+		}
+		return new SniffResult(verdict, null);
+	}
+
+	private static StreamConsumer newConsumer(StreamProtocolHandler handler,
+			TcpConnection connection) {
+		if (log.isDebugEnabled()) {
+			log.debug("Dispatching connection " + connection + " to " + handler.getName());
+		}
+		return handler.newConsumer(connection);
+	}
+
+	private static class SniffResult {
+		final Verdict verdict;
+		final StreamProtocolHandler handler;
+
+		SniffResult(Verdict verdict, StreamProtocolHandler handler) {
+			this.verdict = verdict;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * Data or a gap received before the connection was dispatched.
+	 */
+	private static class HeldEvent {
+		final PacketType direction;
+		final TcpPacket packet;
+		final byte[] data;
+		final long gap;
+
+		HeldEvent(PacketType direction, TcpPacket packet, byte[] data, long gap) {
+			this.direction = direction;
+			this.packet = packet;
+			this.data = data;
+			this.gap = gap;
+		}
+	}
+
+	/**
+	 * Holds back the payload of a connection until a handler recognizes it.
+	 */
+	private class DispatchingConsumer implements StreamConsumer {
+		private final TcpConnection connection;
+		private boolean dispatched = false;
+		private StreamConsumer consumer = null;
+
+		private List<HeldEvent> held = new ArrayList<HeldEvent>();
+		private int heldBytes = 0;
+		//the direction which sent payload first, whose bytes are sniffed
+		private PacketType first = null;
+		private final ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+
+		DispatchingConsumer(TcpConnection connection) {
+			this.connection = connection;
+		}
+
+		public void sequencedData(PacketType direction, TcpPacket packet,
+				byte[] data, int offset, int length) {
+			if (dispatched) {
+				if (consumer != null) {
+					consumer.sequencedData(direction, packet, data, offset, length);
+				}
+				return;
+			}
+			held.add(new HeldEvent(direction, packet,
+					Arrays.copyOfRange(data, offset, offset + length), 0));
+			heldBytes += length;
+			if (first == null) {
+				first = direction;
+			}
+			if (direction != first) {
+				if (heldBytes >= maxSniffBytes) {
+					dispatch(null);
+				}
+				return;
+			}
+			prefix.write(data, offset, length);
+			SniffResult result = sniff(prefix.toByteArray());
+			if (result.verdict == Verdict.KEEP) {
+				dispatch(result.handler);
+			} else if (result.verdict == Verdict.DISCARD || heldBytes >= maxSniffBytes) {
+				dispatch(null);
+			}
+		}
+
+		public void sequenceGap(PacketType direction, long length) {
+			if (dispatched) {
+				if (consumer != null) {
+					consumer.sequenceGap(direction, length);
+				}
+			} else if (first == null || direction == first) {
+				//the first bytes are incomplete, they can not be sniffed
+				dispatch(null);
+			} else {
+				held.add(new HeldEvent(direction, null, null, length));
+			}
+		}
+
+		public void streamClosed() {
+			if (!dispatched) {
+				dispatch(null);
+			}
+			if (consumer != null) {
+				consumer.streamClosed();
+			}
+		}
+
+		private void dispatch(StreamProtocolHandler handler) {
+			dispatched = true;
+			if (handler != null) {
+				consumer = newConsumer(handler, connection);
+			} else if (log.isDebugEnabled()) {
+				log.debug("No protocol handler for connection " + connection);
+			}
+			if (consumer != null) {
+				for (HeldEvent event : held) {
+					if (event.data != null) {
+						consumer.sequencedData(event.direction, event.packet,
+								event.data, 0, event.data.length);
+					} else {
+						consumer.sequenceGap(event.direction, event.gap);
+					}
+				}
+			}
+			held = null;
+		}
+	}
+}
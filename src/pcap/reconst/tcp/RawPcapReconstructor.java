@@ -0,0 +1,300 @@
+package pcap.reconst.tcp;
+
+import java.io.File;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import pcap.reconst.io.PcapFileReader;
+import pcap.reconst.io.PcapRecord;
+import pcap.reconst.io.TimestampIndex;
+import pcap.reconst.tcp.packet.DecodedHeaders;
+import pcap.reconst.tcp.packet.PacketHeaderDecoder;
+import pcap.reconst.tcp.packet.RawTcpPacket;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Reconstructor which decodes capture files itself, using 
+ * {@link PcapFileReader} and {@link RawTcpPacket}, instead of going through a 
+ * capture library.  The reassembled packets are {@link RawTcpPacket}s and so 
+ * know their file offsets, and reconstruction can be limited to a set of 
+ * records read by offset, or to a time window found through a 
+ * {@link TimestampIndex}.
+ */
+public class RawPcapReconstructor implements FilteringReconstructor {
+	private static Log log = LogFactory.getLog(RawPcapReconstructor.class);
+
+	public static final long DEFAULT_LEAD_IN_MILLIS = 60000;
+
+	private PacketReassembler packetReassembler;
+	private final FrameProcessor frameProcessor;
+	
+	private long leadInMillis = DEFAULT_LEAD_IN_MILLIS;
+	private int sampleInterval = TimestampIndex.DEFAULT_SAMPLE_INTERVAL;
+	//indexes built so far, by absolute path
+	private final Map<String, TimestampIndex> timestampIndexes = 
+			new HashMap<String, TimestampIndex>();
+
+	public RawPcapReconstructor(PacketReassembler packetReassembler) {
+		this.packetReassembler = packetReassembler;
+		this.frameProcessor = new FrameProcessor(packetReassembler) {
+			@Override
+			protected TcpPacket createPacket(DecodedHeaders headers, int captureLength,
+					int length, long timestampSec, long timestampUSec, long[] origins)
+					throws UnknownHostException {
+				return new RawTcpPacket(headers, captureLength, length, timestampSec,
+						timestampUSec, origins);
+			}
+		};
+	}
+
+	/**
+	 * @return the decoder, whose counts cover all records read so far.
+	 */
+	public PacketHeaderDecoder getDecoder() {
+		return frameProcessor.getDecoder();
+	}
+
+	public FrameProcessor getFrameProcessor() {
+		return frameProcessor;
+	}
+	
+	/**
+	 * Sets the time before the start of a window whose records are also 
+	 * reassembled, so that connections already open at the start of the 
+	 * window have their handshake and earlier payload.  Connections which 
+	 * end within the lead-in are reassembled as well.
+	 * 
+	 * @param leadInMillis the lead-in in milliseconds.
+	 */
+	public void setLeadIn(long leadInMillis) {
+		this.leadInMillis = Math.max(leadInMillis, 0);
+	}
+	
+	public long getLeadIn() {
+		return leadInMillis;
+	}
+	
+	/**
+	 * Sets the number of records per sample of the timestamp indexes built 
+	 * from now on, see {@link TimestampIndex#build(File, int)}.
+	 */
+	public void setSampleInterval(int sampleInterval) {
+		this.sampleInterval = sampleInterval;
+	}
+	
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+	
+	/**
+	 * @return the timestamp index of a capture file, built on first use and 
+	 * kept until the file changes.
+	 */
+	public TimestampIndex getTimestampIndex(String filename) throws Exception {
+		File file = new File(filename);
+		String key = file.getAbsolutePath();
+		TimestampIndex index = timestampIndexes.get(key);
+		if (index == null || !index.isCurrent(file)) {
+			if (log.isDebugEnabled()) {
+				log.debug("indexing timestamps of " + filename + " ...");
+			}
+			index = TimestampIndex.build(file, sampleInterval);
+			timestampIndexes.put(key, index);
+		}
+		return index;
+	}
+
+	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, StatusHandle status)
+			throws Exception {
+		return reconstruct(filename, (PacketFilter) null, status);
+	}
+
+	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, PacketFilter filter,
+			StatusHandle status) throws Exception {
+		if (log.isDebugEnabled()) {
+			log.debug("reconstructing " + filename + " ...");
+		}
+		frameProcessor.setPacketFilter(filter);
+		setCancellable(status);
+		PcapFileReader reader = new PcapFileReader(new File(filename));
+		try {
+			PcapRecord record;
+			while (!status.isCancelled() && (record = reader.next()) != null) {
+				reassemble(record);
+			}
+		} finally {
+			reader.close();
+		}
+		frameProcessor.logCounts(filename);
+		packetReassembler.finish();
+		return packetReassembler.getReassembledPackets();
+	}
+
+	/**
+	 * Reassembles only the records at the given file offsets.
+	 * 
+	 * @param offsets offsets of records, as returned by 
+	 * {@link PcapRecord#getOffset()}.  Read in ascending order.
+	 */
+	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, long[] offsets,
+			StatusHandle status) throws Exception {
+		if (log.isDebugEnabled()) {
+			log.debug("reconstructing " + offsets.length + " records of " + filename + " ...");
+		}
+		long[] sorted = offsets.clone();
+		Arrays.sort(sorted);
+		frameProcessor.setPacketFilter(null);
+		setCancellable(status);
+		PcapFileReader reader = new PcapFileReader(new File(filename));
+		try {
+			for (int i = 0; i < sorted.length && !status.isCancelled(); i++) {
+				if (i > 0 && sorted[i] == sorted[i - 1]) {
+					continue;
+				}
+				reader.seek(sorted[i]);
+				PcapRecord record = reader.next();
+				if (record == null) {
+					if (log.isWarnEnabled()) {
+						log.warn("No record at offset " + sorted[i] + " of " + filename);
+					}
+					break;
+				}
+				reassemble(record);
+			}
+		} finally {
+			reader.close();
+		}
+		frameProcessor.logCounts(filename);
+		packetReassembler.finish();
+		return packetReassembler.getReassembledPackets();
+	}
+
+	/**
+	 * Reassembles only the records of a time window and of the lead-in before 
+	 * it, see {@link #setLeadIn(long)}.  Reading starts at the sampled record 
+	 * of the {@link #getTimestampIndex(String) timestamp index} closest to the 
+	 * start of the lead-in, and stops at the first record at or after the end 
+	 * of the window, so the records are expected to be in time order.  
+	 * Connections whose last packet is earlier than the start of the window 
+	 * are released and neither returned nor handed to a 
+	 * {@link ConnectionListener}.
+	 * 
+	 * @param filter the packets to reassemble, or null for all TCP packets.
+	 * @param startUSec the start of the window, in microseconds since the 
+	 * epoch.
+	 * @param endUSec the end of the window, exclusive.
+	 */
+	public Map<TcpConnection, TcpReassembler> reconstruct(String filename, PacketFilter filter,
+			long startUSec, long endUSec, StatusHandle status) throws Exception {
+		long from = startUSec - leadInMillis * 1000;
+		long offset = getTimestampIndex(filename).getSeekOffset(from);
+		if (log.isDebugEnabled()) {
+			log.debug("reconstructing " + filename + " from " + from + " to " + endUSec 
+					+ ", starting at offset " + offset + " ...");
+		}
+		frameProcessor.setPacketFilter(filter);
+		final ConnectionListener listener = packetReassembler.getConnectionListener();
+		if (listener != null) {
+			packetReassembler.setConnectionListener(new WindowListener(listener, startUSec));
+		}
+		setCancellable(status);
+		PcapFileReader reader = new PcapFileReader(new File(filename));
+		try {
+			reader.seek(offset);
+			while (!status.isCancelled()) {
+				long position = reader.getPosition();
+				long time = reader.skip();
+				if (time < 0 || time >= endUSec) {
+					break;
+				}
+				if (time < from) {
+					continue;
+				}
+				reader.seek(position);
+				PcapRecord record = reader.next();
+				if (record == null) {
+					break;
+				}
+				reassemble(record);
+			}
+			frameProcessor.logCounts(filename);
+			packetReassembler.finish();
+		} finally {
+			reader.close();
+			if (listener != null) {
+				packetReassembler.setConnectionListener(listener);
+			}
+		}
+		Map<TcpConnection, TcpReassembler> reassembled = packetReassembler.getReassembledPackets();
+		for (Iterator<TcpReassembler> i = reassembled.values().iterator(); i.hasNext();) {
+			TcpReassembler tcpReassembler = i.next();
+			if (tcpReassembler.getLastSeen() < startUSec) {
+				i.remove();
+				release(tcpReassembler);
+				continue;
+			}
+			//earlier sessions on the 4-tuple ended before the later ones
+			TcpReassembler session = tcpReassembler;
+			while (session.getPreviousSession() != null) {
+				TcpReassembler previous = session.getPreviousSession();
+				if (previous.getLastSeen() < startUSec) {
+					session.setPreviousSession(null);
+					release(previous);
+					break;
+				}
+				session = previous;
+			}
+		}
+		return reassembled;
+	}
+
+	//releases a session and the sessions linked from it
+	private static void release(TcpReassembler tcpReassembler) {
+		for (; tcpReassembler != null; tcpReassembler = tcpReassembler.getPreviousSession()) {
+			tcpReassembler.release();
+		}
+	}
+
+	/*
+	 * The loops poll the status between records, there is no blocking read 
+	 * to interrupt.
+	 */
+	private void setCancellable(StatusHandle status) {
+		status.setCancellable(new StatusHandle.Cancellable() {
+			public void cancel() {
+			}
+		});
+	}
+
+	private void reassemble(PcapRecord record) {
+		frameProcessor.process(record.getData(), record.getLinkType(),
+				record.getOriginalLength(), record.getTimestampSec(),
+				record.getTimestampUSec(), record.getOffset());
+	}
+
+	/*
+	 * Hands over only the connections which reach into the window, those 
+	 * ending in the lead-in are dropped.
+	 */
+	private static class WindowListener implements ConnectionListener {
+		private final ConnectionListener listener;
+		private final long startUSec;
+
+		WindowListener(ConnectionListener listener, long startUSec) {
+			this.listener = listener;
+			this.startUSec = startUSec;
+		}
+
+		public void connectionCompleted(TcpConnection connection, TcpReassembler reassembler) {
+			if (reassembler.getLastSeen() >= startUSec) {
+				listener.connectionCompleted(connection, reassembler);
+			}
+		}
+	}
+}
@@ -7,6 +7,17 @@ import java.util.Map;
 
 
 public interface Reconstructor {
+	/**
+	 * Reads and reassembles all TCP connections in a capture file.  
+	 * 
+	 * If the {@link PacketReassembler} used by the implementation has a 
+	 * {@link ConnectionListener}, connections are pushed to it as they 
+	 * complete and the returned map will be empty.
+	 * 
+	 * @param filename the capture file.
+	 * @param status handle used to cancel the reconstruction.
+	 * @return the reassembled connections which were not handed to a listener.
+	 */
 	Map<TcpConnection, TcpReassembler> reconstruct(String filename, StatusHandle status)
 			throws Exception;
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package pcap.reconst.tcp;
+
+import java.util.Arrays;
+
+/**
+ * A {@link PayloadStore} keeping all appended bytes in a single growable
+ * array.  Used by {@link SegmentTable} for the payload of each direction of
+ * a connection when no other store is set, so that retained payload is one
+ * array instead of one array per packet.  Positions are offsets into
+ * {@link #getArray()}, which allows slicing without copying.  The array may
+ * be taken from a {@link BufferPool}, and is then released by {@link #close()}.
+ */
+public class SegmentArena implements PayloadStore {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final BufferPool pool;
+	private byte[] data = null;
+	private int size = 0;
+
+	public SegmentArena() {
+		this(null);
+	}
+
+	/**
+	 * @param pool the pool providing the array as it grows, or null to
+	 * allocate it.
+	 */
+	public SegmentArena(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	public long append(byte[] src, int offset, int length) {
+		ensureCapacity(size + length);
+		System.arraycopy(src, offset, data, size, length);
+		long position = size;
+		size += length;
+		return position;
+	}
+
+	public void read(long position, byte[] dest, int offset, int length) {
+		if (position < 0 || position + length > size) {
+			throw new IndexOutOfBoundsException("Position " + position + " length "
+					+ length + " outside of arena of " + size + " bytes");
+		}
+		System.arraycopy(data, (int) position, dest, offset, length);
+	}
+
+	/**
+	 * Overwrites previously appended bytes.
+	 */
+	public void write(long position, byte[] src, int offset, int length) {
+		if (position < 0 || position + length > size) {
+			throw new IndexOutOfBoundsException("Position " + position + " length "
+					+ length + " outside of arena of " + size + " bytes");
+		}
+		System.arraycopy(src, offset, data, (int) position, length);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalStateException("Arena exceeds " + Integer.MAX_VALUE + " bytes");
+		}
+		if (data == null) {
+			int length = Math.max(capacity, INITIAL_CAPACITY);
+			data = pool != null ? pool.acquire(length) : new byte[length];
+		} else if (capacity > data.length) {
+			int length = Math.max(capacity, data.length * 2);
+			data = pool != null ? pool.grow(data, size, length) : Arrays.copyOf(data, length);
+		}
+	}
+
+	/**
+	 * @return the backing array, valid up to {@link #size()}.  Appends may
+	 * replace the array.
+	 */
+	public byte[] getArray() {
+		return data != null ? data : new byte[0];
+	}
+
+	/**
+	 * @return the number of bytes appended.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public void close() {
+		if (pool != null && data != null) {
+			pool.release(data);
+		}
+		data = null;
+		size = 0;
+	}
+}
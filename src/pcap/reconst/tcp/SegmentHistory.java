@@ -0,0 +1,102 @@
+package pcap.reconst.tcp;
+
+/**
+ * The most recently retained payload segments of one direction of a 
+ * connection, with a hash of their payload.  Used by {@link TcpReassembler} 
+ * to recognize retransmissions and overlaps without scanning all retained 
+ * segments.
+ */
+class SegmentHistory {
+	private final long[] positions;
+	private final long[] sequences;
+	private final int[] lengths;
+	private final int[] hashes;
+	private int next = 0, size = 0;
+
+	SegmentHistory(int capacity) {
+		positions = new long[capacity];
+		sequences = new long[capacity];
+		lengths = new int[capacity];
+		hashes = new int[capacity];
+	}
+
+	static int hash(byte[] data, int offset, int length) {
+		int hash = 1;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + data[i];
+		}
+		return hash;
+	}
+
+	/**
+	 * Records a segment, replacing the oldest one when full.
+	 * 
+	 * @param position the position of the retained payload, see 
+	 * {@link SegmentTable#append(PacketType, byte[], int, int)}.
+	 */
+	void add(long position, long sequence, byte[] data, int offset, int length) {
+		positions[next] = position;
+		sequences[next] = sequence;
+		lengths[next] = length;
+		hashes[next] = hash(data, offset, length);
+		next = (next + 1) % positions.length;
+		size = Math.min(size + 1, positions.length);
+	}
+
+	/**
+	 * Updates a segment whose retained payload was replaced.
+	 */
+	void replace(int entry, long position, byte[] data) {
+		positions[entry] = position;
+		hashes[entry] = hash(data, 0, data.length);
+	}
+
+	/**
+	 * @return the entry with exactly this sequence number and length, or -1.
+	 */
+	int find(long sequence, int length) {
+		for (int i = 0; i < size; i++) {
+			int entry = (next - 1 - i + positions.length) % positions.length;
+			if (sequences[entry] == sequence && lengths[entry] == length) {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the number of entries, the most recent entry is 
+	 * {@link #get(int)} 0.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param i 0 for the most recent entry.
+	 * @return the entry index.
+	 */
+	int get(int i) {
+		return (next - 1 - i + positions.length) % positions.length;
+	}
+
+	long getPosition(int entry) {
+		return positions[entry];
+	}
+
+	long getSequence(int entry) {
+		return sequences[entry];
+	}
+
+	int getLength(int entry) {
+		return lengths[entry];
+	}
+
+	int getHash(int entry) {
+		return hashes[entry];
+	}
+
+	void clear() {
+		next = size = 0;
+	}
+}
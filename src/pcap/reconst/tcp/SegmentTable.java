@@ -0,0 +1,595 @@
+package pcap.reconst.tcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pcap.reconst.tcp.packet.AbstractTcpPacket;
+import pcap.reconst.tcp.packet.PlaceholderTcpPacket;
+import pcap.reconst.tcp.packet.RawTcpPacket;
+import pcap.reconst.tcp.packet.ResetAwareTcpPacket;
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * The segments retained by a {@link TcpReassembler}, in stream order, as
+ * columns of primitive arrays instead of one {@link TcpPacket} per segment.
+ * Each record holds the direction and flags, sequence and acknowledgement
+ * numbers, payload position and length and capture time of a segment.  The
+ * payload of each direction is appended to a {@link SegmentArena}, or to a
+ * shared {@link PayloadStore} if one is set.  Gaps are records without
+ * payload whose length is the number of missing bytes.
+ *
+ * Records are modified by the reassembler only.  {@link #getPacket(int)}
+ * returns a packet view of a record for code working with packets.
+ */
+public class SegmentTable {
+	private static final int RESPONSE = 0x01, SYN = 0x02, ACK = 0x04, FIN = 0x08,
+			PSH = 0x10, RST = 0x20, PLACEHOLDER = 0x40;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final PayloadStore store;
+	private final BufferPool pool;
+	private SegmentArena reqArena = null, respArena = null;
+
+	private InetAddress reqIp = null, respIp = null;
+	private int reqPort = 0, respPort = 0;
+
+	private byte[] flags = new byte[INITIAL_CAPACITY];
+	private int[] sequences = new int[INITIAL_CAPACITY];
+	private int[] acks = new int[INITIAL_CAPACITY];
+	private long[] positions = new long[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	//capture time in microseconds
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	//file offsets of packets decoded by RawPcapReconstructor, null otherwise
+	private long[][] origins = new long[INITIAL_CAPACITY][];
+	private int size = 0;
+	private int placeholders = 0;
+	//incremented by clear(), packet views of earlier records are invalid
+	private int generation = 0;
+
+	/**
+	 * @param store the store for the payload of both directions, or null to
+	 * keep the payload of each direction in a {@link SegmentArena}.
+	 * @param pool the pool of the arrays of the arenas, or null.
+	 */
+	SegmentTable(PayloadStore store, BufferPool pool) {
+		this.store = store;
+		this.pool = pool;
+	}
+
+	void setEndpoints(InetAddress requestIp, int requestPort,
+			InetAddress responseIp, int responsePort) {
+		this.reqIp = requestIp;
+		this.reqPort = requestPort;
+		this.respIp = responseIp;
+		this.respPort = responsePort;
+	}
+
+	private PayloadStore getStore(PacketType type) {
+		if (store != null) {
+			return store;
+		}
+		if (type == PacketType.Request) {
+			if (reqArena == null) {
+				reqArena = new SegmentArena(pool);
+			}
+			return reqArena;
+		}
+		if (respArena == null) {
+			respArena = new SegmentArena(pool);
+		}
+		return respArena;
+	}
+
+	/**
+	 * @return the arena holding the payload of the direction, or null if a
+	 * shared store is used or the direction has no payload.  Record
+	 * positions are offsets into {@link SegmentArena#getArray()}.
+	 */
+	public SegmentArena getArena(PacketType type) {
+		return type == PacketType.Request ? reqArena : respArena;
+	}
+
+	/**
+	 * Appends payload of a direction, to be referenced by a record.
+	 *
+	 * @return the position of the payload.
+	 */
+	long append(PacketType type, byte[] data, int offset, int length)
+			throws IOException {
+		return getStore(type).append(data, offset, length);
+	}
+
+	void readPayload(PacketType type, long position, byte[] dest, int offset,
+			int length) throws IOException {
+		getStore(type).read(position, dest, offset, length);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > flags.length) {
+			int n = Math.max(capacity, flags.length * 2);
+			flags = Arrays.copyOf(flags, n);
+			sequences = Arrays.copyOf(sequences, n);
+			acks = Arrays.copyOf(acks, n);
+			positions = Arrays.copyOf(positions, n);
+			lengths = Arrays.copyOf(lengths, n);
+			timestamps = Arrays.copyOf(timestamps, n);
+			origins = Arrays.copyOf(origins, n);
+		}
+	}
+
+	private void open(int index) {
+		ensureCapacity(size + 1);
+		int moved = size - index;
+		if (moved > 0) {
+			System.arraycopy(flags, index, flags, index + 1, moved);
+			System.arraycopy(sequences, index, sequences, index + 1, moved);
+			System.arraycopy(acks, index, acks, index + 1, moved);
+			System.arraycopy(positions, index, positions, index + 1, moved);
+			System.arraycopy(lengths, index, lengths, index + 1, moved);
+			System.arraycopy(timestamps, index, timestamps, index + 1, moved);
+			System.arraycopy(origins, index, origins, index + 1, moved);
+		}
+		//the slot is written by the caller
+		flags[index] = 0;
+		size++;
+	}
+
+	/**
+	 * Inserts a record for a packet, or part of its payload.
+	 *
+	 * @param sequence the sequence number of the first payload byte kept.
+	 * @param position the payload position, see
+	 * {@link #append(PacketType, byte[], int, int)}, or -1.
+	 * @param length the number of payload bytes kept.
+	 */
+	void insert(int index, PacketType type, TcpPacket packet, long sequence,
+			long position, int length) {
+		open(index);
+		write(index, type, packet, sequence, position, length);
+	}
+
+	/**
+	 * Replaces a record with one for a packet, see
+	 * {@link #insert(int, PacketType, TcpPacket, long, long, int)}.
+	 */
+	void set(int index, PacketType type, TcpPacket packet, long sequence,
+			long position, int length) {
+		checkIndex(index);
+		write(index, type, packet, sequence, position, length);
+	}
+
+	private void write(int index, PacketType type, TcpPacket packet,
+			long sequence, long position, int length) {
+		if ((flags[index] & PLACEHOLDER) != 0) {
+			placeholders--;
+		}
+		int f = type == PacketType.Response ? RESPONSE : 0;
+		//the SYN occupies the sequence number before the original payload
+		if (packet.getSyn() && sequence == packet.getSequence()) {
+			f |= SYN;
+		}
+		if (packet.getAck()) {
+			f |= ACK;
+		}
+		if (packet.getFin()) {
+			f |= FIN;
+		}
+		if (packet.getPsh()) {
+			f |= PSH;
+		}
+		if (packet instanceof ResetAwareTcpPacket && ((ResetAwareTcpPacket) packet).getRst()) {
+			f |= RST;
+		}
+		flags[index] = (byte) f;
+		sequences[index] = (int) sequence;
+		acks[index] = (int) packet.getAckNum();
+		positions[index] = position;
+		lengths[index] = length;
+		timestamps[index] = packet.getTimestampSec() * 1000000 + packet.getTimestampUSec();
+		origins[index] = packet instanceof RawTcpPacket ? ((RawTcpPacket) packet)
+				.getFileOffsets() : null;
+	}
+
+	/**
+	 * Inserts a record for a gap of length bytes.
+	 */
+	void insertPlaceholder(int index, PacketType type, long sequence, int length) {
+		open(index);
+		writePlaceholder(index, type, sequence, length);
+	}
+
+	void setPlaceholder(int index, PacketType type, long sequence, int length) {
+		checkIndex(index);
+		writePlaceholder(index, type, sequence, length);
+	}
+
+	private void writePlaceholder(int index, PacketType type, long sequence,
+			int length) {
+		if ((flags[index] & PLACEHOLDER) != 0) {
+			placeholders--;
+		}
+		flags[index] = (byte) (PLACEHOLDER | (type == PacketType.Response ? RESPONSE : 0));
+		sequences[index] = (int) sequence;
+		acks[index] = 0;
+		positions[index] = -1;
+		lengths[index] = length;
+		timestamps[index] = 0;
+		origins[index] = null;
+		placeholders++;
+	}
+
+	/**
+	 * Removes the records from start to end, exclusive.
+	 */
+	void remove(int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (isPlaceholder(i)) {
+				placeholders--;
+			}
+		}
+		int moved = size - end;
+		System.arraycopy(flags, end, flags, start, moved);
+		System.arraycopy(sequences, end, sequences, start, moved);
+		System.arraycopy(acks, end, acks, start, moved);
+		System.arraycopy(positions, end, positions, start, moved);
+		System.arraycopy(lengths, end, lengths, start, moved);
+		System.arraycopy(timestamps, end, timestamps, start, moved);
+		System.arraycopy(origins, end, origins, start, moved);
+		size -= end - start;
+		Arrays.fill(origins, size, size + end - start, null);
+	}
+
+	/**
+	 * Replaces the payload of a record with data of the same length.  The
+	 * payload is overwritten in an arena, and appended again to a shared
+	 * store.
+	 *
+	 * @return the new position of the payload.
+	 */
+	long rewrite(int index, byte[] data) throws IOException {
+		PacketType type = getType(index);
+		if (store == null) {
+			getArena(type).write(positions[index], data, 0, data.length);
+		} else {
+			positions[index] = store.append(data, 0, data.length);
+		}
+		return positions[index];
+	}
+
+	/**
+	 * @return the index of the last record of the direction with the payload
+	 * position, or -1.
+	 */
+	int indexOf(PacketType type, long position) {
+		int f = type == PacketType.Response ? RESPONSE : 0;
+		for (int i = size - 1; i >= 0; i--) {
+			if (positions[i] == position && (flags[i] & (RESPONSE | PLACEHOLDER)) == f) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Removes all records and releases the arenas.  A shared store is left
+	 * as is.
+	 */
+	void clear() {
+		Arrays.fill(origins, 0, size, null);
+		size = 0;
+		placeholders = 0;
+		generation++;
+		if (reqArena != null) {
+			reqArena.close();
+			reqArena = null;
+		}
+		if (respArena != null) {
+			respArena.close();
+			respArena = null;
+		}
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	/**
+	 * @return the number of records.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of gaps.
+	 */
+	public int getPlaceholderCount() {
+		return placeholders;
+	}
+
+	public PacketType getType(int index) {
+		checkIndex(index);
+		return (flags[index] & RESPONSE) != 0 ? PacketType.Response : PacketType.Request;
+	}
+
+	/**
+	 * @return true if the record is a gap.
+	 */
+	public boolean isPlaceholder(int index) {
+		checkIndex(index);
+		return (flags[index] & PLACEHOLDER) != 0;
+	}
+
+	public boolean getSyn(int index) {
+		checkIndex(index);
+		return (flags[index] & SYN) != 0;
+	}
+
+	public boolean getAck(int index) {
+		checkIndex(index);
+		return (flags[index] & ACK) != 0;
+	}
+
+	public boolean getFin(int index) {
+		checkIndex(index);
+		return (flags[index] & FIN) != 0;
+	}
+
+	public boolean getPsh(int index) {
+		checkIndex(index);
+		return (flags[index] & PSH) != 0;
+	}
+
+	public boolean getRst(int index) {
+		checkIndex(index);
+		return (flags[index] & RST) != 0;
+	}
+
+	public long getSequence(int index) {
+		checkIndex(index);
+		return sequences[index] & 0xffffffffL;
+	}
+
+	public long getAckNum(int index) {
+		checkIndex(index);
+		return acks[index] & 0xffffffffL;
+	}
+
+	/**
+	 * @return the payload length, or the number of missing bytes of a gap.
+	 */
+	public int getLength(int index) {
+		checkIndex(index);
+		return lengths[index];
+	}
+
+	/**
+	 * @return the payload length, 0 for a gap.
+	 */
+	public int getDataLength(int index) {
+		return isPlaceholder(index) ? 0 : lengths[index];
+	}
+
+	/**
+	 * @return the position of the payload in the store of the direction, or
+	 * -1 without payload.
+	 */
+	public long getPosition(int index) {
+		checkIndex(index);
+		return positions[index];
+	}
+
+	public long getTimestampSec(int index) {
+		checkIndex(index);
+		return timestamps[index] / 1000000;
+	}
+
+	public long getTimestampUSec(int index) {
+		checkIndex(index);
+		return timestamps[index] % 1000000;
+	}
+
+	/**
+	 * @return the file offsets of the records the packet was decoded from,
+	 * see {@link RawTcpPacket#getFileOffsets()}, or null if the packet was
+	 * not read by a {@link RawPcapReconstructor}.
+	 */
+	public long[] getOrigins(int index) {
+		checkIndex(index);
+		return origins[index];
+	}
+
+	public InetAddress getSourceIP(int index) {
+		return getType(index) == PacketType.Request ? reqIp : respIp;
+	}
+
+	public int getSourcePort(int index) {
+		return getType(index) == PacketType.Request ? reqPort : respPort;
+	}
+
+	public InetAddress getDestinationIP(int index) {
+		return getType(index) == PacketType.Request ? respIp : reqIp;
+	}
+
+	public int getDestinationPort(int index) {
+		return getType(index) == PacketType.Request ? respPort : reqPort;
+	}
+
+	/**
+	 * Copies payload of a record.
+	 *
+	 * @param offset the offset in the payload of the record.
+	 */
+	public void read(int index, int offset, byte[] dest, int destOffset, int length)
+			throws IOException {
+		if (offset < 0 || offset + length > getDataLength(index)) {
+			throw new IndexOutOfBoundsException("Offset " + offset + " length " + length
+					+ " outside of the payload of record " + index);
+		}
+		if (length > 0) {
+			getStore(getType(index)).read(positions[index] + offset, dest, destOffset, length);
+		}
+	}
+
+	/**
+	 * @return a copy of the payload of a record, null for a gap.
+	 */
+	public byte[] getData(int index) throws IOException {
+		if (isPlaceholder(index)) {
+			return null;
+		}
+		byte[] data = new byte[lengths[index]];
+		read(index, 0, data, 0, data.length);
+		return data;
+	}
+
+	/**
+	 * @return a packet view of a record.  Gaps are returned as
+	 * {@link PlaceholderTcpPacket}s.  The view copies the header fields of 
+	 * the record, but reads its payload from the store when 
+	 * {@link TcpPacket#getData()} is called, so it sees payload overwritten by 
+	 * the overlap policy in the meantime.  Once the table is cleared by 
+	 * {@link TcpReassembler#release()} the payload is gone, and getData() 
+	 * throws an {@link IllegalStateException}; copy the data first to keep it.
+	 */
+	public TcpPacket getPacket(int index) {
+		if (isPlaceholder(index)) {
+			return new PlaceholderTcpPacket(getSourceIP(index), getSourcePort(index),
+					getDestinationIP(index), getDestinationPort(index),
+					getSequence(index), lengths[index]);
+		}
+		return new SegmentView(this, index);
+	}
+
+	/**
+	 * @return packet views of all records, see {@link #getPacket(int)}.
+	 */
+	public List<TcpPacket> getPackets() {
+		List<TcpPacket> packets = new ArrayList<TcpPacket>(size);
+		for (int i = 0; i < size; i++) {
+			packets.add(getPacket(i));
+		}
+		return packets;
+	}
+
+	/*
+	 * A record as a packet.  Only the payload is retained, so the lengths are
+	 * those of the payload.
+	 */
+	private static class SegmentView extends AbstractTcpPacket {
+		private final SegmentTable table;
+		private final int generation;
+		private final PayloadStore store;
+		private final InetAddress sourceIP, destinationIP;
+		private final int sourcePort, destinationPort;
+		private final int flags, length;
+		private final long sequence, ackNum, position, timestamp;
+
+		SegmentView(SegmentTable table, int index) {
+			this.table = table;
+			this.generation = table.generation;
+			this.store = table.getStore(table.getType(index));
+			this.sourceIP = table.getSourceIP(index);
+			this.sourcePort = table.getSourcePort(index);
+			this.destinationIP = table.getDestinationIP(index);
+			this.destinationPort = table.getDestinationPort(index);
+			this.flags = table.flags[index];
+			this.length = table.lengths[index];
+			this.sequence = table.getSequence(index);
+			this.ackNum = table.getAckNum(index);
+			this.position = table.positions[index];
+			this.timestamp = table.timestamps[index];
+		}
+
+		public InetAddress getSourceIP() {
+			return sourceIP;
+		}
+
+		public int getSourcePort() {
+			return sourcePort;
+		}
+
+		public InetAddress getDestinationIP() {
+			return destinationIP;
+		}
+
+		public int getDestinationPort() {
+			return destinationPort;
+		}
+
+		public int getCaptureLength() {
+			return length;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public int getHeaderLength() {
+			return 0;
+		}
+
+		public int getDataLength() {
+			return length;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public long getAckNum() {
+			return ackNum;
+		}
+
+		public byte[] getData() {
+			if (table.generation != generation) {
+				throw new IllegalStateException("Payload of " + this 
+						+ " read after its connection was released");
+			}
+			byte[] data = new byte[length];
+			if (length > 0) {
+				try {
+					store.read(position, data, 0, length);
+				} catch (IOException e) {
+					throw new IllegalStateException("Unable to read payload of " + this, e);
+				}
+			}
+			return data;
+		}
+
+		public boolean getSyn() {
+			return (flags & SYN) != 0;
+		}
+
+		public boolean getAck() {
+			return (flags & ACK) != 0;
+		}
+
+		public boolean getFin() {
+			return (flags & FIN) != 0;
+		}
+
+		public boolean getPsh() {
+			return (flags & PSH) != 0;
+		}
+
+		public boolean getRst() {
+			return (flags & RST) != 0;
+		}
+
+		public long getTimestampSec() {
+			return timestamp / 1000000;
+		}
+
+		public long getTimestampUSec() {
+			return timestamp % 1000000;
+		}
+	}
+}
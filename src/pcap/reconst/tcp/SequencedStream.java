@@ -0,0 +1,133 @@
+package pcap.reconst.tcp;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Delivers the payload of one direction of a connection to a 
+ * {@link StreamConsumer} in sequence order.  Segments ahead of the expected 
+ * sequence number are held until the missing bytes arrive, or until more than 
+ * a fixed number of segments are waiting, in which case the missing bytes are 
+ * reported as a gap.
+ */
+class SequencedStream {
+	private static Log log = LogFactory.getLog(SequencedStream.class);
+
+	private final PacketType direction;
+	private final StreamConsumer consumer;
+	private final int maxPending;
+	//keyed by position, see TcpSequence.unwrap()
+	private final TreeMap<Long, TcpPacket> pending = new TreeMap<Long, TcpPacket>();
+	private long nextSeq = -1;
+
+	SequencedStream(PacketType direction, StreamConsumer consumer, int maxPending) {
+		this.direction = direction;
+		this.consumer = consumer;
+		this.maxPending = maxPending;
+	}
+
+	void offer(TcpPacket packet) {
+		long seq;
+		if (nextSeq == -1) {
+			seq = packet.getSequence();
+			nextSeq = packet.getSyn() ? seq + 1 : seq;
+		} else {
+			seq = TcpSequence.unwrap(packet.getSequence(), nextSeq);
+		}
+		if (packet.getSyn()) {
+			//the SYN occupies one sequence number before the payload
+			seq++;
+		}
+		int length = packet.getDataLength();
+		if (length <= 0) {
+			return;
+		}
+
+		if (seq > nextSeq) {
+			TcpPacket existing = pending.get(seq);
+			if (existing == null || existing.getDataLength() < length) {
+				pending.put(seq, packet);
+			}
+			if (pending.size() > maxPending) {
+				skipToPending();
+			}
+		} else {
+			deliver(packet, seq);
+			drainPending();
+		}
+	}
+
+	/**
+	 * Takes note of an acknowledgement from the peer.  Missing bytes before 
+	 * the acknowledged sequence number were received by the peer but not 
+	 * captured, and will not be retransmitted, so they are reported as a gap 
+	 * without waiting for more segments to be held back.
+	 */
+	void acknowledged(long ack) {
+		if (nextSeq == -1 || pending.isEmpty()) {
+			return;
+		}
+		long position = Math.min(TcpSequence.unwrap(ack, nextSeq), pending.firstKey());
+		long gap = position - nextSeq;
+		if (gap > 0) {
+			if (log.isDebugEnabled()) {
+				log.debug(direction + " stream missing " + gap + " acknowledged bytes at seq "
+						+ nextSeq);
+			}
+			consumer.sequenceGap(direction, gap);
+			nextSeq = position;
+			drainPending();
+		}
+	}
+
+	/**
+	 * Delivers everything held back, reporting any missing bytes as gaps.
+	 */
+	void close() {
+		while (!pending.isEmpty()) {
+			skipToPending();
+		}
+	}
+
+	private void skipToPending() {
+		long gap = pending.firstKey() - nextSeq;
+		if (gap > 0) {
+			if (log.isDebugEnabled()) {
+				log.debug(direction + " stream missing " + gap + " bytes at seq " + nextSeq);
+			}
+			consumer.sequenceGap(direction, gap);
+			nextSeq += gap;
+		}
+		drainPending();
+	}
+
+	private void drainPending() {
+		while (!pending.isEmpty()) {
+			Entry<Long, TcpPacket> first = pending.firstEntry();
+			if (first.getKey() > nextSeq) {
+				break;
+			}
+			pending.remove(first.getKey());
+			deliver(first.getValue(), first.getKey());
+		}
+	}
+
+	//seq is the position of the first payload byte of the packet
+	private void deliver(TcpPacket packet, long seq) {
+		int length = packet.getDataLength();
+		long end = seq + length;
+		if (end <= nextSeq) {
+			//retransmission of bytes already delivered
+			return;
+		}
+		int skip = (int) (nextSeq - seq);
+		byte[] data = packet.getData();
+		consumer.sequencedData(direction, packet, data, skip, length - skip);
+		nextSeq = end;
+	}
+}
@@ -0,0 +1,170 @@
+package pcap.reconst.tcp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of equally sized direct {@link ByteBuffer}s, the slabs of the
+ * {@link DirectPayloadStore}s of a {@link PacketReassembler}.  Slabs are
+ * allocated outside of the heap, so retained payload does not add to the
+ * work of the garbage collector, and are reused once the connection owning
+ * them is released, since direct memory is only freed when the buffer is
+ * collected.  A pool may be shared by several threads.
+ *
+ * Most connections are small, so a store starts with chunks, equally sized
+ * slices of slabs shared by all stores of the pool, and takes whole slabs
+ * only once it has filled a slab worth of chunks.  Released chunks are kept
+ * for reuse, the slabs they were cut from are not handed back.
+ */
+public class SlabPool {
+
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+	public static final int DEFAULT_MAX_POOLED_SLABS = 256;
+
+	private final int slabSize;
+	private final int chunkSize;
+	private final int maxPooledSlabs;
+	private final Deque<ByteBuffer> pooled = new ArrayDeque<ByteBuffer>();
+	private final Deque<ByteBuffer> pooledChunks = new ArrayDeque<ByteBuffer>();
+	private long allocatedSlabs = 0, slabsInUse = 0, chunksInUse = 0;
+
+	public SlabPool() {
+		this(DEFAULT_SLAB_SIZE, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED_SLABS);
+	}
+
+	/**
+	 * Creates a pool with chunks of {@link #DEFAULT_CHUNK_SIZE}, or of the
+	 * slab size if that is smaller.
+	 *
+	 * @param slabSize the size of each slab in bytes.
+	 * @param maxPooledSlabs the number of released slabs kept for reuse,
+	 * further released slabs are left to the garbage collector.
+	 */
+	public SlabPool(int slabSize, int maxPooledSlabs) {
+		this(slabSize, slabSize % DEFAULT_CHUNK_SIZE == 0 ? DEFAULT_CHUNK_SIZE : slabSize,
+				maxPooledSlabs);
+	}
+
+	/**
+	 * @param slabSize the size of each slab in bytes.
+	 * @param chunkSize the size of the chunks cut from slabs for the first
+	 * bytes of each store, a divisor of slabSize.
+	 * @param maxPooledSlabs the number of released slabs kept for reuse,
+	 * further released slabs are left to the garbage collector.
+	 */
+	public SlabPool(int slabSize, int chunkSize, int maxPooledSlabs) {
+		if (slabSize <= 0) {
+			throw new IllegalArgumentException("Invalid slab size: " + slabSize);
+		}
+		if (chunkSize <= 0 || slabSize % chunkSize != 0) {
+			throw new IllegalArgumentException("Invalid chunk size " + chunkSize
+					+ " for slabs of " + slabSize + " bytes");
+		}
+		this.slabSize = slabSize;
+		this.chunkSize = chunkSize;
+		this.maxPooledSlabs = maxPooledSlabs;
+	}
+
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getMaxPooledSlabs() {
+		return maxPooledSlabs;
+	}
+
+	/**
+	 * @return a cleared slab, reused or newly allocated.
+	 */
+	public synchronized ByteBuffer acquire() {
+		slabsInUse++;
+		ByteBuffer slab = pooled.pollFirst();
+		if (slab != null) {
+			slab.clear();
+			return slab;
+		}
+		allocatedSlabs++;
+		return ByteBuffer.allocateDirect(slabSize);
+	}
+
+	/**
+	 * Returns a slab obtained from {@link #acquire()}.  The slab must no longer
+	 * be used by the caller.
+	 */
+	public synchronized void release(ByteBuffer slab) {
+		slabsInUse--;
+		if (pooled.size() < maxPooledSlabs) {
+			pooled.addFirst(slab);
+		}
+	}
+
+	/**
+	 * @return a cleared chunk of {@link #getChunkSize()} bytes, reused or cut
+	 * from a newly acquired slab.
+	 */
+	public synchronized ByteBuffer acquireChunk() {
+		if (pooledChunks.isEmpty()) {
+			ByteBuffer slab = acquire();
+			for (int offset = 0; offset < slabSize; offset += chunkSize) {
+				slab.limit(offset + chunkSize);
+				slab.position(offset);
+				pooledChunks.addLast(slab.slice());
+			}
+		}
+		chunksInUse++;
+		ByteBuffer chunk = pooledChunks.pollFirst();
+		chunk.clear();
+		return chunk;
+	}
+
+	/**
+	 * Returns a chunk obtained from {@link #acquireChunk()}.  The chunk must no
+	 * longer be used by the caller.
+	 */
+	public synchronized void releaseChunk(ByteBuffer chunk) {
+		chunksInUse--;
+		pooledChunks.addFirst(chunk);
+	}
+
+	/**
+	 * @return the number of slabs allocated so far.
+	 */
+	public synchronized long getAllocatedSlabs() {
+		return allocatedSlabs;
+	}
+
+	/**
+	 * @return the number of slabs acquired and not released, including the
+	 * slabs chunks were cut from.
+	 */
+	public synchronized long getSlabsInUse() {
+		return slabsInUse;
+	}
+
+	/**
+	 * @return the number of chunks acquired and not released.
+	 */
+	public synchronized long getChunksInUse() {
+		return chunksInUse;
+	}
+
+	/**
+	 * @return the number of released slabs waiting for reuse.
+	 */
+	public synchronized int getPooledSlabs() {
+		return pooled.size();
+	}
+
+	/**
+	 * @return the number of chunks waiting for use.
+	 */
+	public synchronized int getPooledChunks() {
+		return pooledChunks.size();
+	}
+}
@@ -0,0 +1,41 @@
+package pcap.reconst.tcp;
+
+import pcap.reconst.tcp.packet.TcpPacket;
+
+/**
+ * Receives the payload of one TCP connection in sequence order while the 
+ * capture is being reassembled, see 
+ * {@link PacketReassembler#setStreamConsumerFactory(StreamConsumerFactory)}.
+ * Retransmitted bytes are only delivered once, and segments received out of 
+ * order are held back until the missing bytes arrive.
+ */
+public interface StreamConsumer {
+
+	/**
+	 * Called with the next in-sequence bytes of one direction.
+	 * 
+	 * @param direction {@link PacketType#Request} for the side that sent the 
+	 * first packet of the connection, {@link PacketType#Response} for the other.
+	 * @param packet the packet the bytes were taken from.
+	 * @param data the packet payload.
+	 * @param offset offset of the new bytes in data.
+	 * @param length number of new bytes.
+	 */
+	void sequencedData(PacketType direction, TcpPacket packet, byte[] data,
+			int offset, int length);
+
+	/**
+	 * Called when bytes of one direction were never captured and the stream 
+	 * continues after them.
+	 * 
+	 * @param direction the direction with missing bytes.
+	 * @param length the number of missing bytes.
+	 */
+	void sequenceGap(PacketType direction, long length);
+
+	/**
+	 * Called once when the connection is closed or the capture ends.  No further 
+	 * data will be delivered.
+	 */
+	void streamClosed();
+}
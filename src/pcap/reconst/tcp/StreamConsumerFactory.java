@@ -0,0 +1,15 @@
+package pcap.reconst.tcp;
+
+/**
+ * Creates a {@link StreamConsumer} for each new connection seen by a 
+ * {@link PacketReassembler}.
+ */
+public interface StreamConsumerFactory {
+
+	/**
+	 * @param connection the new connection, oriented from the sender of its 
+	 * first packet.
+	 * @return the consumer for the connection, or null to not consume it.
+	 */
+	StreamConsumer newConsumer(TcpConnection connection);
+}
@@ -0,0 +1,41 @@
+package pcap.reconst.tcp;
+
+import java.util.Set;
+
+/**
+ * A decoder of one application protocol which is fed by a
+ * {@link ProtocolDispatcher}, so that a single reassembly of a capture serves
+ * the decoders of several protocols.  A connection is handed to the first
+ * handler listening on one of its ports, otherwise to the first handler
+ * recognizing the first payload of the connection.
+ */
+public interface StreamProtocolHandler {
+
+	/**
+	 * @return the name of the protocol, for logging.
+	 */
+	String getName();
+
+	/**
+	 * @return the ports on which connections are handed to this handler
+	 * without sniffing, never null.
+	 */
+	Set<Integer> getPorts();
+
+	/**
+	 * Checks whether the first payload of a connection belongs to the
+	 * protocol.
+	 *
+	 * @param data the first bytes sent on the connection, by either side.
+	 * @return {@link ConnectionSniffer.Verdict#UNDECIDED} if more bytes are
+	 * needed to decide.
+	 */
+	ConnectionSniffer.Verdict sniff(byte[] data);
+
+	/**
+	 * @param connection the connection, oriented from the sender of its first
+	 * packet.
+	 * @return the consumer decoding the connection, or null to ignore it.
+	 */
+	StreamConsumer newConsumer(TcpConnection connection);
+}
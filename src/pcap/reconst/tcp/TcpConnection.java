@@ -10,10 +10,14 @@ import pcap.reconst.tcp.packet.TcpPacket;
 import pcap.reconst.tcp.packet.TestTcpPacket;
 
 public class TcpConnection implements Comparable<TcpConnection> {
+	/** The ISN of a connection whose handshake was not captured. */
+	public static final long UNKNOWN_ISN = -1;
+
 	private InetAddress srcIp;
 	private int srcPort;
 	private InetAddress dstIp;
 	private int dstPort;
+	private long isn = UNKNOWN_ISN;
 
 	public TcpConnection(InetAddress sourceIP, int sourcePort,
 			InetAddress destinationIP, int destinationPort) {
@@ -28,6 +32,19 @@ public class TcpConnection implements Comparable<TcpConnection> {
 		dstPort = packet.getDestinationPort();
 	}
 
+	/**
+	 * Creates the connection of one session on a 4-tuple, which can be reused 
+	 * by later sessions.  Connections are equal on their addresses and ports 
+	 * only, whatever their ISN.
+	 * 
+	 * @param isn the initial sequence number of the client, or 
+	 * {@link #UNKNOWN_ISN}.
+	 */
+	public TcpConnection(TcpPacket packet, long isn) {
+		this(packet);
+		this.isn = isn;
+	}
+
 	public InetAddress getSrcIp() {
 		return srcIp;
 	}
@@ -44,6 +61,29 @@ public class TcpConnection implements Comparable<TcpConnection> {
 		return dstPort;
 	}
 
+	/**
+	 * @return the initial sequence number of the client, which tells apart 
+	 * sessions reusing the same addresses and ports, or {@link #UNKNOWN_ISN}.
+	 */
+	public long getIsn() {
+		return isn;
+	}
+
+	/*
+	 * Whether the packet was sent on the addresses and ports of this 
+	 * connection, in either direction, without creating a key for it.
+	 */
+	boolean matches(TcpPacket packet) {
+		int sourcePort = packet.getSourcePort(), destinationPort = packet.getDestinationPort();
+		if (sourcePort == srcPort && destinationPort == dstPort) {
+			return packet.getSourceIP().equals(srcIp) && packet.getDestinationIP().equals(dstIp);
+		}
+		if (sourcePort == dstPort && destinationPort == srcPort) {
+			return packet.getSourceIP().equals(dstIp) && packet.getDestinationIP().equals(srcIp);
+		}
+		return false;
+	}
+
 	// ensures both request and response are reconstructed together
 	@Override
 	public boolean equals(Object obj) {
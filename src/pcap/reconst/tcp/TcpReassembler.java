@@ -4,62 +4,256 @@
 
 package pcap.reconst.tcp;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import pcap.reconst.tcp.packet.PlaceholderTcpPacket;
+import pcap.reconst.tcp.packet.ResetAwareTcpPacket;
 import pcap.reconst.tcp.packet.TcpPacket;
 
 public class TcpReassembler {
 	private static Log log = LogFactory.getLog(TcpReassembler.class);
+	
+	private static final Charset TEXT_CHARSET = Charset.forName("ISO-8859-1");
 
 	private TcpSequenceCounter reqCounter = null, respCounter = null;
-	private List<TcpPacket> orderedPackets = new ArrayList<TcpPacket>();
-	private List<Integer> reqIndexes = new ArrayList<Integer>();
-	private List<Integer> respIndexes = new ArrayList<Integer>();
-	private byte[] packetData = null;
-	private Map<Integer, Integer> packetPositions = new HashMap<Integer, Integer>();
+	private SegmentTable segments = new SegmentTable(null, null);
+	//the combined stream of both directions, and the stream of each direction
+	private StreamIndex packetIndex = null, reqIndex = null, respIndex = null;
+	private DirectionTimeline timeline = null;
 
 	private boolean rebuildData = true;
+	
+	private boolean reqClosed = false, respClosed = false, reset = false;
+	
+	private static final int MAX_PENDING_SEGMENTS = 64;
+	
+	private StreamConsumer consumer = null;
+	private SequencedStream reqStream = null, respStream = null;
+	private boolean retainPackets = true;
+	private boolean streamsClosed = false;
+	
+	public static final long UNLIMITED = -1;
+	
+	private long maxBytesPerDirection = UNLIMITED;
+	private long reqRetained = 0, respRetained = 0;
+	private boolean reqTruncated = false, respTruncated = false;
+	
+	private PayloadStore payloadStore = null;
+	//true if the store holds slabs of a pool set with setSlabPool
+	private boolean ownsPayloadStore = false;
+	private BufferPool bufferPool = null;
+	
+	private boolean sniffed = false, discarded = false;
+	private int sniffedPackets = 0;
+	//the SYN and SYN/ACK seen while the connection is sniffed
+	private TcpPacket syn = null, synAck = null;
+	private long droppedPackets = 0, droppedBytes = 0;
+	
+	//capture time of the latest packet and idle timer, see PacketReassembler
+	private long lastSeen = 0;
+	private CaptureClock.Timeout idleTimeout = null;
+	private boolean expired = false;
+	//the session the 4-tuple carried before this one, see PacketReassembler
+	private TcpReassembler previousSession = null;
+	
+	//retained segments checked for retransmissions and overlaps
+	private static final int HISTORY_SIZE = 32;
+	
+	private OverlapPolicy overlapPolicy = OverlapPolicy.FIRST_WINS;
+	private SegmentHistory reqHistory = null, respHistory = null;
+	private long retransmittedPackets = 0, duplicateBytes = 0;
+	private long conflicts = 0, conflictingBytes = 0;
+	
+	//retained packets between attempts to prune acknowledged ones
+	private static final int PRUNE_INTERVAL = 16;
+	private static final long NOT_ACKNOWLEDGED = -1;
+	
+	private boolean pruneAcknowledged = false;
+	//highest acknowledgement number received for each direction
+	private long reqAcked = NOT_ACKNOWLEDGED, respAcked = NOT_ACKNOWLEDGED;
+	//records before this index are pruned or final
+	private int pruneStart = 0;
+	private int retainedSincePrune = 0;
 
 	public boolean isIncomplete() {
-		for (TcpPacket packet : orderedPackets) {
-			if (packet instanceof PlaceholderTcpPacket) {
-				return true;
-			}
-		}
-		return false;
+		return segments.getPlaceholderCount() > 0;
 	}
 
 	public boolean isEmpty() {
-		return orderedPackets.isEmpty();
+		return segments.size() == 0;
 	}
 	
-	private void checkBuildPacketData(){
-		if (rebuildData || packetData == null) {
-			buildPacketData();
+	/**
+	 * @return true if both sides of the connection have sent a FIN, or either
+	 * side has sent a RST.
+	 */
+	public boolean isClosed() {
+		return reset || (reqClosed && respClosed);
+	}
+	
+	/*
+	 * The records with payload of a stream, in stream order, with the stream 
+	 * position each ends at.  The stream content is only built on request.
+	 */
+	private static class StreamIndex {
+		private final int[] ends, indexes;
+		private byte[] data = null;
+		private String text = null;
+
+		StreamIndex(int[] ends, int[] indexes) {
+			this.ends = ends;
+			this.indexes = indexes;
+		}
+
+		int length() {
+			return ends.length > 0 ? ends[ends.length - 1] : 0;
+		}
+
+		//the record whose payload ends first after position, or at it if inclusive
+		int find(int position, boolean inclusive) {
+			int low = 0, high = ends.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (inclusive ? position <= ends[mid] : position < ends[mid]) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			return low < ends.length ? indexes[low] : -1;
+		}
+
+		//the entry of the record holding the byte at position
+		int entryOf(int position) {
+			int low = 0, high = ends.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (position < ends[mid]) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			return low;
+		}
+	}
+
+	/*
+	 * Returns the index of the combined stream if direction is null, 
+	 * otherwise that of the direction.
+	 */
+	private StreamIndex getStreamIndex(PacketType direction) {
+		if (rebuildData) {
+			packetIndex = reqIndex = respIndex = null;
+			timeline = null;
 			rebuildData = false;
 		}
+		if (direction == null) {
+			if (packetIndex == null) {
+				packetIndex = buildStreamIndex(null);
+			}
+			return packetIndex;
+		} else if (isRequest(direction)) {
+			if (reqIndex == null) {
+				reqIndex = buildStreamIndex(direction);
+			}
+			return reqIndex;
+		}
+		if (respIndex == null) {
+			respIndex = buildStreamIndex(direction);
+		}
+		return respIndex;
+	}
+
+	private StreamIndex buildStreamIndex(PacketType direction) {
+		int count = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.getDataLength(i) > 0
+					&& (direction == null || segments.getType(i) == direction)) {
+				count++;
+			}
+		}
+		int[] ends = new int[count], indexes = new int[count];
+		int pos = 0, n = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			int length = segments.getDataLength(i);
+			if (length > 0 && (direction == null || segments.getType(i) == direction)) {
+				pos += length;
+				ends[n] = pos;
+				indexes[n++] = i;
+			}
+		}
+		return new StreamIndex(ends, indexes);
+	}
+
+	private byte[] getStreamData(StreamIndex index) {
+		if (index.data == null) {
+			byte[] data = new byte[index.length()];
+			int pos = 0;
+			for (int i : index.indexes) {
+				int length = segments.getDataLength(i);
+				try {
+					segments.read(i, 0, data, pos, length);
+				} catch (IOException e) {
+					log.error("Unable to add packet data at stream offset : " + pos, e);
+				}
+				if (log.isDebugEnabled()) {
+					log.debug("Start position: " + pos + " End position: "
+							+ (pos + length) + "\n" + new String(data, pos, length, TEXT_CHARSET));
+				}
+				pos += length;
+			}
+			index.data = data;
+		}
+		return index.data;
+	}
+
+	private String getStreamText(StreamIndex index) {
+		if (index.text == null) {
+			byte[] data = getStreamData(index);
+			index.text = new String(data, 0, data.length, TEXT_CHARSET);
+		}
+		return index.text;
+	}
+
+	private static byte[] copyOfRange(byte[] stream, int start, int end) {
+		if(start < 0 || end > stream.length)
+		{
+			return stream;
+		}
+		else 
+		{
+			return Arrays.copyOfRange(stream, start, end);
+		}
 	}
 
 	/**
-	 * Gets the content of the stream as a String with the default platform encoding.
+	 * Gets the content of the stream as a String decoded as ISO-8859-1, one 
+	 * char per byte, independent of the platform encoding.
 	 * 
-	 * @return the content of the stream as a String with the default platform encoding.
+	 * @return the content of the stream as a String decoded as ISO-8859-1.
+	 * @see #getOrderedPacketText()
 	 */
 	public String getOrderedPacketData() {
-		return new String(getOrderedPacketDataBytes());
+		return new String(getOrderedPacketDataBytes(), TEXT_CHARSET);
+	}
+	
+	/**
+	 * Gets the content of the stream decoded as ISO-8859-1, one char per byte,
+	 * so that offsets in the text are offsets in the stream.  The text is 
+	 * built once and kept until further packets change the stream.
+	 * 
+	 * @return the content of the stream as text.
+	 */
+	public String getOrderedPacketText() {
+		return getStreamText(getStreamIndex(null));
 	}
 	
 	/**
@@ -68,8 +262,7 @@ public class TcpReassembler {
 	 * @return the content of the stream as a byte[].
 	 */
 	public byte[] getOrderedPacketDataBytes() {
-		checkBuildPacketData();
-		return packetData;
+		return getStreamData(getStreamIndex(null));
 	}
 	
 	/**
@@ -82,67 +275,125 @@ public class TcpReassembler {
 	 */
 	public byte[] getOrderedPacketDataBytes(int start, int end) 
 	{
-		byte[] stream = getOrderedPacketDataBytes();
-		if(start < 0 || end > stream.length)
-		{
-			return stream;
+		return copyOfRange(getOrderedPacketDataBytes(), start, end);
+	}
+	
+	/**
+	 * Gets the content of one direction of the connection, without the 
+	 * payload of the other direction.  See {@link #getDirectionTimeline()} for 
+	 * how the two directions were interleaved.
+	 * 
+	 * @param direction the direction.
+	 * @return the payload of the direction in sequence order.
+	 */
+	public byte[] getStreamDataBytes(PacketType direction) {
+		return getStreamData(getStreamIndex(direction));
+	}
+	
+	/**
+	 * Gets a copy of a subsection of the content of one direction, see 
+	 * {@link #getOrderedPacketDataBytes(int, int)}.  Unless the content of the
+	 * direction was already assembled, only the records holding the 
+	 * subsection are read.
+	 */
+	public byte[] getStreamDataBytes(PacketType direction, int start, int end) {
+		StreamIndex index = getStreamIndex(direction);
+		if (index.data != null || start < 0 || start > end || end > index.length()) {
+			return copyOfRange(getStreamData(index), start, end);
 		}
-		else 
-		{
-			return Arrays.copyOfRange(getOrderedPacketDataBytes(), start, end);
+		byte[] data = new byte[end - start];
+		int pos = start;
+		for (int entry = index.entryOf(start); pos < end; entry++) {
+			int recordStart = entry > 0 ? index.ends[entry - 1] : 0;
+			int count = Math.min(end, index.ends[entry]) - pos;
+			try {
+				segments.read(index.indexes[entry], pos - recordStart, data, pos - start, count);
+			} catch (IOException e) {
+				log.error("Unable to add packet data at stream offset : " + pos, e);
+			}
+			pos += count;
 		}
+		return data;
 	}
 	
-	public List<TcpPacket> getOrderedPackets(){
-		return this.orderedPackets;
+	/**
+	 * Gets the content of one direction as text, the same way as 
+	 * {@link #getOrderedPacketText()}.
+	 * 
+	 * @param direction the direction.
+	 * @return the payload of the direction in sequence order as text.
+	 */
+	public String getStreamText(PacketType direction) {
+		return getStreamText(getStreamIndex(direction));
 	}
-
-	private void buildPacketData() {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		for (int i = 0; i < orderedPackets.size(); i++) {
-			byte[] data = orderedPackets.get(i).getData();
-			
-			if (data != null && data.length > 0) {
-				int startpos = baos.size();
-				try {
-					baos.write(data);
-					
-					packetPositions.put(baos.size(), i);
-
-					if (log.isDebugEnabled()) {
-						log.debug("Start position: " + startpos + " End position: "
-								+ baos.size() + "\n" + new String(data));
-					}
-				} catch (IOException e) {
-					log.error("Unable to add packet data at stream offset : " + startpos, e);
+	
+	/**
+	 * @return the length of the content of one direction.
+	 */
+	public int getStreamLength(PacketType direction) {
+		return getStreamIndex(direction).length();
+	}
+	
+	/**
+	 * @return the order in which the payload of the two directions was 
+	 * reassembled.
+	 */
+	public DirectionTimeline getDirectionTimeline() {
+		StreamIndex index = getStreamIndex(null);
+		if (timeline == null) {
+			boolean[] responses = new boolean[index.indexes.length];
+			int[] offsets = new int[index.indexes.length];
+			int[] lengths = new int[index.indexes.length];
+			int size = 0, reqOffset = 0, respOffset = 0;
+			PacketType last = null;
+			for (int i : index.indexes) {
+				PacketType type = segments.getType(i);
+				int length = segments.getDataLength(i);
+				if (type != last) {
+					responses[size] = !isRequest(type);
+					offsets[size] = isRequest(type) ? reqOffset : respOffset;
+					size++;
+					last = type;
+				}
+				lengths[size - 1] += length;
+				if (isRequest(type)) {
+					reqOffset += length;
+				} else {
+					respOffset += length;
 				}
 			}
+			timeline = new DirectionTimeline(responses, offsets, lengths, size);
 		}
-		packetData = baos.toByteArray();
+		return timeline;
+	}
+	
+	/**
+	 * Gets the retained packets in stream order, gaps included as 
+	 * {@link pcap.reconst.tcp.packet.PlaceholderTcpPacket}s.  The packets are 
+	 * views of the records of {@link #getSegments()}, created by each call, 
+	 * and only keep the payload of the captured packets.
+	 * 
+	 * @return the retained packets.
+	 */
+	public List<TcpPacket> getOrderedPackets(){
+		return segments.getPackets();
+	}
+	
+	/**
+	 * @return the retained segments in stream order.
+	 */
+	public SegmentTable getSegments() {
+		return segments;
 	}
 	
 	//start and end are indexes in the reconstructed output
 	//left is start index, right is end index
 	private ImmutablePair<Integer, Integer> getStartandEndPacketIndexes
-		(int start, int end){
+		(StreamIndex index, int start, int end){
 		if(start > end){
 			throw new RuntimeException("start: " + start + " must be <= end: " + end);
 		}
-		List<Integer> positions = new ArrayList<Integer>(
-				packetPositions.keySet());
-		Collections.sort(positions);
-		int startPacket = -1, endPacket = -1;
-		
-		for (int pos : positions) {
-			if (startPacket == -1 && start < pos) {
-				startPacket = packetPositions.get(pos);
-			}
-			if (endPacket == -1 && end <= pos) {
-				endPacket = packetPositions.get(pos);
-			}
-		}
-		
-		return ImmutablePair.of(startPacket, endPacket);
+		return ImmutablePair.of(index.find(start, false), index.find(end, true));
 	}
 	
 	//start and end are indexes in the reconstructed output
@@ -150,8 +401,18 @@ public class TcpReassembler {
 	//contributed the start index and the end index in the reconstructed 
 	//output
 	public boolean errorBetween(int start, int end){
+		return errorBetween(null, start, end);
+	}
+	
+	/**
+	 * @param start offset in the stream of the direction.
+	 * @param end offset in the stream of the direction.
+	 * @return true iff there are missing packets of the direction in between 
+	 * the packets that contributed the start and end offsets.
+	 */
+	public boolean errorBetween(PacketType direction, int start, int end){
 		ImmutablePair<Integer, Integer> indexes = 
-				getStartandEndPacketIndexes(start, end);
+				getStartandEndPacketIndexes(getStreamIndex(direction), start, end);
 		
 		if(log.isDebugEnabled()){
 			log.debug("Looking for error between start Packet: " + indexes.left + 
@@ -160,9 +421,10 @@ public class TcpReassembler {
 		
 		
 		for(int i = indexes.left; i < indexes.right; i++){
-			if(orderedPackets.get(i) instanceof PlaceholderTcpPacket){
+			if(segments.isPlaceholder(i) 
+					&& (direction == null || segments.getType(i) == direction)){
 				if(log.isDebugEnabled()){
-					log.debug("Found placeholder packet at " + i + " Length: " + orderedPackets.get(i).getLength());
+					log.debug("Found placeholder packet at " + i + " Length: " + segments.getLength(i));
 				}
 				return true;
 			}
@@ -172,33 +434,40 @@ public class TcpReassembler {
 	}
 	
 	public MessageMetadata getMessageMetadata(int beginIndex, int endIndex) {
-		checkBuildPacketData();
-
-		ImmutablePair<Integer, Integer> indexes = 
-				getStartandEndPacketIndexes(beginIndex, endIndex);
-		TcpPacket startPacket = orderedPackets.get(indexes.left),
-				endPacket = orderedPackets.get(indexes.right);
-
-		if (startPacket != null) {
-			double startTS = startPacket.getTimestampSec() + (startPacket.getTimestampUSec()/1000000.0);		
-			double endTS = endPacket.getTimestampSec() + (endPacket.getTimestampUSec()/1000000.0);
-			TimestampPair ts = new TimestampPair(startTS, endTS);
-			TcpConnection conn = new TcpConnection(startPacket);
-
-			if (log.isDebugEnabled()) {
-				log.debug(ts + "\n" + conn);
-			}
+		return getMessageMetadata(null, beginIndex, endIndex);
+	}
+	
+	/**
+	 * @param beginIndex offset of the message in the stream of the direction.
+	 * @param endIndex offset following the message in the stream of the 
+	 * direction.
+	 * @return the capture times of the first and last byte of the message, 
+	 * and the connection oriented from its sender.
+	 */
+	public MessageMetadata getMessageMetadata(PacketType direction, int beginIndex,
+			int endIndex) {
+		ImmutablePair<Integer, Integer> indexes = getStartandEndPacketIndexes(
+				getStreamIndex(direction), beginIndex, endIndex);
+		int start = indexes.left, end = indexes.right;
+		TimestampPair ts = new TimestampPair(getTimestamp(start), getTimestamp(end));
+		TcpConnection conn = new TcpConnection(segments.getSourceIP(start),
+				segments.getSourcePort(start), segments.getDestinationIP(start),
+				segments.getDestinationPort(start));
 
-			return new MessageMetadata(ts, conn);
+		if (log.isDebugEnabled()) {
+			log.debug(ts + "\n" + conn);
 		}
 
-		return null;
+		return new MessageMetadata(ts, conn);
 	}
 
-	public MessageMetadata getMessageMetadata(String needle) {
-		checkBuildPacketData();
+	private double getTimestamp(int index) {
+		return segments.getTimestampSec(index)
+				+ (segments.getTimestampUSec(index) / 1000000.0);
+	}
 
-		int beginIndex = getOrderedPacketData().indexOf(needle);
+	public MessageMetadata getMessageMetadata(String needle) {
+		int beginIndex = getOrderedPacketText().indexOf(needle);
 		int endIndex = beginIndex + needle.length();
 
 		return this.getMessageMetadata(beginIndex, endIndex);
@@ -238,6 +507,356 @@ public class TcpReassembler {
 
 	public TcpReassembler() {
 	}
+	
+	/**
+	 * Sets a consumer which is given the payload of each direction in sequence 
+	 * order as packets are reassembled.
+	 */
+	public void setStreamConsumer(StreamConsumer consumer) {
+		this.consumer = consumer;
+		if (consumer != null) {
+			reqStream = new SequencedStream(PacketType.Request, consumer, MAX_PENDING_SEGMENTS);
+			respStream = new SequencedStream(PacketType.Response, consumer, MAX_PENDING_SEGMENTS);
+		} else {
+			reqStream = respStream = null;
+		}
+	}
+	
+	public StreamConsumer getStreamConsumer() {
+		return consumer;
+	}
+	
+	/**
+	 * Sets whether packets are kept for {@link #getOrderedPackets()} and the 
+	 * stream content methods.  Only useful to disable when a 
+	 * {@link StreamConsumer} processes the payload instead.  Enabled by default.
+	 */
+	public void setRetainPackets(boolean retainPackets) {
+		this.retainPackets = retainPackets;
+	}
+	
+	public boolean isRetainPackets() {
+		return retainPackets;
+	}
+	
+	/**
+	 * Sets a store for the payload of retained packets, instead of an in 
+	 * memory {@link SegmentArena} per direction.  Takes effect only before 
+	 * the first packet is reassembled.
+	 * 
+	 * @param payloadStore the store, or null for the arenas.
+	 */
+	public void setPayloadStore(PayloadStore payloadStore) {
+		this.payloadStore = payloadStore;
+		this.ownsPayloadStore = false;
+		if (reqCounter == null) {
+			segments = new SegmentTable(payloadStore, bufferPool);
+		}
+	}
+	
+	public PayloadStore getPayloadStore() {
+		return payloadStore;
+	}
+	
+	/**
+	 * Takes the arrays of the {@link SegmentArena}s from a pool, and hands 
+	 * them back when the connection is released or discarded.  Takes effect 
+	 * only before the first packet is reassembled.
+	 * 
+	 * @param bufferPool the pool, or null to allocate the arrays.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		if (reqCounter == null) {
+			segments = new SegmentTable(payloadStore, bufferPool);
+		}
+	}
+	
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+	
+	/**
+	 * Keeps the payload of retained packets in direct slabs taken from a pool
+	 * instead of heap arrays, so that the heap only holds the records of the
+	 * packets.  The slabs are owned by this reassembler and returned to the 
+	 * pool by {@link #release()}.  Takes effect only before the first packet 
+	 * is reassembled.
+	 * 
+	 * @param slabPool the pool, or null for the arenas.
+	 */
+	public void setSlabPool(SlabPool slabPool) {
+		if (reqCounter == null) {
+			setPayloadStore(slabPool != null ? new DirectPayloadStore(slabPool) : null);
+			ownsPayloadStore = slabPool != null;
+		}
+	}
+	
+	/**
+	 * @return the pool set with {@link #setSlabPool(SlabPool)}, or null.
+	 */
+	public SlabPool getSlabPool() {
+		return ownsPayloadStore ? ((DirectPayloadStore) payloadStore).getPool() : null;
+	}
+	
+	/**
+	 * Releases the retained packets once the connection is no longer needed, 
+	 * handing their payload back to the slab pool if one is set.  The content 
+	 * of the connection can not be read afterwards.
+	 */
+	public void release() {
+		segments.clear();
+		reqHistory = respHistory = null;
+		packetIndex = reqIndex = respIndex = null;
+		timeline = null;
+		rebuildData = true;
+		if (ownsPayloadStore) {
+			payloadStore.close();
+		}
+	}
+	
+	/**
+	 * Limits the payload retained for each direction of the connection.  Once 
+	 * a direction reaches the limit its further payload is not retained and 
+	 * the direction is flagged as truncated.  Streaming to a 
+	 * {@link StreamConsumer} is not affected.
+	 * 
+	 * @param maxBytesPerDirection the limit in bytes, or {@link #UNLIMITED}.
+	 */
+	public void setMaxBytesPerDirection(long maxBytesPerDirection) {
+		this.maxBytesPerDirection = maxBytesPerDirection;
+	}
+	
+	public long getMaxBytesPerDirection() {
+		return maxBytesPerDirection;
+	}
+	
+	/**
+	 * @return true if payload of the direction was dropped because of 
+	 * {@link #setMaxBytesPerDirection(long)}.
+	 */
+	public boolean isTruncated(PacketType type) {
+		return isRequest(type) ? reqTruncated : respTruncated;
+	}
+	
+	/**
+	 * @return true if payload of either direction was dropped because of 
+	 * {@link #setMaxBytesPerDirection(long)}.
+	 */
+	public boolean isTruncated() {
+		return reqTruncated || respTruncated;
+	}
+	
+	/**
+	 * Sets whether retained packets are pruned once the peer has acknowledged 
+	 * them.  Records of packets without payload are dropped once the 
+	 * segments before them are acknowledged, and acknowledged gaps are final.
+	 * Disabled by default, since {@link #getOrderedPackets()} then no longer 
+	 * returns all captured packets.
+	 */
+	public void setPruneAcknowledged(boolean pruneAcknowledged) {
+		this.pruneAcknowledged = pruneAcknowledged;
+	}
+	
+	public boolean isPruneAcknowledged() {
+		return pruneAcknowledged;
+	}
+	
+	/**
+	 * @return the highest acknowledgement number received for the payload 
+	 * of the direction, or -1 if none was received.
+	 */
+	public long getAcknowledged(PacketType type) {
+		return isRequest(type) ? reqAcked : respAcked;
+	}
+	
+	/**
+	 * Sets which bytes are retained when a segment overlaps retained payload 
+	 * with different content.  Only recently retained segments are compared.
+	 * Streaming to a {@link StreamConsumer} always keeps the first bytes.  
+	 * Defaults to {@link OverlapPolicy#FIRST_WINS}.
+	 */
+	public void setOverlapPolicy(OverlapPolicy overlapPolicy) {
+		this.overlapPolicy = overlapPolicy;
+	}
+	
+	public OverlapPolicy getOverlapPolicy() {
+		return overlapPolicy;
+	}
+	
+	/**
+	 * @return the number of packets which carried no new payload, and were 
+	 * dropped.
+	 */
+	public long getRetransmittedPackets() {
+		return retransmittedPackets;
+	}
+	
+	/**
+	 * @return the number of payload bytes dropped because they had already 
+	 * been retained.
+	 */
+	public long getDuplicateBytes() {
+		return duplicateBytes;
+	}
+	
+	/**
+	 * @return the number of segments which overlapped retained payload with 
+	 * different content.
+	 */
+	public long getConflicts() {
+		return conflicts;
+	}
+	
+	/**
+	 * @return the number of overlapping bytes which differed from the 
+	 * retained payload, resolved by the {@link OverlapPolicy}.
+	 */
+	public long getConflictingBytes() {
+		return conflictingBytes;
+	}
+	
+	/**
+	 * Stops reassembling the connection.  Retained packets are released, 
+	 * the {@link StreamConsumer} is detached without being notified, and the 
+	 * payload of further packets is dropped and only counted.  FIN and RST 
+	 * flags are still tracked for {@link #isClosed()}.
+	 */
+	public void discard() {
+		if (log.isDebugEnabled()) {
+			log.debug("Discarding connection after " + segments.size() + " packets");
+		}
+		discarded = true;
+		setSniffed();
+		release();
+		consumer = null;
+		reqStream = respStream = null;
+		streamsClosed = true;
+	}
+	
+	/**
+	 * @return true if {@link #discard()} was called.
+	 */
+	public boolean isDiscarded() {
+		return discarded;
+	}
+	
+	/**
+	 * @return the number of packets dropped since the connection was 
+	 * discarded.
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets;
+	}
+	
+	/**
+	 * @return the number of payload bytes dropped since the connection was 
+	 * discarded.
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes;
+	}
+	
+	/*
+	 * Used by PacketReassembler to run a ConnectionSniffer until it decides.
+	 */
+	boolean isSniffed() {
+		return sniffed;
+	}
+	
+	void setSniffed() {
+		sniffed = true;
+		syn = synAck = null;
+	}
+	
+	void addSyn(TcpPacket packet) {
+		if (packet.getAck()) {
+			synAck = packet;
+		} else {
+			syn = packet;
+		}
+	}
+	
+	/*
+	 * True if the payload of the packet is the first of the stream of its 
+	 * sender, which is only known once the SYN of the sender has been seen.
+	 */
+	boolean startsStream(TcpPacket packet) {
+		if (packet.getSyn()) {
+			return true;
+		}
+		TcpPacket start = isSender(syn, packet) ? syn : isSender(synAck, packet) ? synAck : null;
+		return start != null
+				&& packet.getSequence() == TcpSequence.add(start.getSequence(), 1);
+	}
+	
+	private static boolean isSender(TcpPacket syn, TcpPacket packet) {
+		return syn != null && syn.getSourcePort() == packet.getSourcePort()
+				&& syn.getSourceIP().equals(packet.getSourceIP());
+	}
+	
+	int incSniffedPackets() {
+		return ++sniffedPackets;
+	}
+	
+	/**
+	 * @return true if the connection was closed by the idle timeout of a 
+	 * {@link PacketReassembler}, see 
+	 * {@link PacketReassembler#setIdleTimeout(long)}.
+	 */
+	public boolean isExpired() {
+		return expired;
+	}
+	
+	/*
+	 * Used by PacketReassembler to expire idle connections.
+	 */
+	long getLastSeen() {
+		return lastSeen;
+	}
+	
+	void setLastSeen(long lastSeen) {
+		this.lastSeen = lastSeen;
+	}
+	
+	CaptureClock.Timeout getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	void setIdleTimeout(CaptureClock.Timeout idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
+	void setExpired() {
+		expired = true;
+	}
+	
+	/**
+	 * @return the earlier session on the same addresses and ports, which 
+	 * ended when this one was started while no {@link ConnectionListener} was 
+	 * set, or null.  Its own earlier session, if any, is linked the same way.
+	 */
+	public TcpReassembler getPreviousSession() {
+		return previousSession;
+	}
+	
+	void setPreviousSession(TcpReassembler previousSession) {
+		this.previousSession = previousSession;
+	}
+	
+	/**
+	 * Delivers any payload still held back to the {@link StreamConsumer}, 
+	 * reporting missing bytes as gaps, and notifies it that the stream is 
+	 * closed.  Has no effect after the first call or without a consumer.
+	 */
+	public void closeStreams() {
+		if (consumer != null && !streamsClosed) {
+			streamsClosed = true;
+			reqStream.close();
+			respStream.close();
+			consumer.streamClosed();
+		}
+	}
 
 	/*
 	 * The main function of the class receives a tcp packet and reconstructs the
@@ -251,34 +870,35 @@ public class TcpReassembler {
 							tcpPacket.getLength(), tcpPacket.getHeaderLength(),
 							tcpPacket.getDataLength()));
 		}
-		reassembleTcp(new TcpConnection(tcpPacket), tcpPacket);
+		reassembleTcp(tcpPacket);
 	}
 
-	private void reassembleTcp(TcpConnection tcpConnection, TcpPacket packet)
-			throws Exception {
+	private void reassembleTcp(TcpPacket packet) throws Exception {
 		if (log.isDebugEnabled()) {
 			log.debug(String
 					.format("sequence=%d ack_num=%d length=%d dataLength=%d synFlag=%s %s srcPort=%s %s dstPort=%s",
 							packet.getSequence(), packet.getAckNum(),
 							packet.getLength(), packet.getDataLength(),
-							packet.getSyn(), tcpConnection.getSrcIp(),
-							tcpConnection.getSrcPort(),
-							tcpConnection.getDstIp(),
-							tcpConnection.getDstPort()));
+							packet.getSyn(), packet.getSourceIP(),
+							packet.getSourcePort(),
+							packet.getDestinationIP(),
+							packet.getDestinationPort()));
 		}
 
 		boolean first = false;
 		PacketType packetType = null;
 
 		// Now check if the packet is for this connection.
-		InetAddress srcIp = tcpConnection.getSrcIp();
-		int srcPort = tcpConnection.getSrcPort();
+		InetAddress srcIp = packet.getSourceIP();
+		int srcPort = packet.getSourcePort();
 
 		// Check to see if we have seen this source IP and port before.
 		// check both source IP and port; the connection might be between two
 		// different ports on the same machine...
 		if (reqCounter == null) {
 			reqCounter = new TcpSequenceCounter(srcIp, srcPort);
+			segments.setEndpoints(srcIp, srcPort, packet.getDestinationIP(),
+					packet.getDestinationPort());
 			packetType = PacketType.Request;
 			first = true;
 		} else {
@@ -311,9 +931,136 @@ public class TcpReassembler {
 					+ " packet...");
 		}
 
-		TcpSequenceCounter currentCounter = isRequest(packetType) ? reqCounter
-				: respCounter;
-		updateSequence(first, currentCounter, packet, packetType);
+		if (packet instanceof ResetAwareTcpPacket && ((ResetAwareTcpPacket) packet).getRst()) {
+			reset = true;
+		} else if (packet.getFin()) {
+			if (isRequest(packetType)) {
+				reqClosed = true;
+			} else {
+				respClosed = true;
+			}
+		}
+
+		if (discarded) {
+			droppedPackets++;
+			droppedBytes += packet.getDataLength();
+			return;
+		}
+
+		if (packet.getAck()) {
+			// acknowledges the payload of the other direction
+			acknowledge(isRequest(packetType) ? PacketType.Response : PacketType.Request,
+					packet.getAckNum());
+		}
+
+		if (consumer != null && !streamsClosed) {
+			(isRequest(packetType) ? reqStream : respStream).offer(packet);
+		}
+
+		if (retainPackets && withinLimit(packet, packetType)) {
+			TcpSequenceCounter currentCounter = isRequest(packetType) ? reqCounter
+					: respCounter;
+			updateSequence(first, currentCounter, packet, packetType);
+			if (pruneAcknowledged && ++retainedSincePrune >= PRUNE_INTERVAL) {
+				retainedSincePrune = 0;
+				prune();
+			}
+		}
+	}
+
+	private void acknowledge(PacketType type, long ack) {
+		long acked = getAcknowledged(type);
+		if (acked != NOT_ACKNOWLEDGED && !TcpSequence.greaterThan(ack, acked)) {
+			return;
+		}
+		if (isRequest(type)) {
+			reqAcked = ack;
+		} else {
+			respAcked = ack;
+		}
+		if (consumer != null && !streamsClosed) {
+			(isRequest(type) ? reqStream : respStream).acknowledged(ack);
+		}
+	}
+
+	/*
+	 * Drops records without payload, starting from pruneStart.  Stops at the 
+	 * first record which is not acknowledged yet.
+	 */
+	private void prune() {
+		int i = pruneStart;
+		while (i < segments.size()) {
+			if (isPureAck(i)) {
+				segments.remove(i, i + 1);
+				rebuildData = true;
+			} else if (isAcknowledged(i)) {
+				// payload, handshake, FIN, RST or a gap, kept as is; a gap 
+				// acknowledged by the peer will not be filled anymore
+				pruneStart = ++i;
+			} else {
+				break;
+			}
+		}
+	}
+
+	private boolean isPureAck(int index) {
+		return segments.getLength(index) == 0 && !segments.isPlaceholder(index)
+				&& !segments.getSyn(index) && !segments.getFin(index)
+				&& !segments.getRst(index);
+	}
+
+	// whether the peer has acknowledged the whole sequence space of the record
+	private boolean isAcknowledged(int index) {
+		long acked = getAcknowledged(segments.getType(index));
+		if (acked == NOT_ACKNOWLEDGED) {
+			return false;
+		}
+		long length = segments.getLength(index);
+		if (segments.getSyn(index) || segments.getFin(index)) {
+			length++;
+		}
+		return !TcpSequence.greaterThan(TcpSequence.add(segments.getSequence(index),
+				length), acked);
+	}
+
+	private boolean withinLimit(TcpPacket packet, PacketType packetType) {
+		return maxBytesPerDirection < 0 || packet.getDataLength() == 0
+				|| !(isRequest(packetType) ? reqTruncated : respTruncated);
+	}
+
+	/*
+	 * Counts length payload bytes about to enter the segment table towards the 
+	 * retention limit.  Returns false, and stops retaining payload for the 
+	 * direction, if they do not fit.  Retransmitted and overlapping bytes 
+	 * never get here.
+	 */
+	private boolean reserve(TcpPacket packet, PacketType packetType, int length) {
+		if (maxBytesPerDirection < 0 || length == 0) {
+			return true;
+		}
+		boolean request = isRequest(packetType);
+		if (request ? reqTruncated : respTruncated) {
+			return false;
+		}
+		long retained = (request ? reqRetained : respRetained) + length;
+		if (retained > maxBytesPerDirection) {
+			if (request) {
+				reqTruncated = true;
+			} else {
+				respTruncated = true;
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("Retention limit reached for " + packetType + " direction of " 
+						+ new TcpConnection(packet));
+			}
+			return false;
+		}
+		if (request) {
+			reqRetained = retained;
+		} else {
+			respRetained = retained;
+		}
+		return true;
 	}
 
 	private boolean isRequest(PacketType packetType) {
@@ -325,6 +1072,9 @@ public class TcpReassembler {
 		// figure out sequence number stuff
 		if (first) {
 			// this is the first time we have seen this src's sequence number
+			if (!reserve(packet, type, packet.getDataLength())) {
+				return;
+			}
 			tcpSeq.setSeq(packet.getSequence() + packet.getDataLength());
 			if (packet.getSyn()) {
 				tcpSeq.incrementSeq();
@@ -336,12 +1086,14 @@ public class TcpReassembler {
 
 		// if we are here, we have already seen this src, let's try and figure
 		// out if this packet is in the right place
-		if (packet.getSequence() < tcpSeq.getSeq()) {
-			if (!this.checkPlaceholders(packet, type)) {
-				if (log.isDebugEnabled()) {
-					log.debug("Unable to place packet.\n" + packet);
-				}
+		if (TcpSequence.lessThan(packet.getSequence(), tcpSeq.getSeq())) {
+			if (packet.getDataLength() > 0) {
+				resolveOverlap(tcpSeq, packet, type);
 			}
+			return;
+		}
+		if (!reserve(packet, type, packet.getDataLength())) {
+			return;
 		}
 
 		if (packet.getSequence() == tcpSeq.getSeq()) {
@@ -354,177 +1106,197 @@ public class TcpReassembler {
 		} else {
 			// out of order packet
 			if (packet.getDataLength() > 0
-					&& packet.getSequence() > tcpSeq.getSeq()) {
-				PlaceholderTcpPacket ppacket = new PlaceholderTcpPacket(
-						packet.getSourceIP(), packet.getSourcePort(),
-						packet.getDestinationIP(), packet.getDestinationPort(),
-						tcpSeq.getSeq(),
-						(int) (packet.getSequence() - this
-								.getLastOrderedSequence(type)));
-				this.addOrderedPacket(ppacket, type);
+					&& TcpSequence.greaterThan(packet.getSequence(), tcpSeq.getSeq())) {
+				segments.insertPlaceholder(segments.size(), type, tcpSeq.getSeq(),
+						TcpSequence.difference(tcpSeq.getSeq(), packet.getSequence()));
+				rebuildData = true;
 				this.addOrderedPacket(packet, type);
-				tcpSeq.setSeq(packet.getSequence());
+				tcpSeq.setSeq(TcpSequence.add(packet.getSequence(), packet.getDataLength()));
 			}
 		}
 	}
 
-	private boolean checkPlaceholders(TcpPacket packet, PacketType type) {
-		boolean retval = false;
-		for (Integer index : this.getPacketIndexes(type)) {
-			TcpPacket pospacket = orderedPackets.get(index);
-			if (pospacket instanceof PlaceholderTcpPacket) {
-				// overlap placeholder beginning
-				if (packet.getSequence() < pospacket.getSequence()
-						&& (packet.getSequence() + packet.getLength()) < (pospacket
-								.getSequence() + pospacket.getLength())) {
-					if (log.isDebugEnabled()) {
-						log.debug("Overlap placeholder beginning.\n" + packet);
-					}
-					// retval = true;
-					// break;
-				}
-
-				// overlap placeholder ending
-				if (packet.getSequence() > pospacket.getSequence()
-						&& (packet.getSequence() + packet.getLength()) > (pospacket
-								.getSequence() + pospacket.getLength())) {
-					if (log.isDebugEnabled()) {
-						log.debug("Overlap placeholder ending.\n" + packet);
-					}
-					// retval = true;
-					// break;
-				}
+	/*
+	 * Handles a packet starting before the next expected sequence number: 
+	 * drops exact retransmissions, compares the bytes overlapping retained 
+	 * payload, fills the gaps it covers and appends any bytes past the 
+	 * expected sequence number.
+	 */
+	private void resolveOverlap(TcpSequenceCounter tcpSeq, TcpPacket packet,
+			PacketType type) throws IOException {
+		SegmentHistory history = getHistory(type);
+		long seq = packet.getSequence();
+		int length = packet.getDataLength();
+		byte[] data = packet.getData();
 
-				// in the middle of the place holder
-				if (packet.getSequence() >= pospacket.getSequence()
-						&& (packet.getSequence() + packet.getLength()) <= (pospacket
-								.getSequence() + pospacket.getLength())) {
-
-					// exactly fits a place holder
-					if (packet.getSequence() == pospacket.getSequence()
-							&& packet.getLength() == pospacket.getLength()) {
-						this.setOrderedPacket(packet, type, index);
-					} else {
-						long leftlen = packet.getSequence()
-								- pospacket.getSequence();
-						long leftseq = pospacket.getSequence();
-						long rightlen = pospacket.getSequence()
-								+ pospacket.getLength() - packet.getSequence()
-								+ packet.getLength();
-						long rightseq = packet.getSequence()
-								+ packet.getLength();
-
-						PlaceholderTcpPacket lpacket = new PlaceholderTcpPacket(
-								packet.getSourceIP(), packet.getSourcePort(),
-								packet.getDestinationIP(),
-								packet.getDestinationPort(), leftseq,
-								(int) leftlen);
-						PlaceholderTcpPacket rpacket = new PlaceholderTcpPacket(
-								packet.getSourceIP(), packet.getSourcePort(),
-								packet.getDestinationIP(),
-								packet.getDestinationPort(), rightlen,
-								(int) rightseq);
-
-						if (lpacket.getLength() > 0) {
-							this.setOrderedPacket(lpacket, type, index);
-							this.insertOrderedPacket(packet, type, index + 1);
-							if (rpacket.getLength() > 0) {
-								this.insertOrderedPacket(rpacket, type,
-										index + 2);
-							}
-						} else {
-							this.setOrderedPacket(packet, type, index);
-							this.insertOrderedPacket(rpacket, type, index + 1);
-						}
-					}
-					retval = true;
-					break;
-				}
-			}
+		int entry = history.find(seq, length);
+		if (entry >= 0 && history.getHash(entry) == SegmentHistory.hash(data, 0, length)) {
+			retransmittedPackets++;
+			duplicateBytes += length;
+			return;
 		}
-		return retval;
-	}
 
-	private List<Integer> getPacketIndexes(PacketType type) {
-		return isRequest(type) ? reqIndexes : respIndexes;
-	}
-
-	private void incPacketIndexes(int greaterthan, int inc) {
-		//For each entry in request index
-		for (int i = 0; i < reqIndexes.size(); i++) {
-			//If the entry is larger than the limit
-			if (reqIndexes.get(i) > greaterthan) {
-				//Increase the entry by the number of packets we've just added (i.e. 1)
-				reqIndexes.set(i, reqIndexes.get(i) + inc);
+		int overlapped = compareRetained(packet, data, type);
+		int placed = fillPlaceholder(packet, data, type);
+		int fresh = TcpSequence.difference(tcpSeq.getSeq(), TcpSequence.add(seq, length));
+		if (fresh > 0) {
+			if (reserve(packet, type, fresh)) {
+				retain(segments.size(), false, packet, type, tcpSeq.getSeq(), data,
+						length - fresh, fresh);
+				tcpSeq.addToSeq(fresh);
 			}
-		}
-		for (int i = 0; i < respIndexes.size(); i++) {
-			if (respIndexes.get(i) > greaterthan) {
-				respIndexes.set(i, respIndexes.get(i) + inc);
+		} else if (placed == 0 && withinLimit(packet, type)) {
+			if (log.isDebugEnabled()) {
+				log.debug("Retransmitted packet.\n" + packet);
 			}
+			retransmittedPackets++;
 		}
+		duplicateBytes += overlapped;
 	}
 
-	private void setOrderedPacket(TcpPacket packet, PacketType type, int index) {
-		rebuildData = true;
-		Integer indexObj = index;
-		orderedPackets.set(index, packet);
-		if (isRequest(type)) {
-			if (!reqIndexes.contains(indexObj)) {
-				reqIndexes.add(indexObj);
+	/*
+	 * Compares a packet with the recently retained segments it overlaps and 
+	 * applies the overlap policy to differing bytes.  Returns the number of 
+	 * overlapping bytes.
+	 */
+	private int compareRetained(TcpPacket packet, byte[] data, PacketType type)
+			throws IOException {
+		SegmentHistory history = getHistory(type);
+		int length = packet.getDataLength();
+		int overlapped = 0;
+		boolean conflict = false;
+		for (int i = 0; i < history.size(); i++) {
+			int entry = history.get(i);
+			// position of the retained segment relative to the packet
+			int start = TcpSequence.difference(packet.getSequence(),
+					history.getSequence(entry));
+			int from = Math.max(start, 0);
+			int to = Math.min(length, start + history.getLength(entry));
+			if (from >= to) {
+				continue;
 			}
-			if (respIndexes.contains(indexObj)) {
-				respIndexes.remove(indexObj);
+			overlapped += to - from;
+			byte[] retained = new byte[history.getLength(entry)];
+			segments.readPayload(type, history.getPosition(entry), retained, 0,
+					retained.length);
+			int differing = 0;
+			for (int j = from; j < to; j++) {
+				if (data[j] != retained[j - start]) {
+					differing++;
+				}
 			}
-		} else {
-			if (!respIndexes.contains(indexObj)) {
-				respIndexes.add(indexObj);
+			if (differing > 0) {
+				conflict = true;
+				conflictingBytes += differing;
+				if (overlapPolicy == OverlapPolicy.LAST_WINS) {
+					System.arraycopy(data, from, retained, from - start, to - from);
+					replaceRetained(entry, retained, type);
+				}
 			}
-			if (reqIndexes.contains(indexObj)) {
-				reqIndexes.remove(indexObj);
+		}
+		if (conflict) {
+			conflicts++;
+			if (log.isDebugEnabled()) {
+				log.debug("Conflicting overlap, " + overlapPolicy + ".\n" + packet);
 			}
 		}
+		return overlapped;
 	}
 
-	private void insertOrderedPacket(TcpPacket packet, PacketType type,
-			int index) {
-		rebuildData = true;
-		orderedPackets.add(index, packet);
-		incPacketIndexes(index, 1);
-		if (isRequest(type)) {
-			reqIndexes.add(index);
-		} else {
-			respIndexes.add(index);
+	private void replaceRetained(int entry, byte[] data, PacketType type)
+			throws IOException {
+		SegmentHistory history = getHistory(type);
+		int index = segments.indexOf(type, history.getPosition(entry));
+		if (index >= 0) {
+			history.replace(entry, segments.rewrite(index, data), data);
+			rebuildData = true;
 		}
 	}
 
-	private void addOrderedPacket(TcpPacket packet, PacketType type) {
-		rebuildData = true;
-		orderedPackets.add(packet);
-		if (isRequest(type)) {
-			reqIndexes.add(orderedPackets.size() - 1);
-		} else {
-			respIndexes.add(orderedPackets.size() - 1);
+	/*
+	 * Places the part of a packet which falls into a placeholder.  Returns the 
+	 * number of bytes placed.
+	 */
+	private int fillPlaceholder(TcpPacket packet, byte[] data, PacketType type)
+			throws IOException {
+		if (segments.getPlaceholderCount() == 0) {
+			return 0;
 		}
+		int length = packet.getDataLength();
+		for (int index = 0; index < segments.size(); index++) {
+			if (segments.isPlaceholder(index) && segments.getType(index) == type) {
+				// position of the packet payload relative to the placeholder
+				long holeSequence = segments.getSequence(index);
+				int start = TcpSequence.difference(holeSequence, packet.getSequence());
+				int holeLength = segments.getLength(index);
+				int from = Math.max(start, 0);
+				int to = Math.min(start + length, holeLength);
+				if (from >= to) {
+					continue;
+				}
+				if (!reserve(packet, type, to - from)) {
+					return 0;
+				}
+
+				long fillSequence = TcpSequence.add(holeSequence, from);
+				if (from > 0) {
+					segments.setPlaceholder(index, type, holeSequence, from);
+					retain(++index, false, packet, type, fillSequence, data,
+							from - start, to - from);
+				} else {
+					retain(index, true, packet, type, fillSequence, data,
+							from - start, to - from);
+				}
+				if (to < holeLength) {
+					segments.insertPlaceholder(index + 1, type,
+							TcpSequence.add(holeSequence, to), holeLength - to);
+				}
+				return to - from;
+			}
+		}
+		return 0;
 	}
 
-	private long getLastOrderedSequence(PacketType type) {
-		TcpPacket last = null;
+	private SegmentHistory getHistory(PacketType type) {
 		if (isRequest(type)) {
-			if (reqIndexes.size() > 0) {
-				last = orderedPackets
-						.get(reqIndexes.get(reqIndexes.size() - 1));
+			if (reqHistory == null) {
+				reqHistory = new SegmentHistory(HISTORY_SIZE);
 			}
-		} else {
-			if (respIndexes.size() > 0) {
-				last = orderedPackets
-						.get(respIndexes.get(respIndexes.size() - 1));
+			return reqHistory;
+		}
+		if (respHistory == null) {
+			respHistory = new SegmentHistory(HISTORY_SIZE);
+		}
+		return respHistory;
+	}
+
+	/*
+	 * Appends part of the payload of a packet to the segment table, records 
+	 * it in the segment history and inserts or replaces the record at index.
+	 */
+	private void retain(int index, boolean replace, TcpPacket packet,
+			PacketType type, long sequence, byte[] data, int offset, int length)
+			throws IOException {
+		rebuildData = true;
+		long position = -1;
+		if (length > 0) {
+			position = segments.append(type, data, offset, length);
+			if (!packet.getSyn() || sequence != packet.getSequence()) {
+				getHistory(type).add(position, sequence, data, offset, length);
 			}
 		}
-		if (last != null) {
-			return last.getSequence();
+		if (replace) {
+			segments.set(index, type, packet, sequence, position, length);
+		} else {
+			segments.insert(index, type, packet, sequence, position, length);
 		}
+	}
 
-		return -1;
+	private void addOrderedPacket(TcpPacket packet, PacketType type)
+			throws IOException {
+		byte[] data = packet.getDataLength() > 0 ? packet.getData() : null;
+		int length = data != null ? Math.min(data.length, packet.getDataLength()) : 0;
+		retain(segments.size(), false, packet, type, packet.getSequence(), data, 0,
+				length);
 	}
 }
@@ -0,0 +1,58 @@
+package pcap.reconst.tcp;
+
+/**
+ * Arithmetic on 32 bit TCP sequence numbers, which wrap around.  Comparisons
+ * follow the serial number arithmetic of RFC 1982: a sequence number is
+ * greater than another if it is less than 2^31 ahead of it.  Sequence
+ * numbers are passed as longs in the range 0 to 2^32 - 1, as returned by
+ * {@link pcap.reconst.tcp.packet.TcpPacket#getSequence()}.
+ */
+public final class TcpSequence {
+	private static final long MASK = 0xffffffffL;
+
+	private TcpSequence() {
+	}
+
+	/**
+	 * @return the sequence number n bytes after seq.
+	 */
+	public static long add(long seq, long n) {
+		return (seq + n) & MASK;
+	}
+
+	/**
+	 * @return the signed distance from s1 to s2, positive if s2 is after s1.
+	 */
+	public static int difference(long s1, long s2) {
+		return (int) (s2 - s1);
+	}
+
+	/**
+	 * @return a negative number, zero or a positive number as s1 is before,
+	 * equal to or after s2.
+	 */
+	public static int compare(long s1, long s2) {
+		int difference = difference(s2, s1);
+		return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+	}
+
+	public static boolean lessThan(long s1, long s2) {
+		return difference(s1, s2) > 0;
+	}
+
+	public static boolean greaterThan(long s1, long s2) {
+		return difference(s1, s2) < 0;
+	}
+
+	/**
+	 * Maps a sequence number onto a 64 bit position which keeps increasing
+	 * across wraparounds.
+	 *
+	 * @param seq the sequence number.
+	 * @param reference a position within 2^31 of the result.
+	 * @return the position of seq closest to reference.
+	 */
+	public static long unwrap(long seq, long reference) {
+		return reference + difference(reference & MASK, seq);
+	}
+}
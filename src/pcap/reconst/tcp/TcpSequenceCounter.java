@@ -25,11 +25,11 @@ public class TcpSequenceCounter {
 	}
 
 	public void setSeq(long seq) {
-		this.seq = seq;
+		this.seq = TcpSequence.add(seq, 0);
 	}
 
 	public void incrementSeq() {
-		seq++;
+		seq = TcpSequence.add(seq, 1);
 	}
 
 	public long getSeq() {
@@ -37,7 +37,7 @@ public class TcpSequenceCounter {
 	}
 
 	public void addToSeq(long length) {
-		seq += length;
+		seq = TcpSequence.add(seq, length);
 	}
 
 	public String getOutputName() {
@@ -2,7 +2,16 @@ package pcap.reconst.tcp.packet;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
-public abstract class AbstractTcpPacket implements TcpPacket {
+public abstract class AbstractTcpPacket implements ResetAwareTcpPacket {
+
+    /**
+     * @return false, overridden by the packets which decode the RST flag.
+     */
+    public boolean getRst()
+    {
+        return false;
+    }
+
     @Override
     public String toString()
     {
@@ -41,6 +50,11 @@ public abstract class AbstractTcpPacket implements TcpPacket {
             tsb.append("PSH");
         }
 
+        if (getRst())
+        {
+            tsb.append("RST");
+        }
+
         return tsb.build();
     }
 }
@@ -0,0 +1,241 @@
+package pcap.reconst.tcp.packet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * The positions and values of the headers of one frame, as found by 
+ * {@link PacketHeaderDecoder}.  Offsets refer to the decoded frame.  For 
+ * tunneled traffic the IP and TCP fields are those of the innermost packet.
+ * An instance is reused for every decoded frame, copy what has to be kept.
+ */
+public class DecodedHeaders {
+	private byte[] frame;
+
+	private int vlanTags;
+	private int encapsulations;
+
+	private int ipVersion;
+	private int ipOffset;
+	private int srcAddressOffset, dstAddressOffset, addressLength;
+	private int protocol;
+
+	private boolean fragment;
+	private long fragmentId;
+	private int fragmentOffset;
+	private boolean moreFragments;
+	private int fragmentHeaderOffset;
+	private int fragmentNextHeaderPosition;
+	private int ipPayloadOffset, ipPayloadEnd;
+
+	private int srcPort, dstPort;
+	private long sequence, ackNum;
+	private int tcpFlags;
+	private int tcpOffset;
+	private int payloadOffset, payloadEnd;
+
+	void reset(byte[] frame) {
+		this.frame = frame;
+		vlanTags = 0;
+		encapsulations = 0;
+		ipVersion = 0;
+		fragment = false;
+	}
+
+	void addVlanTag() {
+		vlanTags++;
+	}
+
+	void addEncapsulation() {
+		encapsulations++;
+	}
+
+	void setIp(int version, int ipOffset, int srcAddressOffset,
+			int dstAddressOffset, int addressLength) {
+		this.ipVersion = version;
+		this.ipOffset = ipOffset;
+		this.srcAddressOffset = srcAddressOffset;
+		this.dstAddressOffset = dstAddressOffset;
+		this.addressLength = addressLength;
+		this.fragment = false;
+	}
+
+	void setIpPayload(int protocol, int ipPayloadOffset, int ipPayloadEnd) {
+		this.protocol = protocol;
+		this.ipPayloadOffset = ipPayloadOffset;
+		this.ipPayloadEnd = ipPayloadEnd;
+	}
+
+	void setFragment(long id, int offset, boolean moreFragments,
+			int fragmentHeaderOffset, int fragmentNextHeaderPosition) {
+		this.fragment = true;
+		this.fragmentId = id;
+		this.fragmentOffset = offset;
+		this.moreFragments = moreFragments;
+		this.fragmentHeaderOffset = fragmentHeaderOffset;
+		this.fragmentNextHeaderPosition = fragmentNextHeaderPosition;
+	}
+
+	void setTcp(int tcpOffset, int srcPort, int dstPort, long sequence,
+			long ackNum, int flags, int payloadOffset, int payloadEnd) {
+		this.tcpOffset = tcpOffset;
+		this.srcPort = srcPort;
+		this.dstPort = dstPort;
+		this.sequence = sequence;
+		this.ackNum = ackNum;
+		this.tcpFlags = flags;
+		this.payloadOffset = payloadOffset;
+		this.payloadEnd = payloadEnd;
+	}
+
+	public byte[] getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @return the number of 802.1Q/802.1ad tags of the innermost Ethernet 
+	 * header.
+	 */
+	public int getVlanTags() {
+		return vlanTags;
+	}
+
+	/**
+	 * @return the number of tunnels (GRE, VXLAN, IP in IP) the packet was 
+	 * carried in.
+	 */
+	public int getEncapsulations() {
+		return encapsulations;
+	}
+
+	/**
+	 * @return 4 or 6, or 0 if no IP header was found.
+	 */
+	public int getIpVersion() {
+		return ipVersion;
+	}
+
+	/**
+	 * @return the offset of the IP header.
+	 */
+	public int getIpOffset() {
+		return ipOffset;
+	}
+
+	/**
+	 * @return the transport protocol number, after any IPv6 extension headers.
+	 */
+	public int getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return the offset of the IP payload, after the IPv4 options or the 
+	 * IPv6 extension headers.  For fragments, the offset of the fragment data.
+	 */
+	public int getIpPayloadOffset() {
+		return ipPayloadOffset;
+	}
+
+	/**
+	 * @return the end of the captured IP payload.
+	 */
+	public int getIpPayloadEnd() {
+		return ipPayloadEnd;
+	}
+
+	public byte[] getSourceAddress() {
+		return Arrays.copyOfRange(frame, srcAddressOffset, srcAddressOffset + addressLength);
+	}
+
+	public byte[] getDestinationAddress() {
+		return Arrays.copyOfRange(frame, dstAddressOffset, dstAddressOffset + addressLength);
+	}
+
+	public InetAddress getSourceIP() throws UnknownHostException {
+		return InetAddress.getByAddress(getSourceAddress());
+	}
+
+	public InetAddress getDestinationIP() throws UnknownHostException {
+		return InetAddress.getByAddress(getDestinationAddress());
+	}
+
+	public boolean isFragment() {
+		return fragment;
+	}
+
+	/**
+	 * @return the identification of the fragmented datagram.
+	 */
+	public long getFragmentId() {
+		return fragmentId;
+	}
+
+	/**
+	 * @return the offset of the fragment data in the datagram, in bytes.
+	 */
+	public int getFragmentOffset() {
+		return fragmentOffset;
+	}
+
+	public boolean hasMoreFragments() {
+		return moreFragments;
+	}
+
+	/**
+	 * @return for IPv6, the offset of the fragment extension header.
+	 */
+	public int getFragmentHeaderOffset() {
+		return fragmentHeaderOffset;
+	}
+
+	/**
+	 * @return for IPv6, the position of the next header field which 
+	 * announces the fragment extension header.
+	 */
+	public int getFragmentNextHeaderPosition() {
+		return fragmentNextHeaderPosition;
+	}
+
+	public int getSourcePort() {
+		return srcPort;
+	}
+
+	public int getDestinationPort() {
+		return dstPort;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getAckNum() {
+		return ackNum;
+	}
+
+	/**
+	 * @return the TCP flags byte.
+	 */
+	public int getTcpFlags() {
+		return tcpFlags;
+	}
+
+	public int getTcpOffset() {
+		return tcpOffset;
+	}
+
+	/**
+	 * @return the offset of the TCP payload.
+	 */
+	public int getPayloadOffset() {
+		return payloadOffset;
+	}
+
+	/**
+	 * @return the end of the captured TCP payload.
+	 */
+	public int getPayloadEnd() {
+		return payloadEnd;
+	}
+}
@@ -0,0 +1,137 @@
+package pcap.reconst.tcp.packet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * A TCP packet built from the {@link DecodedHeaders} of a frame decoded by 
+ * {@link PacketHeaderDecoder}.  The addresses and the payload are copied, the 
+ * packet does not keep a reference to the frame.
+ */
+public class DecodedTcpPacket extends AbstractTcpPacket {
+	protected InetAddress sourceIp;
+	protected int sourcePort;
+	protected InetAddress destinationIp;
+	protected int destinationPort;
+	protected int captureLength;
+	protected int length;
+	protected int headerLength;
+	protected int dataLength;
+	protected long sequence;
+	protected long ackNumber;
+	protected byte[] data;
+	protected boolean syn;
+	protected boolean ack;
+	protected boolean fin;
+	protected boolean psh;
+	protected boolean rst;
+	protected long timestampSec;
+	protected long timestampUSec;
+
+	protected DecodedTcpPacket() {
+	}
+
+	/**
+	 * @param headers the headers of a frame decoded as 
+	 * {@link PacketHeaderDecoder.Result#TCP}.
+	 * @param captureLength the captured length of the frame.
+	 * @param length the length of the frame on the wire.
+	 */
+	public DecodedTcpPacket(DecodedHeaders headers, int captureLength, int length,
+			long timestampSec, long timestampUSec) throws UnknownHostException {
+		sourceIp = headers.getSourceIP();
+		destinationIp = headers.getDestinationIP();
+		sourcePort = headers.getSourcePort();
+		destinationPort = headers.getDestinationPort();
+		sequence = headers.getSequence();
+		ackNumber = headers.getAckNum();
+		int flags = headers.getTcpFlags();
+		fin = (flags & 0x01) != 0;
+		syn = (flags & 0x02) != 0;
+		rst = (flags & 0x04) != 0;
+		psh = (flags & 0x08) != 0;
+		ack = (flags & 0x10) != 0;
+		this.captureLength = captureLength;
+		this.length = length;
+		headerLength = headers.getPayloadOffset();
+		data = Arrays.copyOfRange(headers.getFrame(), headers.getPayloadOffset(),
+				headers.getPayloadEnd());
+		dataLength = data.length;
+		this.timestampSec = timestampSec;
+		this.timestampUSec = timestampUSec;
+	}
+
+	public InetAddress getSourceIP() {
+		return sourceIp;
+	}
+
+	public int getSourcePort() {
+		return sourcePort;
+	}
+
+	public InetAddress getDestinationIP() {
+		return destinationIp;
+	}
+
+	public int getDestinationPort() {
+		return destinationPort;
+	}
+
+	public int getCaptureLength() {
+		return captureLength;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getHeaderLength() {
+		//total of all headers prior to the data
+		return headerLength;
+	}
+
+	public int getDataLength() {
+		return dataLength;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getAckNum() {
+		return ackNumber;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public boolean getSyn() {
+		return syn;
+	}
+
+	public boolean getAck() {
+		return ack;
+	}
+
+	public boolean getFin() {
+		return fin;
+	}
+
+	public boolean getPsh() {
+		return psh;
+	}
+
+	public boolean getRst() {
+		return rst;
+	}
+
+	public long getTimestampSec() {
+		return timestampSec;
+	}
+
+	public long getTimestampUSec() {
+		return timestampUSec;
+	}
+}
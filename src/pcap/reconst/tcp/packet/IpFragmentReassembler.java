@@ -0,0 +1,414 @@
+package pcap.reconst.tcp.packet;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembles IPv4 and IPv6 fragments decoded by {@link PacketHeaderDecoder}
+ * into complete datagrams.  Fragment data is tracked with the hole list of
+ * RFC 815, where data already received wins over overlapping fragments.
+ *
+ * The state is bounded by a memory budget, and datagrams not completed
+ * within a timeout are discarded.  The timeout is measured in capture time,
+ * so offline captures behave the same as live ones.  Unfragmented traffic
+ * never reaches the reassembler.
+ */
+public class IpFragmentReassembler {
+	public static final int DEFAULT_MEMORY_BUDGET = 4 * 1024 * 1024;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 30 * 1000;
+
+	private static final int MAX_DATAGRAM_LENGTH = 65535;
+	private static final int INITIAL_CAPACITY = 2048;
+
+	private final int memoryBudget;
+	private final long timeoutUSec;
+
+	//in order of the first fragment, so the oldest datagrams are at the head
+	private final Map<Key, Datagram> datagrams = new LinkedHashMap<Key, Datagram>();
+	private long bufferedBytes = 0;
+	private long[] completedOrigins = null;
+
+	private long reassembled = 0, expired = 0, evicted = 0, invalid = 0;
+
+	public IpFragmentReassembler() {
+		this(DEFAULT_MEMORY_BUDGET, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param memoryBudget the maximum number of bytes buffered for incomplete
+	 * datagrams.  The oldest datagrams are discarded to stay within it.
+	 * @param timeoutMillis the time after its first fragment after which an
+	 * incomplete datagram is discarded.
+	 */
+	public IpFragmentReassembler(int memoryBudget, long timeoutMillis) {
+		this.memoryBudget = memoryBudget;
+		this.timeoutUSec = timeoutMillis * 1000;
+	}
+
+	/**
+	 * Adds a fragment.
+	 *
+	 * @param headers the headers of a frame decoded as
+	 * {@link PacketHeaderDecoder.Result#FRAGMENT}.
+	 * @param origin an identifier of the frame, such as its file offset,
+	 * returned by {@link #getCompletedOrigins()} once the datagram is
+	 * complete.  Negative values are not recorded.
+	 * @return the reassembled datagram, starting with its IP header, if the
+	 * fragment completed it, otherwise null.
+	 */
+	public byte[] add(DecodedHeaders headers, long timestampSec, long timestampUSec,
+			long origin) {
+		long now = timestampSec * 1000000 + timestampUSec;
+		expire(now);
+
+		int first = headers.getFragmentOffset();
+		int count = headers.getIpPayloadEnd() - headers.getIpPayloadOffset();
+		if (count < 0 || first + count > MAX_DATAGRAM_LENGTH) {
+			invalid++;
+			return null;
+		}
+
+		Key key = new Key(headers);
+		Datagram datagram = datagrams.get(key);
+		if (datagram == null) {
+			datagram = new Datagram(now);
+			datagrams.put(key, datagram);
+		}
+		datagram.addOrigin(origin);
+		if (first == 0 && datagram.header == null) {
+			datagram.setHeader(headers);
+			bufferedBytes += datagram.header.length;
+		}
+		if (!headers.hasMoreFragments()) {
+			if (!datagram.setTotalLength(first + count)) {
+				invalid++;
+				remove(key, datagram);
+				return null;
+			}
+		}
+		int capacity = datagram.data.length;
+		datagram.fill(headers.getFrame(), headers.getIpPayloadOffset(), first, count);
+		bufferedBytes += datagram.data.length - capacity;
+
+		if (datagram.isComplete()) {
+			remove(key, datagram);
+			byte[] result = datagram.rebuild();
+			if (result == null) {
+				invalid++;
+				return null;
+			}
+			reassembled++;
+			completedOrigins = Arrays.copyOf(datagram.origins, datagram.originCount);
+			return result;
+		}
+		evict(datagram);
+		return null;
+	}
+
+	/**
+	 * @return the origins of the fragments of the last datagram returned by
+	 * {@link #add(DecodedHeaders, long, long, long)}, in order of arrival.
+	 */
+	public long[] getCompletedOrigins() {
+		return completedOrigins;
+	}
+
+	/**
+	 * Discards the datagrams whose first fragment is older than the timeout.
+	 *
+	 * @param now the current capture time, in microseconds.
+	 */
+	public void expire(long now) {
+		Iterator<Datagram> it = datagrams.values().iterator();
+		while (it.hasNext()) {
+			Datagram datagram = it.next();
+			if (now - datagram.firstSeen <= timeoutUSec) {
+				break;
+			}
+			it.remove();
+			bufferedBytes -= datagram.getSize();
+			expired++;
+		}
+	}
+
+	//discards the oldest datagrams, except current, while over the budget
+	private void evict(Datagram current) {
+		Iterator<Datagram> it = datagrams.values().iterator();
+		while (bufferedBytes > memoryBudget && it.hasNext()) {
+			Datagram datagram = it.next();
+			if (datagram != current) {
+				it.remove();
+				bufferedBytes -= datagram.getSize();
+				evicted++;
+			}
+		}
+		if (bufferedBytes > memoryBudget) {
+			datagrams.values().remove(current);
+			bufferedBytes -= current.getSize();
+			evicted++;
+		}
+	}
+
+	private void remove(Key key, Datagram datagram) {
+		datagrams.remove(key);
+		bufferedBytes -= datagram.getSize();
+	}
+
+	/**
+	 * Discards all incomplete datagrams.
+	 */
+	public void clear() {
+		datagrams.clear();
+		bufferedBytes = 0;
+	}
+
+	/**
+	 * @return the number of incomplete datagrams.
+	 */
+	public int getPendingCount() {
+		return datagrams.size();
+	}
+
+	/**
+	 * @return the number of bytes buffered for incomplete datagrams.
+	 */
+	public long getBufferedBytes() {
+		return bufferedBytes;
+	}
+
+	public long getReassembledCount() {
+		return reassembled;
+	}
+
+	/**
+	 * @return the number of incomplete datagrams discarded after the timeout.
+	 */
+	public long getExpiredCount() {
+		return expired;
+	}
+
+	/**
+	 * @return the number of incomplete datagrams discarded to stay within the
+	 * memory budget.
+	 */
+	public long getEvictedCount() {
+		return evicted;
+	}
+
+	/**
+	 * @return the number of fragments or datagrams discarded because they
+	 * exceeded the maximum datagram length or were inconsistent.
+	 */
+	public long getInvalidCount() {
+		return invalid;
+	}
+
+	@Override
+	public String toString() {
+		return "reassembled=" + reassembled + " pending=" + datagrams.size()
+				+ " expired=" + expired + " evicted=" + evicted + " invalid=" + invalid;
+	}
+
+	private static final class Key {
+		private final int version;
+		private final int protocol;
+		private final long id;
+		private final byte[] source;
+		private final byte[] destination;
+		private final int hash;
+
+		Key(DecodedHeaders headers) {
+			version = headers.getIpVersion();
+			//the protocol is part of the IPv4 identification only
+			protocol = version == 4 ? headers.getProtocol() : -1;
+			id = headers.getFragmentId();
+			source = headers.getSourceAddress();
+			destination = headers.getDestinationAddress();
+			hash = (((int) (id ^ (id >>> 32)) * 31 + Arrays.hashCode(source)) * 31
+					+ Arrays.hashCode(destination)) * 31 + protocol;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return id == other.id && version == other.version
+					&& protocol == other.protocol
+					&& Arrays.equals(source, other.source)
+					&& Arrays.equals(destination, other.destination);
+		}
+	}
+
+	private static final class Datagram {
+		final long firstSeen;
+		//the IP header, or for IPv6 the unfragmentable part, of the first fragment
+		byte[] header = null;
+		int version;
+		int protocol;
+		int nextHeaderPosition;
+		byte[] data = new byte[0];
+		int totalLength = -1;
+		//the end of the data received so far
+		int received = 0;
+		//start and end (exclusive) of the missing ranges
+		int[] holes = { 0, MAX_DATAGRAM_LENGTH };
+		int holeCount = 1;
+		long[] origins = new long[4];
+		int originCount = 0;
+
+		Datagram(long firstSeen) {
+			this.firstSeen = firstSeen;
+		}
+
+		int getSize() {
+			return data.length + (header != null ? header.length : 0);
+		}
+
+		void addOrigin(long origin) {
+			if (origin >= 0) {
+				if (originCount == origins.length) {
+					origins = Arrays.copyOf(origins, originCount * 2);
+				}
+				origins[originCount++] = origin;
+			}
+		}
+
+		void setHeader(DecodedHeaders headers) {
+			byte[] frame = headers.getFrame();
+			version = headers.getIpVersion();
+			protocol = headers.getProtocol();
+			int ipOffset = headers.getIpOffset();
+			int headerEnd = version == 4 ? headers.getIpPayloadOffset()
+					: headers.getFragmentHeaderOffset();
+			header = Arrays.copyOfRange(frame, ipOffset, headerEnd);
+			nextHeaderPosition = headers.getFragmentNextHeaderPosition() - ipOffset;
+		}
+
+		//the last fragment fixes the length, drops the holes past it
+		boolean setTotalLength(int length) {
+			if (totalLength >= 0) {
+				return totalLength == length;
+			}
+			if (received > length) {
+				return false;
+			}
+			int n = 0;
+			for (int i = 0; i < holeCount; i++) {
+				int start = holes[i * 2], end = Math.min(holes[i * 2 + 1], length);
+				if (start < end) {
+					holes[n * 2] = start;
+					holes[n * 2 + 1] = end;
+					n++;
+				}
+			}
+			holeCount = n;
+			totalLength = length;
+			return true;
+		}
+
+		void fill(byte[] frame, int offset, int first, int count) {
+			int last = first + count;
+			if (totalLength >= 0) {
+				last = Math.min(last, totalLength);
+			}
+			int i = 0;
+			while (i < holeCount) {
+				int start = holes[i * 2], end = holes[i * 2 + 1];
+				if (first >= end || last <= start) {
+					i++;
+					continue;
+				}
+				int from = Math.max(first, start), to = Math.min(last, end);
+				ensureCapacity(to);
+				System.arraycopy(frame, offset + (from - first), data, from, to - from);
+				received = Math.max(received, to);
+				//replace the hole by what remains of it on either side
+				removeHole(i);
+				if (start < from) {
+					addHole(start, from);
+				}
+				if (to < end) {
+					addHole(to, end);
+				}
+			}
+		}
+
+		private void removeHole(int i) {
+			holeCount--;
+			holes[i * 2] = holes[holeCount * 2];
+			holes[i * 2 + 1] = holes[holeCount * 2 + 1];
+		}
+
+		private void addHole(int start, int end) {
+			if (holeCount * 2 == holes.length) {
+				holes = Arrays.copyOf(holes, holes.length * 2);
+			}
+			holes[holeCount * 2] = start;
+			holes[holeCount * 2 + 1] = end;
+			holeCount++;
+		}
+
+		private void ensureCapacity(int length) {
+			if (data.length < length) {
+				int capacity = Math.max(data.length * 2, INITIAL_CAPACITY);
+				data = Arrays.copyOf(data, Math.min(Math.max(capacity, length),
+						MAX_DATAGRAM_LENGTH));
+			}
+		}
+
+		boolean isComplete() {
+			return totalLength >= 0 && holeCount == 0 && header != null;
+		}
+
+		byte[] rebuild() {
+			int length = header.length + totalLength;
+			if (version == 4 && length > MAX_DATAGRAM_LENGTH) {
+				return null;
+			}
+			byte[] result = new byte[length];
+			System.arraycopy(header, 0, result, 0, header.length);
+			System.arraycopy(data, 0, result, header.length, totalLength);
+			if (version == 4) {
+				putShort(result, 2, length);
+				//clear the fragment offset and the more fragments flag
+				putShort(result, 6, getShort(result, 6) & 0x4000);
+				putShort(result, 10, 0);
+				putShort(result, 10, checksum(result, header.length));
+			} else {
+				//drop the fragment header from the extension header chain
+				result[nextHeaderPosition] = (byte) protocol;
+				putShort(result, 4, length - 40);
+			}
+			return result;
+		}
+	}
+
+	private static int getShort(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+	}
+
+	private static void putShort(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >> 8);
+		data[offset + 1] = (byte) value;
+	}
+
+	private static int checksum(byte[] data, int length) {
+		long sum = 0;
+		for (int i = 0; i + 1 < length; i += 2) {
+			sum += getShort(data, i);
+		}
+		while ((sum >> 16) != 0) {
+			sum = (sum & 0xffff) + (sum >> 16);
+		}
+		return (int) (~sum & 0xffff);
+	}
+}
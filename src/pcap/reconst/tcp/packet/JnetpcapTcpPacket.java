@@ -1,6 +1,5 @@
 package pcap.reconst.tcp.packet;
 
-import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -25,13 +24,14 @@ public class JnetpcapTcpPacket extends AbstractTcpPacket {
 	private boolean ack;
 	private boolean fin;
 	private boolean psh;
+	private boolean rst;
 	private long timestampSec;
 	private long timestampUSec;
 	
 	public JnetpcapTcpPacket(PcapHeader pcapHeader, Ip4 ipPacket, Tcp tcpPacket) {
 		try {
-			sourceIp = Inet4Address.getByAddress(ipPacket.source());
-			destinationIp = Inet4Address.getByAddress(ipPacket.destination());
+			sourceIp = InetAddress.getByAddress(ipPacket.source());
+			destinationIp = InetAddress.getByAddress(ipPacket.destination());
 		}
 		catch (UnknownHostException uhe) {
 			uhe.printStackTrace();
@@ -49,6 +49,7 @@ public class JnetpcapTcpPacket extends AbstractTcpPacket {
 		ack = tcpPacket.flags_ACK();
 		fin = tcpPacket.flags_FIN();
 		psh = tcpPacket.flags_PSH();
+		rst = tcpPacket.flags_RST();
 		timestampSec = pcapHeader.seconds();
 		timestampUSec = pcapHeader.nanos() / 1000;
 	}
@@ -114,6 +115,10 @@ public class JnetpcapTcpPacket extends AbstractTcpPacket {
 		return psh;
 	}
 
+	public boolean getRst() {
+		return rst;
+	}
+
 	public long getTimestampSec() {
 		return timestampSec;
 	}
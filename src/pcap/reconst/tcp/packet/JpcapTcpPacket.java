@@ -77,6 +77,10 @@ public class JpcapTcpPacket extends AbstractTcpPacket {
 		return tcpPacket.psh;
 	}
 
+	public boolean getRst() {
+		return tcpPacket.rst;
+	}
+
 	public long getTimestampSec() {
 		return tcpPacket.sec;
 	}
@@ -0,0 +1,354 @@
+package pcap.reconst.tcp.packet;
+
+import pcap.reconst.io.PcapFileReader;
+
+/**
+ * Decodes the link, IP and TCP headers of captured frames in a single pass
+ * over the frame bytes, without allocating.  Handles Ethernet with stacked 
+ * 802.1Q/802.1ad tags, Linux cooked (v1 and v2), BSD loopback and raw IP 
+ * link types, IPv4 with options, IPv6 with extension headers, and GRE, 
+ * VXLAN and IP in IP tunnels.
+ * 
+ * Frames which are not TCP are counted as skipped, frames which are 
+ * truncated or malformed as undecodable, so that a reconstructor can report 
+ * what it did not reassemble.  An instance is not thread safe.
+ */
+public class PacketHeaderDecoder {
+
+	public enum Result {
+		/** A TCP segment, see {@link DecodedHeaders#getPayloadOffset()}. */
+		TCP,
+		/** An IPv4 or IPv6 fragment, see {@link DecodedHeaders#isFragment()}. */
+		FRAGMENT,
+		/** Not a TCP packet, or an unsupported protocol. */
+		SKIPPED,
+		/** A truncated or malformed packet. */
+		UNDECODABLE
+	}
+
+	public static final int ETHERTYPE_IPV4 = 0x0800;
+	public static final int ETHERTYPE_IPV6 = 0x86dd;
+	public static final int ETHERTYPE_VLAN = 0x8100;
+	public static final int ETHERTYPE_QINQ = 0x88a8;
+	public static final int ETHERTYPE_QINQ_OLD = 0x9100;
+	public static final int ETHERTYPE_TEB = 0x6558;
+
+	public static final int PROTOCOL_IPIP = 4;
+	public static final int PROTOCOL_TCP = 6;
+	public static final int PROTOCOL_UDP = 17;
+	public static final int PROTOCOL_IPV6 = 41;
+	public static final int PROTOCOL_GRE = 47;
+
+	public static final int VXLAN_PORT = 4789;
+
+	private static final int MAX_ENCAPSULATIONS = 4;
+	private static final int MAX_EXTENSION_HEADERS = 8;
+
+	private final DecodedHeaders headers = new DecodedHeaders();
+
+	private long tcp = 0, fragments = 0, skipped = 0, undecodable = 0;
+
+	/**
+	 * Decodes a frame.  The result is also counted.
+	 * 
+	 * @param frame the captured bytes, starting with the link layer header.
+	 * @param linkType the link type of the capture, one of the LINKTYPE_ 
+	 * constants of {@link PcapFileReader}.
+	 * @return the kind of packet.  For {@link Result#TCP} and 
+	 * {@link Result#FRAGMENT}, the headers are available from 
+	 * {@link #getHeaders()} until the next call.
+	 */
+	public Result decode(byte[] frame, int linkType) {
+		return decode(frame, 0, frame.length, linkType);
+	}
+
+	/**
+	 * Decodes the frame in frame[offset, end).
+	 */
+	public Result decode(byte[] frame, int offset, int end, int linkType) {
+		headers.reset(frame);
+		Result result = decodeLink(frame, offset, end, linkType);
+		switch (result) {
+		case TCP:
+			tcp++;
+			break;
+		case FRAGMENT:
+			fragments++;
+			break;
+		case SKIPPED:
+			skipped++;
+			break;
+		default:
+			undecodable++;
+		}
+		return result;
+	}
+
+	public DecodedHeaders getHeaders() {
+		return headers;
+	}
+
+	public long getTcpCount() {
+		return tcp;
+	}
+
+	public long getFragmentCount() {
+		return fragments;
+	}
+
+	public long getSkippedCount() {
+		return skipped;
+	}
+
+	public long getUndecodableCount() {
+		return undecodable;
+	}
+
+	public void resetCounters() {
+		tcp = fragments = skipped = undecodable = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "tcp=" + tcp + " fragments=" + fragments + " skipped=" + skipped
+				+ " undecodable=" + undecodable;
+	}
+
+	private Result decodeLink(byte[] f, int pos, int end, int linkType) {
+		switch (linkType) {
+		case PcapFileReader.LINKTYPE_ETHERNET:
+			return decodeEthernet(f, pos, end, 0);
+		case PcapFileReader.LINKTYPE_LINUX_SLL:
+			if (end - pos < 16) {
+				return Result.UNDECODABLE;
+			}
+			return decodeEtherType(f, pos + 16, end, getShort(f, pos + 14), 0);
+		case PcapFileReader.LINKTYPE_LINUX_SLL2:
+			if (end - pos < 20) {
+				return Result.UNDECODABLE;
+			}
+			return decodeEtherType(f, pos + 20, end, getShort(f, pos), 0);
+		case PcapFileReader.LINKTYPE_NULL:
+		case PcapFileReader.LINKTYPE_LOOP:
+			//the address family is in host byte order, use the IP version instead
+			return decodeIp(f, pos + 4, end, 0);
+		case PcapFileReader.LINKTYPE_RAW:
+		case PcapFileReader.LINKTYPE_IPV4:
+		case PcapFileReader.LINKTYPE_IPV6:
+			return decodeIp(f, pos, end, 0);
+		default:
+			return Result.SKIPPED;
+		}
+	}
+
+	private Result decodeEthernet(byte[] f, int pos, int end, int depth) {
+		if (end - pos < 14) {
+			return Result.UNDECODABLE;
+		}
+		return decodeEtherType(f, pos + 14, end, getShort(f, pos + 12), depth);
+	}
+
+	private Result decodeEtherType(byte[] f, int pos, int end, int type, int depth) {
+		while (type == ETHERTYPE_VLAN || type == ETHERTYPE_QINQ || type == ETHERTYPE_QINQ_OLD) {
+			if (end - pos < 4) {
+				return Result.UNDECODABLE;
+			}
+			headers.addVlanTag();
+			type = getShort(f, pos + 2);
+			pos += 4;
+		}
+		switch (type) {
+		case ETHERTYPE_IPV4:
+			return decodeIpv4(f, pos, end, depth);
+		case ETHERTYPE_IPV6:
+			return decodeIpv6(f, pos, end, depth);
+		case ETHERTYPE_TEB:
+			return decodeEthernet(f, pos, end, depth);
+		default:
+			return Result.SKIPPED;
+		}
+	}
+
+	private Result decodeIp(byte[] f, int pos, int end, int depth) {
+		if (pos >= end) {
+			return Result.UNDECODABLE;
+		}
+		switch ((f[pos] & 0xf0) >> 4) {
+		case 4:
+			return decodeIpv4(f, pos, end, depth);
+		case 6:
+			return decodeIpv6(f, pos, end, depth);
+		default:
+			return Result.UNDECODABLE;
+		}
+	}
+
+	private Result decodeIpv4(byte[] f, int pos, int end, int depth) {
+		if (end - pos < 20 || (f[pos] & 0xf0) != 0x40) {
+			return Result.UNDECODABLE;
+		}
+		int ihl = (f[pos] & 0x0f) * 4;
+		if (ihl < 20 || end - pos < ihl) {
+			return Result.UNDECODABLE;
+		}
+		int totalLength = getShort(f, pos + 2);
+		//a zero length is seen with TCP segmentation offload, a longer one with a snap length
+		int ipEnd = totalLength >= ihl ? Math.min(end, pos + totalLength) : end;
+		int protocol = f[pos + 9] & 0xff;
+		int fragment = getShort(f, pos + 6);
+
+		headers.setIp(4, pos, pos + 12, pos + 16, 4);
+		headers.setIpPayload(protocol, pos + ihl, ipEnd);
+		boolean moreFragments = (fragment & 0x2000) != 0;
+		int fragmentOffset = (fragment & 0x1fff) * 8;
+		if (moreFragments || fragmentOffset != 0) {
+			headers.setFragment(getShort(f, pos + 4), fragmentOffset, moreFragments, -1, -1);
+			return Result.FRAGMENT;
+		}
+		return decodeTransport(f, pos + ihl, ipEnd, protocol, depth);
+	}
+
+	private Result decodeIpv6(byte[] f, int pos, int end, int depth) {
+		if (end - pos < 40 || (f[pos] & 0xf0) != 0x60) {
+			return Result.UNDECODABLE;
+		}
+		int payloadLength = getShort(f, pos + 4);
+		//a zero payload length is used by jumbograms and segmentation offload
+		int ipEnd = payloadLength > 0 ? Math.min(end, pos + 40 + payloadLength) : end;
+		headers.setIp(6, pos, pos + 8, pos + 24, 16);
+
+		int nextPosition = pos + 6;
+		int next = f[nextPosition] & 0xff;
+		int p = pos + 40;
+		for (int i = 0; i < MAX_EXTENSION_HEADERS; i++) {
+			int length;
+			switch (next) {
+			case 0: //hop by hop options
+			case 43: //routing
+			case 60: //destination options
+			case 135: //mobility
+			case 139: //host identity protocol
+			case 140: //shim6
+				if (ipEnd - p < 8) {
+					return Result.UNDECODABLE;
+				}
+				length = ((f[p + 1] & 0xff) + 1) * 8;
+				break;
+			case 51: //authentication header
+				if (ipEnd - p < 8) {
+					return Result.UNDECODABLE;
+				}
+				length = ((f[p + 1] & 0xff) + 2) * 4;
+				break;
+			case 44: //fragment
+				if (ipEnd - p < 8) {
+					return Result.UNDECODABLE;
+				}
+				int fragment = getShort(f, p + 2);
+				int fragmentOffset = fragment & 0xfff8;
+				boolean moreFragments = (fragment & 0x0001) != 0;
+				if (fragmentOffset != 0 || moreFragments) {
+					headers.setIpPayload(f[p] & 0xff, p + 8, ipEnd);
+					headers.setFragment(getInt(f, p + 4), fragmentOffset,
+							moreFragments, p, nextPosition);
+					return Result.FRAGMENT;
+				}
+				//atomic fragment, carries the whole datagram
+				length = 8;
+				break;
+			default:
+				headers.setIpPayload(next, p, ipEnd);
+				return decodeTransport(f, p, ipEnd, next, depth);
+			}
+			if (ipEnd - p < length) {
+				return Result.UNDECODABLE;
+			}
+			nextPosition = p;
+			next = f[p] & 0xff;
+			p += length;
+		}
+		return Result.UNDECODABLE;
+	}
+
+	private Result decodeTransport(byte[] f, int pos, int end, int protocol, int depth) {
+		switch (protocol) {
+		case PROTOCOL_TCP:
+			return decodeTcp(f, pos, end);
+		case PROTOCOL_IPIP:
+			if (depth >= MAX_ENCAPSULATIONS) {
+				return Result.UNDECODABLE;
+			}
+			headers.addEncapsulation();
+			return decodeIpv4(f, pos, end, depth + 1);
+		case PROTOCOL_IPV6:
+			if (depth >= MAX_ENCAPSULATIONS) {
+				return Result.UNDECODABLE;
+			}
+			headers.addEncapsulation();
+			return decodeIpv6(f, pos, end, depth + 1);
+		case PROTOCOL_GRE:
+			return decodeGre(f, pos, end, depth);
+		case PROTOCOL_UDP:
+			if (end - pos < 8) {
+				return Result.UNDECODABLE;
+			}
+			if (getShort(f, pos + 2) != VXLAN_PORT) {
+				return Result.SKIPPED;
+			}
+			if (end - pos < 16 || depth >= MAX_ENCAPSULATIONS) {
+				return Result.UNDECODABLE;
+			}
+			headers.addEncapsulation();
+			return decodeEthernet(f, pos + 16, end, depth + 1);
+		default:
+			return Result.SKIPPED;
+		}
+	}
+
+	private Result decodeGre(byte[] f, int pos, int end, int depth) {
+		if (end - pos < 4 || depth >= MAX_ENCAPSULATIONS) {
+			return Result.UNDECODABLE;
+		}
+		int flags = getShort(f, pos);
+		if ((flags & 0x0007) != 0) {
+			//only version 0, not the enhanced GRE of PPTP
+			return Result.SKIPPED;
+		}
+		int length = 4;
+		if ((flags & 0x8000) != 0) {
+			length += 4; //checksum
+		}
+		if ((flags & 0x2000) != 0) {
+			length += 4; //key
+		}
+		if ((flags & 0x1000) != 0) {
+			length += 4; //sequence number
+		}
+		if (end - pos < length) {
+			return Result.UNDECODABLE;
+		}
+		headers.addEncapsulation();
+		return decodeEtherType(f, pos + length, end, getShort(f, pos + 2), depth + 1);
+	}
+
+	private Result decodeTcp(byte[] f, int pos, int end) {
+		if (end - pos < 20) {
+			return Result.UNDECODABLE;
+		}
+		int length = ((f[pos + 12] & 0xf0) >> 4) * 4;
+		if (length < 20 || end - pos < length) {
+			return Result.UNDECODABLE;
+		}
+		headers.setTcp(pos, getShort(f, pos), getShort(f, pos + 2), getInt(f, pos + 4),
+				getInt(f, pos + 8), f[pos + 13] & 0xff, pos + length, end);
+		return Result.TCP;
+	}
+
+	private static int getShort(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+	}
+
+	private static long getInt(byte[] data, int offset) {
+		return ((long) getShort(data, offset) << 16) | getShort(data, offset + 2);
+	}
+}
@@ -2,7 +2,6 @@ package pcap.reconst.tcp.packet;
 
 import io.pkts.packet.TCPPacket;
 
-import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.concurrent.TimeUnit;
@@ -18,16 +17,21 @@ public class PktsIoTcpPacket extends AbstractTcpPacket {
         this.tcpPacket = tcpPacket;
 
         try {
-            this.sourceIp = InetAddress.getByAddress(
-                    BigInteger.valueOf(tcpPacket.getRawSourceIp()).toByteArray());
-            this.destinationIp = InetAddress.getByAddress(
-                    BigInteger.valueOf(tcpPacket.getRawDestinationIp()).toByteArray());
+            this.sourceIp = InetAddress.getByAddress(toBytes(tcpPacket.getRawSourceIp()));
+            this.destinationIp = InetAddress.getByAddress(toBytes(tcpPacket.getRawDestinationIp()));
         }
         catch (UnknownHostException uhe) {
             uhe.printStackTrace();
         }
     }
 
+    //BigInteger.toByteArray() is not always 4 bytes long, e.g. for 10.0.0.1
+    //or addresses with the high bit set
+    private static byte[] toBytes(int address) {
+        return new byte[] { (byte) (address >>> 24), (byte) (address >>> 16),
+                (byte) (address >>> 8), (byte) address };
+    }
+
     @Override
     public InetAddress getSourceIP() {
         return sourceIp;
@@ -123,6 +127,11 @@ public class PktsIoTcpPacket extends AbstractTcpPacket {
         return tcpPacket.isPSH();
     }
 
+    @Override
+    public boolean getRst() {
+        return tcpPacket.isRST();
+    }
+
     @Override
     public long getTimestampSec() {
         return TimeUnit.MICROSECONDS.toSeconds(tcpPacket.getArrivalTime());
@@ -0,0 +1,85 @@
+package pcap.reconst.tcp.packet;
+
+import java.net.UnknownHostException;
+
+import pcap.reconst.io.PcapRecord;
+import pcap.reconst.tcp.PacketFilter;
+
+/**
+ * A TCP packet decoded directly from the bytes of a {@link PcapRecord}, 
+ * without a capture library.  Keeps the file offset of the record it was 
+ * decoded from.
+ */
+public class RawTcpPacket extends DecodedTcpPacket {
+	private final long[] fileOffsets;
+
+	public RawTcpPacket(DecodedHeaders headers, PcapRecord record)
+			throws UnknownHostException {
+		super(headers, record.getCapturedLength(), record.getOriginalLength(),
+				record.getTimestampSec(), record.getTimestampUSec());
+		this.fileOffsets = new long[] { record.getOffset() };
+	}
+
+	/**
+	 * @param fileOffsets the offsets of the records the packet was decoded 
+	 * from, more than one if it was reassembled from IP fragments.
+	 */
+	public RawTcpPacket(DecodedHeaders headers, int captureLength, int length,
+			long timestampSec, long timestampUSec, long[] fileOffsets)
+			throws UnknownHostException {
+		super(headers, captureLength, length, timestampSec, timestampUSec);
+		this.fileOffsets = fileOffsets;
+	}
+
+	/**
+	 * Decodes the link, IP and TCP headers of a record.  See 
+	 * {@link PacketHeaderDecoder} for the supported encapsulations.
+	 * 
+	 * @return the packet, or null if the record is not an unfragmented TCP
+	 * segment.
+	 */
+	public static RawTcpPacket decode(PcapRecord record) {
+		return decode(record, null, new PacketHeaderDecoder());
+	}
+
+	/**
+	 * Decodes a record if it is accepted by filter.  The filter is applied to 
+	 * the raw header fields, before the packet is constructed.
+	 * 
+	 * @param filter the filter, or null to accept all TCP packets.
+	 * @param decoder the decoder, which counts the records it did not decode.
+	 * @return the packet, or null if the record is not an unfragmented TCP
+	 * segment or is not accepted by the filter.
+	 */
+	public static RawTcpPacket decode(PcapRecord record, PacketFilter filter,
+			PacketHeaderDecoder decoder) {
+		if (decoder.decode(record.getData(), record.getLinkType()) != PacketHeaderDecoder.Result.TCP) {
+			return null;
+		}
+		DecodedHeaders headers = decoder.getHeaders();
+		if (filter != null && !filter.accept(headers, record.getTimestampSec(),
+				record.getTimestampUSec())) {
+			return null;
+		}
+		try {
+			return new RawTcpPacket(headers, record);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the file offset of the (first) record the packet was decoded 
+	 * from.
+	 */
+	public long getFileOffset() {
+		return fileOffsets[0];
+	}
+
+	/**
+	 * @return the file offsets of all records the packet was decoded from.
+	 */
+	public long[] getFileOffsets() {
+		return fileOffsets.clone();
+	}
+}
@@ -0,0 +1,11 @@
+package pcap.reconst.tcp.packet;
+
+/**
+ * A {@link TcpPacket} which also reports the RST flag.  Kept apart from 
+ * {@link TcpPacket} so that existing implementations of it are not broken; 
+ * packets which do not implement it are taken not to be resets.
+ */
+public interface ResetAwareTcpPacket extends TcpPacket {
+
+	boolean getRst();
+}
@@ -0,0 +1,45 @@
+package pcap.reconst.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.http.ProtocolException;
+import org.junit.Test;
+
+public class HpackHuffmanTest {
+
+	private static String decode(String hex) throws ProtocolException {
+		byte[] data = HpackDecoderTest.hex(hex);
+		return HpackHuffman.decode(data, 0, data.length);
+	}
+
+	@Test
+	public void decodesExampleStrings() throws Exception {
+		assertEquals("www.example.com", decode("f1e3 c2e5 f23a 6ba0 ab90 f4ff"));
+		assertEquals("no-cache", decode("a8eb 1064 9cbf"));
+		assertEquals("custom-key", decode("25a8 49e9 5ba9 7d7f"));
+		assertEquals("custom-value", decode("25a8 49e9 5bb8 e8b4 bf"));
+		assertEquals("302", decode("6402"));
+		assertEquals("private", decode("aec3 771a 4b"));
+		assertEquals("", decode(""));
+	}
+
+	@Test
+	public void rejectsInvalidPadding() {
+		//"0" is 00000, padded with zeros instead of ones
+		assertInvalid("00");
+		//more than 7 bits of padding
+		assertInvalid("07 ff");
+		//EOS, 30 one bits
+		assertInvalid("ffff fffc");
+	}
+
+	private static void assertInvalid(String hex) {
+		try {
+			decode(hex);
+			fail("decoded " + hex);
+		} catch (ProtocolException e) {
+			//expected
+		}
+	}
+}
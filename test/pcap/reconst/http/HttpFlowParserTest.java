@@ -0,0 +1,109 @@
+package pcap.reconst.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import pcap.reconst.http.datamodel.RecordedHttpFlow;
+import pcap.reconst.tcp.PacketReassembler;
+import pcap.reconst.tcp.SlabPool;
+import pcap.reconst.tcp.StatusHandle;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.packet.FrameBuilder;
+import pcap.reconst.tcp.packet.TestSegment;
+
+public class HttpFlowParserTest {
+	private static final int ACK = FrameBuilder.FLAG_ACK;
+	private static final int PSH_ACK = FrameBuilder.FLAG_PSH | FrameBuilder.FLAG_ACK;
+	private static final int FIN_ACK = FrameBuilder.FLAG_FIN | FrameBuilder.FLAG_ACK;
+
+	private long time = 1000000;
+
+	private void client(PacketReassembler reassembler, long seq, long ack, int flags,
+			String data) throws Exception {
+		reassembler.reassemble(new TestSegment("10.0.0.1", 40000, "10.0.0.2", 80, seq, ack,
+				flags, data.getBytes("ISO-8859-1"), time += 1000));
+	}
+
+	private void server(PacketReassembler reassembler, long seq, long ack, int flags,
+			String data) throws Exception {
+		reassembler.reassemble(new TestSegment("10.0.0.2", 80, "10.0.0.1", 40000, seq, ack,
+				flags, data.getBytes("ISO-8859-1"), time += 1000));
+	}
+
+	//a complete exchange on 10.0.0.1:40000 -> 10.0.0.2:80 with the given ISNs
+	private void session(PacketReassembler reassembler, long isn, long serverIsn, String uri)
+			throws Exception {
+		session(reassembler, isn, serverIsn, uri, "ok");
+	}
+
+	private void session(PacketReassembler reassembler, long isn, long serverIsn, String uri,
+			String body) throws Exception {
+		String request = "GET " + uri + " HTTP/1.1\r\nHost: test\r\n\r\n";
+		String response = "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n"
+				+ body;
+		client(reassembler, isn, 0, FrameBuilder.FLAG_SYN, "");
+		server(reassembler, serverIsn, isn + 1, FrameBuilder.FLAG_SYN | ACK, "");
+		client(reassembler, isn + 1, serverIsn + 1, ACK, "");
+		client(reassembler, isn + 1, serverIsn + 1, PSH_ACK, request);
+		server(reassembler, serverIsn + 1, isn + 1 + request.length(), PSH_ACK, response);
+		client(reassembler, isn + 1 + request.length(), serverIsn + 1 + response.length(),
+				FIN_ACK, "");
+		server(reassembler, serverIsn + 1 + response.length(), isn + 2 + request.length(),
+				FIN_ACK, "");
+	}
+
+	@Test
+	public void parsesEverySessionOfAReusedConnection() throws Exception {
+		PacketReassembler reassembler = new PacketReassembler();
+		session(reassembler, 1000, 5000, "/a");
+		session(reassembler, 900000, 700000, "/second");
+		reassembler.finish();
+
+		Map<TcpConnection, List<RecordedHttpFlow>> flows =
+				new HttpFlowParser(reassembler.getReassembledPackets()).parse(new StatusHandle());
+		assertEquals(1, flows.size());
+		List<String> uris = new ArrayList<String>();
+		for (RecordedHttpFlow flow : flows.values().iterator().next()) {
+			uris.add(flow.getRequest().getRequestLine().getUri());
+		}
+		assertEquals("[/a, /second]", uris.toString());
+	}
+
+	@Test
+	public void releasesPooledConnectionsOnceParsed() throws Exception {
+		SlabPool pool = new SlabPool();
+		PacketReassembler reassembler = new PacketReassembler();
+		reassembler.setSlabPool(pool);
+		session(reassembler, 1000, 5000, "/a");
+		session(reassembler, 900000, 700000, "/second");
+		reassembler.finish();
+		assertEquals(2, pool.getChunksInUse());
+
+		Map<TcpConnection, List<RecordedHttpFlow>> flows =
+				new HttpFlowParser(reassembler.getReassembledPackets()).parse(new StatusHandle());
+		assertEquals(0, pool.getChunksInUse());
+		List<RecordedHttpFlow> parsed = flows.values().iterator().next();
+		assertEquals(2, parsed.size());
+		assertEquals("ok", EntityUtils.toString(parsed.get(1).getResponse().getEntity()));
+	}
+
+	@Test
+	public void keepsBodyBytesIndependentOfThePlatformCharset() throws Exception {
+		PacketReassembler reassembler = new PacketReassembler();
+		session(reassembler, 1000, 5000, "/a", "\u00e9\u00ff\u0080");
+		reassembler.finish();
+
+		Map<TcpConnection, List<RecordedHttpFlow>> flows =
+				new HttpFlowParser(reassembler.getReassembledPackets()).parse(new StatusHandle());
+		RecordedHttpFlow flow = flows.values().iterator().next().get(0);
+		assertArrayEquals(new byte[] { (byte) 0xe9, (byte) 0xff, (byte) 0x80 },
+				EntityUtils.toByteArray(flow.getResponse().getEntity()));
+	}
+}
@@ -0,0 +1,131 @@
+package pcap.reconst.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import pcap.reconst.http.datamodel.RecordedHttpFlow;
+import pcap.reconst.tcp.PacketType;
+import pcap.reconst.tcp.TcpConnection;
+import pcap.reconst.tcp.packet.FrameBuilder;
+import pcap.reconst.tcp.packet.TcpPacket;
+import pcap.reconst.tcp.packet.TestSegment;
+
+public class HttpStreamParserTest {
+	private static final String REQUESTS = "GET /a HTTP/1.1\r\nHost: test\r\n\r\n"
+			+ "GET /b HTTP/1.1\r\nHost: test\r\n\r\n";
+	private static final String CHUNKED = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+			+ "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\nX-Trailer: 1\r\n\r\n";
+	private static final String RESPONSES = CHUNKED
+			+ "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+
+	private final List<RecordedHttpFlow> flows = new ArrayList<RecordedHttpFlow>();
+
+	private HttpStreamParser newParser(HttpBodyLimits bodyLimits) throws Exception {
+		TcpPacket client = packet(PacketType.Request, new byte[0]);
+		return new HttpStreamParser(new TcpConnection(client), new FlowListener() {
+			public void flowParsed(TcpConnection connection, RecordedHttpFlow flow) {
+				flows.add(flow);
+			}
+		}, false, bodyLimits);
+	}
+
+	private static TcpPacket packet(PacketType direction, byte[] data) throws Exception {
+		if (direction == PacketType.Request) {
+			return new TestSegment("10.0.0.1", 40000, "10.0.0.2", 80, 0, 0,
+					FrameBuilder.FLAG_ACK, data, 0);
+		}
+		return new TestSegment("10.0.0.2", 80, "10.0.0.1", 40000, 0, 0,
+				FrameBuilder.FLAG_ACK, data, 0);
+	}
+
+	//feeds text as two segments split at split
+	private static void feed(HttpStreamParser parser, PacketType direction, String text,
+			int split) throws Exception {
+		byte[] data = text.getBytes("ISO-8859-1");
+		byte[] first = new byte[split], second = new byte[data.length - split];
+		System.arraycopy(data, 0, first, 0, split);
+		System.arraycopy(data, split, second, 0, second.length);
+		parser.sequencedData(direction, packet(direction, first), first, 0, first.length);
+		parser.sequencedData(direction, packet(direction, second), second, 0, second.length);
+	}
+
+	private void assertFlows() throws Exception {
+		assertEquals(2, flows.size());
+		assertEquals("/a", flows.get(0).getRequest().getRequestLine().getUri());
+		assertEquals("hello world", EntityUtils.toString(flows.get(0).getResponse().getEntity()));
+		assertFalse(flows.get(0).getResponse().isBodyTruncated());
+		assertEquals("/b", flows.get(1).getRequest().getRequestLine().getUri());
+		assertEquals("ok", EntityUtils.toString(flows.get(1).getResponse().getEntity()));
+	}
+
+	@Test
+	public void framesChunkedBodyAtAnySplit() throws Exception {
+		for (int split = 1; split < RESPONSES.length(); split++) {
+			flows.clear();
+			HttpStreamParser parser = newParser(null);
+			feed(parser, PacketType.Request, REQUESTS, REQUESTS.length() / 2);
+			feed(parser, PacketType.Response, RESPONSES, split);
+			parser.streamClosed();
+			assertFlows();
+		}
+	}
+
+	@Test
+	public void decodesChunkedBodyUnderLimits() throws Exception {
+		for (int split = 1; split < RESPONSES.length(); split++) {
+			flows.clear();
+			HttpStreamParser parser = newParser(new HttpBodyLimits(1024));
+			feed(parser, PacketType.Request, REQUESTS, REQUESTS.length() / 2);
+			feed(parser, PacketType.Response, RESPONSES, split);
+			parser.streamClosed();
+			assertFlows();
+		}
+	}
+
+	@Test
+	public void truncatesChunkedBodyOverLimit() throws Exception {
+		HttpStreamParser parser = newParser(new HttpBodyLimits(7));
+		feed(parser, PacketType.Request, REQUESTS, 1);
+		feed(parser, PacketType.Response, RESPONSES, 1);
+		parser.streamClosed();
+		assertEquals(2, flows.size());
+		assertEquals("hello w", EntityUtils.toString(flows.get(0).getResponse().getEntity()));
+		assertEquals(true, flows.get(0).getResponse().isBodyTruncated());
+	}
+
+	@Test
+	public void boundsBodyUntilCloseWithoutLimits() throws Exception {
+		HttpStreamParser parser = newParser(null);
+		feed(parser, PacketType.Request, REQUESTS, 1);
+		feed(parser, PacketType.Response, "HTTP/1.1 200 OK\r\n\r\n", 1);
+		byte[] data = new byte[64 * 1024];
+		long total = HttpBodyLimits.DEFAULT_MAX_BODY_BYTES + data.length;
+		for (long sent = 0; sent < total; sent += data.length) {
+			parser.sequencedData(PacketType.Response, packet(PacketType.Response, data), data,
+					0, data.length);
+		}
+		parser.streamClosed();
+		assertEquals(2, flows.size());
+		assertEquals(HttpBodyLimits.DEFAULT_MAX_BODY_BYTES,
+				flows.get(0).getResponse().getEntity().getContentLength());
+		assertEquals(true, flows.get(0).getResponse().isBodyTruncated());
+	}
+
+	@Test
+	public void emitsRequestWithoutResponseOnClose() throws Exception {
+		HttpStreamParser parser = newParser(null);
+		feed(parser, PacketType.Request, REQUESTS, 5);
+		feed(parser, PacketType.Response, CHUNKED.substring(0, CHUNKED.length() - 10), 3);
+		parser.streamClosed();
+		assertEquals(2, flows.size());
+		assertEquals("/b", flows.get(1).getRequest().getRequestLine().getUri());
+		assertNull(flows.get(1).getResponse());
+	}
+}
@@ -0,0 +1,69 @@
+package pcap.reconst.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DirectPayloadStoreTest {
+
+	private static byte[] bytes(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (seed + i * 31);
+		}
+		return data;
+	}
+
+	@Test
+	public void smallStoresShareSlabs() throws Exception {
+		SlabPool pool = new SlabPool(64 * 1024, 1024, 4);
+		DirectPayloadStore[] stores = new DirectPayloadStore[640];
+		for (int i = 0; i < stores.length; i++) {
+			stores[i] = new DirectPayloadStore(pool);
+			stores[i].append(bytes(100, i), 0, 100);
+		}
+		//one chunk each, 64 chunks per slab
+		assertEquals(10, pool.getAllocatedSlabs());
+		assertEquals(640, pool.getChunksInUse());
+		for (int i = 0; i < stores.length; i++) {
+			byte[] read = new byte[100];
+			stores[i].read(0, read, 0, read.length);
+			assertArrayEquals(bytes(100, i), read);
+			stores[i].close();
+		}
+		assertEquals(0, pool.getChunksInUse());
+
+		//released chunks are reused
+		new DirectPayloadStore(pool).append(bytes(100, 0), 0, 100);
+		assertEquals(10, pool.getAllocatedSlabs());
+	}
+
+	@Test
+	public void growsFromChunksToSlabs() throws Exception {
+		SlabPool pool = new SlabPool(4096, 1024, 4);
+		DirectPayloadStore store = new DirectPayloadStore(pool);
+		byte[] data = bytes(3 * 4096 + 100, 7);
+		//appends straddling the chunk and slab boundaries
+		for (int offset = 0; offset < data.length; offset += 1000) {
+			int length = Math.min(1000, data.length - offset);
+			assertEquals(offset, store.append(data, offset, length));
+		}
+		assertEquals(data.length, store.getSize());
+		//four chunks of one slab, then three whole slabs
+		assertEquals(4, pool.getChunksInUse());
+		assertEquals(4, pool.getSlabsInUse());
+
+		byte[] read = new byte[data.length - 10];
+		store.read(10, read, 0, read.length);
+		byte[] expected = new byte[read.length];
+		System.arraycopy(data, 10, expected, 0, expected.length);
+		assertArrayEquals(expected, read);
+
+		store.close();
+		assertEquals(0, pool.getChunksInUse());
+		//the slab the chunks were cut from stays with the chunks
+		assertEquals(1, pool.getSlabsInUse());
+		assertEquals(3, pool.getPooledSlabs());
+	}
+}
@@ -0,0 +1,92 @@
+package pcap.reconst.tcp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+import pcap.reconst.tcp.packet.FrameBuilder;
+import pcap.reconst.tcp.packet.TcpPacket;
+import pcap.reconst.tcp.packet.TestSegment;
+
+public class SequencedStreamTest {
+
+	//records what a stream delivers, gaps as [n]
+	private static class Recorder implements StreamConsumer {
+		final StringBuilder delivered = new StringBuilder();
+		boolean closed = false;
+
+		public void sequencedData(PacketType direction, TcpPacket packet, byte[] data,
+				int offset, int length) {
+			delivered.append(new String(data, offset, length));
+		}
+
+		public void sequenceGap(PacketType direction, long length) {
+			delivered.append("[" + length + "]");
+		}
+
+		public void streamClosed() {
+			closed = true;
+		}
+	}
+
+	private static TcpPacket segment(long sequence, String data) throws UnknownHostException {
+		return new TestSegment("10.0.0.1", 40000, "10.0.0.2", 80, sequence, 0,
+				FrameBuilder.FLAG_ACK, data.getBytes(), 0);
+	}
+
+	private static TcpPacket syn(long sequence) throws UnknownHostException {
+		return new TestSegment("10.0.0.1", 40000, "10.0.0.2", 80, sequence, 0,
+				FrameBuilder.FLAG_SYN, new byte[0], 0);
+	}
+
+	@Test
+	public void holdsSegmentsUntilTheGapIsFilled() throws Exception {
+		Recorder recorder = new Recorder();
+		SequencedStream stream = new SequencedStream(PacketType.Request, recorder, 8);
+		stream.offer(syn(99));
+		stream.offer(segment(100, "abc"));
+		stream.offer(segment(106, "ghi"));
+		stream.offer(segment(103, "def"));
+		//a retransmission overlapping delivered bytes
+		stream.offer(segment(104, "efgh"));
+		stream.offer(segment(109, "j"));
+		assertEquals("abcdefghij", recorder.delivered.toString());
+	}
+
+	@Test
+	public void reportsGapWhenTooManySegmentsWait() throws Exception {
+		Recorder recorder = new Recorder();
+		SequencedStream stream = new SequencedStream(PacketType.Request, recorder, 2);
+		stream.offer(segment(100, "ab"));
+		stream.offer(segment(105, "c"));
+		stream.offer(segment(106, "d"));
+		assertEquals("ab", recorder.delivered.toString());
+		stream.offer(segment(107, "e"));
+		assertEquals("ab[3]cde", recorder.delivered.toString());
+	}
+
+	@Test
+	public void reportsAcknowledgedGap() throws Exception {
+		Recorder recorder = new Recorder();
+		SequencedStream stream = new SequencedStream(PacketType.Request, recorder, 8);
+		stream.offer(segment(100, "ab"));
+		stream.offer(segment(110, "c"));
+		stream.acknowledged(105);
+		assertEquals("ab[3]", recorder.delivered.toString());
+		stream.close();
+		assertEquals("ab[3][5]c", recorder.delivered.toString());
+	}
+
+	@Test
+	public void deliversAcrossSequenceWraparound() throws Exception {
+		Recorder recorder = new Recorder();
+		SequencedStream stream = new SequencedStream(PacketType.Request, recorder, 8);
+		long start = 0xffffffffL - 3;
+		stream.offer(segment(start, "abc"));
+		stream.offer(segment(TcpSequence.add(start, 6), "ghi"));
+		stream.offer(segment(TcpSequence.add(start, 3), "def"));
+		assertEquals("abcdefghi", recorder.delivered.toString());
+	}
+}
@@ -0,0 +1,66 @@
+package pcap.reconst.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import pcap.reconst.tcp.packet.FrameBuilder;
+import pcap.reconst.tcp.packet.TcpPacket;
+import pcap.reconst.tcp.packet.TestSegment;
+
+public class TcpReassemblerTest {
+
+	private static void client(PacketReassembler reassembler, long seq, int flags, String data)
+			throws Exception {
+		reassembler.reassemble(new TestSegment("10.0.0.1", 40000, "10.0.0.2", 80, seq, 0,
+				flags, data.getBytes("ISO-8859-1"), 0));
+	}
+
+	private static TcpReassembler only(PacketReassembler reassembler) {
+		assertEquals(1, reassembler.getReassembledPackets().size());
+		return reassembler.getReassembledPackets().values().iterator().next();
+	}
+
+	@Test
+	public void retransmissionsDoNotCountTowardsTheLimit() throws Exception {
+		PacketReassembler reassembler = new PacketReassembler();
+		reassembler.setMaxBytesPerDirection(10);
+		client(reassembler, 0, FrameBuilder.FLAG_SYN, "");
+		client(reassembler, 1, FrameBuilder.FLAG_ACK, "abcde");
+		client(reassembler, 1, FrameBuilder.FLAG_ACK, "abcde");
+		//only fgh is new
+		client(reassembler, 3, FrameBuilder.FLAG_ACK, "cdefgh");
+		client(reassembler, 9, FrameBuilder.FLAG_ACK, "ij");
+		TcpReassembler tcpReassembler = only(reassembler);
+		assertFalse(tcpReassembler.isTruncated(PacketType.Request));
+		assertEquals("abcdefghij", tcpReassembler.getOrderedPacketData());
+
+		client(reassembler, 11, FrameBuilder.FLAG_ACK, "k");
+		assertTrue(tcpReassembler.isTruncated(PacketType.Request));
+		assertEquals("abcdefghij", tcpReassembler.getOrderedPacketData());
+	}
+
+	@Test
+	public void packetViewsFailAfterRelease() throws Exception {
+		SlabPool pool = new SlabPool();
+		PacketReassembler reassembler = new PacketReassembler();
+		reassembler.setSlabPool(pool);
+		client(reassembler, 0, FrameBuilder.FLAG_SYN, "");
+		client(reassembler, 1, FrameBuilder.FLAG_ACK, "abc");
+		TcpReassembler tcpReassembler = only(reassembler);
+		TcpPacket packet = tcpReassembler.getSegments().getPacket(1);
+		assertEquals("abc", new String(packet.getData(), "ISO-8859-1"));
+
+		tcpReassembler.release();
+		assertEquals(0, pool.getChunksInUse());
+		try {
+			packet.getData();
+			fail("read a released packet");
+		} catch (IllegalStateException e) {
+			//expected
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package pcap.reconst.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TcpSequenceTest {
+	private static final long MAX = 0xffffffffL;
+
+	@Test
+	public void addWrapsAround() {
+		assertEquals(0, TcpSequence.add(MAX, 1));
+		assertEquals(99, TcpSequence.add(MAX - 100, 200));
+		assertEquals(MAX, TcpSequence.add(0, -1));
+	}
+
+	@Test
+	public void comparesAcrossWraparound() {
+		assertTrue(TcpSequence.lessThan(MAX - 10, 5));
+		assertTrue(TcpSequence.greaterThan(5, MAX - 10));
+		assertFalse(TcpSequence.lessThan(5, MAX - 10));
+		assertEquals(-1, TcpSequence.compare(MAX, 0));
+		assertEquals(1, TcpSequence.compare(0, MAX));
+		assertEquals(0, TcpSequence.compare(1234, 1234));
+		assertEquals(16, TcpSequence.difference(MAX - 10, 5));
+		assertEquals(-16, TcpSequence.difference(5, MAX - 10));
+	}
+
+	@Test
+	public void comparesHalfTheSpaceApart() {
+		//less than 2^31 ahead is after
+		assertTrue(TcpSequence.lessThan(0, 0x7fffffffL));
+		assertTrue(TcpSequence.greaterThan(0, 0x80000001L));
+	}
+
+	@Test
+	public void unwrapKeepsIncreasing() {
+		long position = MAX - 5;
+		position = TcpSequence.unwrap(TcpSequence.add(MAX, 10), position);
+		assertEquals(MAX + 10, position);
+		assertEquals(MAX + 10 + 0x10000000L, TcpSequence.unwrap(
+				TcpSequence.add(9, 0x10000000L), position));
+		//a retransmission from before the wrap
+		assertEquals(MAX - 20, TcpSequence.unwrap(MAX - 20, position));
+	}
+}
@@ -0,0 +1,114 @@
+package pcap.reconst.tcp.packet;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Builds the header bytes of test frames, outermost header first.
+ */
+public class FrameBuilder {
+	public static final int FLAG_FIN = 0x01, FLAG_SYN = 0x02, FLAG_RST = 0x04,
+			FLAG_PSH = 0x08, FLAG_ACK = 0x10;
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+	public FrameBuilder ethernet(int etherType) {
+		bytes(new byte[12]);
+		return short16(etherType);
+	}
+
+	/**
+	 * A VLAN tag, following the EtherType holding its TPID.
+	 */
+	public FrameBuilder vlan(int vid, int etherType) {
+		return short16(vid).short16(etherType);
+	}
+
+	/**
+	 * An IPv4 header without options.
+	 */
+	public FrameBuilder ipv4(int protocol, int totalLength, int id, int fragment,
+			int[] source, int[] destination) {
+		short16(0x4500).short16(totalLength).short16(id).short16(fragment);
+		bytes(new byte[] { 64, (byte) protocol, 0, 0 });
+		return address(source).address(destination);
+	}
+
+	/**
+	 * An IPv6 header with 16 byte addresses whose last byte is given.
+	 */
+	public FrameBuilder ipv6(int nextHeader, int payloadLength, int source, int destination) {
+		short16(0x6000).short16(0).short16(payloadLength);
+		bytes(new byte[] { (byte) nextHeader, 64 });
+		byte[] address = new byte[16];
+		address[0] = (byte) 0xfd;
+		address[15] = (byte) source;
+		bytes(address);
+		address[15] = (byte) destination;
+		return bytes(address);
+	}
+
+	/**
+	 * An IPv6 extension header of 8 bytes.
+	 */
+	public FrameBuilder extension(int nextHeader) {
+		return bytes(new byte[] { (byte) nextHeader, 0, 1, 4, 0, 0, 0, 0 });
+	}
+
+	public FrameBuilder ipv6Fragment(int nextHeader, int offset, boolean more, long id) {
+		bytes(new byte[] { (byte) nextHeader, 0 });
+		short16(offset | (more ? 1 : 0));
+		return int32(id);
+	}
+
+	public FrameBuilder udp(int sourcePort, int destinationPort, int length) {
+		return short16(sourcePort).short16(destinationPort).short16(length).short16(0);
+	}
+
+	public FrameBuilder gre(int flags, int protocol) {
+		return short16(flags).short16(protocol);
+	}
+
+	public FrameBuilder vxlan(int vni) {
+		return int32(0x08000000).int32(vni << 8);
+	}
+
+	/**
+	 * A TCP header without options.
+	 */
+	public FrameBuilder tcp(int sourcePort, int destinationPort, long sequence, long ack,
+			int flags) {
+		short16(sourcePort).short16(destinationPort).int32(sequence).int32(ack);
+		bytes(new byte[] { 0x50, (byte) flags });
+		return short16(65535).short16(0).short16(0);
+	}
+
+	public FrameBuilder bytes(byte[] data) {
+		out.write(data, 0, data.length);
+		return this;
+	}
+
+	public FrameBuilder short16(int value) {
+		out.write(value >> 8);
+		out.write(value);
+		return this;
+	}
+
+	public FrameBuilder int32(long value) {
+		return short16((int) (value >> 16) & 0xffff).short16((int) value & 0xffff);
+	}
+
+	private FrameBuilder address(int[] address) {
+		for (int b : address) {
+			out.write(b);
+		}
+		return this;
+	}
+
+	public int length() {
+		return out.size();
+	}
+
+	public byte[] build() {
+		return out.toByteArray();
+	}
+}
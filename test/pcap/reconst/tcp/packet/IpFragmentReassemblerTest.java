@@ -0,0 +1,146 @@
+package pcap.reconst.tcp.packet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import pcap.reconst.io.PcapFileReader;
+import pcap.reconst.tcp.packet.PacketHeaderDecoder.Result;
+
+public class IpFragmentReassemblerTest {
+	private static final int[] CLIENT = { 10, 0, 0, 1 }, SERVER = { 10, 0, 0, 2 };
+
+	private final PacketHeaderDecoder decoder = new PacketHeaderDecoder();
+
+	//a TCP segment with a payload of length bytes counting up
+	private static byte[] segment(int length) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) i;
+		}
+		return new FrameBuilder().tcp(40000, 80, 1000, 2000, FrameBuilder.FLAG_ACK)
+				.bytes(payload).build();
+	}
+
+	//an IPv4 fragment of transport holding [first, first + count)
+	private static byte[] ipv4Fragment(byte[] transport, int first, int count, boolean more) {
+		int fragment = (first / 8) | (more ? 0x2000 : 0);
+		return new FrameBuilder().ipv4(PacketHeaderDecoder.PROTOCOL_TCP, 20 + count, 77,
+				fragment, CLIENT, SERVER)
+				.bytes(Arrays.copyOfRange(transport, first, first + count)).build();
+	}
+
+	private static byte[] ipv6Fragment(byte[] transport, int first, int count, boolean more) {
+		return new FrameBuilder().ipv6(44, 8 + count, 1, 2)
+				.ipv6Fragment(PacketHeaderDecoder.PROTOCOL_TCP, first, more, 99)
+				.bytes(Arrays.copyOfRange(transport, first, first + count)).build();
+	}
+
+	private byte[] add(IpFragmentReassembler reassembler, byte[] frame, long sec, long origin) {
+		assertEquals(Result.FRAGMENT, decoder.decode(frame, PcapFileReader.LINKTYPE_RAW));
+		return reassembler.add(decoder.getHeaders(), sec, 0, origin);
+	}
+
+	private void assertSegment(byte[] datagram, byte[] transport) {
+		assertEquals(Result.TCP, decoder.decode(datagram, PcapFileReader.LINKTYPE_RAW));
+		DecodedHeaders headers = decoder.getHeaders();
+		assertEquals(40000, headers.getSourcePort());
+		assertArrayEquals(transport, Arrays.copyOfRange(datagram, headers.getIpPayloadOffset(),
+				headers.getIpPayloadEnd()));
+	}
+
+	@Test
+	public void reassemblesIpv4OutOfOrder() {
+		byte[] transport = segment(100);
+		IpFragmentReassembler reassembler = new IpFragmentReassembler();
+		assertNull(add(reassembler, ipv4Fragment(transport, 48, 72, false), 1, 30));
+		assertNull(add(reassembler, ipv4Fragment(transport, 0, 24, true), 1, 10));
+		assertEquals(1, reassembler.getPendingCount());
+		byte[] datagram = add(reassembler, ipv4Fragment(transport, 24, 24, true), 1, 20);
+		assertNotNull(datagram);
+		assertEquals(20 + 120, datagram.length);
+		assertSegment(datagram, transport);
+		//the rebuilt header has a valid checksum and no fragment fields
+		long sum = 0;
+		for (int i = 0; i < 20; i += 2) {
+			sum += ((datagram[i] & 0xff) << 8) | (datagram[i + 1] & 0xff);
+		}
+		while ((sum >> 16) != 0) {
+			sum = (sum & 0xffff) + (sum >> 16);
+		}
+		assertEquals(0xffff, sum);
+		assertEquals(0, datagram[6] & 0x3f);
+		assertEquals(0, datagram[7]);
+		assertArrayEquals(new long[] { 30, 10, 20 }, reassembler.getCompletedOrigins());
+		assertEquals(0, reassembler.getPendingCount());
+		assertEquals(0, reassembler.getBufferedBytes());
+	}
+
+	@Test
+	public void keepsFirstDataOfOverlaps() {
+		byte[] transport = segment(40);
+		byte[] other = transport.clone();
+		Arrays.fill(other, 24, 40, (byte) 0x7f);
+		IpFragmentReassembler reassembler = new IpFragmentReassembler();
+		assertNull(add(reassembler, ipv4Fragment(transport, 0, 32, true), 1, -1));
+		//overlaps the first fragment by 8 bytes which are not taken
+		byte[] datagram = add(reassembler, ipv4Fragment(other, 24, 36, false), 1, -1);
+		assertNotNull(datagram);
+		byte[] expected = Arrays.copyOf(transport, 60);
+		System.arraycopy(other, 32, expected, 32, 28);
+		assertSegment(datagram, expected);
+	}
+
+	@Test
+	public void reassemblesIpv6() {
+		byte[] transport = segment(50);
+		IpFragmentReassembler reassembler = new IpFragmentReassembler();
+		assertNull(add(reassembler, ipv6Fragment(transport, 32, 38, false), 1, -1));
+		byte[] datagram = add(reassembler, ipv6Fragment(transport, 0, 32, true), 1, -1);
+		assertNotNull(datagram);
+		//the fragment header is dropped
+		assertEquals(40 + 70, datagram.length);
+		assertEquals(PacketHeaderDecoder.PROTOCOL_TCP, datagram[6]);
+		assertSegment(datagram, transport);
+	}
+
+	@Test
+	public void expiresIncompleteDatagrams() {
+		byte[] transport = segment(100);
+		IpFragmentReassembler reassembler = new IpFragmentReassembler(
+				IpFragmentReassembler.DEFAULT_MEMORY_BUDGET, 1000);
+		assertNull(add(reassembler, ipv4Fragment(transport, 0, 24, true), 10, -1));
+		assertNull(add(reassembler, ipv4Fragment(transport, 48, 72, false), 12, -1));
+		assertEquals(1, reassembler.getExpiredCount());
+		//the middle fragment can not complete the datagram any more
+		assertNull(add(reassembler, ipv4Fragment(transport, 24, 24, true), 12, -1));
+		assertEquals(0, reassembler.getReassembledCount());
+	}
+
+	@Test
+	public void evictsOldestOverBudget() {
+		byte[] transport = segment(3000);
+		IpFragmentReassembler reassembler = new IpFragmentReassembler(4096, 30000);
+		assertNull(add(reassembler, ipv4Fragment(transport, 0, 1496, true), 1, -1));
+		byte[] second = new FrameBuilder().ipv4(PacketHeaderDecoder.PROTOCOL_TCP, 20 + 1496,
+				78, 0x2000, CLIENT, SERVER).bytes(new byte[1496]).build();
+		assertNull(add(reassembler, second, 1, -1));
+		assertEquals(1, reassembler.getEvictedCount());
+		assertEquals(1, reassembler.getPendingCount());
+	}
+
+	@Test
+	public void rejectsInconsistentLengths() {
+		byte[] transport = segment(100);
+		IpFragmentReassembler reassembler = new IpFragmentReassembler();
+		assertNull(add(reassembler, ipv4Fragment(transport, 48, 72, false), 1, -1));
+		assertNull(add(reassembler, ipv4Fragment(transport, 24, 16, false), 1, -1));
+		assertEquals(1, reassembler.getInvalidCount());
+		assertEquals(0, reassembler.getPendingCount());
+	}
+}
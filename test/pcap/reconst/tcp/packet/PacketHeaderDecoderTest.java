@@ -0,0 +1,154 @@
+package pcap.reconst.tcp.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import pcap.reconst.io.PcapFileReader;
+import pcap.reconst.tcp.packet.PacketHeaderDecoder.Result;
+
+public class PacketHeaderDecoderTest {
+	private static final int[] CLIENT = { 10, 0, 0, 1 }, SERVER = { 10, 0, 0, 2 };
+	private static final int[] OUTER_CLIENT = { 192, 168, 0, 1 }, OUTER_SERVER = { 192, 168, 0, 2 };
+	private static final byte[] PAYLOAD = "GET / HTTP/1.1\r\n\r\n".getBytes();
+
+	private final PacketHeaderDecoder decoder = new PacketHeaderDecoder();
+
+	private static FrameBuilder ipv4Tcp(FrameBuilder frame, int[] source, int[] destination) {
+		return frame.ipv4(PacketHeaderDecoder.PROTOCOL_TCP, 40 + PAYLOAD.length, 1, 0x4000,
+				source, destination)
+				.tcp(40000, 80, 1000, 2000, FrameBuilder.FLAG_ACK | FrameBuilder.FLAG_PSH)
+				.bytes(PAYLOAD);
+	}
+
+	private void assertTcp(byte[] frame, int linkType) {
+		assertEquals(Result.TCP, decoder.decode(frame, linkType));
+		DecodedHeaders headers = decoder.getHeaders();
+		assertEquals(40000, headers.getSourcePort());
+		assertEquals(80, headers.getDestinationPort());
+		assertEquals(1000, headers.getSequence());
+		assertEquals(2000, headers.getAckNum());
+		assertEquals(PAYLOAD.length, headers.getPayloadEnd() - headers.getPayloadOffset());
+		assertEquals('G', frame[headers.getPayloadOffset()]);
+	}
+
+	@Test
+	public void decodesEthernetIpv4() throws Exception {
+		byte[] frame = ipv4Tcp(new FrameBuilder().ethernet(PacketHeaderDecoder.ETHERTYPE_IPV4),
+				CLIENT, SERVER).build();
+		assertTcp(frame, PcapFileReader.LINKTYPE_ETHERNET);
+		DecodedHeaders headers = decoder.getHeaders();
+		assertEquals(4, headers.getIpVersion());
+		assertEquals(0, headers.getVlanTags());
+		assertEquals("/10.0.0.1", headers.getSourceIP().toString());
+	}
+
+	@Test
+	public void decodesStackedVlanTags() throws Exception {
+		byte[] frame = ipv4Tcp(new FrameBuilder().ethernet(PacketHeaderDecoder.ETHERTYPE_QINQ)
+				.vlan(100, PacketHeaderDecoder.ETHERTYPE_VLAN)
+				.vlan(200, PacketHeaderDecoder.ETHERTYPE_IPV4), CLIENT, SERVER).build();
+		assertTcp(frame, PcapFileReader.LINKTYPE_ETHERNET);
+		assertEquals(2, decoder.getHeaders().getVlanTags());
+	}
+
+	@Test
+	public void decodesGreWithKeyAndSequence() throws Exception {
+		FrameBuilder frame = new FrameBuilder().ethernet(PacketHeaderDecoder.ETHERTYPE_IPV4)
+				.ipv4(PacketHeaderDecoder.PROTOCOL_GRE, 20 + 12 + 40 + PAYLOAD.length, 7, 0,
+						OUTER_CLIENT, OUTER_SERVER)
+				.gre(0x3000, PacketHeaderDecoder.ETHERTYPE_IPV4).int32(42).int32(1);
+		byte[] bytes = ipv4Tcp(frame, CLIENT, SERVER).build();
+		assertTcp(bytes, PcapFileReader.LINKTYPE_ETHERNET);
+		DecodedHeaders headers = decoder.getHeaders();
+		assertEquals(1, headers.getEncapsulations());
+		assertEquals("/10.0.0.1", headers.getSourceIP().toString());
+	}
+
+	@Test
+	public void skipsEnhancedGre() {
+		byte[] frame = new FrameBuilder().ethernet(PacketHeaderDecoder.ETHERTYPE_IPV4)
+				.ipv4(PacketHeaderDecoder.PROTOCOL_GRE, 20 + 8, 7, 0, OUTER_CLIENT, OUTER_SERVER)
+				.gre(0x3001, 0x880b).int32(0).build();
+		assertEquals(Result.SKIPPED, decoder.decode(frame, PcapFileReader.LINKTYPE_ETHERNET));
+	}
+
+	@Test
+	public void decodesVxlan() throws Exception {
+		FrameBuilder frame = new FrameBuilder().ethernet(PacketHeaderDecoder.ETHERTYPE_IPV4)
+				.ipv4(PacketHeaderDecoder.PROTOCOL_UDP, 20 + 8 + 8 + 14 + 40 + PAYLOAD.length,
+						7, 0, OUTER_CLIENT, OUTER_SERVER)
+				.udp(50000, PacketHeaderDecoder.VXLAN_PORT, 8 + 8 + 14 + 40 + PAYLOAD.length)
+				.vxlan(5001)
+				.ethernet(PacketHeaderDecoder.ETHERTYPE_IPV4);
+		byte[] bytes = ipv4Tcp(frame, CLIENT, SERVER).build();
+		assertTcp(bytes, PcapFileReader.LINKTYPE_ETHERNET);
+		assertEquals(1, decoder.getHeaders().getEncapsulations());
+		assertEquals("/10.0.0.2", decoder.getHeaders().getDestinationIP().toString());
+	}
+
+	@Test
+	public void skipsOtherUdp() {
+		byte[] frame = new FrameBuilder().ethernet(PacketHeaderDecoder.ETHERTYPE_IPV4)
+				.ipv4(PacketHeaderDecoder.PROTOCOL_UDP, 20 + 8, 7, 0, CLIENT, SERVER)
+				.udp(50000, 53, 8).build();
+		assertEquals(Result.SKIPPED, decoder.decode(frame, PcapFileReader.LINKTYPE_ETHERNET));
+		assertEquals(1, decoder.getSkippedCount());
+	}
+
+	@Test
+	public void decodesIpv6ExtensionHeaders() throws Exception {
+		byte[] frame = new FrameBuilder().ethernet(PacketHeaderDecoder.ETHERTYPE_IPV6)
+				//hop by hop, then destination options
+				.ipv6(0, 8 + 8 + 20 + PAYLOAD.length, 1, 2)
+				.extension(60)
+				.extension(PacketHeaderDecoder.PROTOCOL_TCP)
+				.tcp(40000, 80, 1000, 2000, FrameBuilder.FLAG_ACK)
+				.bytes(PAYLOAD).build();
+		assertTcp(frame, PcapFileReader.LINKTYPE_ETHERNET);
+		DecodedHeaders headers = decoder.getHeaders();
+		assertEquals(6, headers.getIpVersion());
+		assertEquals(PacketHeaderDecoder.PROTOCOL_TCP, headers.getProtocol());
+		assertEquals(14 + 40 + 16, headers.getIpPayloadOffset());
+	}
+
+	@Test
+	public void decodesIpv6Fragment() {
+		byte[] frame = new FrameBuilder()
+				.ipv6(44, 8 + 16, 1, 2)
+				.ipv6Fragment(PacketHeaderDecoder.PROTOCOL_TCP, 0, true, 0x12345678L)
+				.bytes(new byte[16]).build();
+		assertEquals(Result.FRAGMENT, decoder.decode(frame, PcapFileReader.LINKTYPE_RAW));
+		DecodedHeaders headers = decoder.getHeaders();
+		assertTrue(headers.isFragment());
+		assertTrue(headers.hasMoreFragments());
+		assertEquals(0x12345678L, headers.getFragmentId());
+		assertEquals(40, headers.getFragmentHeaderOffset());
+	}
+
+	@Test
+	public void decodesIpv4InIpv6() throws Exception {
+		FrameBuilder frame = new FrameBuilder()
+				.ipv6(PacketHeaderDecoder.PROTOCOL_IPIP, 40 + PAYLOAD.length, 1, 2);
+		byte[] bytes = ipv4Tcp(frame, CLIENT, SERVER).build();
+		assertTcp(bytes, PcapFileReader.LINKTYPE_RAW);
+		assertEquals(4, decoder.getHeaders().getIpVersion());
+		assertEquals(1, decoder.getHeaders().getEncapsulations());
+	}
+
+	@Test
+	public void rejectsTruncatedFrames() {
+		byte[] frame = ipv4Tcp(new FrameBuilder().ethernet(PacketHeaderDecoder.ETHERTYPE_IPV4),
+				CLIENT, SERVER).build();
+		//cut into the TCP header
+		byte[] truncated = new byte[14 + 20 + 10];
+		System.arraycopy(frame, 0, truncated, 0, truncated.length);
+		assertEquals(Result.UNDECODABLE,
+				decoder.decode(truncated, PcapFileReader.LINKTYPE_ETHERNET));
+		//an extension header running past the end of the packet
+		byte[] ipv6 = new FrameBuilder().ipv6(0, 4, 1, 2).bytes(new byte[4]).build();
+		assertEquals(Result.UNDECODABLE, decoder.decode(ipv6, PcapFileReader.LINKTYPE_RAW));
+		assertEquals(2, decoder.getUndecodableCount());
+	}
+}
@@ -0,0 +1,103 @@
+package pcap.reconst.tcp.packet;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A TCP segment built by a test, see the FLAG_ constants of
+ * {@link FrameBuilder}.
+ */
+public class TestSegment extends AbstractTcpPacket {
+	private final InetAddress sourceIP, destinationIP;
+	private final int sourcePort, destinationPort;
+	private final long sequence, ackNum;
+	private final int flags;
+	private final byte[] data;
+	private final long timestampUSec;
+
+	public TestSegment(String sourceIP, int sourcePort, String destinationIP,
+			int destinationPort, long sequence, long ackNum, int flags, byte[] data,
+			long timestampUSec) throws UnknownHostException {
+		this.sourceIP = InetAddress.getByName(sourceIP);
+		this.sourcePort = sourcePort;
+		this.destinationIP = InetAddress.getByName(destinationIP);
+		this.destinationPort = destinationPort;
+		this.sequence = sequence;
+		this.ackNum = ackNum;
+		this.flags = flags;
+		this.data = data;
+		this.timestampUSec = timestampUSec;
+	}
+
+	public InetAddress getSourceIP() {
+		return sourceIP;
+	}
+
+	public int getSourcePort() {
+		return sourcePort;
+	}
+
+	public InetAddress getDestinationIP() {
+		return destinationIP;
+	}
+
+	public int getDestinationPort() {
+		return destinationPort;
+	}
+
+	public int getCaptureLength() {
+		return getLength();
+	}
+
+	public int getLength() {
+		return 40 + data.length;
+	}
+
+	public int getHeaderLength() {
+		return 40;
+	}
+
+	public int getDataLength() {
+		return data.length;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getAckNum() {
+		return ackNum;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public boolean getSyn() {
+		return (flags & FrameBuilder.FLAG_SYN) != 0;
+	}
+
+	public boolean getAck() {
+		return (flags & FrameBuilder.FLAG_ACK) != 0;
+	}
+
+	public boolean getFin() {
+		return (flags & FrameBuilder.FLAG_FIN) != 0;
+	}
+
+	public boolean getPsh() {
+		return (flags & FrameBuilder.FLAG_PSH) != 0;
+	}
+
+	public boolean getRst() {
+		return (flags & FrameBuilder.FLAG_RST) != 0;
+	}
+
+	public long getTimestampSec() {
+		return timestampUSec / 1000000;
+	}
+
+	public long getTimestampUSec() {
+		return timestampUSec % 1000000;
+	}
+}